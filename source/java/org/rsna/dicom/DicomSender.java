@@ -189,6 +189,7 @@ public class DicomSender {
         PresContext pc = null;
 
 		ActiveAssociation active = openAssoc();
+		if (active == null) throw new IOException("Rejected association");
         Association assoc = active.getAssociation();
         String tsuid = ds.getFileMetaInfo().getTransferSyntaxUID();
         pc = assoc.getAcceptedPresContext(sopClassUID, tsuid);
@@ -32,6 +32,7 @@ import java.util.regex.*;
 import sun.misc.BASE64Encoder;
 
 import org.rsna.dicom.DcmClient;
+import org.rsna.mircsite.util.DicomHeaderCache;
 
 import org.dcm4che.data.Command;
 import org.dcm4che.data.Dataset;
@@ -79,9 +80,6 @@ public class DicomAnonymizer {
 	static final DictionaryFactory dFact = DictionaryFactory.getInstance();
 	static final TagDictionary tagDictionary = dFact.getDefaultTagDictionary();
 
-	static BASE64Encoder b64Encoder = new BASE64Encoder();
-	static BASE64Decoder b64Decoder = new BASE64Decoder();
-
    /**
      * Anonymizes the input file, writing the result to the output file.
      * The input and output files are allowed to be the same.
@@ -183,6 +181,7 @@ public class DicomAnonymizer {
 			//Write the dataset as far as was parsed
 			dataset.writeDataset(out, encoding);
 			//Write the pixels if the parser actually stopped before pixeldata
+			long pixelDataOffset = -1;
             if (parser.getReadTag() == Tags.PixelData) {
                 dataset.writeHeader(
                     out,
@@ -190,6 +189,7 @@ public class DicomAnonymizer {
                     parser.getReadTag(),
                     parser.getReadVR(),
                     parser.getReadLength());
+				pixelDataOffset = out.getChannel().position();
                 if (encoding.encapsulated) {
                     parser.parseHeader();
                     while (parser.getReadTag() == Tags.Item) {
@@ -239,7 +239,9 @@ public class DicomAnonymizer {
 			in.close();
 			if (renameToSOPIUID) outFile = new File(outFile.getParentFile(),sopiUID+".dcm");
 			outFile.delete();
-			tempFile.renameTo(outFile);
+			//Keep the anonymized header so the next stage need not parse the file.
+			if (tempFile.renameTo(outFile)) DicomHeaderCache.put(outFile, dataset, pixelDataOffset);
+			else DicomHeaderCache.remove(outFile);
 		}
 
 		catch (Exception e) {
@@ -1031,7 +1033,7 @@ public class DicomAnonymizer {
 			String key = getParam(fn.cmds,fn.args[1]);
 			Cipher enCipher = getCipher(key);
 			byte[] encrypted = enCipher.doFinal(value.getBytes("UTF-8"));
-			return b64Encoder.encode(encrypted);
+			return new BASE64Encoder().encode(encrypted);
 		}
 		catch (Exception e) {
 			logger.warn("Exception caught in encipher"+fn.getArgs()+": "+e.getMessage());
@@ -1083,7 +1085,7 @@ public class DicomAnonymizer {
 
 		//And return the string padded to a full group.
 		keyText = (keyText + pad).substring(0,requiredGroupChars);
-		return b64Decoder.decodeBuffer(keyText);
+		return new BASE64Decoder().decodeBuffer(keyText);
 	}
 
 	//Execute the id function call. This function is used to
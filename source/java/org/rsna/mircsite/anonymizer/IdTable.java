@@ -306,14 +306,14 @@ public class IdTable {
 	 * even if it is clean; false if the IdTable is to be written
 	 * only if it is dirty.
 	 */
-	public static void storeLater(boolean forceStore) {
+	public static synchronized void storeLater(boolean forceStore) {
 		if (forceStore || dirty) storeLater();
 	}
 
 	/**
 	 * If storeLater is enabled, schedule a delayed store of the IdTable.
 	 */
-	public static void storeLater() {
+	public static synchronized void storeLater() {
 		if (!storeLaterEnabled) return;
 		long now = System.currentTimeMillis();
 		if ((now - lastTime) > delay) {
@@ -16,6 +16,7 @@ import org.rsna.mircsite.anonymizer.XmlAnonymizer;
 import org.rsna.mircsite.log.Log;
 import org.rsna.mircsite.util.DatabaseAdapter;
 import org.rsna.mircsite.util.DicomObject;
+import org.rsna.mircsite.util.WorkSignal;
 import org.rsna.mircsite.util.FileObject;
 import org.rsna.mircsite.util.XmlObject;
 import org.rsna.mircsite.util.ZipObject;
@@ -24,6 +25,13 @@ import org.rsna.mircsite.util.XmlUtil;
 
 /**
  * The Thread that exports DicomObjects to a database.
+ * <p>
+ * The database is treated as a destination as described in the
+ * DestinationHealth class. When it cannot be connected, or it asks the
+ * service to wait, the service backs off before trying again; when the
+ * circuit is open, the connection attempt serves as the probe. An object
+ * which the database rejects is quarantined; an object whose processing
+ * throws an exception is retried a limited number of times.
  */
 public class DatabaseExportService extends Thread {
 
@@ -34,6 +42,11 @@ public class DatabaseExportService extends Thread {
 	File lastParent = null;
 	String lastURL = "";
 	DatabaseAdapter db = null;
+	WorkSignal signal = new WorkSignal();
+	DestinationHealth health = newHealth();
+	static final long minRetryDelay = 2000;
+	static final long maxRetryDelay = 600000;
+	static final int STATUS_EXCEPTION = -100;
 
 	/**
 	 * Class constructor; creates a new instance of the DatabaseExportService.
@@ -49,8 +62,35 @@ public class DatabaseExportService extends Thread {
 	}
 
 	/**
-	 * The Runnable interface implementation. Process the queue directories
-	 * and send the files, then sleep for 10 seconds and check again.
+	 * Get the status of the database for display by the admin service.
+	 * @return the status.
+	 */
+	public String getDestinationStatus() {
+		return health.getStatus();
+	}
+
+	//Make the health record for the database.
+	private static DestinationHealth newHealth() {
+		return new DestinationHealth(serviceName, "the database", minRetryDelay, maxRetryDelay);
+	}
+
+	//Get the time to wait before the next pass: until an object
+	//is queued or the database export interval has passed, or if
+	//the database is failing, until its backoff expires.
+	private long getWaitTime() {
+		long wait = TrialConfig.getDatabaseExportInterval();
+		long nextTime = health.getNextTime();
+		long currentTime = System.currentTimeMillis();
+		if (nextTime > currentTime) wait = nextTime - currentTime + 1;
+		return wait;
+	}
+
+	/**
+	 * The Runnable interface implementation. Process the queue directory
+	 * and send the files, then wait until an object is queued or the
+	 * database export interval has passed, and check again. If the
+	 * database is failing, new objects do not cause it to be retried
+	 * before its backoff expires.
 	 */
 	public void run() {
 		running = false;
@@ -64,7 +104,7 @@ public class DatabaseExportService extends Thread {
 		while (running && !interrupted()) {
 			try {
 				processFiles();
-				sleep(TrialConfig.getDatabaseExportInterval());
+				signal.await(getWaitTime());
 			}
 			catch (Exception e) {
 				Log.message(serviceName + " exception:<br>" + e.getMessage());
@@ -87,6 +127,7 @@ public class DatabaseExportService extends Thread {
 			db = null;
 			db = getDatabase();
 		}
+		health = newHealth();
 	}
 
 	//Get the DatabaseAdapter. If it is already instantiated, return the
@@ -106,45 +147,65 @@ public class DatabaseExportService extends Thread {
 		return null;
 	}
 
-	//Look through the export directory and send all the files there.
-	//Note that the files are actually queue elements (text files
-	//containing the absolute file path to the DICOM object to be exported.
+	//Send the files in the export queue to the database, oldest first.
+	//Each pass processes at most the number of entries which were in
+	//the queue when it started, so that an entry which is queued again
+	//after a failure waits for the next pass.
 	private void processFiles() throws Exception {
 		if (db == null) return;
+		if (health.isWaiting()) return;
 		File directoryFile = TrialConfig.getDatabaseExportDirectoryFile();
 		if (directoryFile == null) return;
-		directoryFile.mkdirs();
-		File[] files = directoryFile.listFiles();
-		if (files.length == 0) return;
+		signal.watch(directoryFile);
+		ExportQueue queue = ExportQueue.get(directoryFile);
+		int limit = queue.size();
+		if (limit == 0) return;
 
 		File file = null;
 		int status;
-		ExportQueueElement eqe = null;
+		ExportQueue.Entry entry = null;
 		boolean connected = false;
 		status = db.connect();
 		if (status == DatabaseAdapter.STATUS_OK) connected = true;
-		else return; //the connection failed, go back and wait a while
+		else {
+			//the connection failed, go back and wait a while
+			backOff("Unable to connect to the database");
+			return;
+		}
 
 		//We got connected, process the files.
-		for (int k=0; k<files.length; k++) {
-			eqe = new ExportQueueElement(files[k]);
-			file = eqe.getQueuedFile();
-			if (file != null) {
-				status = processFile(file);
-				switch (status) {
-					case DatabaseAdapter.STATUS_OK:
-						Log.message(serviceName+": Processing complete:<br>"+file.getName()+"</font>");
-						eqe.delete();
-						break;
-					case DatabaseAdapter.STATUS_FAIL:
-						Log.message(serviceName+": "+Quarantine.file(eqe,serviceName));
-						logger.warn("Object quarantined: " + eqe.getName());
-						eqe.delete();
+		for (int k=0; (k<limit) && ((entry = queue.next()) != null); k++) {
+			file = entry.getFile();
+			status = processFile(file);
+			switch (status) {
+				case DatabaseAdapter.STATUS_OK:
+					Log.message(serviceName, Log.INFO, file.getName(), "Processing complete");
+					health.success();
+					queue.ack(entry);
+					break;
+				case STATUS_EXCEPTION:
+					if (DestinationHealth.retryObject(queue, entry)) {
+						Log.message(serviceName, Log.WARNING, file.getName(),
+									"Processing failed; the object will be retried");
 						break;
-					case DatabaseAdapter.STATUS_WAIT:
-						db.disconnect();
-						return;
-				}
+					}
+					Log.message(serviceName+": "+Quarantine.entry(queue,entry,serviceName,
+									"Exception while processing the object"));
+					logger.warn("Object quarantined: " + entry.getName());
+					queue.ack(entry);
+					break;
+				case DatabaseAdapter.STATUS_WAIT:
+					queue.release(entry);
+					db.disconnect();
+					backOff("The database asked for a wait");
+					return;
+				case DatabaseAdapter.STATUS_FAIL:
+				default:
+					Log.message(serviceName+": "+Quarantine.entry(queue,entry,serviceName,
+									"Rejected by the database (status " + status + ")"));
+					logger.warn("Object quarantined: " + entry.getName());
+					queue.ack(entry);
+					break;
 			}
 		}
 		db.disconnect();
@@ -152,7 +213,14 @@ public class DatabaseExportService extends Thread {
 		yield();
 	}
 
-	//Process one file
+	//Record a failure of the database and log the backoff.
+	private void backOff(String reason) {
+		long delay = health.failure();
+		Log.message(serviceName, Log.WARNING, null, reason + "; retrying in " + ((delay+999)/1000) + "s");
+	}
+
+	//Process one file. Return the status from the database, or
+	//STATUS_EXCEPTION if the processing threw an exception.
 	private int processFile(File file) {
 		FileObject fileObject;
 		String url = getMIRCdocumentURL(file);
@@ -172,7 +240,7 @@ public class DatabaseExportService extends Thread {
 			}
 			catch (Exception e) {
 				Log.message(serviceName+": Exception in processFile("+file+"):<br>"+e.getMessage());
-				return DatabaseAdapter.STATUS_FAIL;
+				return STATUS_EXCEPTION;
 			}
 		}
 
@@ -187,7 +255,7 @@ public class DatabaseExportService extends Thread {
 			}
 			catch (Exception e) {
 				Log.message(serviceName+": Exception in processFile("+file+"):<br>"+e.getMessage());
-				return DatabaseAdapter.STATUS_FAIL;
+				return STATUS_EXCEPTION;
 			}
 		}
 
@@ -202,7 +270,7 @@ public class DatabaseExportService extends Thread {
 			}
 			catch (Exception e) {
 				Log.message(serviceName+": Exception in processFile("+file+"):<br>"+e.getMessage());
-				return DatabaseAdapter.STATUS_FAIL;
+				return STATUS_EXCEPTION;
 			}
 		}
 
@@ -216,7 +284,7 @@ public class DatabaseExportService extends Thread {
 			}
 			catch (Exception e) {
 				Log.message(serviceName+": Exception in processFile("+file+"):<br>"+e.getMessage());
-				return DatabaseAdapter.STATUS_FAIL;
+				return STATUS_EXCEPTION;
 			}
 		}
 		return DatabaseAdapter.STATUS_FAIL;
@@ -0,0 +1,163 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.mircsite.dicomservice;
+
+import java.io.IOException;
+import java.util.Random;
+import org.rsna.mircsite.log.Log;
+
+/**
+ * The health of an export destination, used by the export services to
+ * decide when to send to it again after a failure.
+ * <p>
+ * The services classify each failure. A TRANSIENT failure is attributed
+ * to the destination (no connection, a connection which fails while
+ * an object is being sent, a busy receiver, a timeout); the
+ * object stays in the queue and the destination is not used again until
+ * a backoff expires. The backoff starts at the minimum delay and doubles
+ * with each consecutive failure up to the maximum delay, with random
+ * jitter so that destinations which failed together are not retried
+ * together. After several consecutive failures the circuit is open: the
+ * service must probe the destination (for example, by pinging it) when
+ * the backoff expires, and sends nothing to it until a probe or a
+ * transfer succeeds.
+ * <p>
+ * A PERMANENT failure means the object can never be sent (for example,
+ * the queued file no longer exists); it is quarantined at once. A POISON
+ * failure means the object itself may be the cause; it is retried until
+ * it has failed maxAttempts times, as counted in its queue entry, and
+ * then quarantined, so that it cannot block the queue.
+ */
+public class DestinationHealth {
+
+	/** A failure of the destination; the object is retried after a backoff. */
+	public static final int TRANSIENT = 0;
+
+	/** A failure which will recur; the object is quarantined. */
+	public static final int PERMANENT = 1;
+
+	/** A failure which may be caused by the object; it is retried a limited number of times. */
+	public static final int POISON = 2;
+
+	/** The number of times an object may fail with a POISON failure before it is quarantined. */
+	public static final int maxAttempts = 5;
+
+	static final int openThreshold = 3;
+
+	private static final Random random = new Random();
+
+	private final String serviceName;
+	private final String name;
+	private final long minDelay;
+	private final long maxDelay;
+	private int failures = 0;
+	private long nextTime = 0;
+
+	/**
+	 * Create a DestinationHealth for a destination which is available.
+	 * @param serviceName the name of the service, for logging.
+	 * @param name the name of the destination, for logging.
+	 * @param minDelay the backoff after the first failure, in milliseconds.
+	 * @param maxDelay the maximum backoff, in milliseconds.
+	 */
+	public DestinationHealth(String serviceName, String name, long minDelay, long maxDelay) {
+		this.serviceName = serviceName;
+		this.name = name;
+		this.minDelay = minDelay;
+		this.maxDelay = Math.max(minDelay, maxDelay);
+	}
+
+	/**
+	 * Determine whether the destination is waiting for its backoff to expire.
+	 * @return true if nothing is to be sent to the destination now.
+	 */
+	public synchronized boolean isWaiting() {
+		return System.currentTimeMillis() < nextTime;
+	}
+
+	/**
+	 * Determine whether the circuit is open, meaning that the destination
+	 * must be probed before objects are sent to it.
+	 * @return true if the circuit is open.
+	 */
+	public synchronized boolean isOpen() {
+		return failures >= openThreshold;
+	}
+
+	/**
+	 * Get the time at which the destination may be used again.
+	 * @return the time, in milliseconds, or zero if the destination is available.
+	 */
+	public synchronized long getNextTime() {
+		return nextTime;
+	}
+
+	/**
+	 * Record a successful transfer or probe, closing the circuit.
+	 */
+	public synchronized void success() {
+		if (failures >= openThreshold)
+			Log.message(serviceName, Log.INFO, null, name + " is available again");
+		failures = 0;
+		nextTime = 0;
+	}
+
+	/**
+	 * Record a TRANSIENT failure and start the backoff. A failure reported
+	 * while the destination is already waiting (for example, by another
+	 * thread sending to the same destination) does not lengthen the backoff.
+	 * @return the backoff, in milliseconds.
+	 */
+	public synchronized long failure() {
+		long currentTime = System.currentTimeMillis();
+		if (currentTime < nextTime) return nextTime - currentTime;
+		failures++;
+		long delay = maxDelay;
+		if (failures <= 30) delay = Math.min(maxDelay, minDelay << (failures - 1));
+		//Wait between half and all of the delay.
+		long half = delay / 2;
+		delay = half + (long)(random.nextDouble() * (delay - half));
+		nextTime = currentTime + delay;
+		if (failures == openThreshold) {
+			Log.message(serviceName, Log.WARNING, null,
+				name + " failed " + failures + " times in a row; nothing will be sent to it until it responds");
+		}
+		return delay;
+	}
+
+	/**
+	 * Handle a POISON failure of an entry: if it has not failed maxAttempts
+	 * times, count the attempt and queue it again at the end of its queue.
+	 * @param queue the queue.
+	 * @param entry the entry, which has been delivered by the queue.
+	 * @return true if the entry was queued again; false if it has
+	 * failed maxAttempts times and is to be quarantined.
+	 */
+	public static boolean retryObject(ExportQueue queue, ExportQueue.Entry entry) {
+		if (entry.getAttempts() + 1 >= maxAttempts) return false;
+		try {
+			queue.nack(entry);
+			return true;
+		}
+		catch (IOException ex) { return false; }
+	}
+
+	/**
+	 * Get a description of the state of the destination for display.
+	 * @return the state.
+	 */
+	public synchronized String getStatus() {
+		long wait = nextTime - System.currentTimeMillis();
+		if (failures == 0) return "available";
+		String state = (failures >= openThreshold) ? "unavailable" : "retrying";
+		state += " after " + failures + ((failures == 1) ? " failure" : " failures");
+		if (wait > 0) state += "; next attempt in " + ((wait + 999) / 1000) + "s";
+		return state;
+	}
+
+}
@@ -21,6 +21,10 @@ import org.w3c.dom.NodeList;
 
 /**
  * The Thread that exports DicomObjects via the DICOM protocol.
+ * <p>
+ * Failures are classified as described in the DestinationHealth class.
+ * There is no way to ping a DICOM receiver, so when the circuit of a
+ * destination is open, the next object sent to it serves as the probe.
  */
 public class DicomExportService extends Thread {
 
@@ -30,7 +34,11 @@ public class DicomExportService extends Thread {
 	File[] directoryFiles = null;
 	String[] aeTitles = null;
 	String[] ipAddresses = null;
-	long[] nextTimes = null;
+	DestinationHealth[] health = null;
+	WorkSignal signal = new WorkSignal();
+	static final long sweepInterval = 60000;
+	static final long minRetryDelay = 2000;
+	static final long maxRetryDelay = 600000;
 	static final String serviceName = "DicomExportService";
 	static final Logger logger = Logger.getLogger(DicomExportService.class);
 
@@ -44,7 +52,7 @@ public class DicomExportService extends Thread {
 	//Initialize the DicomExportService.
 	//Get the parameters for exporting, including the export directories,
 	//the AE titles, IP addresses and ports for all the destinations.
-	//Reset all the timeouts to zero. This method is called whenever the
+	//Mark all the destinations as available. This method is called whenever the
 	//object is created or restarted.
 	private void initialize() {
 		reinitialize = false;
@@ -52,12 +60,29 @@ public class DicomExportService extends Thread {
 		directoryFiles = TrialConfig.getDicomExportDirectoryFiles();
 		aeTitles = TrialConfig.getDicomExportAETitles();
 		ipAddresses = TrialConfig.getDicomExportIPAddresses();
-		nextTimes = new long[ipAddresses.length];
-		for (int i=0; i<nextTimes.length; i++) {
-			nextTimes[i] = 0;
+		health = new DestinationHealth[ipAddresses.length];
+		for (int i=0; i<health.length; i++) {
+			health[i] = new DestinationHealth(serviceName, ipAddresses[i], minRetryDelay, maxRetryDelay);
+		}
+		signal.unwatchAll();
+		if (directoryFiles != null) {
+			for (int i=0; i<directoryFiles.length; i++) signal.watch(directoryFiles[i]);
 		}
 	}
 
+	//Get the time to wait before the next pass: until an object is
+	//queued, the earliest time a destination which failed is to be
+	//retried, or the safety sweep, whichever comes first.
+	private long getWaitTime() {
+		long wait = sweepInterval;
+		long currentTime = System.currentTimeMillis();
+		for (int i=0; i<health.length; i++) {
+			long nextTime = health[i].getNextTime();
+			if (nextTime > currentTime) wait = Math.min(wait, nextTime - currentTime + 1);
+		}
+		return wait;
+	}
+
 	/**
 	 * Get the status text for display by the admin service.
 	 */
@@ -66,9 +91,20 @@ public class DicomExportService extends Thread {
 		return "not running";
 	}
 
+	/**
+	 * Get the status of a destination for display by the admin service.
+	 * @param i the index of the destination.
+	 * @return the status, or the empty string if there is no such destination.
+	 */
+	public String getDestinationStatus(int i) {
+		DestinationHealth[] h = health;
+		if ((h == null) || (i < 0) || (i >= h.length)) return "";
+		return h[i].getStatus();
+	}
+
 	/**
 	 * The Runnable interface implementation. Process the queue directories
-	 * and send the files, then sleep for 10 seconds and check again.
+	 * and send the files, then wait until an object is queued and check again.
 	 */
 	public void run() {
 		Log.message(serviceName+": Started");
@@ -76,7 +112,7 @@ public class DicomExportService extends Thread {
 		while (!interrupted()) {
 			try {
 				processFiles();
-				sleep(10000);
+				signal.await(getWaitTime());
 			}
 			catch (Exception e) {
 				running = false;
@@ -96,87 +132,102 @@ public class DicomExportService extends Thread {
 	 */
 	public void restart() {
 		reinitialize = true;
+		signal.signal();
 	}
 
-	//Look through the export directories and
-	//send all the files there, oldest first. Note that the
-	//files are actually queue elements (text files containing
-	//the absolute file path to the DICOM object to be exported.
+	//Send the files in the export queues of all the destinations,
+	//oldest first. Each pass sends at most the number of entries
+	//which were in a queue when it started, so that an entry which
+	//is queued again after a failure waits for the next pass.
 	private void processFiles() {
 		String result;
 		String resultLC;
-		long currentTime;
 		if (directoryFiles == null) return;
 		if (directoryFiles.length != ipAddresses.length) return;
 
 		for (int i=0; i<ipAddresses.length; i++) {
-			//protect against a new destination that is
-			//serviced before it is created by the queuing
-			//of an object.
-			if (!directoryFiles[i].exists()) directoryFiles[i].mkdirs();
-			File[] files = directoryFiles[i].listFiles();
-
-			for (int k=0; (k<files.length)
-							&& ((currentTime = System.currentTimeMillis()) > nextTimes[i]);
-									k++) {
-				File file = files[k];
-				result = export(file,aeTitles[i],ipAddresses[i]);
+			//Skip a destination which is waiting to be retried.
+			if (health[i].isWaiting()) continue;
+			ExportQueue queue;
+			try { queue = ExportQueue.get(directoryFiles[i]); }
+			catch (IOException ex) {
+				logger.warn("Unable to open the export queue in " + directoryFiles[i], ex);
+				continue;
+			}
+			int limit = queue.size();
+			ExportQueue.Entry entry;
+
+			for (int k=0; (k<limit) && !health[i].isWaiting() && ((entry = queue.next()) != null); k++) {
+				String name = entry.getName();
+				result = export(entry.getFile(),aeTitles[i],ipAddresses[i]);
 				resultLC = result.toLowerCase();
+				int type;
 				if (result.equals("OK")) {
-					file.delete();
-					Log.message(serviceName+": Export successful: "+file.getName());
+					queue.ack(entry);
+					health[i].success();
+					Log.message(serviceName, Log.INFO, name, "Export successful");
 				}
 				else if (resultLC.indexOf("d000") != -1) {
 					//Assume this means the exported object's UID already existed on the receiver.
 					//Note that the event occurred, but treat it as a success.
-					String dicomFilePath = FileUtil.getFileText(file);
+					queue.ack(entry);
+					health[i].success();
 					Log.message(
 						serviceName+": Export result: 0xD000 [duplicate UID?]"+
 						"<br>Destination: "+directoryFiles[i].getName()+
-						"<br>Queue element: "+file.getName()+
-						"<br>DicomObject: "+dicomFilePath+
-						"<br>"+((file.delete()) ?
-							"The queue element was deleted." :
-							"The queue element could not be deleted."));
-				}
-				else if (resultLC.indexOf("c001") != -1) {
-					//Assume that this means the receiver's resources were not available.
-					//Note that this occurred, and then force a wait for 5 seconds.
-					Log.message(
-						serviceName+": Export result: 0xC001 [resource unavailable?]"+
-						"<br>The object was requeued.");
-					nextTimes[i] = currentTime + 5000;
+						"<br>DicomObject: "+entry.getFile()+
+						"<br>The object was removed from the queue.");
 				}
-				else if (result.equals("Rejected association")) {
-					//wait 10 minutes if there was no connection
-					nextTimes[i] = currentTime + 600000;
-					Log.message(serviceName+": Rejected association to "+ipAddresses[i]);
+				else if ((type = classify(result)) == DestinationHealth.TRANSIENT) {
+					//Leave the object in the queue and stop
+					//sending to the destination for a while.
+					queue.release(entry);
+					long delay = health[i].failure();
+					Log.message(serviceName, Log.WARNING, name,
+						"Export to "+ipAddresses[i]+" failed ("+result+"); retrying in "+((delay+999)/1000)+"s");
 				}
-				else if ((resultLC.indexOf("timeout") != -1) ||
-						 (resultLC.indexOf("timed out") != -1)) {
-					//wait 10 seconds and try again if there was a timeout
-					nextTimes[i] = currentTime + 10000;
-					Log.message(serviceName+": " + result + ": " + file.getName());
+				else if ((type == DestinationHealth.POISON) && DestinationHealth.retryObject(queue, entry)) {
+					Log.message(serviceName, Log.WARNING, name,
+						"Export failure: " + result + "; the object will be sent again");
+					logger.warn("Export failure: "+ result + ": " + name);
 				}
 				else {
-					Log.message(serviceName+": Export failure: "+ result + ": " + file.getName());
-					logger.warn("Export failure: "+ result + ": " + file.getName());
-					Log.message(Quarantine.file(file,serviceName));
+					Log.message(serviceName, Log.ERROR, name, "Export failure: " + result);
+					logger.warn("Export failure: "+ result + ": " + name);
+					Log.message(Quarantine.entry(queue,entry,serviceName,"Export failure: " + result));
+					queue.ack(entry);
 				}
 				yield();
 			}
 		}
 	}
 
+	//Classify the result of a failed export.
+	static int classify(String result) {
+		String resultLC = result.toLowerCase();
+		if (result.startsWith("Error:")) return DestinationHealth.PERMANENT;
+		if (result.equals("Rejected association")
+				|| result.startsWith("Connection failure:")
+				|| (resultLC.indexOf("timeout") != -1)
+				|| (resultLC.indexOf("timed out") != -1)) return DestinationHealth.TRANSIENT;
+		//DICOM status codes: 0xA7xx is a refusal because the receiver
+		//is out of resources; 0xC001 is treated the same way. 0xA9xx
+		//(data set does not match SOP class) and 0x0122 (SOP class not
+		//supported) will recur.
+		int k = result.indexOf("[");
+		int kk = result.indexOf("]", k+1);
+		if ((k != -1) && (kk != -1)) {
+			String status = result.substring(k+1, kk).toLowerCase();
+			if (status.startsWith("a7") || status.equals("c001")) return DestinationHealth.TRANSIENT;
+			if (status.startsWith("a9") || status.equals("122")) return DestinationHealth.PERMANENT;
+		}
+		return DestinationHealth.POISON;
+	}
+
 	//Export one file.
-	private String export(File file, String aeTitle, String ipAddress) {
-		ExportQueueElement eqe;
-		File fileToExport;
-		//Use the file input argument to create a queue element
-		//and then use it to get the queued file.
-		eqe = new ExportQueueElement(file);
-		fileToExport = eqe.getQueuedFile();
-		if (fileToExport == null) return "Error: Null fileToExport";
+	private String export(File fileToExport, String aeTitle, String ipAddress) {
+		//A queued file which no longer exists can never be sent.
+		if (!fileToExport.isFile()) return "Error: " + fileToExport + " not found";
 		int k = ipAddress.indexOf(":");
 		if (k < 0) return ("Error: IP Address with no port specified");
 		String host = ipAddress.substring(0,k);
@@ -191,10 +242,19 @@ public class DicomExportService extends Thread {
 				return "DicomSend Error; result = " + result + "["+Integer.toHexString(result)+"]";
 			}
 		}
+		catch (ConnectException e) {
+			return "Connection failure: "+e.getMessage();
+		}
+		catch (UnknownHostException e) {
+			return "Connection failure: unknown host "+e.getMessage();
+		}
+		catch (NoRouteToHostException e) {
+			return "Connection failure: "+e.getMessage();
+		}
 		catch (Exception e) {
-			logger.error(serviceName+" Export Exception for "+file,e);
-			Log.message(serviceName+" Export Exception for "+file+"<br>Exception message: "+e.getMessage());
-			return e.getMessage();
+			logger.error(serviceName+" Export Exception for "+fileToExport,e);
+			Log.message(serviceName+" Export Exception for "+fileToExport+"<br>Exception message: "+e.getMessage());
+			return (e.getMessage() != null) ? e.getMessage() : e.toString();
 		}
 		return "OK";
 	}
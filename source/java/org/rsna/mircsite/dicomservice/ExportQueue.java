@@ -0,0 +1,640 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.mircsite.dicomservice;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+import org.apache.log4j.Logger;
+import org.rsna.mircsite.log.Log;
+import org.rsna.mircsite.util.WorkSignal;
+
+/**
+ * A durable queue of files to be exported to one destination, stored in
+ * the export directory of the destination.
+ * <p>
+ * The queue is a series of append-only segment files, each holding one
+ * line per entry: a CRC-32 of the rest of the line, the number of failed
+ * attempts to export the file, and the absolute path of the file. New
+ * segments are started when the current one reaches maxSegmentBytes.
+ * A separate offset file records the position of the oldest entry which
+ * has not been acknowledged; segments before it are deleted.
+ * <p>
+ * An exporter takes entries with next and must either ack an entry when
+ * it is done with it, nack it to count a failed attempt and queue it again
+ * at the end, or release it to have it delivered again first. When an
+ * entry is acknowledged while an older one is still pending, an ack line
+ * holding the key of the entry (its segment and position) is appended,
+ * so that the entry is not delivered again after a restart and the size
+ * of the queue stays exact. Entries which have been delivered but not
+ * acknowledged when the program stops are delivered again when the queue
+ * is next opened.
+ * <p>
+ * Appends, including ack lines, are written to the segment at once, so
+ * they survive a crash of the program. They are forced to the disk, and
+ * the offset is saved, at most syncInterval milliseconds later, so that
+ * one disk sync covers all the entries queued in that time. An entry
+ * acknowledged within syncInterval of a crash of the system may therefore
+ * be delivered again; the queue delivers each entry at least once. The disk sync is done outside the
+ * lock of the queue, so that exporters and the processor queueing new
+ * entries do not wait for it.
+ * <p>
+ * When a queue is opened, any queue element files left in the directory
+ * by earlier versions are imported into the queue and deleted.
+ */
+public class ExportQueue {
+
+	static final Logger logger = Logger.getLogger(ExportQueue.class);
+
+	static final String segmentExtension = ".seg";
+	static final String offsetFilename = "offset";
+	static final String ackMarker = "ack";
+	static final long maxSegmentBytes = 1024 * 1024;
+	static final long syncInterval = 100;
+
+	private static final Hashtable<String,ExportQueue> queues = new Hashtable<String,ExportQueue>();
+	private static Timer syncTimer = null;
+
+	private final File dir;
+	private final File offsetFile;
+	private final TreeMap<Long,Entry> pending = new TreeMap<Long,Entry>();
+	private final LinkedList<Entry> redeliver = new LinkedList<Entry>();
+	private final HashSet<Long> acked = new HashSet<Long>();
+	private final Object syncLock = new Object();
+	private int size = 0;
+	private boolean closed = false;
+
+	private long writeSegment;
+	private FileOutputStream writer = null;
+	private long writePosition;
+	private boolean dirty = false;
+
+	private long readSegment;
+	private long readPosition;
+	private SegmentReader reader = null;
+
+	private long savedSegment = -1;
+	private long savedPosition = -1;
+
+	/**
+	 * An entry in an ExportQueue.
+	 */
+	public static class Entry {
+		final long segment;
+		final long position;
+		final int attempts;
+		final File file;
+
+		Entry(long segment, long position, int attempts, File file) {
+			this.segment = segment;
+			this.position = position;
+			this.attempts = attempts;
+			this.file = file;
+		}
+
+		/**
+		 * Get the file to be exported.
+		 * @return the file.
+		 */
+		public File getFile() {
+			return file;
+		}
+
+		/**
+		 * Get the number of failed attempts which have been made to export the file.
+		 * @return the number of attempts.
+		 */
+		public int getAttempts() {
+			return attempts;
+		}
+
+		/**
+		 * Get a name for the entry for logging.
+		 * @return the name of the file.
+		 */
+		public String getName() {
+			return file.getName();
+		}
+
+		long getKey() {
+			return ExportQueue.getKey(segment, position);
+		}
+	}
+
+	/**
+	 * Get the queue stored in a directory, opening it if necessary.
+	 * @param dir the export directory.
+	 * @return the queue.
+	 * @throws IOException if the queue cannot be opened.
+	 */
+	public static synchronized ExportQueue get(File dir) throws IOException {
+		String key = dir.getAbsolutePath();
+		ExportQueue queue = queues.get(key);
+		if (queue == null) {
+			queue = new ExportQueue(dir);
+			queues.put(key, queue);
+			if (syncTimer == null) {
+				syncTimer = new Timer("ExportQueue sync", true);
+				syncTimer.schedule(new SyncTask(), syncInterval, syncInterval);
+			}
+		}
+		return queue;
+	}
+
+	/**
+	 * Get the number of entries in the queue stored in a directory,
+	 * including entries which have been delivered but not acknowledged.
+	 * @param dir the export directory.
+	 * @return the number of entries, or zero if the queue cannot be opened.
+	 */
+	public static int size(File dir) {
+		try { return get(dir).size(); }
+		catch (Exception ex) { return 0; }
+	}
+
+	/**
+	 * Save the state of all the open queues and close their files.
+	 * The queues are reopened the next time they are used.
+	 */
+	public static synchronized void closeAll() {
+		if (syncTimer != null) {
+			syncTimer.cancel();
+			syncTimer = null;
+		}
+		for (ExportQueue queue : queues.values()) queue.close();
+		queues.clear();
+	}
+
+	//Open the queue in a directory, recovering from a crash and
+	//importing any queue element files left by earlier versions.
+	private ExportQueue(File dir) throws IOException {
+		this.dir = dir;
+		dir.mkdirs();
+		offsetFile = new File(dir, offsetFilename);
+		long[] segments = listSegments();
+		readOffset();
+		if (segments.length == 0) {
+			readSegment = 0;
+			readPosition = 0;
+			writeSegment = 0;
+			writePosition = 0;
+		}
+		else {
+			if ((savedSegment < segments[0]) || (savedSegment > segments[segments.length-1])) {
+				savedSegment = segments[0];
+				savedPosition = 0;
+			}
+			savedPosition = Math.min(savedPosition, getSegmentFile(savedSegment).length());
+			readSegment = savedSegment;
+			readPosition = savedPosition;
+			writeSegment = segments[segments.length-1];
+			writePosition = recover(segments);
+		}
+		savedSegment = readSegment;
+		savedPosition = readPosition;
+		writer = new FileOutputStream(getSegmentFile(writeSegment), true);
+		importQueueElements();
+	}
+
+	/**
+	 * Add a file to the end of the queue and wake the exporter.
+	 * @param file the file to be exported.
+	 * @throws IOException if the entry cannot be written.
+	 */
+	public void add(File file) throws IOException {
+		synchronized (this) { append(file.getAbsolutePath(), 0); }
+		WorkSignal.post(dir);
+	}
+
+	/**
+	 * Get the next entry to be exported. Entries which have been
+	 * released are delivered first, then entries in the order in
+	 * which they were queued.
+	 * @return the entry, or null if there are no undelivered entries.
+	 */
+	public synchronized Entry next() {
+		if (redeliver.size() > 0) return redeliver.removeFirst();
+		try {
+			while (true) {
+				if (reader == null) reader = new SegmentReader(getSegmentFile(readSegment), readPosition);
+				String line = reader.readLine();
+				if (line == null) {
+					//The end of the segment. Go on to the next one
+					//unless this is the one being written.
+					if (readSegment >= writeSegment) return null;
+					reader.close();
+					reader = null;
+					readSegment++;
+					readPosition = 0;
+					continue;
+				}
+				long position = readPosition;
+				readPosition = reader.getPosition();
+				//Skip ack lines, and entries which were acknowledged
+				//before the queue was opened.
+				if (parseAck(line) != null) continue;
+				if (acked.remove(new Long(getKey(readSegment, position)))) continue;
+				Entry entry = parse(readSegment, position, line);
+				if (entry == null) {
+					size--;
+					continue;
+				}
+				pending.put(new Long(entry.getKey()), entry);
+				return entry;
+			}
+		}
+		catch (IOException ex) {
+			logger.warn("Unable to read the export queue in " + dir, ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Remove a delivered entry from the queue.
+	 * @param entry the entry.
+	 */
+	public synchronized void ack(Entry entry) {
+		Long key = new Long(entry.getKey());
+		if (pending.remove(key) == null) return;
+		size--;
+		redeliver.remove(entry);
+		//The offset only moves past the oldest pending entry,
+		//so record an ack for any other entry.
+		if ((pending.size() > 0) && (pending.firstKey().longValue() < key.longValue())) {
+			try { write(ackMarker + " " + key); }
+			catch (IOException ex) {
+				logger.warn("Unable to record an ack in the export queue in " + dir, ex);
+			}
+		}
+	}
+
+	/**
+	 * Count a failed attempt to export a delivered entry and queue it
+	 * again at the end of the queue.
+	 * @param entry the entry.
+	 * @throws IOException if the entry cannot be written.
+	 */
+	public synchronized void nack(Entry entry) throws IOException {
+		append(entry.file.getAbsolutePath(), entry.attempts + 1);
+		ack(entry);
+	}
+
+	/**
+	 * Return a delivered entry to the queue without counting an
+	 * attempt. It is the next entry to be delivered.
+	 * @param entry the entry.
+	 */
+	public synchronized void release(Entry entry) {
+		if (pending.containsKey(new Long(entry.getKey())) && !redeliver.contains(entry))
+			redeliver.addFirst(entry);
+	}
+
+	/**
+	 * Get the directory in which the queue is stored.
+	 * @return the export directory.
+	 */
+	public File getDirectory() {
+		return dir;
+	}
+
+	/**
+	 * Get the number of entries in the queue, including entries
+	 * which have been delivered but not acknowledged.
+	 * @return the number of entries.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	//Append an entry to the segment being written.
+	private void append(String path, int attempts) throws IOException {
+		write(attempts + " " + path);
+		size++;
+	}
+
+	//Write a line with its checksum to the segment being written,
+	//starting a new segment if it is full.
+	private void write(String text) throws IOException {
+		if (writePosition >= maxSegmentBytes) {
+			writer.getFD().sync();
+			writer.close();
+			writeSegment++;
+			writePosition = 0;
+			writer = new FileOutputStream(getSegmentFile(writeSegment), true);
+		}
+		byte[] bytes = (checksum(text) + " " + text + "\n").getBytes("UTF-8");
+		writer.write(bytes);
+		writePosition += bytes.length;
+		dirty = true;
+	}
+
+	//Force the appended entries to the disk, save the offset
+	//of the oldest unacknowledged entry, and delete the
+	//segments before it. The state is taken under the lock
+	//of the queue; the disk is written outside it.
+	private void sync() {
+		synchronized (syncLock) {
+			FileOutputStream syncWriter;
+			long segment;
+			long position;
+			synchronized (this) {
+				if (closed) return;
+				syncWriter = dirty ? writer : null;
+				dirty = false;
+				segment = readSegment;
+				position = readPosition;
+				if (pending.size() > 0) {
+					Entry first = pending.get(pending.firstKey());
+					segment = first.segment;
+					position = first.position;
+				}
+			}
+			try {
+				if (syncWriter != null) {
+					try { syncWriter.getFD().sync(); }
+					catch (IOException ex) {
+						//A segment which was closed when a new one was
+						//started was synced by append before it was closed.
+						synchronized (this) {
+							if (syncWriter != writer) syncWriter = null;
+							else dirty = true;
+						}
+						if (syncWriter != null) throw ex;
+					}
+				}
+				if ((segment != savedSegment) || (position != savedPosition)) {
+					writeOffset(segment, position);
+					for (long s=savedSegment; s<segment; s++) getSegmentFile(s).delete();
+					savedSegment = segment;
+					savedPosition = position;
+				}
+			}
+			catch (IOException ex) {
+				logger.warn("Unable to sync the export queue in " + dir, ex);
+			}
+		}
+	}
+
+	//Save the state of the queue and close its files.
+	private void close() {
+		sync();
+		synchronized (this) {
+			closed = true;
+			try { writer.close(); }
+			catch (Exception ignore) { }
+			if (reader != null) reader.close();
+			reader = null;
+		}
+	}
+
+	//Count the entries from the saved offset to the end of the queue,
+	//including damaged ones, which are skipped when they are read,
+	//less the entries which have been acknowledged, and truncate the
+	//last segment after its last complete entry in case the program
+	//stopped while an entry was being written. Return the length of
+	//the last segment.
+	private long recover(long[] segments) throws IOException {
+		long end = 0;
+		long first = getKey(readSegment, readPosition);
+		for (int i=0; i<segments.length; i++) {
+			if (segments[i] < readSegment) continue;
+			long start = (segments[i] == readSegment) ? readPosition : 0;
+			SegmentReader sr = new SegmentReader(getSegmentFile(segments[i]), start);
+			try {
+				long position = start;
+				String line;
+				while ((line = sr.readLine()) != null) {
+					Long key = parseAck(line);
+					if (key == null) size++;
+					else if ((key.longValue() >= first) && acked.add(key)) size--;
+					position = sr.getPosition();
+				}
+				end = position;
+			}
+			finally { sr.close(); }
+		}
+		File last = getSegmentFile(writeSegment);
+		if (last.length() > end) {
+			logger.warn("Truncating an incomplete entry in " + last);
+			RandomAccessFile raf = new RandomAccessFile(last, "rw");
+			try { raf.setLength(end); }
+			finally { raf.close(); }
+		}
+		return end;
+	}
+
+	//Parse an ack line, returning the key of the acknowledged
+	//entry, or null if the line is not an undamaged ack line.
+	private Long parseAck(String line) {
+		int k = line.indexOf(' ');
+		if ((k > 0) && line.startsWith(ackMarker + " ", k+1)) {
+			String text = line.substring(k+1);
+			if (line.substring(0, k).equals(checksum(text))) {
+				try { return new Long(text.substring(ackMarker.length() + 1)); }
+				catch (NumberFormatException ex) { }
+			}
+		}
+		return null;
+	}
+
+	//Parse an entry, returning null if it is damaged.
+	private Entry parse(long segment, long position, String line) {
+		int k = line.indexOf(' ');
+		int kk = line.indexOf(' ', k+1);
+		if ((k > 0) && (kk > k)) {
+			String text = line.substring(k+1);
+			if (line.substring(0, k).equals(checksum(text))) {
+				try {
+					int attempts = Integer.parseInt(line.substring(k+1, kk));
+					return new Entry(segment, position, attempts, new File(line.substring(kk+1)));
+				}
+				catch (NumberFormatException ex) { }
+			}
+		}
+		logger.warn("Skipping a damaged entry in the export queue in " + dir + ": " + line);
+		return null;
+	}
+
+	//Import the queue element files in the directory, oldest first.
+	private void importQueueElements() throws IOException {
+		File[] files = dir.listFiles(new QueueElementFilter());
+		if ((files == null) || (files.length == 0)) return;
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long diff = a.lastModified() - b.lastModified();
+				return (diff < 0) ? -1 : ((diff > 0) ? 1 : a.getName().compareTo(b.getName()));
+			}
+		});
+		int count = 0;
+		for (int i=0; i<files.length; i++) {
+			ExportQueueElement eqe = new ExportQueueElement(files[i]);
+			File file = eqe.getQueuedFile();
+			if (file != null) {
+				append(file.getAbsolutePath(), eqe.getAttempts());
+				count++;
+			}
+		}
+		writer.getFD().sync();
+		dirty = false;
+		for (int i=0; i<files.length; i++) files[i].delete();
+		Log.message("ExportQueue: Imported " + count + " queue elements into " + dir);
+	}
+
+	//Get the numbers of the segments in the directory, in order.
+	private long[] listSegments() {
+		File[] files = dir.listFiles();
+		ArrayList<Long> list = new ArrayList<Long>();
+		if (files != null) {
+			for (int i=0; i<files.length; i++) {
+				String name = files[i].getName();
+				if (name.endsWith(segmentExtension)) {
+					try { list.add(new Long(name.substring(0, name.length() - segmentExtension.length()))); }
+					catch (NumberFormatException ignore) { }
+				}
+			}
+		}
+		Collections.sort(list);
+		long[] segments = new long[list.size()];
+		for (int i=0; i<segments.length; i++) segments[i] = list.get(i).longValue();
+		return segments;
+	}
+
+	//Get the key of the entry at a position in a segment.
+	//Keys are in the order of the entries in the queue.
+	static long getKey(long segment, long position) {
+		return (segment << 32) | position;
+	}
+
+	private File getSegmentFile(long segment) {
+		String name = Long.toString(segment);
+		while (name.length() < 12) name = "0" + name;
+		return new File(dir, name + segmentExtension);
+	}
+
+	//Read the saved offset: the segment, the position, and a check value.
+	//If the file is missing or damaged, the queue is read from the start.
+	private void readOffset() {
+		savedSegment = -1;
+		savedPosition = -1;
+		if (!offsetFile.exists()) return;
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(offsetFile));
+			try {
+				long segment = in.readLong();
+				long position = in.readLong();
+				if (in.readLong() == (segment ^ position ^ 0x4d495243L)) {
+					savedSegment = segment;
+					savedPosition = position;
+				}
+			}
+			finally { in.close(); }
+		}
+		catch (IOException ex) {
+			logger.warn("Unable to read the export queue offset in " + dir);
+		}
+	}
+
+	//Overwrite the saved offset in place.
+	private void writeOffset(long segment, long position) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(offsetFile, "rw");
+		try {
+			raf.writeLong(segment);
+			raf.writeLong(position);
+			raf.writeLong(segment ^ position ^ 0x4d495243L);
+			raf.getFD().sync();
+		}
+		finally { raf.close(); }
+	}
+
+	private static String checksum(String text) {
+		CRC32 crc = new CRC32();
+		try { crc.update(text.getBytes("UTF-8")); }
+		catch (UnsupportedEncodingException ex) { crc.update(text.getBytes()); }
+		return Long.toHexString(crc.getValue());
+	}
+
+	//Accept the files in an export directory which are not part of the queue.
+	static class QueueElementFilter implements FileFilter {
+		public boolean accept(File file) {
+			String name = file.getName();
+			return file.isFile() && !name.endsWith(segmentExtension) && !name.equals(offsetFilename);
+		}
+	}
+
+	//Sync all the open queues.
+	static class SyncTask extends TimerTask {
+		public void run() {
+			ExportQueue[] list;
+			synchronized (ExportQueue.class) {
+				list = queues.values().toArray(new ExportQueue[queues.size()]);
+			}
+			for (int i=0; i<list.length; i++) list[i].sync();
+		}
+	}
+
+	//A reader for the lines of a segment which tracks its position
+	//and does not consume a line until it is complete, so that it can
+	//follow a segment which is being written.
+	static class SegmentReader {
+		FileInputStream in;
+		byte[] buffer = new byte[8192];
+		int start = 0;
+		int end = 0;
+		long position;
+
+		SegmentReader(File file, long position) throws IOException {
+			this.position = position;
+			in = new FileInputStream(file);
+			long skipped = 0;
+			while (skipped < position) {
+				long n = in.skip(position - skipped);
+				if (n <= 0) break;
+				skipped += n;
+			}
+		}
+
+		//Get the next complete line, without its newline,
+		//or null if there is no complete line.
+		String readLine() throws IOException {
+			while (true) {
+				for (int i=start; i<end; i++) {
+					if (buffer[i] == '\n') {
+						String line = new String(buffer, start, i - start, "UTF-8");
+						position += i + 1 - start;
+						start = i + 1;
+						return line;
+					}
+				}
+				if (start > 0) {
+					System.arraycopy(buffer, start, buffer, 0, end - start);
+					end -= start;
+					start = 0;
+				}
+				if (end == buffer.length) {
+					byte[] b = new byte[buffer.length * 2];
+					System.arraycopy(buffer, 0, b, 0, end);
+					buffer = b;
+				}
+				int n = in.read(buffer, end, buffer.length - end);
+				if (n <= 0) return null;
+				end += n;
+			}
+		}
+
+		//Get the position of the start of the next line.
+		long getPosition() {
+			return position;
+		}
+
+		void close() {
+			try { in.close(); }
+			catch (Exception ignore) { }
+		}
+	}
+
+}
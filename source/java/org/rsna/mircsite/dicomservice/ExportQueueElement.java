@@ -18,9 +18,16 @@ import org.rsna.mircsite.util.*;
   * A class to encapsulate an export queue element File for clinical trials.
   * A queue element is a File pointing to a disk file (the queue element file)
   * containing the absolute path string of the actual file to be exported.
+  * A second line may record the number of failed export attempts.
+  * <p>
+  * The export services now keep their queues in ExportQueue objects.
+  * Queue element files are still used for the quarantine, and those
+  * found in an export directory are imported into its ExportQueue.
   */
 public class ExportQueueElement extends File {
 
+	static final String attemptsPrefix = "attempts=";
+
 	/**
 	 * Class constructor; creates a new ExportQueueElement object
 	 * from a File pointing to the queue element file.
@@ -111,18 +118,16 @@ public class ExportQueueElement extends File {
 	}
 
 	/**
-	 * Rename the queue element file into an export queue directory,
-	 * creating the directory if necessary.
+	 * Add the queued file to the ExportQueue in an export directory,
+	 * and delete the queue element file.
 	 * @param directory the export queue directory.
 	 * @throws Exception if the operation failed.
 	 */
 	public void queue(File directory) throws Exception {
-		if (!directory.exists()) directory.mkdirs();
-		File destination = new File(directory,this.getName());
-		if (destination.exists()) {
-			destination = File.createTempFile("ALT-","-"+this.getName(),directory);
-		}
-		if (!this.renameTo(destination)) throw new Exception("Queue operation failed");
+		File file = getQueuedFile();
+		if (file == null) throw new Exception("Queue operation failed");
+		ExportQueue.get(directory).add(file);
+		this.delete();
 	}
 
 	/**
@@ -131,7 +136,7 @@ public class ExportQueueElement extends File {
 	 */
 	public File getQueuedFile() {
 		File file = null;
-		String path = FileUtil.getFileText(this).trim();
+		String path = getLine(0);
 		if (!path.equals("")) {
 			try { file = new File(path); }
 			catch (Exception e) { file = null; }
@@ -139,4 +144,34 @@ public class ExportQueueElement extends File {
 		return file;
 	}
 
+	/**
+	 * Get the number of failed attempts which have been made
+	 * to export the queued file.
+	 * @return the number of attempts.
+	 */
+	public int getAttempts() {
+		String line = getLine(1);
+		if (!line.startsWith(attemptsPrefix)) return 0;
+		try { return Integer.parseInt(line.substring(attemptsPrefix.length()).trim()); }
+		catch (Exception ex) { return 0; }
+	}
+
+	/**
+	 * Record the number of failed attempts to export
+	 * the queued file in the queue element file.
+	 * @param attempts the number of attempts.
+	 */
+	public void setAttempts(int attempts) {
+		String text = getLine(0);
+		if (attempts > 0) text += "\n" + attemptsPrefix + attempts;
+		FileUtil.setFileText(this, text);
+	}
+
+	//Get one line of the queue element file, trimmed,
+	//or the empty string if the line does not exist.
+	private String getLine(int n) {
+		String[] lines = FileUtil.getFileText(this).trim().split("\n");
+		return (n < lines.length) ? lines[n].trim() : "";
+	}
+
 }
@@ -12,10 +12,15 @@ import java.net.*;
 import java.security.cert.X509Certificate;
 import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 import org.apache.log4j.Logger;
@@ -29,19 +34,65 @@ import org.w3c.dom.NodeList;
 /**
  * The Thread that exports DicomObjects via the HTTP and HTTPS
  * protocols.
+ * <p>
+ * All the destinations are serviced at once, each by several sender
+ * threads. Since the senders of a destination take objects from its
+ * queue independently, objects are not necessarily received in the
+ * order in which they were queued, even within a study. The receiving
+ * HttpImportService does not depend on the order.
+ * <p>
+ * The connections are persistent: each response is read to the end so
+ * the JDK can return the connection to its keep-alive cache, and all
+ * HTTPS connections use one SSLSocketFactory, so TLS sessions are reused
+ * rather than negotiated for every object. The JDK keeps at most
+ * http.maxConnections (default 5) idle connections per host; this is a
+ * deployment setting, made with -Dhttp.maxConnections in the servlet
+ * container's startup options, and it should be at least
+ * sendersPerDestination.
+ * <p>
+ * When the URL of a destination ends in /doc, the objects are sent in
+ * batches to the /batch path of the receiving HttpImportService, in the
+ * format defined by the ObjectBatch class. The receiver acknowledges each
+ * object; objects which were not acknowledged count a failed attempt and
+ * are sent again later. If the receiver answers a batch with a 404, 405,
+ * or 501 status, or without acknowledging it and its /ping response does
+ * not advertise batch support, it does not support batches, and objects
+ * are sent to it one at a time until the service is reinitialized. Any
+ * other failure of a batch which is not attributed to the destination
+ * causes the objects of that batch to be sent one at a time, so that an
+ * object which causes the failure is identified.
+ * <p>
+ * Failures are classified as described in the DestinationHealth class.
+ * A destination whose circuit is open is probed by posting to the /ping
+ * path of its receiver before any objects are sent to it.
  */
 public class HttpExportService extends Thread {
 
 	static final String serviceName = "HttpExportService";
 	static final Logger logger = Logger.getLogger(HttpExportService.class);
 
+	static final int sendersPerDestination = 4;
+	static final int bufferSize = 64 * 1024;
+	static final int maxBatchCount = 50;
+	static final long maxBatchBytes = 20 * 1024 * 1024;
+	static final int connectTimeout = 30000;
+	static final int readTimeout = 120000;
+	static final long minRetryDelay = 2000;
+	static final long maxRetryDelay = 600000;
+
 	private TrustManager[] trustAllCerts;
+	private SSLSocketFactory sslSocketFactory = null;
+	private HostnameVerifier hostnameVerifier = new AcceptAllHostnameVerifier();
+	private ExecutorService senders = null;
 
 	boolean running = false;
 	boolean reinitialize = false;
 	File[] directoryFiles = null;
 	String[] urls = null;
-	long[] nextTimes = null;
+	DestinationHealth[] health = null;
+	Boolean[] batchSupported = null;
+	WorkSignal signal = new WorkSignal();
+	static final long sweepInterval = 60000;
 
 	/**
 	 * Class constructor; creates a new instance of the HttpExportService.
@@ -55,7 +106,8 @@ public class HttpExportService extends Thread {
 		try {
 			SSLContext sc = SSLContext.getInstance("SSL");
 			sc.init(null,trustAllCerts, new SecureRandom());
-			HttpsURLConnection.setDefaultSSLSocketFactory(sc.getSocketFactory());
+			sslSocketFactory = sc.getSocketFactory();
+			HttpsURLConnection.setDefaultSSLSocketFactory(sslSocketFactory);
 		}
 		catch (Exception e) { }
 		initialize();
@@ -68,10 +120,30 @@ public class HttpExportService extends Thread {
 		reinitialize = false;
 		directoryFiles = TrialConfig.getHttpExportDirectoryFiles();
 		urls = TrialConfig.getHttpExportURLs();
-		nextTimes = new long[urls.length];
-		for (int i=0; i<nextTimes.length; i++) {
-			nextTimes[i] = 0;
+		health = new DestinationHealth[urls.length];
+		for (int i=0; i<health.length; i++) {
+			health[i] = new DestinationHealth(serviceName, urls[i], minRetryDelay, maxRetryDelay);
+		}
+		batchSupported = new Boolean[urls.length];
+		if (senders != null) senders.shutdown();
+		senders = Executors.newFixedThreadPool(Math.max(1, urls.length * sendersPerDestination));
+		signal.unwatchAll();
+		if (directoryFiles != null) {
+			for (int i=0; i<directoryFiles.length; i++) signal.watch(directoryFiles[i]);
+		}
+	}
+
+	//Get the time to wait before the next pass: until an object is
+	//queued, the earliest time a destination which failed is to be
+	//retried, or the safety sweep, whichever comes first.
+	private long getWaitTime() {
+		long wait = sweepInterval;
+		long currentTime = System.currentTimeMillis();
+		for (int i=0; i<health.length; i++) {
+			long nextTime = health[i].getNextTime();
+			if (nextTime > currentTime) wait = Math.min(wait, nextTime - currentTime + 1);
 		}
+		return wait;
 	}
 
 	/**
@@ -82,9 +154,20 @@ public class HttpExportService extends Thread {
 		return "not running";
 	}
 
+	/**
+	 * Get the status of a destination for display by the admin service.
+	 * @param i the index of the destination.
+	 * @return the status, or the empty string if there is no such destination.
+	 */
+	public String getDestinationStatus(int i) {
+		DestinationHealth[] h = health;
+		if ((h == null) || (i < 0) || (i >= h.length)) return "";
+		return h[i].getStatus();
+	}
+
 	/**
 	 * The Runnable interface implementation. Process the queue directories
-	 * and send the files, then sleep for 10 seconds and check again.
+	 * and send the files, then wait until an object is queued and check again.
 	 */
 	public void run() {
 		Log.message(serviceName+": Started");
@@ -92,10 +175,11 @@ public class HttpExportService extends Thread {
 		while (!interrupted()) {
 			try {
 				processFiles();
-				sleep(10000);
+				signal.await(getWaitTime());
 			}
 			catch (Exception e) {
 				running = false;
+				stopSenders();
 				return;
 			}
 			if (reinitialize) {
@@ -103,105 +187,366 @@ public class HttpExportService extends Thread {
 				Log.message(serviceName+": Reinitialized");
 			}
 		}
+		stopSenders();
 		Log.message(serviceName+": Interrupt received");
 	}
 
+	//Stop the senders and wait for the transfers in progress to end,
+	//so that the service has stopped using the queues when it exits.
+	private void stopSenders() {
+		senders.shutdownNow();
+		try { senders.awaitTermination(connectTimeout + readTimeout, TimeUnit.MILLISECONDS); }
+		catch (InterruptedException ignore) { }
+	}
+
 	/**
 	 * Restart the HttpExportService. Set a flag to cause the service to
 	 * reinitialize after the next pass through the export directories.
 	 */
 	public void restart() {
 		reinitialize = true;
+		signal.signal();
 	}
 
-	//Look through the export directories and
-	//send all the files there, oldest first. Note that in the
-	//MIRCsite implementation, the files are actually queue
-	//elements (text files containing the absolute file path
-	//to the DICOM object to be exported. This is different from
-	//the HttpExportService in the FieldCenter implementation
-	//because the MIRCsite can handle multiple destinations
-	//whereas the FieldCenter application is designed for a
-	//single destination.
-	private void processFiles() {
-		String result;
-		long currentTime;
+	//Send the files in the export queues of all the destinations,
+	//oldest first. Each pass sends at most the number of entries
+	//which were in a queue when it started, so that an entry which
+	//is queued again after a failure waits for the next pass.
+	private void processFiles() throws InterruptedException {
+		List<Callable<Object>> tasks = new LinkedList<Callable<Object>>();
 		for (int i=0; i<urls.length; i++) {
-			File[] files = directoryFiles[i].listFiles();
-			for (int k=0; (k<files.length) && ((currentTime = System.currentTimeMillis()) > nextTimes[i]); k++) {
-				File file = files[k];
-				result = export(file,urls[i]);
-				if (result.equals("OK")) {
-					file.delete();
-					Log.message(serviceName+": Export successful: "+file.getName());
+			//Skip a destination which is waiting to be retried,
+			//and make sure that a destination which has been failing is back.
+			if (health[i].isWaiting()) continue;
+			ExportQueue queue;
+			try { queue = ExportQueue.get(directoryFiles[i]); }
+			catch (IOException ex) {
+				logger.warn("Unable to open the export queue in " + directoryFiles[i], ex);
+				continue;
+			}
+			int size = queue.size();
+			if (size == 0) continue;
+			if (health[i].isOpen() && !probe(i)) continue;
+			Destination destination = new Destination(i, queue, size);
+			int n = Math.min(sendersPerDestination, size);
+			for (int k=0; k<n; k++) tasks.add(Executors.callable(new Sender(destination)));
+		}
+		if (tasks.size() > 0) senders.invokeAll(tasks);
+	}
+
+	//Ping the receiver of a destination which has been failing.
+	//Return true if it responded, or if it cannot be pinged, in
+	//which case the next transfer serves as the probe.
+	private boolean probe(int i) {
+		String pingURL = getPingURL(urls[i]);
+		if (pingURL == null) return true;
+		String result = ping(pingURL);
+		if (result == null) return true;
+		if (result.startsWith("OK")) {
+			health[i].success();
+			return true;
+		}
+		health[i].failure();
+		return false;
+	}
+
+	//Post to the ping URL of a receiver and return the response,
+	//or null if the URL cannot be opened.
+	private String ping(String pingURL) {
+		try {
+			HttpURLConnection conn = openConnection(pingURL, "text/plain", 0);
+			if (conn == null) return null;
+			conn.getOutputStream().close();
+			return readFully(conn.getInputStream());
+		}
+		catch (Exception ex) { return (ex.getMessage() != null) ? ex.getMessage() : ""; }
+	}
+
+	//Determine whether the response to a batch means that the receiver
+	//does not support batches: an HTTP status saying that the path or
+	//method is not handled, or, for a reply without the batch header, a
+	//ping response from a receiver which does not advertise batches.
+	private boolean batchesNotSupported(String result, String url) {
+		if (result.startsWith("HTTP 404") || result.startsWith("HTTP 405") || result.startsWith("HTTP 501"))
+			return true;
+		if (result.startsWith("HTTP ")) return false;
+		String pingResult = ping(getPingURL(url));
+		return (pingResult != null)
+					&& pingResult.startsWith("OK")
+						&& (pingResult.indexOf(ObjectBatch.pingCapability) == -1);
+	}
+
+	//The queue of one destination in one pass, shared by its senders.
+	class Destination {
+		int index;
+		ExportQueue queue;
+		int limit;
+		int taken = 0;
+		DestinationHealth health;
+
+		public Destination(int index, ExportQueue queue, int limit) {
+			this.index = index;
+			this.queue = queue;
+			this.limit = limit;
+			health = HttpExportService.this.health[index];
+		}
+
+		//Get the next entry to send, or null if the pass is complete,
+		//the queue is empty, or the destination is waiting to be retried.
+		public synchronized ExportQueue.Entry next() {
+			if ((taken >= limit) || health.isWaiting()) return null;
+			ExportQueue.Entry entry = queue.next();
+			if (entry != null) taken++;
+			return entry;
+		}
+
+		//Get the next group of entries to send in one request: up to
+		//maxBatchCount entries, stopping when the queued files
+		//reach maxBatchBytes.
+		public synchronized List<ExportQueue.Entry> nextBatch() {
+			List<ExportQueue.Entry> batch = new LinkedList<ExportQueue.Entry>();
+			long bytes = 0;
+			ExportQueue.Entry entry;
+			while ((batch.size() < maxBatchCount) && (bytes < maxBatchBytes) && ((entry = next()) != null)) {
+				batch.add(entry);
+				bytes += entry.getFile().length();
+			}
+			return batch;
+		}
+
+		//Return entries to the queue, to be sent first on the next pass.
+		public void release(List<ExportQueue.Entry> entries) {
+			for (int i=entries.size()-1; i>=0; i--) queue.release(entries.get(i));
+		}
+	}
+
+	//A thread which sends files to a destination until there are none left.
+	class Sender implements Runnable {
+		Destination destination;
+		String url;
+		String batchURL;
+
+		public Sender(Destination destination) {
+			this.destination = destination;
+			url = urls[destination.index];
+			batchURL = getBatchURL(url);
+		}
+
+		public void run() {
+			while (!Thread.currentThread().isInterrupted()) {
+				if ((batchURL != null) && !Boolean.FALSE.equals(batchSupported[destination.index])) {
+					List<ExportQueue.Entry> batch = destination.nextBatch();
+					if (batch.size() == 0) return;
+					for (ExportQueue.Entry entry : sendBatch(batch)) {
+						handleResult(entry, sendOne(entry));
+					}
 				}
-				else if (result.equals("FailedURLConnection")) {
-					//wait 10 minutes if there was no connection
-					nextTimes[i] = currentTime + 600000;
-					Log.message(serviceName+": URL Connection failure to "+urls[i]);
+				else {
+					ExportQueue.Entry entry = destination.next();
+					if (entry == null) return;
+					handleResult(entry, sendOne(entry));
 				}
+			}
+		}
+
+		//Send a group of entries in one request and handle the
+		//acknowledgement of each one. Return the entries which have
+		//not been handled and are to be sent one at a time.
+		private List<ExportQueue.Entry> sendBatch(List<ExportQueue.Entry> batch) {
+			List<ExportQueue.Entry> entries = new ArrayList<ExportQueue.Entry>();
+			List<File> files = new ArrayList<File>();
+			for (ExportQueue.Entry entry : batch) {
+				if (!entry.getFile().isFile()) handleResult(entry, "Local[1]: " + entry.getFile() + " not found");
 				else {
-					if (result.startsWith("Server:")) {
-						Log.message(serviceName+": Failure response from "+urls[i]+":<br>"
-										+ result + ": " + file.getName());
-						logger.info(serviceName+": Failure response from "+urls[i]+":<br>"
-										+ result + ": " + file.getName());
-					}
-					else if (result.trim().equals("")) {
-						Log.message(serviceName+": No response from "+urls[i]+":<br>" + file.getName());
-						logger.info(serviceName+": No response from "+urls[i]+":<br>" + file.getName());
-					}
-					else {
-						Log.message(serviceName+": Export failure: " + result + ": " + file.getName());
-						logger.info(serviceName+": Export failure: " + result + ": " + file.getName());
-					}
-					Log.message(Quarantine.file(file,serviceName));
+					entries.add(entry);
+					files.add(entry.getFile());
+				}
+			}
+			if (entries.size() == 0) return entries;
+
+			String result = exportBatch(files.toArray(new File[files.size()]), batchURL);
+			if (result.equals("FailedURLConnection") || result.startsWith("Local[")
+					|| (result.startsWith("HTTP ") && (classify(result) == DestinationHealth.TRANSIENT))) {
+				//The batch failed in transit; leave the entries in the
+				//queue and try again when the backoff expires.
+				destination.release(entries);
+				long delay = destination.health.failure();
+				Log.message(serviceName, Log.WARNING, null,
+						"Batch transfer to "+batchURL+" failed ("+result+"); retrying in "+((delay+999)/1000)+"s");
+				logger.info(serviceName+": Batch transfer to "+batchURL+" failed: "+result);
+				return new ArrayList<ExportQueue.Entry>();
+			}
+			if (!result.startsWith(ObjectBatch.responseHeader)) {
+				if (batchesNotSupported(result, url)) {
+					batchSupported[destination.index] = Boolean.FALSE;
+					Log.message(serviceName+": Batches not supported by "+url+"; sending objects singly");
 				}
-				yield();
+				else {
+					Log.message(serviceName, Log.WARNING, null,
+							"Batch transfer to "+batchURL+" failed ("+result+"); sending the objects singly");
+					logger.info(serviceName+": Batch transfer to "+batchURL+" failed: "+result);
+				}
+				return entries;
+			}
+			batchSupported[destination.index] = Boolean.TRUE;
+			destination.health.success();
+
+			//Handle the acknowledgements. Only an entry which the receiver
+			//rejected counts a failed attempt. Entries which were not
+			//acknowledged, as when the response was cut short, are left
+			//in the queue and sent again when the backoff expires.
+			String[] acks = getAcks(result, entries.size());
+			List<ExportQueue.Entry> missing = new ArrayList<ExportQueue.Entry>();
+			for (int i=0; i<acks.length; i++) {
+				if (acks[i] != null) handleResult(entries.get(i), acks[i]);
+				else missing.add(entries.get(i));
+			}
+			if (missing.size() > 0) {
+				destination.release(missing);
+				long delay = destination.health.failure();
+				Log.message(serviceName, Log.WARNING, null,
+						missing.size()+" objects were not acknowledged by "+batchURL
+							+"; retrying in "+((delay+999)/1000)+"s");
+				logger.info(serviceName+": "+missing.size()+" objects were not acknowledged by "+batchURL);
 			}
+			return new ArrayList<ExportQueue.Entry>();
 		}
+
+		//Send one entry and return the result. If the receiver is known
+		//to accept batches, the entry is sent as a batch of one, so its
+		//digest is computed while it is sent; otherwise it is sent by
+		//itself to the destination URL.
+		private String sendOne(ExportQueue.Entry entry) {
+			File file = entry.getFile();
+			if ((batchURL == null) || !Boolean.TRUE.equals(batchSupported[destination.index]))
+				return export(file, url);
+			if (!file.isFile()) return "Local[1]: " + file + " not found";
+			String result = exportBatch(new File[] { file }, batchURL);
+			if (!result.startsWith(ObjectBatch.responseHeader)) return result;
+			String ack = getAcks(result, 1)[0];
+			return (ack != null) ? ack : "FailedURLConnection";
+		}
+
+		//Handle the result of sending an entry.
+		private void handleResult(ExportQueue.Entry entry, String result) {
+			ExportQueue queue = destination.queue;
+			String name = entry.getName();
+			int type = DestinationHealth.PERMANENT;
+			if (result.equals("OK")) {
+				queue.ack(entry);
+				destination.health.success();
+				Log.message(serviceName, Log.INFO, name, "Export successful");
+			}
+			else if ((type = classify(result)) == DestinationHealth.TRANSIENT) {
+				//Leave the entry in the queue and stop
+				//sending to the destination for a while.
+				queue.release(entry);
+				long delay = destination.health.failure();
+				Log.message(serviceName, Log.WARNING, name,
+						"Transfer to "+url+" failed ("+result+"); retrying in "+((delay+999)/1000)+"s");
+			}
+			else if ((type == DestinationHealth.POISON) && DestinationHealth.retryObject(queue, entry)) {
+				Log.message(serviceName, Log.WARNING, name,
+						"Export failure: " + result + "; the object will be sent again");
+				logger.info(serviceName+": Export failure: " + result + ": " + name);
+			}
+			else {
+				if (result.startsWith("Server:")) {
+					Log.message(serviceName+": Failure response from "+url+":<br>"
+									+ result + ": " + name);
+					logger.info(serviceName+": Failure response from "+url+":<br>"
+									+ result + ": " + name);
+				}
+				else if (result.trim().equals("")) {
+					Log.message(serviceName+": No response from "+url+":<br>" + name);
+					logger.info(serviceName+": No response from "+url+":<br>" + name);
+				}
+				else {
+					Log.message(serviceName, Log.ERROR, name, "Export failure: " + result);
+					logger.info(serviceName+": Export failure: " + result + ": " + name);
+				}
+				Log.message(Quarantine.entry(queue,entry,serviceName,
+								(result.trim().equals("") ? "No response from "+url : result)));
+				queue.ack(entry);
+			}
+		}
+	}
+
+	//Get the result for each object from the response to a batch:
+	//"OK" for an object which was stored, "Server: " followed by the
+	//message for an object which was rejected, or null for an object
+	//which was not acknowledged.
+	static String[] getAcks(String result, int count) {
+		String[] acks = new String[count];
+		BufferedReader reader = new BufferedReader(new StringReader(result));
+		try {
+			reader.readLine();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] words = line.trim().split(" ", 3);
+				if (words.length < 2) continue;
+				int k;
+				try { k = Integer.parseInt(words[1]); }
+				catch (NumberFormatException ex) { continue; }
+				if ((k < 0) || (k >= count) || (acks[k] != null)) continue;
+				if (words[0].equals("OK")) acks[k] = "OK";
+				else if (words[0].equals("ERR")) acks[k] = "Server: " + ((words.length > 2) ? words[2] : "");
+			}
+		}
+		catch (IOException ignore) { }
+		return acks;
+	}
+
+	//Classify the result of a failed transfer.
+	static int classify(String result) {
+		if (result.equals("FailedURLConnection")) return DestinationHealth.TRANSIENT;
+		if (result.startsWith("HTTP ")) {
+			int code = 0;
+			try { code = Integer.parseInt(result.substring(5, result.indexOf(":")).trim()); }
+			catch (Exception ex) { }
+			if ((code == 408) || (code == 429) || (code == 502) || (code == 503) || (code == 504))
+				return DestinationHealth.TRANSIENT;
+			if (code >= 500) return DestinationHealth.POISON;
+			return DestinationHealth.PERMANENT;
+		}
+		//Local[2] is a failure while the object was being written to the connection.
+		if (result.startsWith("Local[2]")
+				|| result.startsWith("Local[3]")
+					|| result.startsWith("Local[4]")) return DestinationHealth.TRANSIENT;
+		if (result.startsWith("Local[1]")
+				|| result.startsWith("Error:")
+					|| result.startsWith("Illegal protocol")) return DestinationHealth.PERMANENT;
+		//The receiver failed or did not answer; the object may be the cause.
+		return DestinationHealth.POISON;
 	}
 
-	//Export one file.
-	private String export(File file, String urlString) {
+	//Get the URL of the ping function of the receiver
+	//for a destination, or null if it is not known.
+	static String getPingURL(String url) {
+		if ((url == null) || !url.endsWith("/doc")) return null;
+		return url.substring(0, url.length() - "/doc".length()) + "/ping";
+	}
+
+	//Get the URL to which batches are sent for a destination,
+	//or null if the destination is not known to accept them.
+	static String getBatchURL(String url) {
+		if ((url == null) || !url.endsWith("/doc")) return null;
+		return url.substring(0, url.length() - "/doc".length()) + "/batch";
+	}
+
+	//Export one file. The digest header is not sent, because it would
+	//require the file to be read twice; a receiver which accepts batches
+	//is sent single objects as batches, which carry their digests.
+	private String export(File fileToExport, String urlString) {
 		int n;
-		URL url;
 		HttpURLConnection conn;
 		OutputStream svros;
 		FileInputStream fis;
-		BufferedReader svrrdr;
-		ExportQueueElement eqe;
-		File fileToExport;
-		//Use the file input argument to create a queue element
-		//and then use it to get the queued file.
-		eqe = new ExportQueueElement(file);
-		fileToExport = eqe.getQueuedFile();
-		if (fileToExport == null) return "Error: Null fileToExport";
 		try {
-			//Make the connection
-			url = new URL(urlString);
-			String protocol = url.getProtocol().toLowerCase();
-			if (protocol.startsWith("https")) {
-				HttpsURLConnection httpsConn = (HttpsURLConnection)url.openConnection();
-				httpsConn.setHostnameVerifier(new AcceptAllHostnameVerifier());
-				httpsConn.setUseCaches(false);
-				httpsConn.setDefaultUseCaches(false);
-				conn = httpsConn;
-			}
-			else if (protocol.startsWith("http")) {
-				conn = (HttpURLConnection)url.openConnection();
-			}
-			else {
-				logger.info("Illegal protocol: " + protocol);
-				return "Illegal protocol: " + protocol;
-			}
-			conn.setDoOutput(true);
-			conn.setDoInput(true);
-			conn.setRequestMethod("POST");
-			//Set the content type to a special one for
-			//MIRC HTTP transmission of DICOM objects.
-			conn.setRequestProperty("Content-Type","application/x-mirc-dicom");
-			conn.connect();
+			//Make the connection. Set the content type to a special
+			//one for MIRC HTTP transmission of DICOM objects.
+			conn = openConnection(urlString, "application/x-mirc-dicom", fileToExport.length());
+			if (conn == null) return "Illegal protocol: " + urlString;
 			svros = conn.getOutputStream();
 		}
 		catch (Exception e) {
@@ -211,32 +556,135 @@ public class HttpExportService extends Thread {
 		try {
 			fis = new FileInputStream(fileToExport);
 		}
-		catch (IOException e) { return "Local[1]: "+e.getMessage(); }
+		catch (IOException e) {
+			conn.disconnect();
+			return "Local[1]: "+e.getMessage();
+		}
 		try {
 			//Send the file to the server
-			byte[] bbuf = new byte[1024];
+			byte[] bbuf = new byte[bufferSize];
 			while ((n=fis.read(bbuf,0,bbuf.length)) > 0) svros.write(bbuf,0,n);
 			svros.flush();
 			svros.close();
-			fis.close();
 		}
-		catch (IOException e) { return "Local[2]: "+e.getMessage(); }
+		catch (IOException e) {
+			conn.disconnect();
+			return "Local[2]: "+e.getMessage();
+		}
+		finally {
+			try { fis.close(); }
+			catch (Exception ignore) { }
+		}
+		//Get the response. The response must be read to the end and
+		//the stream closed for the connection to be reused.
+		InputStream is;
+		try { is = conn.getInputStream(); }
+		catch (IOException e) {
+			int code = getResponseCode(conn);
+			try { readFully(conn.getErrorStream()); }
+			catch (Exception ignore) { }
+			if (code > 0) return "HTTP "+code+": "+e.getMessage();
+			return "Local[3]: (exception from getInputStream) "+e.getMessage();
+		}
+		try {
+			return readFully(is);
+		}
+		catch (IOException e) {
+			return "Local[4]:"+e.getMessage();
+		}
+	}
+
+	//Export a batch of files in one request and return the response.
+	private String exportBatch(File[] files, String urlString) {
+		HttpURLConnection conn;
+		OutputStream svros;
+		try {
+			conn = openConnection(urlString, ObjectBatch.contentType, ObjectBatch.getContentLength(files));
+			if (conn == null) return "Illegal protocol: " + urlString;
+			svros = conn.getOutputStream();
+		}
+		catch (Exception e) {
+			logger.info("FailedURLConnection: "+e.getMessage());
+			return "FailedURLConnection";
+		}
+		try {
+			ObjectBatch.write(svros, files);
+			svros.close();
+		}
+		catch (Exception e) {
+			conn.disconnect();
+			return "Local[2]: "+e.getMessage();
+		}
 		InputStream is;
-		//Get the response
 		try { is = conn.getInputStream(); }
-		catch (IOException e) { return "Local[3]: (exception from getInputStream) "+e.getMessage(); }
-		InputStreamReader isr = new InputStreamReader(is);
-		svrrdr = new BufferedReader(isr);
+		catch (IOException e) {
+			int code = getResponseCode(conn);
+			try { readFully(conn.getErrorStream()); }
+			catch (Exception ignore) { }
+			if (code > 0) return "HTTP "+code+": "+e.getMessage();
+			return "Local[3]: (exception from getInputStream) "+e.getMessage();
+		}
+		try {
+			return readFully(is);
+		}
+		catch (IOException e) {
+			return "Local[4]:"+e.getMessage();
+		}
+	}
+
+	//Open a POST connection to a URL, streaming a body of a known
+	//length rather than letting the connection buffer it. Return
+	//null if the protocol is not HTTP or HTTPS.
+	private HttpURLConnection openConnection(String urlString, String contentType, long length)
+			throws Exception {
+		HttpURLConnection conn;
+		URL url = new URL(urlString);
+		String protocol = url.getProtocol().toLowerCase();
+		if (protocol.startsWith("https")) {
+			HttpsURLConnection httpsConn = (HttpsURLConnection)url.openConnection();
+			if (sslSocketFactory != null) httpsConn.setSSLSocketFactory(sslSocketFactory);
+			httpsConn.setHostnameVerifier(hostnameVerifier);
+			httpsConn.setUseCaches(false);
+			httpsConn.setDefaultUseCaches(false);
+			conn = httpsConn;
+		}
+		else if (protocol.startsWith("http")) {
+			conn = (HttpURLConnection)url.openConnection();
+		}
+		else {
+			logger.info("Illegal protocol: " + protocol);
+			return null;
+		}
+		conn.setDoOutput(true);
+		conn.setDoInput(true);
+		conn.setRequestMethod("POST");
+		conn.setConnectTimeout(connectTimeout);
+		conn.setReadTimeout(readTimeout);
+		if (length <= Integer.MAX_VALUE) conn.setFixedLengthStreamingMode((int)length);
+		else conn.setChunkedStreamingMode(bufferSize);
+		conn.setRequestProperty("Content-Type",contentType);
+		conn.connect();
+		return conn;
+	}
+
+	//Get the HTTP status code of a response, or -1 if there was none.
+	private int getResponseCode(HttpURLConnection conn) {
+		try { return conn.getResponseCode(); }
+		catch (Exception ex) { return -1; }
+	}
+
+	//Read a response stream to the end and close it.
+	private String readFully(InputStream is) throws IOException {
+		if (is == null) return "";
+		BufferedReader svrrdr = new BufferedReader(new InputStreamReader(is));
 		try {
 			StringWriter svrsw = new StringWriter();
 			char[] cbuf = new char[1024];
+			int n;
 			while ((n = svrrdr.read(cbuf,0,cbuf.length)) != -1) svrsw.write(cbuf,0,n);
-			svrrdr.close();
 			return svrsw.toString();
 		}
-		catch (IOException e) {
-			return "Local[4]:"+e.getMessage();
-		}
+		finally { svrrdr.close(); }
 	}
 
 	//All-accepting X509 Trust Manager
@@ -9,6 +9,7 @@ package org.rsna.mircsite.dicomservice;
 
 import java.io.*;
 import java.net.*;
+import java.security.MessageDigest;
 import java.util.Calendar;
 import javax.servlet.*;
 import javax.servlet.http.*;
@@ -25,6 +26,14 @@ import org.w3c.dom.NodeList;
  * <p>
  * The Submit Service accepts application/x-mirc-dicom submissions of
  * DICOM objects and queues them for processing by the ObjectProcessor.
+ * Objects are posted to the /doc path one at a time, or to the /batch
+ * path in the format defined by the ObjectBatch class.
+ * <p>
+ * Each object is hashed as it is received. If the sender supplied a
+ * digest, the object is rejected if it does not match. An object whose
+ * SOPInstanceUID and digest match an object received recently (see the
+ * ReceivedObjects class) is a retransmission by a sender which did not
+ * get the response to the first one; it is acknowledged but not queued.
  * <p>
  * The servlet responds only to HTTP POST.
  * <p>
@@ -56,7 +65,7 @@ public class HttpImportService extends HttpServlet {
 		PrintWriter out = res.getWriter();
 
 		//Check the extra path info to see what is requested.
-		//The options are a /doc or /ping.
+		//The options are a /doc, /batch, or /ping.
 		String pathInfo = req.getPathInfo();
 		if (pathInfo == null) return;
 		pathInfo = pathInfo.toLowerCase();
@@ -70,14 +79,16 @@ public class HttpImportService extends HttpServlet {
 			out.println("OK");
 			out.println("Received Content-Type = " + req.getContentType());
 			out.println("Received Content-Length = " + req.getContentLength());
+			out.println(ObjectBatch.pingCapability);
 			out.flush();
 			out.close();
 			return;
 		}
 
-		//If it's not a /ping and it's not a /doc, ignore the
+		//If it's not a /ping, a /doc, or a /batch, ignore the
 		//request on the theory that somebody is fooling around.
-		if (!pathInfo.equals("/doc")) return;
+		boolean batch = pathInfo.equals("/batch");
+		if (!pathInfo.equals("/doc") && !batch) return;
 
 		//See if this is a connection from a participating site
 		//and return with no response if it is not.
@@ -106,8 +117,15 @@ public class HttpImportService extends HttpServlet {
 		File dir = new File(getServletContext().getRealPath(TrialConfig.httpStoreDir));
 		dir.mkdirs();
 
+		//If this is a batch, receive and acknowledge the objects.
+		if (batch) {
+			receiveBatch(req,dir,out);
+			return;
+		}
+
 		//Now get the posted file
-		File file = getPostedFile(req,dir);
+		MessageDigest digest = getMessageDigest();
+		File file = getPostedFile(req,dir,digest);
 
 		//See what we got
 		if (file == null) {
@@ -116,19 +134,25 @@ public class HttpImportService extends HttpServlet {
 			return;
 		}
 
-		//Rename it to the http-import directory so the
-		//ObjectProcessor will pick it up.
-		File outFile = new File(getServletContext().getRealPath(TrialConfig.httpImportDir));
-		outFile.mkdirs();
-		outFile = new File(outFile,file.getName());
-		if (file.renameTo(outFile)) Log.message(serviceName+": Object received from "
-												+ req.getRemoteAddr() + ":"+file.getName());
-		else {
-			Log.message(serviceName+": Unable to move object to http-import: [" +
-						req.getRemoteAddr() + ": "+file.getName() + "]");
-			logger.warn("Unable to move object to http-import: [" +
-						req.getRemoteAddr() + ": "+file.getName() + "]");
-			file.delete();
+		//Check the digest if the sender supplied one.
+		byte[] hash = digest.digest();
+		String expected = req.getHeader(ObjectBatch.digestHeader);
+		if ((expected != null) && expected.startsWith(ObjectBatch.digestPrefix)) {
+			expected = expected.substring(ObjectBatch.digestPrefix.length()).trim();
+			if (!expected.equalsIgnoreCase(ObjectBatch.toHex(hash))) {
+				file.delete();
+				logger.warn("Checksum mismatch in an object from " + req.getRemoteAddr());
+				out.print("Server: " + ObjectBatch.checksumError);
+				out.close();
+				return;
+			}
+		}
+
+		//Queue it for the ObjectProcessor.
+		if (!accept(file,hash,req.getRemoteAddr())) {
+			out.print("Server: Unable to move the object to http-import");
+			out.close();
+			return;
 		}
 
 		//Return OK
@@ -137,10 +161,115 @@ public class HttpImportService extends HttpServlet {
 		return;
 	}
 
+	//Queue a received object for the ObjectProcessor unless it was
+	//received recently. Return true if the object was queued or was
+	//a duplicate; false if it could not be queued. A copy of an object
+	//which is being queued by another request waits for the outcome.
+	private boolean accept(File file, byte[] hash, String remoteAddr) {
+		ReceivedObjects received = ReceivedObjects.getInstance();
+		String key = ReceivedObjects.getKey(getSOPInstanceUID(file), hash);
+		try {
+			if (!received.reserve(key)) {
+				file.delete();
+				Log.message(serviceName, Log.INFO, file.getName(),
+							"Duplicate object from " + remoteAddr + " acknowledged and discarded");
+				return true;
+			}
+		}
+		catch (InterruptedException ex) {
+			file.delete();
+			return false;
+		}
+		if (queue(file,remoteAddr)) {
+			received.add(key);
+			return true;
+		}
+		received.release(key);
+		return false;
+	}
+
+	//Get the SOPInstanceUID of a received object, reading only
+	//the start of the header, or the empty string if it is not
+	//a DICOM object.
+	private String getSOPInstanceUID(File file) {
+		try { return DicomObject.getSOPInstanceUID(file); }
+		catch (Exception notDicom) { return ""; }
+	}
+
+	//Get a MessageDigest for hashing received objects.
+	private MessageDigest getMessageDigest() {
+		try { return MessageDigest.getInstance("SHA-256"); }
+		catch (Exception ex) { throw new RuntimeException(ex); }
+	}
+
+	//Rename a received file to the http-import directory so the
+	//ObjectProcessor will pick it up.
+	private boolean queue(File file, String remoteAddr) {
+		File outFile = new File(getServletContext().getRealPath(TrialConfig.httpImportDir));
+		outFile.mkdirs();
+		outFile = new File(outFile,file.getName());
+		if (file.renameTo(outFile)) {
+			DicomHeaderCache.rename(file,outFile);
+			DirectoryCounter.get(outFile.getParentFile()).increment();
+			WorkSignal.post(outFile.getParentFile());
+			Log.message(serviceName, Log.INFO, file.getName(), "Object received from " + remoteAddr);
+			return true;
+		}
+		Log.message(serviceName+": Unable to move object to http-import: [" +
+					remoteAddr + ": "+file.getName() + "]");
+		logger.warn("Unable to move object to http-import: [" +
+					remoteAddr + ": "+file.getName() + "]");
+		file.delete();
+		return false;
+	}
+
+	//Receive a batch of objects, queuing each one for the
+	//ObjectProcessor as it arrives, and return a line for each
+	//object acknowledging it or reporting why it was not stored.
+	private void receiveBatch(HttpServletRequest req, File dir, PrintWriter out) {
+		StringBuffer sb = new StringBuffer();
+		String remoteAddr = req.getRemoteAddr();
+		int count = 0;
+		int received = 0;
+		try {
+			DataInputStream in =
+				new DataInputStream(
+					new BufferedInputStream(req.getInputStream(), ObjectBatch.bufferSize));
+			count = ObjectBatch.readCount(in);
+			String prefix = (new URL(req.getRequestURL().toString())).getProtocol() + "-";
+			for (int i=0; i<count; i++) {
+				File file = File.createTempFile(prefix,".md",dir);
+				byte[] hash = null;
+				try { hash = ObjectBatch.readObject(in,file); }
+				catch (Exception ex) {
+					file.delete();
+					throw ex;
+				}
+				if (hash == null) {
+					file.delete();
+					sb.append("ERR " + i + " " + ObjectBatch.checksumError + "\n");
+					logger.warn("Checksum mismatch in a batch from " + remoteAddr);
+				}
+				else if (!accept(file,hash,remoteAddr))
+					sb.append("ERR " + i + " Unable to move the object to http-import\n");
+				else sb.append("OK " + i + "\n");
+				received++;
+			}
+		}
+		catch (Exception ex) {
+			Log.message(serviceName+": Exception caught while receiving a batch from " + remoteAddr
+						+ " after " + received + " of " + count + " objects.");
+			logger.info("Exception caught while receiving a batch.", ex);
+		}
+		out.print(ObjectBatch.responseHeader + " " + count + "\n" + sb.toString());
+		out.close();
+	}
+
 	//Read one file from the servlet request.
 	//Write the file with a temporary name in the supplied
 	//directory and return a File pointing to the result.
-	private File getPostedFile(HttpServletRequest req, File dir) {
+	//Update the digest with the bytes as they are received.
+	private File getPostedFile(HttpServletRequest req, File dir, MessageDigest digest) {
 		File file;
 		try {
 			String prefix = req.getRequestURL().toString();
@@ -158,7 +287,10 @@ public class HttpImportService extends HttpServlet {
 			FileOutputStream fos = new FileOutputStream(file);
 			byte[] b = new byte[10000];
 			int len;
-			while ((len=sis.read(b,0,b.length)) > 0) fos.write(b,0,len);
+			while ((len=sis.read(b,0,b.length)) > 0) {
+				fos.write(b,0,len);
+				digest.update(b,0,len);
+			}
 			fos.flush();
 			fos.close();
 		}
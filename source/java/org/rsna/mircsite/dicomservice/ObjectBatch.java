@@ -0,0 +1,156 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.mircsite.dicomservice;
+
+import java.io.*;
+import java.security.MessageDigest;
+
+/**
+ * The format of a batch of objects sent by the HttpExportService
+ * to the /batch path of the HttpImportService in one POST.
+ * <p>
+ * The body of the request is a 4-byte count of the objects, followed by
+ * one record for each object: an 8-byte length, the bytes of the object,
+ * and the 32-byte SHA-256 digest of the bytes. All integers are big-endian.
+ * <p>
+ * The response is a text/plain document whose first line is "BATCH"
+ * followed by the count. It is followed by one line for each object
+ * received, in order: "OK n" if object n was stored, or "ERR n message"
+ * if it was not. Objects with no line, as when the response was cut
+ * short, were not acknowledged and must be sent again. A receiver which does not support batches does not
+ * return the "BATCH" line. A receiver which supports batches includes
+ * the pingCapability line in its response to the /ping path, so that
+ * a sender can tell such a receiver from one which failed.
+ * <p>
+ * An object sent by itself to the /doc path may be accompanied by its
+ * digest in the digestHeader, in the form "SHA-256=" followed by the
+ * digest in hexadecimal. The HttpExportService does not send the header;
+ * it sends single objects to a receiver which supports batches as
+ * batches of one.
+ */
+public class ObjectBatch {
+
+	/** The Content-Type of a batch. */
+	public static final String contentType = "application/x-mirc-dicom-batch";
+
+	/** The first word of the response to a batch. */
+	public static final String responseHeader = "BATCH";
+
+	/** The line in the response to a ping from a receiver which supports batches. */
+	public static final String pingCapability = "Batches = supported";
+
+	/** The message returned for an object whose digest did not match. */
+	public static final String checksumError = "checksum";
+
+	/** The HTTP header which carries the digest of a single object. */
+	public static final String digestHeader = "X-MIRC-Digest";
+
+	/** The prefix of the value of the digestHeader. */
+	public static final String digestPrefix = "SHA-256=";
+
+	static final int digestLength = 32;
+	static final int bufferSize = 64 * 1024;
+
+	/**
+	 * Get the length of the body of a request containing a set of files.
+	 * @param files the files.
+	 * @return the number of bytes in the body.
+	 */
+	public static long getContentLength(File[] files) {
+		long length = 4;
+		for (int i=0; i<files.length; i++) length += 8 + files[i].length() + digestLength;
+		return length;
+	}
+
+	/**
+	 * Write a batch of files.
+	 * @param out the stream to write.
+	 * @param files the files.
+	 * @throws Exception if a file cannot be read or the stream cannot be written.
+	 */
+	public static void write(OutputStream out, File[] files) throws Exception {
+		DataOutputStream dos = new DataOutputStream(out);
+		byte[] buffer = new byte[bufferSize];
+		dos.writeInt(files.length);
+		for (int i=0; i<files.length; i++) {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			long length = files[i].length();
+			dos.writeLong(length);
+			FileInputStream fis = new FileInputStream(files[i]);
+			try {
+				long remaining = length;
+				int n;
+				while ((remaining > 0) &&
+						((n = fis.read(buffer, 0, (int)Math.min(buffer.length, remaining))) > 0)) {
+					dos.write(buffer, 0, n);
+					digest.update(buffer, 0, n);
+					remaining -= n;
+				}
+				if (remaining != 0) throw new IOException(files[i] + " changed while it was being sent.");
+			}
+			finally { fis.close(); }
+			dos.write(digest.digest());
+		}
+		dos.flush();
+	}
+
+	/**
+	 * Read the count of objects at the start of a batch.
+	 * @param in the stream.
+	 * @return the number of objects in the batch.
+	 * @throws IOException if the count cannot be read.
+	 */
+	public static int readCount(DataInputStream in) throws IOException {
+		return in.readInt();
+	}
+
+	/**
+	 * Read the next object in a batch into a file.
+	 * @param in the stream, positioned at the start of a record.
+	 * @param file the file to receive the object.
+	 * @return the digest of the object if it matched the digest
+	 * in the record; null otherwise.
+	 * @throws Exception if the record is incomplete or the file cannot be written.
+	 */
+	public static byte[] readObject(DataInputStream in, File file) throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		long remaining = in.readLong();
+		if (remaining < 0) throw new IOException("Invalid object length.");
+		byte[] buffer = new byte[bufferSize];
+		FileOutputStream fos = new FileOutputStream(file);
+		try {
+			while (remaining > 0) {
+				int n = in.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+				if (n < 0) throw new EOFException("The batch ended in the middle of an object.");
+				fos.write(buffer, 0, n);
+				digest.update(buffer, 0, n);
+				remaining -= n;
+			}
+		}
+		finally { fos.close(); }
+		byte[] expected = new byte[digestLength];
+		in.readFully(expected);
+		byte[] actual = digest.digest();
+		return MessageDigest.isEqual(expected, actual) ? actual : null;
+	}
+
+	/**
+	 * Convert a digest to hexadecimal.
+	 * @param bytes the digest.
+	 * @return the lowercase hexadecimal string.
+	 */
+	public static String toHex(byte[] bytes) {
+		StringBuffer sb = new StringBuffer(bytes.length * 2);
+		for (int i=0; i<bytes.length; i++) {
+			sb.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(bytes[i] & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+}
@@ -10,6 +10,8 @@ package org.rsna.mircsite.dicomservice;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import org.apache.log4j.DailyRollingFileAppender;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -31,6 +33,14 @@ import org.w3c.dom.NodeList;
 /**
  * The Thread that receives DicomObjects from the DICOM Storage SCP,
  * anonymizes them, and queues them for the HttpExportProcessor.
+ * <p>
+ * This thread scans the import directories and hands the objects to
+ * a pool of worker threads, one per processor. Objects are assigned to
+ * workers by StudyInstanceUID, so the objects of a study are processed
+ * in order by one worker while other studies are processed in parallel.
+ * The worker assigned to each file is remembered until the file has been
+ * processed, so a file which waits for a busy worker is not parsed again
+ * on every scan.
  */
 public class ObjectProcessor extends Thread implements DicomEventListener {
 
@@ -43,15 +53,19 @@ public class ObjectProcessor extends Thread implements DicomEventListener {
 	boolean running = false;
 	boolean reinitialize = false;
 	String storePath;
-	String[] httpExportDirectories = null;
-	File[] httpExportDirectoryFiles = null;
-	String[] dicomExportDirectories = null;
-	File[] dicomExportDirectoryFiles = null;
-	Properties dicomAnonymizerProperties = null;
-	Properties lookupTableProperties = null;
+	volatile Properties dicomAnonymizerProperties = null;
+	volatile Properties lookupTableProperties = null;
+
+	static final int workerQueueSize = 100;
+	Worker[] workers = null;
+	final Set<String> inFlight = Collections.synchronizedSet(new HashSet<String>());
+	final Map<String,Integer> assignments = Collections.synchronizedMap(new HashMap<String,Integer>());
 
 	static DicomStorageScp scp = null;
 
+	static final long sweepInterval = 60000;
+	WorkSignal signal = new WorkSignal();
+
 	/**
 	 * Class constructor; creates a new instance of the ObjectProcessor
 	 * and sets itself to run at the lowest possible priority.
@@ -67,6 +81,9 @@ public class ObjectProcessor extends Thread implements DicomEventListener {
 	//allowing new anonymization scripts to be loaded.
 	private void initialize() {
 		reinitialize = false;
+		signal.unwatchAll();
+		signal.watch(new File(TrialConfig.basepath + TrialConfig.dicomImportDir));
+		signal.watch(new File(TrialConfig.basepath + TrialConfig.httpImportDir));
 		try {
 			File propFile = new File(TrialConfig.basepath + TrialConfig.dicomAnonymizerFilename);
 			dicomAnonymizerProperties = new Properties();
@@ -88,42 +105,89 @@ public class ObjectProcessor extends Thread implements DicomEventListener {
 	 * Get the status text for display by the admin service.
 	 */
 	public String getStatus() {
-		if (running) return "running";
-		return "not running";
+		if (!running) return "not running";
+		StringBuffer sb = new StringBuffer("running");
+		Worker[] w = workers;
+		if (w != null) {
+			for (int i=0; i<w.length; i++) sb.append("<br>" + w[i].getStatus());
+		}
+		return sb.toString();
 	}
 
 	/**
 	 * Restart the ObjectProcessor. Set a flag to cause the service to
-	 * reinitialize after the next pass through the import directories.
+	 * finish the objects which have been given to the workers and then
+	 * reinitialize.
 	 */
 	public void restart() {
 		reinitialize = true;
+		signal.signal();
 	}
 
 	/**
 	 * The Runnable interface implementation. Process the import directories
-	 * and send the files, then sleep for 10 seconds and check again.
+	 * and send the files, then wait until an object is received or a
+	 * minute has passed, and check again.
 	 */
 	public void run() {
 		startSCP(this); //Start the SCP.
+		startWorkers();
 		running = true;
 		Log.message(processorServiceName+": Started");
 		while (!interrupted()) {
 			try {
-				processDicomImportFiles();
-				processHttpImportFiles();
-				sleep(10000);
+				Set<String> seen = new HashSet<String>();
+				dispatchFiles(TrialConfig.dicomImportDir, true, seen);
+				dispatchFiles(TrialConfig.httpImportDir, false, seen);
+				//Forget the assignments of files which have disappeared.
+				synchronized (assignments) { assignments.keySet().retainAll(seen); }
+				signal.await(sweepInterval);
+				if (reinitialize) {
+					drain();
+					initialize();
+				}
 			}
 			catch (Exception e) {
 				running = false;
+				stopWorkers();
 				Log.message(processorServiceName+": Interrupted");
 				return;
 			}
-			if (reinitialize) initialize();
 		}
+		stopWorkers();
 		Log.message(processorServiceName+": Interrupt received");
 	}
 
+	//Start one worker for each processor.
+	private void startWorkers() {
+		int n = Math.max(1, Runtime.getRuntime().availableProcessors());
+		workers = new Worker[n];
+		for (int i=0; i<n; i++) {
+			workers[i] = new Worker(i+1);
+			workers[i].start();
+		}
+	}
+
+	//Stop the workers and wait for them to finish the objects they are
+	//processing. The workers are not interrupted, so an object is never
+	//abandoned part way through. Objects which have not been processed
+	//are left in the import directories for the next start.
+	private void stopWorkers() {
+		if (workers == null) return;
+		for (int i=0; i<workers.length; i++) workers[i].stopping = true;
+		for (int i=0; i<workers.length; i++) {
+			try { workers[i].join(); }
+			catch (InterruptedException ignore) { }
+		}
+		inFlight.clear();
+		assignments.clear();
+	}
+
+	//Wait until the workers have processed all the objects they have been given.
+	private void drain() throws InterruptedException {
+		while (!inFlight.isEmpty()) sleep(100);
+	}
+
 	/**
 	 * React to a change in the Storage SCP AE Title or port.
 	 * If the SCP isn't instantiated, do nothing; otherwise, stop
@@ -185,155 +249,273 @@ public class ObjectProcessor extends Thread implements DicomEventListener {
 	public void dicomEventOccurred(DicomEvent event) {
 		if ((event.getStatus() == 0) && event.serviceAsString(event.getService()).equals("C_STORE_RQ")) {
 			File inFile = new File(event.getFilename());
-			Log.message(dicomImportServiceName+": Image received: " + inFile.getName());
+			Log.message(dicomImportServiceName, Log.INFO, inFile.getName(), "Image received");
 			//Make the output directory in case it doesn't exist.
 			File outDir = new File(TrialConfig.basepath + TrialConfig.dicomImportDir);
 			outDir.mkdirs();
 			//Put the new file in it, using the overwrite attribute of the trial to determine
 			//whether duplicate SOPInstanceUIDs are to be renamed so as not to lose them.
 			FileObject fileObject = new FileObject(inFile);
-			fileObject.moveToDirectory(outDir,TrialConfig.allowOverwrite());
+			if (fileObject.moveToDirectory(outDir,TrialConfig.allowOverwrite())) {
+				DirectoryCounter.get(outDir).increment();
+				signal.signal();
+			}
 		}
 		else if (event.getStatus() != 0xff00)
 			Log.message(dicomImportServiceName+": unexpected status: "+event.toStringNoPath());
 	}
 
-	//Look through the dicom-import directory and process
-	//all the files there. Note that these are actual files,
-	//not queue elements.
-	private void processDicomImportFiles() {
-		File importDirFile = new File(TrialConfig.basepath + TrialConfig.dicomImportDir);
+	//Look through an import directory and give each file which is not
+	//already being processed to the worker for its study. If the worker's
+	//queue is full, the file is left for the next scan, so one busy study
+	//does not hold up the others; its worker is remembered, so the file
+	//is not parsed again until the worker has room. Note that these
+	//are actual files, not queue elements. The files in the dicom-import
+	//directory are anonymized if the anonymizer is enabled; those in the
+	//http-import directory are assumed to have been anonymized already.
+	//The paths of the files are added to the seen set.
+	private void dispatchFiles(String dir, boolean dicomImport, Set<String> seen) throws InterruptedException {
+		File importDirFile = new File(TrialConfig.basepath + dir);
 		if (!importDirFile.exists()) return;
 		File[] files = importDirFile.listFiles();
+		DirectoryCounter.get(importDirFile).set(files.length);
 		for (int k=0; k<files.length; k++) {
 			File next = files[k];
-			if (files[k].canRead() && files[k].canWrite()) {
-				try {
-					boolean forceQuarantine = false;
-					httpExportDirectories = TrialConfig.getHttpExportDirectories();
-					httpExportDirectoryFiles = TrialConfig.getHttpExportDirectoryFiles();
-					//If enabled, anonymize.
-					//Note: in normal clinical trials, the anonymizer is enabled and de-identified
-					//images are transmitted by the HttpExportProcessor.
-					//For normal research applications, images are not anonymized and the document
-					//creates directories of identified and de-identified images. In this situation,
-					//the anonymizer is disabled and the document takes care of de-identifying the
-					//images.
-					//Note: in research applications, the document takes its elements from the
-					//identified (e.g., containing PHI) image, so such documents contain PHI.
-					if (TrialConfig.dicomImportAnonymizerEnabled()) {
-						String exceptions =
-							DicomAnonymizer.anonymize(
-								next, next,
-								dicomAnonymizerProperties, lookupTableProperties,
-								new LocalRemapper(), false, false);
-						if (!exceptions.equals("")) {
-							if (exceptions.indexOf("!quarantine!") != -1) {
-								Log.message("<font color=\"red\">DicomAnonymizer quarantine call:<br>"
-											+next.getName()+"</font>");
-								forceQuarantine = true;
-							}
-							else if (exceptions.indexOf("!error!") != -1) {
-								Log.message("<font color=\"red\">DicomAnonymizer error call: "+exceptions+"<br>"
-											+next.getName()+"</font>");
-								forceQuarantine = true;
-							}
-							else {
-								//Note: the anonymizer logs the exception list to Log4J,
-								//so we just have to log it to the displayed log.
-								Log.message("Anonymization exceptions: " + exceptions+"<br>"+next.getName());
-							}
-						}
-						else {
-							Log.message("<font color=\"blue\">Anonymization complete"+"<br>"+next.getName()+"</font>");
-						}
-					}
-					if (!forceQuarantine) {
-						//get the document for this study or create it if necessary
-						DicomObject nextObject = new DicomObject(next);
-						MircDocument td = new MircDocument(nextObject);
-						//put in the object and store the updated document
-						td.insert(
-							nextObject,
-							TrialConfig.allowOverwrite(),
-							TrialConfig.dicomImportAnonymizerEnabled(),
-							dicomAnonymizerProperties, lookupTableProperties);
-
-						//export the object
-						if (httpExportDirectoryFiles != null) {
-							for (int i=0; i<httpExportDirectoryFiles.length; i++) {
-								try {
-									ExportQueueElement eqe =
-										ExportQueueElement.createEQE(nextObject);
-									eqe.queue(httpExportDirectoryFiles[i]);
-								}
-								catch (Exception e) {
-									Log.message(processorServiceName+": " + httpExportDirectories[i]
-												+ " export failed:" + next.getName());
-									logger.warn(httpExportDirectories[i]
-												+ " export failed:" + next.getName());
-								}
-							}
-						}
-						if (!queueForDatabase(nextObject))
-							Log.message(Quarantine.file(next,processorServiceName));
-						else
-							Log.message(processorServiceName+": Processing complete: "+next.getName());
+			String path = next.getAbsolutePath();
+			seen.add(path);
+			if (inFlight.contains(path)) continue;
+			Integer assigned = assignments.get(path);
+			if ((assigned != null) && (getWorker(assigned.intValue()).queue.remainingCapacity() == 0)) continue;
+			if (next.canRead() && next.canWrite() && inFlight.add(path)) {
+				FileObject fileObject = FileObject.getObject(next);
+				if (assigned == null) {
+					assigned = new Integer(getWorkerIndex(fileObject));
+					assignments.put(path, assigned);
+				}
+				Task task = new Task(fileObject, dicomImport);
+				if (!getWorker(assigned.intValue()).queue.offer(task)) inFlight.remove(path);
+			}
+		}
+	}
 
-						//log the event if logging is enabled
-						makeTrialLogEntry("dicom-import",nextObject);
-					}
+	//Get the index of the worker for the study of an object. All the objects
+	//of a study go to the same worker, so they are processed in order
+	//and no two workers update the same MIRCdocument. Objects with no
+	//StudyInstanceUID are distributed by name.
+	private int getWorkerIndex(FileObject fileObject) {
+		String key = fileObject.getStudyInstanceUID();
+		if ((key == null) || key.equals("")) key = fileObject.getFile().getName();
+		return (key.hashCode() & 0x7fffffff) % workers.length;
+	}
 
-					//if the file still exists, then either the object was
-					//set for quarantining or there is a bug somewhere;
-					//log it and quarantine the file so we don't
-					//fall into an infinite loop.
-					if (next.exists()) {
-						logger.warn("Forced quarantine: "+next);
-						Log.message(Quarantine.file(next,processorServiceName));
+	//Get a worker by index. A worker which has died is replaced.
+	private Worker getWorker(int i) {
+		if (!workers[i].isAlive()) {
+			logger.warn(workers[i].getName() + " has stopped; starting a new worker.");
+			workers[i] = new Worker(i+1);
+			workers[i].start();
+		}
+		return workers[i];
+	}
+
+	//Process one file from the dicom-import directory.
+	private void processDicomImportFile(File next) {
+		//If the object is quarantined, it is replayed into the directory
+		//from which it came unless it has already been anonymized, in
+		//which case it is replayed into the http-import directory so it
+		//is not anonymized again.
+		File source = next.getParentFile();
+		String reason = "Not removed from the import queue by processing";
+		try {
+			boolean forceQuarantine = false;
+			String[] httpExportDirectories = TrialConfig.getHttpExportDirectories();
+			File[] httpExportDirectoryFiles = TrialConfig.getHttpExportDirectoryFiles();
+			//If enabled, anonymize.
+			//Note: in normal clinical trials, the anonymizer is enabled and de-identified
+			//images are transmitted by the HttpExportProcessor.
+			//For normal research applications, images are not anonymized and the document
+			//creates directories of identified and de-identified images. In this situation,
+			//the anonymizer is disabled and the document takes care of de-identifying the
+			//images.
+			//Note: in research applications, the document takes its elements from the
+			//identified (e.g., containing PHI) image, so such documents contain PHI.
+			if (TrialConfig.dicomImportAnonymizerEnabled()) {
+				String exceptions =
+					DicomAnonymizer.anonymize(
+						next, next,
+						dicomAnonymizerProperties, lookupTableProperties,
+						new LocalRemapper(), false, false);
+				if (!exceptions.equals("")) {
+					if (exceptions.indexOf("!quarantine!") != -1) {
+						Log.message("<font color=\"red\">DicomAnonymizer quarantine call:<br>"
+									+next.getName()+"</font>");
+						forceQuarantine = true;
+						reason = "DicomAnonymizer quarantine call";
+					}
+					else if (exceptions.indexOf("!error!") != -1) {
+						Log.message("<font color=\"red\">DicomAnonymizer error call: "+exceptions+"<br>"
+									+next.getName()+"</font>");
+						forceQuarantine = true;
+						reason = "DicomAnonymizer error call: " + exceptions;
+					}
+					else {
+						//Note: the anonymizer logs the exception list to Log4J,
+						//so we just have to log it to the displayed log.
+						Log.message("Anonymization exceptions: " + exceptions+"<br>"+next.getName());
 					}
 				}
-				catch (Exception e) {
-					Log.message(processorServiceName+": Error during processing: "
-								+ next.getName() + "  - " + e.getMessage());
-					logger.warn("Error during processing: object quarantined: "
-								+ next.getName(),e);
-					Log.message(Quarantine.file(next,processorServiceName));
+				else {
+					Log.message("<font color=\"blue\">Anonymization complete"+"<br>"+next.getName()+"</font>");
 				}
-				yield();
 			}
+			if (!forceQuarantine) {
+				if (TrialConfig.dicomImportAnonymizerEnabled())
+					source = new File(TrialConfig.basepath + TrialConfig.httpImportDir);
+				//get the document for this study or create it if necessary
+				DicomObject nextObject = new DicomObject(next);
+				MircDocument td = new MircDocument(nextObject);
+				//put in the object and store the updated document
+				td.insert(
+					nextObject,
+					TrialConfig.allowOverwrite(),
+					TrialConfig.dicomImportAnonymizerEnabled(),
+					dicomAnonymizerProperties, lookupTableProperties);
+
+				//export the object
+				if (httpExportDirectoryFiles != null) {
+					for (int i=0; i<httpExportDirectoryFiles.length; i++) {
+						try {
+							ExportQueue.get(httpExportDirectoryFiles[i]).add(nextObject.getFile());
+						}
+						catch (Exception e) {
+							Log.message(processorServiceName+": " + httpExportDirectories[i]
+										+ " export failed:" + next.getName());
+							logger.warn(httpExportDirectories[i]
+										+ " export failed:" + next.getName());
+						}
+					}
+				}
+				if (!queueForDatabase(nextObject))
+					Log.message(Quarantine.file(next,processorServiceName,
+									"Unable to queue for database export",source));
+				else
+					Log.message(processorServiceName, Log.INFO, next.getName(), "Processing complete");
+
+				//log the event if logging is enabled
+				makeTrialLogEntry("dicom-import",nextObject);
+			}
+
+			//if the file still exists, then either the object was
+			//set for quarantining or there is a bug somewhere;
+			//log it and quarantine the file so we don't
+			//fall into an infinite loop.
+			if (next.exists()) {
+				logger.warn("Forced quarantine: "+next);
+				Log.message(Quarantine.file(next,processorServiceName,reason,source));
+			}
+		}
+		catch (Exception e) {
+			Log.message(processorServiceName+": Error during processing: "
+						+ next.getName() + "  - " + e.getMessage());
+			logger.warn("Error during processing: object quarantined: "
+						+ next.getName(),e);
+			Log.message(Quarantine.file(next,processorServiceName,
+							"Error during processing: " + e.getMessage(),source));
 		}
 	}
 
-	//Look through the http-import directory and process all
-	//the files there, oldest first. Note that these are actual
-	//files, not queue elements.
-	private void processHttpImportFiles() {
-		File importDirFile = new File(TrialConfig.basepath + TrialConfig.httpImportDir);
-		if (!importDirFile.exists()) return;
-		File[] files = importDirFile.listFiles();
-		for (int k=0; k<files.length; k++) {
-			File next = files[k];
-			if (next.canRead() && next.canWrite()) {
-				FileObject fileObject = FileObject.getObject(next);
-				if (preprocess(fileObject)) {
-					process(fileObject);
-					if (!queueForDatabase(fileObject))
-						Log.message(Quarantine.file(next,processorServiceName));
-					else
-						Log.message(processorServiceName+": Processing complete: "+next.getName());
-				}
+	//Process one file from the http-import directory.
+	private void processHttpImportFile(FileObject fileObject) {
+		File next = fileObject.getFile();
+		File source = next.getParentFile();
+		String reason = "Rejected by the preprocessor";
+		if (preprocess(fileObject)) {
+			reason = "Not removed from the import queue by processing";
+			process(fileObject);
+			if (!queueForDatabase(fileObject))
+				Log.message(Quarantine.file(next,processorServiceName,
+								"Unable to queue for database export",source));
+			else
+				Log.message(processorServiceName, Log.INFO, next.getName(), "Processing complete");
+		}
 
-				//If the file still exists, then there must be a bug
-				//somewhere; log it and quarantine the file so we don't
-				//fall into an infinite loop.
-				if (next.exists()) {
-					logger.warn(
-						"File still in queue after processing:\n"+next+
-						"The file will be quarantined.");
-					Log.message(Quarantine.file(next,processorServiceName));
+		//If the file still exists, then there must be a bug
+		//somewhere; log it and quarantine the file so we don't
+		//fall into an infinite loop.
+		if (next.exists()) {
+			logger.warn(
+				"File still in queue after processing:\n"+next+
+				"The file will be quarantined.");
+			Log.message(Quarantine.file(next,processorServiceName,reason,source));
+		}
+	}
+
+	//An object given to a worker.
+	static class Task {
+		FileObject fileObject;
+		boolean dicomImport;
+
+		public Task(FileObject fileObject, boolean dicomImport) {
+			this.fileObject = fileObject;
+			this.dicomImport = dicomImport;
+		}
+	}
+
+	//A thread which processes the objects of the studies assigned to it, in order.
+	class Worker extends Thread {
+		final LinkedBlockingQueue<Task> queue = new LinkedBlockingQueue<Task>(workerQueueSize);
+		final int id;
+		volatile String current = null;
+		volatile long processed = 0;
+		volatile boolean stopping = false;
+
+		public Worker(int id) {
+			super(processorServiceName + "-" + id);
+			this.id = id;
+			setPriority(Thread.MIN_PRIORITY);
+		}
+
+		public String getStatus() {
+			String name = current;
+			return "Worker " + id + ": "
+					+ processed + " processed; "
+					+ queue.size() + " queued; "
+					+ ((name != null) ? "processing " + name : "idle");
+		}
+
+		//Process tasks until the stopping flag is set. The worker
+		//is stopped with the flag rather than an interrupt, which
+		//would close any FileChannel the current object is using.
+		public void run() {
+			try {
+				while (!stopping) {
+					Task task = queue.poll(1, TimeUnit.SECONDS);
+					if (task == null) continue;
+					File file = task.fileObject.getFile();
+					current = file.getName();
+					try {
+						if (task.dicomImport) processDicomImportFile(file);
+						else processHttpImportFile(task.fileObject);
+					}
+					catch (Exception ex) {
+						logger.warn("Unexpected exception while processing " + file, ex);
+					}
+					finally {
+						if (!file.exists()) DirectoryCounter.get(file.getParentFile()).decrement();
+						assignments.remove(file.getAbsolutePath());
+						inFlight.remove(file.getAbsolutePath());
+						current = null;
+						processed++;
+					}
 				}
-				Thread.currentThread().yield();
+			}
+			catch (InterruptedException ex) { }
+			finally {
+				//Release the objects which will not be processed,
+				//so they are dispatched again by the next scan.
+				Task task;
+				while ((task = queue.poll()) != null)
+					inFlight.remove(task.fileObject.getFile().getAbsolutePath());
 			}
 		}
 	}
@@ -390,13 +572,12 @@ public class ObjectProcessor extends Thread implements DicomEventListener {
 			//we assume that is the case. There is no way to tell.
 			td.insert(dicomObject,TrialConfig.allowOverwrite(),true,null,null);
 			//export the image via DICOM if in auto mode
-			dicomExportDirectories = TrialConfig.getDicomExportDirectories();
-			dicomExportDirectoryFiles = TrialConfig.getDicomExportDirectoryFiles();
+			String[] dicomExportDirectories = TrialConfig.getDicomExportDirectories();
+			File[] dicomExportDirectoryFiles = TrialConfig.getDicomExportDirectoryFiles();
 			if (TrialConfig.getDicomExportMode().equals("auto") && (dicomExportDirectoryFiles != null)) {
 				for (int i=0; i<dicomExportDirectoryFiles.length; i++) {
 					try {
-						ExportQueueElement eqe = ExportQueueElement.createEQE(dicomObject);
-						eqe.queue(dicomExportDirectoryFiles[i]);
+						ExportQueue.get(dicomExportDirectoryFiles[i]).add(dicomObject.getFile());
 					}
 					catch (Exception e) {
 						String name = dicomObject.getFile().getName();
@@ -454,8 +635,7 @@ public class ObjectProcessor extends Thread implements DicomEventListener {
 		if (TrialConfig.getDatabaseExportMode().equals("auto")) {
 			File databaseExportDirectoryFile = TrialConfig.getDatabaseExportDirectoryFile();
 			try {
-				ExportQueueElement eqe = ExportQueueElement.createEQE(fileObject);
-				eqe.queue(databaseExportDirectoryFile);
+				ExportQueue.get(databaseExportDirectoryFile).add(fileObject.getFile());
 			}
 			catch (Exception e) {
 				Log.message(processorServiceName+": Unable to queue " + fileObject.getFile().getName()
@@ -469,7 +649,7 @@ public class ObjectProcessor extends Thread implements DicomEventListener {
 	//Create a Log4J log file with a monthly rolling appender and populate
 	//it with information from the dataset in a csv format so the log file
 	//can be opened and processed with a spreadsheet.
-	private void makeTrialLogEntry(String service, DicomObject dicomObject) {
+	private static synchronized void makeTrialLogEntry(String service, DicomObject dicomObject) {
 		if (!TrialConfig.log()) return;
 		if (processorLog == null) {
 			try {
@@ -8,66 +8,105 @@
 package org.rsna.mircsite.dicomservice;
 
 import java.io.*;
+import java.util.LinkedList;
+import java.util.List;
+import org.apache.log4j.Logger;
 import org.rsna.mircsite.util.*;
 
 /**
- * The storage service quarantine for queue elements
- * pointing to DICOM objects that cannot be sent to their
- * destinations.
+ * The storage service quarantine for DICOM objects which cannot
+ * be processed and for queue elements pointing to DICOM objects
+ * that cannot be sent to their destinations.
+ * <p>
+ * Each quarantined file is recorded in a QuarantineIndex with the
+ * service which quarantined it, the reason, the time, the
+ * StudyInstanceUID of the object, and the directory from which it
+ * came, so that the quarantine can be listed a page at a time and
+ * files can be replayed into the queues from which they came.
  */
 public class Quarantine {
 
+	static final Logger logger = Logger.getLogger(Quarantine.class);
+
+	private static final Object indexLock = new Object();
+	private static QuarantineIndex index = null;
+	private static QuarantineReplayer replayer = null;
+
 	/**
-	 * Add a queue element file to the quarantine. The queue
-	 * element file is renamed into the quarantine directory,
-	 * removing it from the transmission queue.
-	 * @param file the queue element file to be quarantined.
-	 * @return true if the quarantine was successful; false otherwise.
+	 * Move an object into the quarantine and return a string for
+	 * logging. The file is renamed into the quarantine directory,
+	 * removing it from the queue which was processing it.
+	 * @param file the object to be quarantined.
+	 * @param service the service making the quarantine call; used to provide a
+	 * name in the returned log string.
+	 * @param reason the reason the object is quarantined.
+	 * @param source the directory into which the object is to be put if it is
+	 * replayed, or null if it is not to be replayed.
+	 * @return a string to log the result.
 	 */
-	public static boolean file(File file) {
+	public static String file(File file, String service, String reason, File source) {
+		open();
+
 		//Make a clone pointing to the original File object.
 		//This is done to avoid modifying the original File object.
 		File clone = new File(file.getAbsolutePath());
 
-		//Make a File pointing to the quarantine and create
-		//the quarantine if it doesn't exist.
-		File q = new File(TrialConfig.basepath
-							+ TrialConfig.trialpath
-								+ TrialConfig.quarantine);
-		if (!q.exists()) q.mkdirs();
-
 		//Make a name for the quarantined file that will be unique if
 		//queue elements for the same object going to other destinations
 		//are also quarantined.
-		q = new File(TrialConfig.basepath
-						+ TrialConfig.trialpath
-							+ TrialConfig.quarantine
-								+ File.separator
-									+ StringUtil.makeNameFromDate()
-										+ "-" + file.getName());
+		File q = new File(getDirectory(), StringUtil.makeNameFromDate() + "-" + file.getName());
 
-		//If the queue element is not already in the quarantine, quarantine it
-		if (!q.exists()) return clone.renameTo(q);
+		//If the object is not already in the quarantine, quarantine it
+		if (!q.exists()) {
+			if (!clone.renameTo(q))
+				return service+": Quarantine failed: "+file.getName();
+			getCounter().increment();
+			add(new QuarantineItem(
+					QuarantineItem.OBJECT, q.getName(), file.getName(),
+					service, reason, getStudyUID(q),
+					(source != null) ? source.getAbsolutePath() : null));
+			return service+": Quarantine succeeded: "+file.getName();
+		}
 
-		//It was already there; just delete the element from the directory
+		//It was already there; just delete the file from the directory
 		//so it doesn't hang the queue handling process.
-		return file.delete();
+		if (file.delete())
+			return service+": Quarantine succeeded: "+file.getName();
+		return service+": Quarantine failed: "+file.getName();
 	}
 
 	/**
-	 * Add a queue element file to the quarantine and return a
-	 * string for logging. The file is renamed into the quarantine
-	 * directory, removing it from the transmission queue.
-	 * @param file the queue element file to be quarantined.
+	 * Add an entry from an export queue to the quarantine and return a
+	 * string for logging. A queue element file pointing to the queued
+	 * file is created in the quarantine directory; the caller must remove
+	 * the entry from its queue.
+	 * @param queue the queue from which the entry was taken; a replayed
+	 * entry is added to this queue.
+	 * @param entry the queue entry to be quarantined.
 	 * @param service the service making the quarantine call; used to provide a
 	 * name in the returned log string.
+	 * @param reason the reason the entry is quarantined.
 	 * @return a string to log the result.
 	 */
-	public static String file(File file, String service) {
-		if (file(file))
-			return service+": Quarantine succeeded: "+file.getName();
-		else
-			return service+": Quarantine failed: "+file.getName();
+	public static String entry(ExportQueue queue, ExportQueue.Entry entry, String service, String reason) {
+		open();
+		File q = getDirectory();
+		String name = StringUtil.makeNameFromDate() + "-" + entry.getName() + ".qe";
+		try {
+			File qe = new File(q, name);
+			if (qe.exists()) qe = File.createTempFile("ALT-", "-" + name, q);
+			ExportQueueElement eqe = new ExportQueueElement(qe, entry.getFile());
+			eqe.setAttempts(entry.getAttempts());
+			getCounter().increment();
+			add(new QuarantineItem(
+					QuarantineItem.ENTRY, qe.getName(), entry.getName(),
+					service, reason, getStudyUID(entry.getFile()),
+					queue.getDirectory().getAbsolutePath()));
+			return service+": Quarantine succeeded: "+entry.getName();
+		}
+		catch (Exception ex) {
+			return service+": Quarantine failed: "+entry.getName();
+		}
 	}
 
 	/**
@@ -75,8 +114,199 @@ public class Quarantine {
 	 * @return the number of files in the quarantine.
 	 */
 	public static int getFileCount() {
-		return FileUtil.getFileCount(
+		return getCounter().getCount();
+	}
+
+	/**
+	 * Find the quarantined files which match a set of criteria,
+	 * in the order in which they were quarantined.
+	 * @param service the name of the service which quarantined the files,
+	 * or null or blank to match all services.
+	 * @param siuid the Study Instance UID, or null or blank to match all studies.
+	 * @param reason text which must appear in the reason (ignoring case),
+	 * or null or blank to match all reasons.
+	 * @param first the number of matching files to skip.
+	 * @param max the maximum number of files to return.
+	 * @return the matching items.
+	 */
+	public static List<QuarantineItem> query(String service, String siuid, String reason, int first, int max) {
+		synchronized (indexLock) {
+			QuarantineIndex qi = getIndex();
+			if (qi == null) return new LinkedList<QuarantineItem>();
+			return qi.query(QuarantineItem.fix(service).trim(),
+							QuarantineItem.fix(siuid).trim(),
+							QuarantineItem.fix(reason).trim(), first, max);
+		}
+	}
+
+	/**
+	 * Put a quarantined file back into the directory or queue from
+	 * which it came and remove it from the quarantine.
+	 * @param item the item.
+	 * @return true if the file was replayed; false if the item is not
+	 * replayable or its file no longer exists.
+	 */
+	public static boolean replay(QuarantineItem item) {
+		File file = new File(getDirectory(), item.name);
+		if (!file.exists() || !item.isReplayable()) return false;
+		File source = new File(item.source);
+		try {
+			if (item.type.equals(QuarantineItem.ENTRY)) {
+				File queuedFile = new ExportQueueElement(file).getQueuedFile();
+				if ((queuedFile == null) || !queuedFile.exists()) return false;
+				ExportQueue.get(source).add(queuedFile);
+				file.delete();
+			}
+			else {
+				FileObject fileObject = new FileObject(file);
+				if (!fileObject.moveToDirectory(source, item.filename)) return false;
+				DirectoryCounter.get(source).increment();
+				WorkSignal.post(source);
+			}
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to replay " + item.name, ex);
+			return false;
+		}
+		getCounter().decrement();
+		remove(item);
+		return true;
+	}
+
+	/**
+	 * Get the number of objects waiting in the directory or queue
+	 * into which a quarantined file is replayed.
+	 * @param item the item.
+	 * @return the number of objects waiting.
+	 */
+	public static int getBacklog(QuarantineItem item) {
+		if (!item.isReplayable()) return 0;
+		File source = new File(item.source);
+		if (item.type.equals(QuarantineItem.ENTRY)) return ExportQueue.size(source);
+		return DirectoryCounter.get(source).getCount();
+	}
+
+	/**
+	 * Start replaying the quarantined files which match a set of criteria,
+	 * stopping any replay which is in progress.
+	 * @param service the name of the service which quarantined the files,
+	 * or blank to match all services.
+	 * @param siuid the Study Instance UID, or blank to match all studies.
+	 * @param reason text which must appear in the reason, or blank to match all reasons.
+	 * @param rate the maximum number of files to replay per second.
+	 */
+	public static synchronized void startReplay(String service, String siuid, String reason, int rate) {
+		stopReplay();
+		replayer = new QuarantineReplayer(service, siuid, reason, rate);
+		replayer.start();
+	}
+
+	/**
+	 * Stop the replay in progress, if any.
+	 */
+	public static synchronized void stopReplay() {
+		if ((replayer != null) && replayer.isAlive()) {
+			replayer.interrupt();
+			try { replayer.join(); }
+			catch (InterruptedException ignore) { }
+		}
+	}
+
+	/**
+	 * Get the status of the current or last replay.
+	 * @return the status, or the empty string if no replay has been started.
+	 */
+	public static synchronized String getReplayStatus() {
+		return (replayer != null) ? replayer.getStatus() : "";
+	}
+
+	/**
+	 * Stop any replay and close the index.
+	 */
+	public static void close() {
+		stopReplay();
+		synchronized (indexLock) {
+			if (index != null) index.close();
+			index = null;
+		}
+	}
+
+	//Open the index before a file is added to the quarantine,
+	//so the file is not taken for one which was there before
+	//the index was created.
+	private static void open() {
+		synchronized (indexLock) { getIndex(); }
+	}
+
+	//Record a quarantined file in the index.
+	private static void add(QuarantineItem item) {
+		synchronized (indexLock) {
+			QuarantineIndex qi = getIndex();
+			if (qi == null) return;
+			try { qi.add(item); }
+			catch (Exception ex) { logger.warn("Unable to index " + item.name, ex); }
+		}
+	}
+
+	//Remove a file from the index.
+	private static void remove(QuarantineItem item) {
+		synchronized (indexLock) {
+			QuarantineIndex qi = getIndex();
+			if (qi != null) qi.remove(item);
+		}
+	}
+
+	//Get the index, opening it if necessary. If the index is new,
+	//index the files already in the quarantine. They cannot be
+	//replayed, since it is not known where they came from.
+	//The caller must hold the indexLock.
+	private static QuarantineIndex getIndex() {
+		if (index == null) {
+			try {
+				index = new QuarantineIndex(new File(TrialConfig.basepath + TrialConfig.quarantineIndexDir));
+				if (index.size() == 0) {
+					File[] files = getDirectory().listFiles();
+					for (int i=0; (files != null) && (i<files.length); i++) {
+						QuarantineItem item = new QuarantineItem(
+									(files[i].getName().endsWith(".qe") ? QuarantineItem.ENTRY : QuarantineItem.OBJECT),
+									files[i].getName(), files[i].getName(), null, null,
+									getStudyUID(files[i]), null);
+						item.time = files[i].lastModified();
+						index.add(item);
+					}
+				}
+			}
+			catch (Exception ex) {
+				logger.warn("Unable to open the quarantine index.", ex);
+				index = null;
+			}
+		}
+		return index;
+	}
+
+	//Get the StudyInstanceUID of an object, or of the object
+	//to which a queue element points.
+	private static String getStudyUID(File file) {
+		try {
+			if (file.getName().endsWith(".qe")) file = new ExportQueueElement(file).getQueuedFile();
+			return FileObject.getObject(file).getStudyInstanceUID();
+		}
+		catch (Exception ex) { return ""; }
+	}
+
+	//Get the quarantine directory, creating it if it doesn't exist.
+	private static File getDirectory() {
+		File q = new File(TrialConfig.basepath
+							+ TrialConfig.trialpath
+								+ TrialConfig.quarantine);
+		if (!q.exists()) q.mkdirs();
+		return q;
+	}
+
+	//Get the counter for the quarantine directory.
+	private static DirectoryCounter getCounter() {
+		return DirectoryCounter.get(
 			new File(TrialConfig.basepath + TrialConfig.trialpath + TrialConfig.quarantine));
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,148 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.mircsite.dicomservice;
+
+import java.io.File;
+import java.util.LinkedList;
+import java.util.List;
+import jdbm.RecordManager;
+import jdbm.btree.BTree;
+import jdbm.helper.Tuple;
+import jdbm.helper.TupleBrowser;
+import org.apache.log4j.Logger;
+import org.rsna.mircsite.util.JdbmUtil;
+
+/**
+ * A JDBM database of QuarantineItems, indexed by time, by service, and by
+ * Study Instance UID, so that quarantined files can be listed and replayed
+ * without reading the quarantine directory. The items are kept in a BTree
+ * keyed by their times and names; the service and study indexes are BTrees
+ * whose keys start with the service name or UID and end with the key of
+ * the item.
+ * <p>
+ * This class is not thread-safe; the Quarantine class synchronizes access.
+ */
+public class QuarantineIndex {
+
+	static final Logger logger = Logger.getLogger(QuarantineIndex.class);
+
+	static final String separator = "|";
+
+	RecordManager recman;
+	BTree items;
+	BTree byService;
+	BTree bySIUID;
+
+	/**
+	 * Open the index, creating it if it does not exist.
+	 * @param dir the directory in which to store the database files.
+	 * @throws Exception if the database cannot be opened.
+	 */
+	public QuarantineIndex(File dir) throws Exception {
+		dir.mkdirs();
+		recman = JdbmUtil.getRecordManager(new File(dir, "QuarantineIndex").getPath());
+		if (recman == null) throw new Exception("Unable to open the quarantine index.");
+		items = JdbmUtil.getBTree(recman, "Items");
+		byService = JdbmUtil.getBTree(recman, "ByService");
+		bySIUID = JdbmUtil.getBTree(recman, "BySIUID");
+	}
+
+	/**
+	 * Add an item to the index and commit the change.
+	 * @param item the item.
+	 * @throws Exception if the item cannot be stored.
+	 */
+	public void add(QuarantineItem item) throws Exception {
+		String key = getKey(item);
+		items.insert(key, item, true);
+		byService.insert(item.service + separator + key, key, true);
+		if (!item.siuid.equals("")) bySIUID.insert(item.siuid + separator + key, key, true);
+		recman.commit();
+	}
+
+	/**
+	 * Remove an item from the index and commit the change.
+	 * @param item the item.
+	 */
+	public void remove(QuarantineItem item) {
+		String key = getKey(item);
+		try {
+			items.remove(key);
+			byService.remove(item.service + separator + key);
+			if (!item.siuid.equals("")) bySIUID.remove(item.siuid + separator + key);
+			recman.commit();
+		}
+		catch (Exception ex) { logger.warn("Unable to remove " + item.name + " from the quarantine index.", ex); }
+	}
+
+	/**
+	 * Get the number of items in the index.
+	 * @return the number of items.
+	 */
+	public int size() {
+		return items.size();
+	}
+
+	/**
+	 * Close the index.
+	 */
+	public void close() {
+		try { recman.commit(); recman.close(); }
+		catch (Exception ignore) { }
+	}
+
+	/**
+	 * Find the items which match a set of criteria, in chronological order.
+	 * @param service the name of the service which quarantined the files,
+	 * or blank to match all services.
+	 * @param siuid the Study Instance UID, or blank to match all studies.
+	 * @param reason text which must appear in the reason (ignoring case),
+	 * or blank to match all reasons.
+	 * @param first the number of matching items to skip.
+	 * @param max the maximum number of items to return.
+	 * @return the matching items.
+	 */
+	public List<QuarantineItem> query(String service, String siuid, String reason, int first, int max) {
+		LinkedList<QuarantineItem> list = new LinkedList<QuarantineItem>();
+		try {
+			//Browse the smallest index which applies.
+			BTree tree = items;
+			String prefix = "";
+			if (!siuid.equals("")) {
+				tree = bySIUID;
+				prefix = siuid + separator;
+			}
+			else if (!service.equals("")) {
+				tree = byService;
+				prefix = service + separator;
+			}
+			Tuple tuple = new Tuple();
+			TupleBrowser browser = tree.browse(prefix);
+			int skipped = 0;
+			while ((list.size() < max) && browser.getNext(tuple)) {
+				String key = (String)tuple.getKey();
+				if (!key.startsWith(prefix)) break;
+				QuarantineItem item = (QuarantineItem)((tree == items) ? tuple.getValue() : items.find(tuple.getValue()));
+				if ((item != null) && item.matches(service, siuid, reason)) {
+					if (skipped < first) skipped++;
+					else list.add(item);
+				}
+			}
+		}
+		catch (Exception ex) { logger.warn("Unable to query the quarantine index.", ex); }
+		return list;
+	}
+
+	//Make the key of an item, which puts the items in chronological order.
+	private static String getKey(QuarantineItem item) {
+		String time = Long.toString(item.time);
+		while (time.length() < 15) time = "0" + time;
+		return time + separator + item.name;
+	}
+
+}
@@ -0,0 +1,95 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.mircsite.dicomservice;
+
+import java.io.Serializable;
+import org.rsna.mircsite.util.StringUtil;
+
+/**
+ * A file in the quarantine, as recorded in the QuarantineIndex.
+ */
+public class QuarantineItem implements Serializable {
+
+	static final long serialVersionUID = 1L;
+
+	/** The type of an object quarantined by the ObjectProcessor. */
+	public static final String OBJECT = "object";
+
+	/** The type of a queue element quarantined by an export service. */
+	public static final String ENTRY = "entry";
+
+	public String type		= OBJECT;
+	public String name		= "";
+	public String filename	= "";
+	public String service	= "";
+	public String reason	= "";
+	public long time		= 0;
+	public String siuid		= "";
+	public String source	= "";
+
+	/**
+	 * Create an item for a file quarantined now.
+	 * @param type the type of the item (OBJECT or ENTRY).
+	 * @param name the name of the file in the quarantine.
+	 * @param filename the name of the object before it was quarantined.
+	 * @param service the name of the service which quarantined the file.
+	 * @param reason the reason the file was quarantined.
+	 * @param siuid the StudyInstanceUID of the object, or null if it is unknown.
+	 * @param source the path to the directory into which the file is to be
+	 * replayed (an import directory or an export queue), or null if the file
+	 * cannot be replayed.
+	 */
+	public QuarantineItem(String type, String name, String filename, String service,
+							String reason, String siuid, String source) {
+		this.type = type;
+		this.name = name;
+		this.filename = filename;
+		this.service = fix(service);
+		this.reason = fix(reason);
+		this.siuid = fix(siuid).trim();
+		this.source = fix(source);
+		time = System.currentTimeMillis();
+	}
+
+	/**
+	 * Get the time the file was quarantined.
+	 * @return the datetime in the form YYYY-MM-DD hh:mm:ss.
+	 */
+	public String getDateTime() {
+		return StringUtil.getDateTime(time, " ");
+	}
+
+	/**
+	 * Determine whether the file can be replayed.
+	 * @return true if the item records where the file came from.
+	 */
+	public boolean isReplayable() {
+		return !source.equals("");
+	}
+
+	/**
+	 * Determine whether the item matches a set of criteria.
+	 * @param service the service, or blank to match all services.
+	 * @param siuid the StudyInstanceUID, or blank to match all studies.
+	 * @param reason text which must appear in the reason (ignoring case),
+	 * or blank to match all reasons.
+	 * @return true if the item matches all the criteria.
+	 */
+	public boolean matches(String service, String siuid, String reason) {
+		if (!service.equals("") && !this.service.equals(service)) return false;
+		if (!siuid.equals("") && !this.siuid.equals(siuid)) return false;
+		if (!reason.equals("") && (this.reason.toLowerCase().indexOf(reason.toLowerCase()) == -1)) return false;
+		return true;
+	}
+
+	//Replace null with the empty string.
+	static String fix(String s) {
+		return (s != null) ? s : "";
+	}
+
+}
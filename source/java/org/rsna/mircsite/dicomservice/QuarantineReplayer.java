@@ -0,0 +1,119 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.mircsite.dicomservice;
+
+import java.util.List;
+import org.apache.log4j.Logger;
+import org.rsna.mircsite.log.Log;
+
+/**
+ * A Thread that replays the quarantined files which match a set of
+ * criteria into the directories and queues from which they came.
+ * <p>
+ * The replay is throttled so that a destination which is recovering
+ * from an outage is not flooded: no more than the specified number of
+ * files are replayed per second, and the replay waits while the queue
+ * into which a file is to be replayed holds maxBacklog or more objects.
+ * Files which cannot be replayed are left in the quarantine.
+ * <p>
+ * Only the files which were in the quarantine when the replay started
+ * are replayed, so that a file which fails again and is quarantined
+ * again is not replayed over and over.
+ */
+public class QuarantineReplayer extends Thread {
+
+	static final Logger logger = Logger.getLogger(QuarantineReplayer.class);
+
+	static final String serviceName = "Quarantine";
+	static final int maxBacklog = 500;
+	static final int pageSize = 100;
+	static final long backlogWait = 1000;
+
+	private final String service;
+	private final String siuid;
+	private final String reason;
+	private final long interval;
+	private volatile int replayed = 0;
+	private volatile int skipped = 0;
+	private volatile boolean waiting = false;
+
+	/**
+	 * Create a replayer for the quarantined files which match a set of criteria.
+	 * @param service the name of the service which quarantined the files,
+	 * or blank to match all services.
+	 * @param siuid the Study Instance UID, or blank to match all studies.
+	 * @param reason text which must appear in the reason, or blank to match all reasons.
+	 * @param rate the maximum number of files to replay per second.
+	 */
+	public QuarantineReplayer(String service, String siuid, String reason, int rate) {
+		super("QuarantineReplayer");
+		this.service = QuarantineItem.fix(service).trim();
+		this.siuid = QuarantineItem.fix(siuid).trim();
+		this.reason = QuarantineItem.fix(reason).trim();
+		this.interval = 1000 / Math.max(1, rate);
+		setDaemon(true);
+		setPriority(Thread.MIN_PRIORITY);
+	}
+
+	/**
+	 * Replay the matching files until none are left or the thread is interrupted.
+	 * Replayed files are removed from the index, so each page is read from the
+	 * first matching item, skipping those which could not be replayed. The items
+	 * are in chronological order, so the replay ends at the first item which was
+	 * quarantined after it started.
+	 */
+	public void run() {
+		long startTime = System.currentTimeMillis();
+		Log.message(serviceName, Log.INFO, null, "Replay started" + getCriteria());
+		try {
+			List<QuarantineItem> items;
+			boolean done = false;
+			while (!done && !interrupted()
+					&& !(items = Quarantine.query(service, siuid, reason, skipped, pageSize)).isEmpty()) {
+				for (QuarantineItem item : items) {
+					if (item.time > startTime) {
+						done = true;
+						break;
+					}
+					while (Quarantine.getBacklog(item) >= maxBacklog) {
+						waiting = true;
+						sleep(backlogWait);
+					}
+					waiting = false;
+					if (Quarantine.replay(item)) replayed++;
+					else skipped++;
+					sleep(interval);
+				}
+			}
+		}
+		catch (InterruptedException stop) { }
+		catch (Exception ex) { logger.warn("Replay failed", ex); }
+		waiting = false;
+		Log.message(serviceName, Log.INFO, null,
+			"Replay ended: " + replayed + " replayed, " + skipped + " not replayable" + getCriteria());
+	}
+
+	/**
+	 * Get the status of the replay.
+	 * @return a description of the replay for display.
+	 */
+	public String getStatus() {
+		String status = isAlive() ? (waiting ? "waiting for the queue to drain" : "running") : "finished";
+		return status + ": " + replayed + " replayed, " + skipped + " not replayable" + getCriteria();
+	}
+
+	//Describe the criteria for logging.
+	private String getCriteria() {
+		String s = "";
+		if (!service.equals("")) s += " service=" + service;
+		if (!siuid.equals("")) s += " study=" + siuid;
+		if (!reason.equals("")) s += " reason=" + reason;
+		return s.equals("") ? "" : " [" + s.trim() + "]";
+	}
+
+}
@@ -0,0 +1,283 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.mircsite.dicomservice;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import org.apache.log4j.Logger;
+
+/**
+ * The set of objects received recently by the HttpImportService, used to
+ * recognize an object which is sent again by a sender which did not get
+ * the response to its first transmission.
+ * <p>
+ * An object is identified by a key made from its SOPInstanceUID and the
+ * SHA-256 digest of its contents. Only a 128-bit hash of the pair is kept,
+ * with the time at which the object was received. A key is kept for the
+ * duplicate window of the trial (TrialConfig.getHttpImportDuplicateWindow),
+ * but the set never holds more than maxEntries keys; keys which are
+ * discarded before their window has expired are logged.
+ * <p>
+ * The set is saved in a file in which each line holds a key and its time.
+ * Lines are appended as objects are added, and the file is rewritten when
+ * it has twice as many lines as the set has keys. The new file is written
+ * outside the lock of the set and then replaces the old one, which is kept
+ * as a backup until the replacement is complete, so that the set survives
+ * a crash during a rewrite.
+ * <p>
+ * An object is reserved while it is being queued and is only added to
+ * the set when it has been queued, so that a copy which arrives in the
+ * meantime waits for the outcome instead of being acknowledged for an
+ * object which might still be lost.
+ */
+public class ReceivedObjects {
+
+	static final Logger logger = Logger.getLogger(ReceivedObjects.class);
+
+	static final int maxEntries = 100000;
+	static final long hour = 60 * 60 * 1000;
+
+	private static ReceivedObjects instance = null;
+
+	private final File file;
+	private final File backup;
+	private final File temp;
+	private final LinkedHashMap<String,Long> keys = new LinkedHashMap<String,Long>();
+	private final HashSet<String> reserved = new HashSet<String>();
+	private Writer writer = null;
+	private int lines = 0;
+	private List<String> appended = null;
+
+	/**
+	 * Get the set for the trial, loading it if necessary.
+	 * @return the set.
+	 */
+	public static synchronized ReceivedObjects getInstance() {
+		if (instance == null) {
+			instance = new ReceivedObjects(
+						new File(TrialConfig.basepath + TrialConfig.receivedObjectsFilename));
+		}
+		return instance;
+	}
+
+	/**
+	 * Make the key for an object.
+	 * @param uid the SOPInstanceUID of the object, or the empty
+	 * string if the object is not a DICOM object.
+	 * @param digest the SHA-256 digest of the object.
+	 * @return the key.
+	 */
+	public static String getKey(String uid, byte[] digest) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update(((uid != null) ? uid.trim() : "").getBytes("UTF-8"));
+			md.update((byte)0);
+			md.update(digest);
+			return ObjectBatch.toHex(md.digest()).substring(0, 32);
+		}
+		catch (Exception ex) { return ObjectBatch.toHex(digest); }
+	}
+
+	//Load the set from its file. If the program stopped while the file
+	//was being replaced, the backup holds the keys; it is loaded first,
+	//and the file is rewritten.
+	private ReceivedObjects(File file) {
+		this.file = file;
+		backup = new File(file.getParentFile(), file.getName() + ".bak");
+		temp = new File(file.getParentFile(), file.getName() + ".tmp");
+		boolean recovered = backup.exists();
+		if (recovered) load(backup);
+		if (file.exists()) load(file);
+		trim(System.currentTimeMillis());
+		if (recovered) {
+			try { rewrite(); }
+			catch (Exception ex) {
+				logger.warn("Unable to rewrite the received objects file.", ex);
+			}
+		}
+	}
+
+	//Load the lines of a file. A line without a time
+	//takes the time at which the file was last modified.
+	private void load(File source) {
+		try {
+			BufferedReader reader =
+				new BufferedReader(new InputStreamReader(new FileInputStream(source), "UTF-8"));
+			try {
+				long defaultTime = source.lastModified();
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] words = line.trim().split(" ");
+					if (words[0].equals("")) continue;
+					long time = defaultTime;
+					if (words.length > 1) {
+						try { time = Long.parseLong(words[1]); }
+						catch (NumberFormatException ex) { }
+					}
+					keys.remove(words[0]);
+					keys.put(words[0], new Long(time));
+					lines++;
+				}
+			}
+			finally { reader.close(); }
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to load the received objects file " + source, ex);
+		}
+	}
+
+	/**
+	 * Reserve an object which is about to be queued. If the same object
+	 * is reserved by another request, wait until it has been added or
+	 * released. The caller must call add or release when it is done.
+	 * @param key the key of the object.
+	 * @return true if the object was reserved; false if it is already in the set.
+	 * @throws InterruptedException if the thread is interrupted while waiting.
+	 */
+	public synchronized boolean reserve(String key) throws InterruptedException {
+		while (reserved.contains(key)) wait();
+		trim(System.currentTimeMillis());
+		if (keys.containsKey(key)) return false;
+		reserved.add(key);
+		return true;
+	}
+
+	/**
+	 * Add a reserved object to the set once it has been queued.
+	 * @param key the key of the object.
+	 */
+	public void add(String key) {
+		boolean rewrite = false;
+		synchronized (this) {
+			reserved.remove(key);
+			if (!keys.containsKey(key)) {
+				long now = System.currentTimeMillis();
+				keys.put(key, new Long(now));
+				trim(now);
+				rewrite = save(key + " " + now);
+			}
+			notifyAll();
+		}
+		if (rewrite) {
+			try { rewrite(); }
+			catch (Exception ex) {
+				logger.warn("Unable to rewrite the received objects file.", ex);
+			}
+		}
+	}
+
+	/**
+	 * Release a reserved object which could not be queued,
+	 * so that a copy of it can be accepted.
+	 * @param key the key of the object.
+	 */
+	public synchronized void release(String key) {
+		reserved.remove(key);
+		notifyAll();
+	}
+
+	/**
+	 * Get the number of objects in the set.
+	 * @return the number of objects.
+	 */
+	public synchronized int size() {
+		return keys.size();
+	}
+
+	//Remove the keys whose window has expired, and the oldest keys
+	//if the set is full, logging the keys which are discarded early.
+	private void trim(long now) {
+		long oldest = now - TrialConfig.getHttpImportDuplicateWindow() * hour;
+		int discarded = 0;
+		Iterator<Map.Entry<String,Long>> it = keys.entrySet().iterator();
+		while (it.hasNext()) {
+			long time = it.next().getValue().longValue();
+			if (time < oldest) it.remove();
+			else if (keys.size() > maxEntries) {
+				it.remove();
+				discarded++;
+			}
+			else break;
+		}
+		if (discarded > 0) {
+			logger.warn("The received objects set is full; " + discarded
+						+ " objects received within the duplicate window were discarded.");
+		}
+	}
+
+	//Append a line to the file. While the file is being rewritten, the
+	//line is also kept to be appended to the new file. Return true if the
+	//file has grown large enough to be rewritten and is not being rewritten.
+	private boolean save(String line) {
+		try {
+			if (writer == null) {
+				file.getParentFile().mkdirs();
+				writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+			}
+			writer.write(line + "\n");
+			writer.flush();
+			lines++;
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to update the received objects file.", ex);
+		}
+		if (appended != null) {
+			appended.add(line);
+			return false;
+		}
+		return (lines >= 2 * Math.max(keys.size(), maxEntries / 10));
+	}
+
+	//Write the keys to a new file and replace the old one. The keys are
+	//copied under the lock of the set and written outside it; the lines
+	//appended in the meantime are added to the new file, and the files
+	//are exchanged, under the lock.
+	private void rewrite() throws IOException {
+		List<String> snapshot = new LinkedList<String>();
+		synchronized (this) {
+			if (appended != null) return;
+			appended = new LinkedList<String>();
+			for (Map.Entry<String,Long> entry : keys.entrySet())
+				snapshot.add(entry.getKey() + " " + entry.getValue());
+		}
+		try {
+			file.getParentFile().mkdirs();
+			FileOutputStream fos = new FileOutputStream(temp);
+			Writer w = new OutputStreamWriter(fos, "UTF-8");
+			try {
+				for (String line : snapshot) w.write(line + "\n");
+				w.flush();
+				fos.getFD().sync();
+			}
+			finally { w.close(); }
+			synchronized (this) {
+				w = new OutputStreamWriter(new FileOutputStream(temp, true), "UTF-8");
+				try { for (String line : appended) w.write(line + "\n"); }
+				finally { w.close(); }
+				if (writer != null) writer.close();
+				writer = null;
+				backup.delete();
+				if (file.exists() && !file.renameTo(backup))
+					throw new IOException("Unable to back up " + file);
+				if (!temp.renameTo(file)) throw new IOException("Unable to replace " + file);
+				backup.delete();
+				lines = snapshot.size() + appended.size();
+			}
+		}
+		finally {
+			synchronized (this) { appended = null; }
+		}
+	}
+
+}
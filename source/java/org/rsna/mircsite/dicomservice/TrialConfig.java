@@ -33,6 +33,7 @@ public class TrialConfig {
 	public static String basepath = null;
 	public static String trialpath = "trial" + File.separator;
 	public static String quarantine = "quarantine";
+	public static final String quarantineIndexDir = trialpath + "quarantine-index";
 	public static String updatepath = "update" + File.separator;
 
 	public static final String configFilename = trialpath + "trial.xml";
@@ -53,8 +54,10 @@ public class TrialConfig {
 
 	public static final String httpStoreDir = trialpath + "http-store";
 	public static final String httpImportDir = trialpath + "http-import";
+	public static final String receivedObjectsFilename = trialpath + "received-objects.txt";
 	public static String[] httpImportIPAddresses = null;
 	public static String httpImportAnonymize = null;
+	public static String httpImportDuplicateWindow = null;
 
 	public static final String httpExportDir = trialpath + "http-export";
 	public static File[] httpExportDirectoryFiles = null;
@@ -121,6 +124,7 @@ public class TrialConfig {
 			preprocessorClassName = XmlUtil.getValueViaPath(xml,"clinical-trial/http-import/preprocessor/preprocessor-class-name");
 			//Get the http import anonymizer enabled parameter
 			httpImportAnonymize = XmlUtil.getValueViaPath(xml,"clinical-trial/http-import/anonymize");
+			httpImportDuplicateWindow = XmlUtil.getValueViaPath(xml,"clinical-trial/http-import/duplicate-window");
 			//Get the http import IP addresses
 			NodeList list = xml.getElementsByTagName("http-import");
 			if (list.getLength() == 0) {
@@ -354,6 +358,24 @@ public class TrialConfig {
 		return httpImportAnonymize.equals("yes");
 	}
 
+	/**
+	 * Get the HttpImportDuplicateWindow. This defines the time in hours
+	 * for which the HttpImportService remembers the objects it has
+	 * received, so that a copy sent again is recognized as a duplicate.
+	 * @return the window in hours, or 168 if the window cannot be parsed
+	 * as an integer, the window is less than 1, or the window is greater
+	 * than 8760.
+	 */
+	public static int getHttpImportDuplicateWindow() {
+		int def = 168;
+		if (xml == null) return def;
+		int t;
+		try { t = Integer.parseInt(httpImportDuplicateWindow.trim()); }
+		catch (Exception ex) { return def; }
+		if ((t < 1) || (t > 8760)) return def;
+		return t;
+	}
+
 	/**
 	 * Get the array of HttpExportDirectories. These are the
 	 * directories which serve as queues for sending objects
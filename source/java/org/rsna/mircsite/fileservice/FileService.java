@@ -509,7 +509,7 @@ public class FileService extends HttpServlet {
 			if (isDicomFile && (req.getParameter("list") != null)) dicom(res, file);
 			else {
 				String contentType = ContentType.getContentType(file);
-				ServletUtil.sendBinaryFileContents(res,contentType,file,isDicomFile);
+				ServletUtil.sendBinaryFileContents(req,res,contentType,file,isDicomFile);
 			}
 			return;
 		}
@@ -520,7 +520,7 @@ public class FileService extends HttpServlet {
 			File file = new File(user, "icons");
 			file = new File(file, path);
 			String contentType = ContentType.getContentType(file);
-			ServletUtil.sendBinaryFileContents(res,contentType,file,false);
+			ServletUtil.sendBinaryFileContents(req,res,contentType,file,false);
 			return;
 		}
 
@@ -533,7 +533,7 @@ public class FileService extends HttpServlet {
 			if (isDicomFile && (req.getParameter("list") != null)) dicom(res, file);
 			else {
 				String contentType = ContentType.getContentType(file);
-				ServletUtil.sendBinaryFileContents(res,contentType,file,isDicomFile);
+				ServletUtil.sendBinaryFileContents(req,res,contentType,file,isDicomFile);
 			}
 			return;
 		}
@@ -544,7 +544,7 @@ public class FileService extends HttpServlet {
 			File file = new File(dept, "icons");
 			file = new File(file, path);
 			String contentType = ContentType.getContentType(file);
-			ServletUtil.sendBinaryFileContents(res,contentType,file,false);
+			ServletUtil.sendBinaryFileContents(req,res,contentType,file,false);
 			return;
 		}
 
@@ -8,31 +8,140 @@
 package org.rsna.mircsite.log;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
- * A recycling log of the last 200 events.
+ * A recycling log of the most recent events.
+ * <p>
+ * Events are stored as LogEntry objects in a ring of slots. A thread
+ * logging an event claims the next sequence number with an atomic
+ * increment and stores the entry in the slot for that number, so the
+ * services never wait for each other or for a thread which is reading
+ * the log. The entries are rendered as HTML only when the log is read.
  */
 public class Log {
 
-	private static int logSize = 100;
-	private static int next = 0;
-	private static int size = 0;
+	/** The level of an informational event. */
+	public static final int INFO = 0;
 
-	private static String[] logStrings = new String[logSize];
+	/** The level of an event which may require attention. */
+	public static final int WARNING = 1;
+
+	/** The level of a failure. */
+	public static final int ERROR = 2;
+
+	static final int maxServiceNameLength = 40;
+	static final long pollInterval = 200;
+
+	private static volatile AtomicReferenceArray<LogEntry> slots = new AtomicReferenceArray<LogEntry>(100);
+	private static final AtomicLong sequence = new AtomicLong();
+	private static volatile long cleared = 0;
 
 	/**
 	 * Get an HTML table string with the current contents of the log.
 	 * @return the log contents in an HTML table element.
 	 */
-	public static synchronized String getLog() {
-		return "<table>" + getText() + "</table>";
+	public static String getLog() {
+		return getLog(null);
+	}
+
+	/**
+	 * Get an HTML table string with the entries in the log
+	 * which were made by one service.
+	 * @param service the name of the service, or null or blank
+	 * to include the entries for all services.
+	 * @return the log contents in an HTML table element.
+	 */
+	public static String getLog(String service) {
+		return "<table>" + toHTML(getEntries(service, -1)) + "</table>";
+	}
+
+	/**
+	 * Render a list of entries as HTML table rows.
+	 * @param entries the entries.
+	 * @return the table rows.
+	 */
+	public static String toHTML(List<LogEntry> entries) {
+		Calendar cal = Calendar.getInstance();
+		StringBuffer sb = new StringBuffer(entries.size() * 100);
+		for (LogEntry entry : entries) sb.append(entry.toHTML(cal));
+		return sb.toString();
+	}
+
+	/**
+	 * Get the entries in the log which follow a sequence number,
+	 * oldest first.
+	 * @param service the name of the service, or null or blank
+	 * to include the entries for all services.
+	 * @param after the sequence number of the last entry which
+	 * is not to be included, or -1 to get all the entries.
+	 * @return the entries.
+	 */
+	public static List<LogEntry> getEntries(String service, long after) {
+		AtomicReferenceArray<LogEntry> ring = slots;
+		int depth = ring.length();
+		long end = sequence.get();
+		long start = Math.max(after + 1, Math.max(cleared, end - depth));
+		boolean all = (service == null) || service.trim().equals("");
+		LinkedList<LogEntry> list = new LinkedList<LogEntry>();
+		for (long s=start; s<end; s++) {
+			LogEntry entry = ring.get((int)(s % depth));
+			//If the thread which claimed this number has not stored
+			//its entry yet, stop here so the entry is not skipped by
+			//a caller which is following the log.
+			if ((entry == null) || (entry.seq < s)) break;
+			if ((entry.seq == s) && (all || entry.service.equals(service))) list.add(entry);
+		}
+		return list;
+	}
+
+	/**
+	 * Wait for entries to be added to the log.
+	 * @param service the name of the service, or null or blank
+	 * to include the entries for all services.
+	 * @param after the sequence number of the last entry which
+	 * is not to be included.
+	 * @param timeout the maximum time to wait, in milliseconds.
+	 * @return the entries which follow the sequence number, or
+	 * an empty list if none were added before the timeout.
+	 */
+	public static List<LogEntry> waitForEntries(String service, long after, long timeout) {
+		long endTime = System.currentTimeMillis() + timeout;
+		List<LogEntry> list = getEntries(service, after);
+		while (list.isEmpty() && (System.currentTimeMillis() < endTime)) {
+			try { Thread.sleep(pollInterval); }
+			catch (InterruptedException ex) { break; }
+			list = getEntries(service, after);
+		}
+		return list;
+	}
+
+	/**
+	 * Get the sequence number of the most recent entry.
+	 * @return the sequence number, or -1 if no entries have been made.
+	 */
+	public static long getLastSequence() {
+		return sequence.get() - 1;
+	}
+
+	/**
+	 * Get the names of the services which have entries in the log.
+	 * @return the names, in alphabetical order.
+	 */
+	public static Set<String> getServices() {
+		TreeSet<String> set = new TreeSet<String>();
+		for (LogEntry entry : getEntries(null, -1)) {
+			if (!entry.service.equals("")) set.add(entry.service);
+		}
+		return set;
 	}
 
 	/**
 	 * Clear the log.
 	 */
-	public static synchronized void clearLog() {
-		size = 0;
+	public static void clearLog() {
+		cleared = sequence.get();
 	}
 
 	/**
@@ -41,11 +150,9 @@ public class Log {
 	 */
 	public static synchronized void setDepth(int depth) {
 		if (depth < 1) return;
-		if (depth != logSize) {
-			logStrings = new String[depth];
-			logSize = depth;
-			next = 0;
-			size = 0;
+		if (depth != slots.length()) {
+			cleared = sequence.get();
+			slots = new AtomicReferenceArray<LogEntry>(depth);
 		}
 	}
 
@@ -54,47 +161,50 @@ public class Log {
 	 * @return the depth of the log.
 	 */
 	public static int getDepth() {
-		return logSize;
-	}
-
-	//Get the text in the log.
-	private static String getText() {
-		int first = (next - size + logSize) % logSize;
-		StringBuffer sb = new StringBuffer(10000);
-		for (int i=0; i<size; i++) {
-			sb.append(logStrings[ (first + i) % logSize ]);
-		}
-		return sb.toString();
+		return slots.length();
 	}
 
 	/**
 	 * Add a text entry to the log, automatically including the date and time.
+	 * The text may contain HTML. If the text starts with a service name
+	 * followed by a colon, the entry is recorded as coming from that service.
 	 * @param text the text to add to the log.
 	 */
-	public static synchronized void message(String text) {
-		logStrings[next] = "<tr>"
-							+ "<td width=\"150\" valign=\"top\">"+logTime()+"</td>"
-							+ "<td>"+text+"</td>"
-							+ "</tr>";
-		next = (next + 1) % logSize;
-		size = (size < logSize) ? size+1 : logSize;
+	public static void message(String text) {
+		String service = "";
+		if (text != null) {
+			int k = text.indexOf(": ");
+			if ((k > 0) && (k <= maxServiceNameLength) && (text.lastIndexOf('<', k) < 0)) {
+				service = text.substring(0, k).trim();
+			}
+		}
+		add(service, INFO, null, text, true);
 	}
 
-	//Get the date and time for a log entry.
-	private static String logTime() {
-		GregorianCalendar now = new GregorianCalendar();
-		return now.get(now.YEAR) + "-" +
-				two(now.get(now.MONTH)+1) + "-" +
-				two(now.get(now.DAY_OF_MONTH)) + " " +
-				two(now.get(now.HOUR_OF_DAY)) + ":" +
-				two(now.get(now.MINUTE)) + ":" +
-				two(now.get(now.SECOND));
+	/**
+	 * Add a structured entry to the log, automatically including the date and time.
+	 * @param service the name of the service which is logging the event.
+	 * @param level the level of the event (INFO, WARNING, or ERROR).
+	 * @param objectID the identifier of the object to which the
+	 * event applies (for example, a filename), or null.
+	 * @param text the plain text of the event.
+	 */
+	public static void message(String service, int level, String objectID, String text) {
+		add(service, level, objectID, text, false);
 	}
 
-	//Make a two-digit, leading-zero integer entry
-	private static String two(int i) {
-		if (i < 10) return "0" + i;
-		return "" + i;
+	//Claim the next sequence number and store the entry in its slot,
+	//unless a later entry has already been stored there.
+	private static void add(String service, int level, String objectID, String text, boolean isHTML) {
+		long s = sequence.getAndIncrement();
+		LogEntry entry = new LogEntry(s, service, level, objectID, text, isHTML);
+		AtomicReferenceArray<LogEntry> ring = slots;
+		int k = (int)(s % ring.length());
+		while (true) {
+			LogEntry current = ring.get(k);
+			if ((current != null) && (current.seq > s)) return;
+			if (ring.compareAndSet(k, current, entry)) return;
+		}
 	}
 
-}
\ No newline at end of file
+}
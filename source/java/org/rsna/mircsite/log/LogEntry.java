@@ -0,0 +1,97 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.mircsite.log;
+
+import java.util.Calendar;
+import org.rsna.mircsite.util.XmlStringUtil;
+
+/**
+ * One event in the Log. Entries are immutable; they are
+ * rendered as HTML only when the log is displayed.
+ */
+public class LogEntry {
+
+	/** The sequence number of the entry in the Log. */
+	public final long seq;
+
+	/** The time of the event, in milliseconds. */
+	public final long time;
+
+	/** The name of the service which logged the event, or "". */
+	public final String service;
+
+	/** The level of the event (Log.INFO, Log.WARNING, or Log.ERROR). */
+	public final int level;
+
+	/** The identifier of the object to which the event applies, or "". */
+	public final String objectID;
+
+	/** The text of the event. */
+	public final String message;
+
+	/** True if the message is HTML; false if it is plain text. */
+	public final boolean isHTML;
+
+	/**
+	 * Create a LogEntry.
+	 * @param seq the sequence number of the entry.
+	 * @param service the name of the service, or null.
+	 * @param level the level of the event.
+	 * @param objectID the identifier of the object, or null.
+	 * @param message the text of the event.
+	 * @param isHTML true if the message is HTML.
+	 */
+	public LogEntry(long seq, String service, int level, String objectID, String message, boolean isHTML) {
+		this.seq = seq;
+		this.time = System.currentTimeMillis();
+		this.service = (service != null) ? service : "";
+		this.level = level;
+		this.objectID = (objectID != null) ? objectID : "";
+		this.message = (message != null) ? message : "";
+		this.isHTML = isHTML;
+	}
+
+	/**
+	 * Render the entry as an HTML table row.
+	 * @param cal a Calendar to use for formatting the time.
+	 * @return the table row.
+	 */
+	public String toHTML(Calendar cal) {
+		String text;
+		if (isHTML) text = message;
+		else {
+			text = XmlStringUtil.escapeChars(message);
+			if (!service.equals("")) text = XmlStringUtil.escapeChars(service) + ": " + text;
+			if (!objectID.equals("")) text += ": " + XmlStringUtil.escapeChars(objectID);
+			if (level == Log.ERROR) text = "<font color=\"red\">" + text + "</font>";
+			else if (level == Log.WARNING) text = "<font color=\"#c06000\">" + text + "</font>";
+		}
+		return "<tr>"
+				+ "<td width=\"150\" valign=\"top\">"+getTime(cal)+"</td>"
+				+ "<td>"+text+"</td>"
+				+ "</tr>";
+	}
+
+	//Get the date and time of the entry.
+	private String getTime(Calendar cal) {
+		cal.setTimeInMillis(time);
+		return cal.get(Calendar.YEAR) + "-" +
+				two(cal.get(Calendar.MONTH)+1) + "-" +
+				two(cal.get(Calendar.DAY_OF_MONTH)) + " " +
+				two(cal.get(Calendar.HOUR_OF_DAY)) + ":" +
+				two(cal.get(Calendar.MINUTE)) + ":" +
+				two(cal.get(Calendar.SECOND));
+	}
+
+	//Make a two-digit, leading-zero integer entry
+	private static String two(int i) {
+		if (i < 10) return "0" + i;
+		return "" + i;
+	}
+
+}
@@ -13,7 +13,6 @@ import java.nio.charset.Charset;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.TransformerFactoryConfigurationError;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
@@ -134,8 +133,8 @@ public class MircServer extends Thread {
 
 		//Process the MIRCqueryresult
 		try {
-			TransformerFactory tFactory = TransformerFactory.newInstance();
-			Transformer transformer = tFactory.newTransformer(new StreamSource(xslProgram));
+			long startTime = System.nanoTime();
+			Transformer transformer = TemplatesCache.getTransformer(xslProgram);
 			transformer.setParameter("servername",serverName);
 			if (urlString.endsWith("/service")) {
 				int i = urlString.length();
@@ -148,6 +147,7 @@ public class MircServer extends Thread {
 			StringReader sr = new StringReader(serverResponse);
 			StringWriter sw = new StringWriter();
 			transformer.transform(new StreamSource(sr), new StreamResult(sw));
+			TemplatesCache.recordTransform(startTime);
 			result = sw.toString();
 		}
 		catch (TransformerFactoryConfigurationError e) {
@@ -11,7 +11,9 @@ import java.io.*;
 import javax.servlet.*;
 import javax.servlet.http.*;
 import org.rsna.mircsite.util.RadLexIndex;
+import org.rsna.mircsite.util.RadLexSuggester;
 import org.rsna.mircsite.util.ServletUtil;
+import org.rsna.mircsite.util.StringUtil;
 import org.rsna.mircsite.util.XmlUtil;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -19,15 +21,22 @@ import org.w3c.dom.Element;
 /**
  * The RadLex term suggester servlet.
  * This servlet provides AJAX access to the RadLex index. It responds
- * to a GET by finding those terms in the index whose first word starts
+ * to a GET by finding those terms in the index whose names start
  * with a key query parameter.
+ * <p>
+ * The terms are obtained from the in-memory RadLexSuggester, which returns
+ * the shortest matching terms first, up to the number specified by the
+ * limit query parameter (default 20, maximum 100). The XML response is
+ * written directly to the response stream.
  */
 public class RadLexSuggest extends HttpServlet {
 
+	static final int defaultLimit = 20;
+
 	/**
 	 * The servlet method that responds to an HTTP GET.
 	 * This method returns an XML object which contains RadLex terms
-	 * whose first word starts with the supplied key query parameter.
+	 * whose names start with the supplied key query parameter.
 	 * @param req The HttpServletRequest provided by the servlet container.
 	 * @param res The HttpServletResponse provided by the servlet container.
 	 */
@@ -44,9 +53,21 @@ public class RadLexSuggest extends HttpServlet {
 			PrintWriter out = res.getWriter();
 
 			String key = req.getParameter("key");
-			Element result = RadLexIndex.getSuggestedTerms(key);
-			if (result == null) out.print("<RadLexTerms/>");
-			else out.print(XmlUtil.toString(result));
+			int limit = defaultLimit;
+			String limitParam = req.getParameter("limit");
+			if (limitParam != null) {
+				int n = StringUtil.getInt(limitParam.trim());
+				if (n > 0) limit = n;
+			}
+
+			RadLexSuggester suggester = RadLexIndex.getSuggester();
+			if (suggester != null) suggester.writeSuggestions(key, limit, out);
+			else {
+				//The suggester is not available; use the index directly.
+				Element result = (key != null) ? RadLexIndex.getSuggestedTerms(key) : null;
+				if (result == null) out.print("<RadLexTerms/>");
+				else out.print(XmlUtil.toString(result));
+			}
 
 			out.close();
 		}
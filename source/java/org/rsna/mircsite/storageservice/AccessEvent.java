@@ -0,0 +1,99 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.mircsite.storageservice;
+
+import java.io.Serializable;
+import java.util.Calendar;
+
+/**
+ * An access to a MIRCdocument or to the PHI it contains, as recorded
+ * by the AccessLog and DocAccessLog classes and written by the
+ * AccessLogWriter.
+ */
+public class AccessEvent implements Serializable {
+
+	static final long serialVersionUID = 1L;
+
+	/** The type of an access to the PHI in a MIRCdocument. */
+	public static final String PHI = "phi";
+
+	/** The type of an access to a MIRCdocument. */
+	public static final String DOC = "doc";
+
+	public String type		= DOC;
+	public long time		= 0;
+	public String datetime	= "";
+	public String event		= "";
+	public String username	= "";
+	public String userip	= "";
+	public String sscontext	= "";
+	public String ssip		= "";
+	public String siuid		= "";
+	public String ptid		= "";
+	public String ptname	= "";
+	public String url		= "";
+
+	/**
+	 * Create an event for the current time.
+	 * @param type the type of the event (PHI or DOC).
+	 * @param event the name of the event ("Access" or "Export").
+	 * @param username the username of the user, or null if the
+	 * user was not authenticated.
+	 * @param userip the IP address of the user's computer.
+	 */
+	public AccessEvent(String type, String event, String username, String userip) {
+		this.type = type;
+		this.event = event;
+		this.username = (username != null) ? username : "";
+		this.userip = fix(userip);
+		time = System.currentTimeMillis();
+		datetime = getDateTime(time);
+	}
+
+	/**
+	 * Get the date of the event.
+	 * @return the date in the form YYYY-MM-DD.
+	 */
+	public String getDate() {
+		return datetime.substring(0, 10);
+	}
+
+	/**
+	 * Get the time of day of the event.
+	 * @return the time in the form hh:mm:ss.
+	 */
+	public String getTime() {
+		return datetime.substring(11);
+	}
+
+	static String fix(String s) {
+		return (s != null) ? s : "";
+	}
+
+	//Create a datetime string in local time.
+	static String getDateTime(long time) {
+		Calendar cal = Calendar.getInstance();
+		cal.setTimeInMillis(time);
+		return intToString(cal.get(Calendar.YEAR),4) + "-"
+				+ intToString(cal.get(Calendar.MONTH) + 1,2) + "-"
+				+ intToString(cal.get(Calendar.DAY_OF_MONTH),2) + "T"
+				+ intToString(cal.get(Calendar.HOUR_OF_DAY),2) + ":"
+				+ intToString(cal.get(Calendar.MINUTE),2) + ":"
+				+ intToString(cal.get(Calendar.SECOND),2);
+	}
+
+	//Convert the int n to a String with at least digits
+	//places, padded with leading zeroes if necessary.
+	static String intToString(int n, int digits) {
+		String s = Integer.toString(n);
+		int k = digits - s.length();
+		for (int i=0; i<k; i++) s = "0" + s;
+		return s;
+	}
+
+}
@@ -9,13 +9,9 @@ package org.rsna.mircsite.storageservice;
 
 import java.io.*;
 import java.net.*;
-import java.util.Calendar;
 import javax.servlet.*;
 import javax.servlet.http.*;
-import org.apache.log4j.DailyRollingFileAppender;
-import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
-import org.apache.log4j.PatternLayout;
 import org.rsna.mircsite.util.XmlUtil;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -26,13 +22,16 @@ import org.w3c.dom.NodeList;
 /**
   * Encapsulates static methods for logging access to and
   * export of objects containing PHI.
+  * <p>
+  * The entries are handed to the AccessLogWriter, which writes
+  * and exports them on its own thread, so the request thread
+  * does not wait for the log file or the export server.
   */
 
 public class AccessLog {
 
-	static Logger accessLog = null;
 	static final Logger logger = Logger.getLogger(AccessLog.class);
-	static final String indent = "\n     ";
+	static String ipAddress = null;
 
     /**
       * If access logging is enabled in StorageConfig, this method
@@ -120,84 +119,24 @@ public class AccessLog {
 								   String ptname)  {
 
 		if (StorageConfig.phiLogEnabled()) {
-			if (accessLog == null) createLocalAccessLog(StorageConfig.basepath + StorageConfig.phiAccessLogDirectory);
-			String datetime = getDateTime();
-			makeLocalAccessLogEntry(datetime,event,username,userip,siuid,ptid,ptname);
-			if (StorageConfig.phiLogExportEnabled() && !StorageConfig.getPhiLogExportURL().equals("")) {
-				File phiAccessLogDir = new File (StorageConfig.basepath + StorageConfig.phiAccessLogDirectory);
-				ExportableAccessLogEntry entry =
-					new ExportableAccessLogEntry(phiAccessLogDir,datetime,event,username,
-												 userip,sscontext,ssip,siuid,ptid,ptname);
-				entry.export(StorageConfig.getPhiLogExportURL());
-			}
-		}
-	}
-
-	//Create the local access log with a monthly rolling appender
-	private static void createLocalAccessLog(String directory) {
-		try {
-			accessLog = Logger.getLogger("PHIAccess");
-			accessLog.setAdditivity(false);
-			PatternLayout layout = new PatternLayout("%m%n");
-			File logs = new File(directory);
-			logs.mkdirs();
-			DailyRollingFileAppender appender = new DailyRollingFileAppender(
-					layout,
-					directory + File.separator + "AccessLog.txt",
-					"'.'yyyy-MM");
-			accessLog.addAppender(appender);
-			accessLog.setLevel((Level)Level.ALL);
-		}
-		catch (Exception e) {
-			logger.warn("Unable to instantiate the PHI Access logger");
-			accessLog = null;
+			AccessEvent entry = new AccessEvent(AccessEvent.PHI, event, username, userip);
+			entry.sscontext = AccessEvent.fix(sscontext);
+			entry.ssip = AccessEvent.fix(ssip);
+			entry.siuid = AccessEvent.fix(siuid);
+			entry.ptid = AccessEvent.fix(ptid);
+			entry.ptname = AccessEvent.fix(ptname);
+			if (!AccessLogWriter.log(entry))
+				logger.warn("The access log is closed; a PHI access was not logged.");
 		}
 	}
 
-	//Make an entry in the local access log.
-	private static void makeLocalAccessLogEntry(String datetime,
-										 String event,
-										 String username,
-										 String userip,
-										 String siuid,
-										 String ptid,
-										 String ptname) {
-		if (accessLog != null)
-			accessLog.info(datetime + " - " + event + " by " + username + " @" + userip
-							+ indent + "SIUID: " + siuid
-							+ indent + "Pt ID: " + ptid
-							+ indent + "Name:  " + ptname);
-	}
-
-	//Create a datetime string.
-	//The datetime is in local time.
-	private static String getDateTime() {
-		Calendar now = Calendar.getInstance();
-		int hour = now.get(Calendar.HOUR_OF_DAY);
-		int minute = now.get(Calendar.MINUTE);
-		int second = now.get(Calendar.SECOND);
-		int year = now.get(Calendar.YEAR);
-		int month = now.get(Calendar.MONTH) + 1;
-		int day = now.get(Calendar.DAY_OF_MONTH);
-		return intToString(year,4) + "-" + intToString(month,2) + "-" + intToString(day,2) + "T"
-				+ intToString(hour,2) + ":" + intToString(minute,2) + ":" + intToString(second,2);
-	}
-
-	// Convert the int n to a String with at least digits
-	// places, padded with leading zeroes if necessary.
-	private static String intToString(int n, int digits) {
-		String s = "" + n;
-		int k = digits - s.length();
-		for (int i=0; i<k; i++) s = "0" + s;
-		return s;
-	}
-
 	// Obtain the local IP address
 	private static String getIPAddress() {
-		InetAddress localHost;
-		try { localHost = InetAddress.getLocalHost(); }
-		catch (Exception e) { return "unknown"; }
-		return localHost.getHostAddress();
+		if (ipAddress == null) {
+			try { ipAddress = InetAddress.getLocalHost().getHostAddress(); }
+			catch (Exception e) { return "unknown"; }
+		}
+		return ipAddress;
 	}
 
 }
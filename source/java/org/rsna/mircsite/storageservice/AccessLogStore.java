@@ -0,0 +1,199 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.mircsite.storageservice;
+
+import java.io.File;
+import java.util.LinkedList;
+import java.util.List;
+import jdbm.RecordManager;
+import jdbm.btree.BTree;
+import jdbm.helper.Tuple;
+import jdbm.helper.TupleBrowser;
+import org.apache.log4j.Logger;
+import org.rsna.mircsite.util.JdbmUtil;
+
+/**
+ * A JDBM database of AccessEvents, indexed by time, by user, and by
+ * Study Instance UID, so that accesses can be found without searching
+ * the log files. The events are kept in a BTree keyed by their datetimes;
+ * the user and study indexes are BTrees whose keys start with the username
+ * or UID and end with the datetime key of the event.
+ * <p>
+ * The store also holds the PHI access log entries which are waiting to
+ * be exported, keyed by a sequence number, so that they survive a
+ * restart and are exported in order.
+ * <p>
+ * This class is not thread-safe; the AccessLogWriter synchronizes access.
+ */
+public class AccessLogStore {
+
+	static final Logger logger = Logger.getLogger(AccessLogStore.class);
+
+	static final String separator = "|";
+
+	RecordManager recman;
+	BTree events;
+	BTree byUser;
+	BTree bySIUID;
+	BTree exports;
+	long sequence = 0;
+	long exportSequence = 0;
+
+	/**
+	 * Open the store, creating it if it does not exist.
+	 * @param dir the directory in which to store the database files.
+	 * @throws Exception if the database cannot be opened.
+	 */
+	public AccessLogStore(File dir) throws Exception {
+		dir.mkdirs();
+		recman = JdbmUtil.getRecordManager(new File(dir, "AccessIndex").getPath());
+		if (recman == null) throw new Exception("Unable to open the access log store.");
+		events = JdbmUtil.getBTree(recman, "Events");
+		byUser = JdbmUtil.getBTree(recman, "ByUser");
+		bySIUID = JdbmUtil.getBTree(recman, "BySIUID");
+		exports = JdbmUtil.getBTree(recman, "Exports");
+		Tuple tuple = new Tuple();
+		if (exports.browse(null).getPrevious(tuple))
+			exportSequence = Long.parseLong((String)tuple.getKey()) + 1;
+	}
+
+	/**
+	 * Add an event to the store. The change is not
+	 * permanent until the commit method is called.
+	 * @param event the event.
+	 * @throws Exception if the event cannot be stored.
+	 */
+	public void add(AccessEvent event) throws Exception {
+		String key = event.datetime + separator + Long.toString(event.time) + separator + (sequence++);
+		events.insert(key, event, true);
+		byUser.insert(event.username + separator + key, key, true);
+		if (!event.siuid.equals("")) bySIUID.insert(event.siuid + separator + key, key, true);
+	}
+
+	/**
+	 * Add an entry to the end of the entries waiting to be exported.
+	 * The change is not permanent until the commit method is called.
+	 * @param entry the text of the entry.
+	 * @throws Exception if the entry cannot be stored.
+	 */
+	public void addExport(String entry) throws Exception {
+		String key = Long.toString(exportSequence++);
+		while (key.length() < 19) key = "0" + key;
+		exports.insert(key, entry, true);
+	}
+
+	/**
+	 * Get the key of the oldest entry waiting to be exported.
+	 * @return the key, or null if no entries are waiting.
+	 */
+	public String getFirstExportKey() {
+		try {
+			Tuple tuple = new Tuple();
+			if (exports.browse().getNext(tuple)) return (String)tuple.getKey();
+		}
+		catch (Exception ex) { logger.warn("Unable to read the access log exports.", ex); }
+		return null;
+	}
+
+	/**
+	 * Get the text of an entry waiting to be exported.
+	 * @param key the key of the entry.
+	 * @return the text, or null if there is no such entry.
+	 */
+	public String getExport(String key) {
+		try { return (String)exports.find(key); }
+		catch (Exception ex) { return null; }
+	}
+
+	/**
+	 * Remove an entry which has been exported and commit the change.
+	 * @param key the key of the entry.
+	 */
+	public void removeExport(String key) {
+		try {
+			exports.remove(key);
+			recman.commit();
+		}
+		catch (Exception ex) { logger.warn("Unable to remove an exported access log entry.", ex); }
+	}
+
+	/**
+	 * Get the number of entries waiting to be exported.
+	 * @return the number of entries.
+	 */
+	public int getExportCount() {
+		return exports.size();
+	}
+
+	/**
+	 * Commit the changes to the store.
+	 */
+	public void commit() {
+		try { recman.commit(); }
+		catch (Exception ex) { logger.warn("Unable to commit the access log store.", ex); }
+	}
+
+	/**
+	 * Close the store.
+	 */
+	public void close() {
+		try { recman.commit(); recman.close(); }
+		catch (Exception ignore) { }
+	}
+
+	/**
+	 * Find the events which match a set of criteria, in chronological order.
+	 * @param user the username, or null or blank to match all users.
+	 * @param siuid the Study Instance UID, or null or blank to match all studies.
+	 * @param start the first date to match (YYYYMMDD or YYYY-MM-DD),
+	 * or null or blank to start at the earliest event.
+	 * @param end the last date to match (YYYYMMDD or YYYY-MM-DD),
+	 * or null or blank to end at the latest event.
+	 * @param max the maximum number of events to return.
+	 * @return the matching events.
+	 */
+	public List<AccessEvent> query(String user, String siuid, String start, String end, int max) {
+		user = AccessEvent.fix(user).trim();
+		siuid = AccessEvent.fix(siuid).trim();
+		start = normalizeDate(start);
+		end = normalizeDate(end);
+		end = end.equals("") ? "\uffff" : end + "\uffff";
+		LinkedList<AccessEvent> list = new LinkedList<AccessEvent>();
+		try {
+			//Browse the smallest index which applies.
+			BTree tree = events;
+			String prefix = "";
+			if (!siuid.equals("")) {
+				tree = bySIUID;
+				prefix = siuid + separator;
+			}
+			else if (!user.equals("")) {
+				tree = byUser;
+				prefix = user + separator;
+			}
+			Tuple tuple = new Tuple();
+			TupleBrowser browser = tree.browse(prefix + start);
+			while ((list.size() < max) && browser.getNext(tuple)) {
+				String key = (String)tuple.getKey();
+				if (!key.startsWith(prefix) || (key.substring(prefix.length()).compareTo(end) > 0)) break;
+				AccessEvent event = (AccessEvent)((tree == events) ? tuple.getValue() : events.find(tuple.getValue()));
+				if ((event != null) && (user.equals("") || event.username.equals(user))) list.add(event);
+			}
+		}
+		catch (Exception ex) { logger.warn("Unable to query the access log store.", ex); }
+		return list;
+	}
+
+	//Convert a date to the form YYYY-MM-DD.
+	private static String normalizeDate(String date) {
+		date = AccessEvent.fix(date).trim().replace("-","");
+		if (date.length() < 8) return "";
+		return date.substring(0,4) + "-" + date.substring(4,6) + "-" + date.substring(6,8);
+	}
+
+}
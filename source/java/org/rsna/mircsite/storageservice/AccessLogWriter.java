@@ -0,0 +1,334 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.mircsite.storageservice;
+
+import java.io.*;
+import java.util.*;
+import org.apache.log4j.Logger;
+import org.rsna.mircsite.util.FileUtil;
+import org.rsna.mircsite.util.RingBuffer;
+
+/**
+ * The background thread which records AccessEvents.
+ * <p>
+ * Request threads add events to a bounded lock-free RingBuffer and
+ * return immediately. The writer thread takes the events from the
+ * buffer in batches. For each batch, it appends the events to the
+ * monthly rolling log files in the access-logs directory (AccessLog.txt
+ * for PHI accesses and DocAccessLog.csv for document accesses), adds
+ * them to the AccessLogStore, and, if export is enabled, queues the PHI
+ * accesses for export to the PHI log URL by adding them to the store in
+ * the same commit. Exports are sent in order and removed from the store
+ * when they succeed; exports which fail are retried, with an increasing
+ * interval, until they succeed, including after a restart.
+ * <p>
+ * If the buffer is full, the request thread writes the events in the
+ * buffer, followed by its own, so no event is lost and the events are
+ * written in order; such events are counted. The buffer is emptied and
+ * written only while holding the lock of the writer. After the writer
+ * is shut down, events are refused; an event which was accepted while
+ * the writer was stopping is written by the request thread.
+ */
+public class AccessLogWriter extends Thread {
+
+	static final Logger logger = Logger.getLogger(AccessLogWriter.class);
+
+	static final int capacity = 10000;
+	static final int batchSize = 500;
+	static final long idleTime = 250;
+	static final long minRetryInterval = 10 * 1000;
+	static final long maxRetryInterval = 10 * 60 * 1000;
+	static final String indent = "\n     ";
+
+	private static final RingBuffer<AccessEvent> buffer = new RingBuffer<AccessEvent>(capacity);
+	private static final Object storeLock = new Object();
+	private static volatile AccessLogWriter writer = null;
+	private static volatile boolean closed = false;
+	private static AccessLogStore store = null;
+
+	private static volatile long written = 0;
+	private static volatile long exported = 0;
+	private static volatile int pendingExportCount = 0;
+
+	File dir;
+	RollingFile phiLog;
+	RollingFile docLog;
+	long retryInterval = minRetryInterval;
+	long nextExportTime = 0;
+	volatile boolean running = true;
+	volatile boolean stopped = false;
+
+	/**
+	 * Record an event. The event is added to the buffer, and the writer
+	 * thread is started if necessary. If the buffer is full, the event
+	 * is written by the calling thread.
+	 * @param event the event.
+	 * @return true if the event was accepted; false if the writer
+	 * has been shut down.
+	 */
+	public static boolean log(AccessEvent event) {
+		AccessLogWriter w = writer;
+		if (w == null) w = startWriter();
+		if (w == null) return false;
+		if (!buffer.offer(event)) w.drain(event, capacity);
+		else if (w.stopped) w.drain(null, capacity);
+		return true;
+	}
+
+	//Start the writer thread if it is not running and
+	//has not been shut down, and return the writer.
+	private static synchronized AccessLogWriter startWriter() {
+		if ((writer == null) && !closed) {
+			writer = new AccessLogWriter(new File(StorageConfig.basepath + StorageConfig.phiAccessLogDirectory));
+			writer.start();
+		}
+		return writer;
+	}
+
+	/**
+	 * Stop the writer thread after it has written the events in the
+	 * buffer, and close the store. Events logged after this method is
+	 * called are refused.
+	 */
+	public static synchronized void shutdown() {
+		closed = true;
+		if (writer != null) {
+			writer.running = false;
+			writer.interrupt();
+			try { writer.join(10000); }
+			catch (Exception ignore) { }
+			writer = null;
+		}
+		synchronized (storeLock) {
+			if (store != null) store.close();
+			store = null;
+		}
+	}
+
+	/**
+	 * Find the events which match a set of criteria, in chronological order.
+	 * Events which are still in the buffer are not included.
+	 * @param user the username, or null or blank to match all users.
+	 * @param siuid the Study Instance UID, or null or blank to match all studies.
+	 * @param start the first date to match (YYYYMMDD or YYYY-MM-DD), or null.
+	 * @param end the last date to match (YYYYMMDD or YYYY-MM-DD), or null.
+	 * @param max the maximum number of events to return.
+	 * @return the matching events.
+	 */
+	public static List<AccessEvent> query(String user, String siuid, String start, String end, int max) {
+		if (writer == null) startWriter();
+		synchronized (storeLock) {
+			if (store == null) return new LinkedList<AccessEvent>();
+			return store.query(user, siuid, start, end, max);
+		}
+	}
+
+	/**
+	 * Get a status string for the admin page.
+	 * @return the status of the writer.
+	 */
+	public static String getStatus() {
+		return written + " events written; "
+				+ buffer.size() + " buffered; "
+				+ buffer.getDropped() + " written directly (buffer full); "
+				+ exported + " exported; "
+				+ pendingExportCount + " awaiting export";
+	}
+
+	/**
+	 * Create the writer thread.
+	 * @param dir the access-logs directory.
+	 */
+	protected AccessLogWriter(File dir) {
+		super("AccessLogWriter");
+		setDaemon(true);
+		this.dir = dir;
+		dir.mkdirs();
+		phiLog = new RollingFile(dir, "AccessLog.txt");
+		docLog = new RollingFile(dir, "DocAccessLog.csv");
+	}
+
+	/**
+	 * Write the events in batches until the thread is stopped,
+	 * and then write any events remaining in the buffer.
+	 */
+	public void run() {
+		synchronized (storeLock) {
+			try { store = new AccessLogStore(dir); }
+			catch (Exception ex) { logger.warn("Unable to open the access log store.", ex); }
+			if (store != null) pendingExportCount = store.getExportCount();
+		}
+		while (true) {
+			boolean idle = (drain(null, batchSize) == 0);
+			if (idle && !running && (buffer.size() == 0)) break;
+			export();
+			if (idle) {
+				//Wait for events, or briefly for a request thread
+				//which has claimed a slot to fill it.
+				try { Thread.sleep((buffer.size() == 0) ? idleTime : 1); }
+				catch (InterruptedException ignore) { }
+			}
+		}
+		//From now on, request threads write the events they log
+		//while the writer is being shut down.
+		synchronized (this) {
+			stopped = true;
+			drain(null, capacity);
+		}
+	}
+
+	//Take up to max events from the buffer, followed by an extra event
+	//if it is not null, and write them. The buffer is only emptied while
+	//holding the lock of the writer, so batches are written in order.
+	//Return the number of events written.
+	private synchronized int drain(AccessEvent extra, int max) {
+		LinkedList<AccessEvent> batch = new LinkedList<AccessEvent>();
+		AccessEvent event;
+		while ((batch.size() < max) && ((event = buffer.poll()) != null)) batch.add(event);
+		if (extra != null) batch.add(extra);
+		if (batch.size() > 0) write(batch);
+		return batch.size();
+	}
+
+	//Write a batch of events to the logs and the store, and queue
+	//the PHI events for export in the store.
+	private void write(List<AccessEvent> batch) {
+		LinkedList<String> exports = new LinkedList<String>();
+		LinkedList<String> phiLines = new LinkedList<String>();
+		LinkedList<String> docLines = new LinkedList<String>();
+		boolean exportEnabled = StorageConfig.phiLogExportEnabled()
+									&& !StorageConfig.getPhiLogExportURL().equals("");
+		for (AccessEvent event : batch) {
+			if (event.type.equals(AccessEvent.PHI)) {
+				phiLines.add(event.datetime + " - " + event.event + " by " + event.username + " @" + event.userip
+								+ indent + "SIUID: " + event.siuid
+								+ indent + "Pt ID: " + event.ptid
+								+ indent + "Name:  " + event.ptname);
+				if (exportEnabled) {
+					ExportableAccessLogEntry entry =
+						new ExportableAccessLogEntry(dir, event.datetime, event.event,
+							event.username, event.userip, event.sscontext, event.ssip,
+							event.siuid, event.ptid, event.ptname);
+					exports.add(entry.toString());
+				}
+			}
+			else {
+				docLines.add(event.getDate() + ","
+								+ event.getTime() + ","
+								+ event.event.toLowerCase() + ","
+								+ (event.username.equals("") ? "null" : event.username) + ","
+								+ event.userip + ","
+								+ event.url);
+			}
+		}
+		phiLog.append(phiLines);
+		docLog.append(docLines);
+		synchronized (storeLock) {
+			if (store != null) {
+				try {
+					for (AccessEvent event : batch) store.add(event);
+				}
+				catch (Exception ex) { logger.warn("Unable to add events to the access log store.", ex); }
+				for (String entry : exports) {
+					try { store.addExport(entry); }
+					catch (Exception ex) { logger.warn("Unable to queue a PHI access log export:\n" + entry, ex); }
+				}
+				store.commit();
+				pendingExportCount = store.getExportCount();
+			}
+			else if (exports.size() > 0) {
+				logger.warn("The access log store is not open; " + exports.size()
+								+ " PHI access log exports were not queued.");
+			}
+		}
+		written += batch.size();
+	}
+
+	//Send the exports waiting in the store in order, stopping at the
+	//first failure and doubling the interval before the next attempt.
+	//This method is only called by the writer thread. The store is only
+	//locked while it is read or changed, so request threads which write
+	//events are not held up by the exports.
+	private void export() {
+		long now = System.currentTimeMillis();
+		if (now < nextExportTime) return;
+		String url = StorageConfig.getPhiLogExportURL();
+		while (true) {
+			String key;
+			String entry;
+			synchronized (storeLock) {
+				if (store == null) return;
+				key = store.getFirstExportKey();
+				if (key == null) return;
+				entry = store.getExport(key);
+			}
+			if ((entry != null) && !ExportableAccessLogEntry.export(entry, url)) {
+				nextExportTime = now + retryInterval;
+				retryInterval = Math.min(retryInterval * 2, maxRetryInterval);
+				return;
+			}
+			synchronized (storeLock) {
+				if (store == null) return;
+				store.removeExport(key);
+				pendingExportCount = store.getExportCount();
+			}
+			exported++;
+			retryInterval = minRetryInterval;
+		}
+	}
+
+	//A log file which is rolled over monthly, in the same way as a
+	//log4j DailyRollingFileAppender with the pattern '.'yyyy-MM: when
+	//the month changes, the file is renamed with the old month appended.
+	static class RollingFile {
+		File dir;
+		String name;
+
+		public RollingFile(File dir, String name) {
+			this.dir = dir;
+			this.name = name;
+		}
+
+		public void append(List<String> lines) {
+			if (lines.size() == 0) return;
+			File file = new File(dir, name);
+			roll(file);
+			Writer out = null;
+			try {
+				out = new BufferedWriter(
+						new OutputStreamWriter(
+							new FileOutputStream(file, true), FileUtil.utf8));
+				for (String line : lines) {
+					out.write(line);
+					out.write("\n");
+				}
+			}
+			catch (Exception ex) { logger.warn("Unable to write " + file, ex); }
+			finally {
+				if (out != null) {
+					try { out.close(); }
+					catch (Exception ignore) { }
+				}
+			}
+		}
+
+		private void roll(File file) {
+			if (!file.exists()) return;
+			String month = getMonth(file.lastModified());
+			if (!month.equals(getMonth(System.currentTimeMillis()))) {
+				File old = new File(dir, name + "." + month);
+				if (!old.exists()) file.renameTo(old);
+			}
+		}
+
+		private String getMonth(long time) {
+			return AccessEvent.getDateTime(time).substring(0, 7);
+		}
+	}
+
+}
@@ -20,6 +20,7 @@ import org.rsna.mircsite.util.*;
 import org.apache.log4j.Logger;
 import org.rsna.mircsite.anonymizer.IdTable;
 import org.rsna.mircsite.log.Log;
+import org.rsna.mircsite.log.LogEntry;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -55,6 +56,11 @@ public class AdminService extends HttpServlet {
 	DeletedDocumentsManager ddManager;
 
 	static final Logger logger = Logger.getLogger(AdminService.class);
+	static final long stopTimeout = 180000;
+	static final int logPollWait = 20;
+	static final int maxAccessLogEvents = 1000;
+	static final int maxQuarantineItems = 100;
+	static final int defaultReplayRate = 10;
 
 	/**
 	 * Initialize the configuration on startup. This method is called when the
@@ -142,9 +148,33 @@ public class AdminService extends HttpServlet {
 	 * It saves the anonymizer remapping table in case it has changed.
 	 */
 	public void destroy() {
+		//Stop the threads which use the index, the queues, and the
+		//quarantine before closing them.
+		stopThread(dsObjectProcessor);
+		stopThread(tceObjectProcessor);
+		stopThread(httpExportService);
+		stopThread(dicomExportService);
+		stopThread(databaseExportService);
+		stopThread(docManager);
+		stopThread(ddManager);
+		Quarantine.stopReplay();
+
 		//Store the IdTable if it has been initialized and if it is dirty.
 		IdTable.storeNow(false);
 		MircIndex.getInstance().close();
+		InputQueue.close();
+		Quarantine.close();
+		ExportQueue.closeAll();
+		AccessLogWriter.shutdown();
+	}
+
+	//Interrupt a service thread and wait for it to exit.
+	private void stopThread(Thread thread) {
+		if ((thread == null) || !thread.isAlive()) return;
+		thread.interrupt();
+		try { thread.join(stopTimeout); }
+		catch (InterruptedException ignore) { }
+		if (thread.isAlive()) logger.warn(thread.getName() + " did not stop");
 	}
 
 	/**
@@ -178,6 +208,18 @@ public class AdminService extends HttpServlet {
 		//Get the TCE configuration
 		TCEConfig.load(getServletContext());
 
+		//Answer a request from a monitoring tool for the counters.
+		if (req.getParameter("metrics") != null) {
+			sendMetrics(res);
+			return;
+		}
+
+		//Answer a request from the log page for new log entries.
+		if (req.getParameter("logevents") != null) {
+			sendLogEntries(req, res);
+			return;
+		}
+
 		//Generate the admin page.
 		String page = "";
 		String param;
@@ -202,8 +244,14 @@ public class AdminService extends HttpServlet {
 			page = status(false);
 		}
 
+		else if (req.getParameter("accesslog") != null)
+			page = showAccessLog(req);
+
+		else if (req.getParameter("quarantine") != null)
+			page = showQuarantine(req);
+
 		else if (req.getParameter("log") != null)
-			page = showLog();
+			page = showLog(req);
 
 		else if (req.getParameter("clear") != null)
 			page = clearLog();
@@ -241,7 +289,12 @@ public class AdminService extends HttpServlet {
 					statusRow("Indexed Documents:",MircIndex.getInstance().getIndexSize()) +
 					statusRow("PHI Access Logging Enabled:",StorageConfig.getPhiLogEnabled()) +
 					statusRow("PHI Access Log Export Enabled:",StorageConfig.getPhiLogExportEnabled()) +
-					statusRow("PHI Access Log Export URL:",StorageConfig.getPhiLogExportURL()) ));
+					statusRow("PHI Access Log Export URL:",StorageConfig.getPhiLogExportURL()) +
+					statusRow("Access Log:",AccessLogWriter.getStatus()) +
+					statusRow("XSL Programs:",TemplatesCache.getStatus()) +
+					statusRow("Page Cache:",PageCache.getStatus()) +
+					statusRow("Document Expiry:",StoredDocumentsManager.getStatus()) +
+					statusRow("Deleted Document Expiry:",DeletedDocumentsManager.getStatus()) ));
 
 			text += "<br/>";
 
@@ -269,24 +322,26 @@ public class AdminService extends HttpServlet {
 			text += "<br/>";
 
 			String queueTableRows = "";
-			int dicomCount = FileUtil.getFileCount(new File(TrialConfig.basepath + TrialConfig.dicomImportDir));
-			int httpCount = FileUtil.getFileCount(new File(TrialConfig.basepath + TrialConfig.httpImportDir));
-			queueTableRows += statusRow("Unprocessed DICOM Objects:",Integer.toString(dicomCount));
-			queueTableRows += statusRow("Unprocessed HTTP(S) Objects:",Integer.toString(httpCount));
-			int docCount = Quarantine.getFileCount();
-			queueTableRows += statusRow("Quarantined DICOM Objects:",Integer.toString(docCount));
+			queueTableRows += statusRow("Documents in Input Queue:",InputQueue.size());
+			queueTableRows += statusRow("Unprocessed DICOM Objects:",getQueueCount(TrialConfig.dicomImportDir));
+			queueTableRows += statusRow("Unprocessed HTTP(S) Objects:",getQueueCount(TrialConfig.httpImportDir));
+			queueTableRows += statusRow("Quarantined DICOM Objects:",Quarantine.getFileCount());
 
 			for (int i=0; i<httpExportDirs.length; i++) {
-				docCount = FileUtil.getFileCount(new File(TrialConfig.basepath + httpExportDirs[i]));
-				queueTableRows += statusRow("Objects queued to "+httpExportDirs[i],Integer.toString(docCount));
+				queueTableRows += statusRow("Objects queued to "+httpExportDirs[i],
+							getExportQueueCount(httpExportDirs[i]) + destinationStatus(
+								(httpExportService == null) ? "" : httpExportService.getDestinationStatus(i)));
 			}
 			for (int i=0; i<dicomExportDirs.length; i++) {
-				docCount = FileUtil.getFileCount(new File(TrialConfig.basepath + dicomExportDirs[i]));
-				queueTableRows += statusRow("Objects queued to "+dicomExportDirs[i],Integer.toString(docCount));
+				queueTableRows += statusRow("Objects queued to "+dicomExportDirs[i],
+							getExportQueueCount(dicomExportDirs[i]) + destinationStatus(
+								(dicomExportService == null) ? "" : dicomExportService.getDestinationStatus(i)));
 			}
 			if (TrialConfig.databaseExportEnabled()) {
-				docCount = FileUtil.getFileCount(TrialConfig.getDatabaseExportDirectoryFile());
-				queueTableRows += statusRow("Objects queued for database export",Integer.toString(docCount));
+				queueTableRows += statusRow("Objects queued for database export",
+							ExportQueue.size(TrialConfig.getDatabaseExportDirectoryFile())
+							+ destinationStatus(
+								(databaseExportService == null) ? "" : databaseExportService.getDestinationStatus()));
 			}
 			text += html.center(html.table(tableWidth2,queueTableRows));
 
@@ -318,6 +373,62 @@ public class AdminService extends HttpServlet {
 		}
 	}
 
+	//Format the status of an export destination for display after
+	//its queue count. Nothing is shown if the destination is available.
+	private String destinationStatus(String status) {
+		if (status.equals("") || status.equals("available")) return "";
+		return " (" + status + ")";
+	}
+
+	//Get the number of files in a queue directory of the trial.
+	private int getQueueCount(String dir) {
+		return DirectoryCounter.get(new File(TrialConfig.basepath + dir)).getCount();
+	}
+
+	//Get the number of entries in an export queue of the trial.
+	private int getExportQueueCount(String dir) {
+		return ExportQueue.size(new File(TrialConfig.basepath + dir));
+	}
+
+	//Send the counters as plain text, one "name value" pair per
+	//line, for monitoring tools which poll the site.
+	private void sendMetrics(HttpServletResponse res) {
+		StringBuffer sb = new StringBuffer();
+		sb.append(metric("documents.indexed", MircIndex.getInstance().getIndexSize()));
+		sb.append(metric("inputqueue.entries", InputQueue.size()));
+		if (StorageConfig.dicomEnabled()) {
+			sb.append(metric("dicom.import.queued", getQueueCount(TrialConfig.dicomImportDir)));
+			sb.append(metric("http.import.queued", getQueueCount(TrialConfig.httpImportDir)));
+			sb.append(metric("quarantine.files", Quarantine.getFileCount()));
+			String[] dirs = TrialConfig.getHttpExportDirectories();
+			for (int i=0; i<dirs.length; i++) {
+				sb.append(metric("export.http." + dirs[i] + ".queued", getExportQueueCount(dirs[i])));
+			}
+			dirs = TrialConfig.getDicomExportDirectories();
+			for (int i=0; i<dirs.length; i++) {
+				sb.append(metric("export.dicom." + dirs[i] + ".queued", getExportQueueCount(dirs[i])));
+			}
+			if (TrialConfig.databaseExportEnabled()) {
+				sb.append(metric("export.database.queued",
+					ExportQueue.size(TrialConfig.getDatabaseExportDirectoryFile())));
+			}
+		}
+		if (tceStore != null) {
+			sb.append(metric("tce.instances", tceStore.getInstanceCount()));
+			sb.append(metric("tce.manifests", tceStore.getManifestCount()));
+			sb.append(metric("tce.manifests.queued", tceStore.getQueuedManifestCount()));
+		}
+		sb.append(metric("dicom.headercache.hits", DicomHeaderCache.getHits()));
+		sb.append(metric("dicom.headercache.misses", DicomHeaderCache.getMisses()));
+		sb.append(metric("dicom.headercache.bytesparsed", DicomHeaderCache.getBytesParsed()));
+		sb.append(metric("log.sequence", Log.getLastSequence()));
+		ServletUtil.sendText(res, "text/plain", sb.toString(), false);
+	}
+
+	private String metric(String name, long value) {
+		return name.replaceAll("[\\s/\\\\]+", "_") + " " + value + "\n";
+	}
+
 	//Start all the DICOM service threads.
 	private void startTCEAll() {
 		if (StorageConfig.tceEnabled()) {
@@ -413,10 +524,192 @@ public class AdminService extends HttpServlet {
 		}
 	}
 
-	//Get the contents of the DICOM service rolling log,
-	//scrolling the display to the bottom.
-	private String showLog() {
-		return Log.getLog() + "<p id=\"here\"></p>";
+	//Get the contents of the DICOM service rolling log, optionally
+	//for one service, scrolling the display to the bottom. The page
+	//then polls for new entries and appends them as they arrive.
+	private String showLog(HttpServletRequest req) {
+		String service = getParam(req, "service");
+		String query = "";
+		try { query = URLEncoder.encode(service, "UTF-8"); }
+		catch (Exception ignore) { }
+		StringBuffer sb = new StringBuffer();
+		sb.append("<center><p>Service: <a href=\"?log\">All</a>");
+		for (String name : Log.getServices()) {
+			try {
+				sb.append(" | <a href=\"?log&service=" + URLEncoder.encode(name, "UTF-8") + "\">"
+							+ XmlStringUtil.escapeChars(name) + "</a>");
+			}
+			catch (Exception ignore) { }
+		}
+		sb.append("</p></center>");
+
+		List<LogEntry> entries = Log.getEntries(service, -1);
+		long last = -1;
+		if (entries.size() > 0) last = entries.get(entries.size() - 1).seq;
+		sb.append("<table>" + Log.toHTML(entries) + "</table>");
+		sb.append("<div id=\"logtail\"></div>");
+		sb.append("<p id=\"here\"></p>");
+		sb.append(
+			 	"<script>\n"
+			+		"var logAfter = " + last + ";\n"
+			+		"function pollLog() {\n"
+			+			"var req = window.XMLHttpRequest ? new XMLHttpRequest() : new ActiveXObject(\"Microsoft.XMLHTTP\");\n"
+			+			"req.open(\"GET\", \"?logevents&wait=" + logPollWait + "&service=" + query
+			+						"&after=\" + logAfter + \"&t=\" + new Date().getTime(), true);\n"
+			+			"req.onreadystatechange = function() {\n"
+			+				"if (req.readyState != 4) return;\n"
+			+				"if (req.status != 200) { setTimeout(pollLog, 10000); return; }\n"
+			+				"var text = req.responseText;\n"
+			+				"var k = text.indexOf(\"\\n\");\n"
+			+				"logAfter = parseInt(text.substring(0, k));\n"
+			+				"var rows = text.substring(k + 1);\n"
+			+				"if (rows != \"\") {\n"
+			+					"var div = document.createElement(\"DIV\");\n"
+			+					"div.innerHTML = \"<table>\" + rows + \"</table>\";\n"
+			+					"document.getElementById(\"logtail\").appendChild(div);\n"
+			+					"var results = document.getElementById(\"results\");\n"
+			+					"results.scrollTop = results.scrollHeight;\n"
+			+				"}\n"
+			+				"setTimeout(pollLog, 100);\n"
+			+			"}\n"
+			+			"req.send(null);\n"
+			+		"}\n"
+			+		"setTimeout(pollLog, 1000);\n"
+			+	"</script>\n");
+		return sb.toString();
+	}
+
+	//Send the log entries which follow the sequence number in the
+	//after parameter, waiting up to the number of seconds in the wait
+	//parameter for one to arrive. The first line of the response is the
+	//sequence number to use in the next request; the rest is the new
+	//entries as HTML table rows.
+	private void sendLogEntries(HttpServletRequest req, HttpServletResponse res) {
+		String service = getParam(req, "service");
+		long after = -1;
+		try { after = Long.parseLong(getParam(req, "after")); }
+		catch (Exception ignore) { }
+		int wait = Math.min(Math.max(getInt(req.getParameter("wait")), 0), logPollWait);
+		List<LogEntry> entries = Log.waitForEntries(service, after, wait * 1000L);
+		long last = after;
+		if (entries.size() > 0) last = entries.get(entries.size() - 1).seq;
+		ServletUtil.sendText(res, "text/plain", last + "\n" + Log.toHTML(entries), false);
+	}
+
+	//Display a form for querying the access log store
+	//and the events which match the query, if any.
+	private String showAccessLog(HttpServletRequest req) {
+		String user = getParam(req, "user");
+		String siuid = getParam(req, "siuid");
+		String start = getParam(req, "startdate");
+		String end = getParam(req, "enddate");
+		StringBuffer sb = new StringBuffer();
+		sb.append("<center><form method=\"get\" action=\"\" accept-charset=\"UTF-8\">");
+		sb.append("<input type=\"hidden\" name=\"accesslog\"/>");
+		sb.append("<p>User: " + inputCode("user", user));
+		sb.append(" Study UID: " + inputCode("siuid", siuid));
+		sb.append(" From (YYYYMMDD): " + inputCode("startdate", start));
+		sb.append(" To: " + inputCode("enddate", end));
+		sb.append(" <input type=\"submit\" value=\"Search\"/></p>");
+		sb.append("</form></center>");
+		if (!user.equals("") || !siuid.equals("") || !start.equals("") || !end.equals("")) {
+			List<AccessEvent> events = AccessLogWriter.query(user, siuid, start, end, maxAccessLogEvents);
+			StringBuffer rows = new StringBuffer();
+			rows.append(HtmlUtil.tr(HtmlUtil.th("Time") + HtmlUtil.th("Event") + HtmlUtil.th("User") + HtmlUtil.th("IP")
+								+ HtmlUtil.th("Study UID") + HtmlUtil.th("Patient ID") + HtmlUtil.th("Document")));
+			for (AccessEvent e : events) {
+				rows.append(HtmlUtil.tr(
+						HtmlUtil.td(e.datetime.replace("T"," ")) +
+						HtmlUtil.td(e.event + (e.type.equals(AccessEvent.PHI) ? " (PHI)" : "")) +
+						HtmlUtil.td(XmlStringUtil.escapeChars(e.username)) +
+						HtmlUtil.td(e.userip) +
+						HtmlUtil.td(XmlStringUtil.escapeChars(e.siuid)) +
+						HtmlUtil.td(XmlStringUtil.escapeChars(e.ptid)) +
+						HtmlUtil.td(XmlStringUtil.escapeChars(e.url))));
+			}
+			sb.append(HtmlUtil.center(HtmlUtil.table("width=\"100%\" border=\"1\"", rows.toString())));
+			if (events.size() >= maxAccessLogEvents) {
+				sb.append(HtmlUtil.p("Only the first " + maxAccessLogEvents + " events are shown."));
+			}
+		}
+		return sb.toString();
+	}
+
+	//Display a form for querying the quarantine index, a page
+	//of the quarantined files which match the query, and a form
+	//for replaying all the matching files. If the request has
+	//the replay or stopreplay parameter, start or stop a replay.
+	private String showQuarantine(HttpServletRequest req) {
+		String service = getParam(req, "service");
+		String siuid = getParam(req, "siuid");
+		String reason = getParam(req, "reason");
+		int first = Math.max(getInt(req.getParameter("first")), 0);
+		int rate = getInt(req.getParameter("rate"));
+		if (rate <= 0) rate = defaultReplayRate;
+		if (req.getParameter("replay") != null)
+			Quarantine.startReplay(service, siuid, reason, rate);
+		else if (req.getParameter("stopreplay") != null)
+			Quarantine.stopReplay();
+
+		String query = "";
+		try {
+			query = "?quarantine&service=" + URLEncoder.encode(service, "UTF-8")
+						+ "&siuid=" + URLEncoder.encode(siuid, "UTF-8")
+						+ "&reason=" + URLEncoder.encode(reason, "UTF-8");
+		}
+		catch (Exception ignore) { }
+
+		StringBuffer sb = new StringBuffer();
+		sb.append("<center><form method=\"get\" action=\"\" accept-charset=\"UTF-8\">");
+		sb.append("<input type=\"hidden\" name=\"quarantine\"/>");
+		sb.append("<p>Service: " + inputCode("service", service));
+		sb.append(" Study UID: " + inputCode("siuid", siuid));
+		sb.append(" Reason contains: " + inputCode("reason", reason));
+		sb.append(" <input type=\"submit\" value=\"Search\"/></p>");
+		sb.append("<p>Replay the matching objects at up to " + inputCode("rate", Integer.toString(rate))
+					+ " objects per second <input type=\"submit\" name=\"replay\" value=\"Replay\"/>");
+		sb.append(" <input type=\"submit\" name=\"stopreplay\" value=\"Stop\"/></p>");
+		sb.append("</form>");
+		String status = Quarantine.getReplayStatus();
+		if (!status.equals("")) sb.append("<p>Replay " + XmlStringUtil.escapeChars(status) + "</p>");
+		sb.append("</center>");
+
+		List<QuarantineItem> items =
+			Quarantine.query(service, siuid, reason, first, maxQuarantineItems + 1);
+		StringBuffer rows = new StringBuffer();
+		rows.append(HtmlUtil.tr(HtmlUtil.th("Time") + HtmlUtil.th("Service") + HtmlUtil.th("Reason")
+							+ HtmlUtil.th("Study UID") + HtmlUtil.th("Object") + HtmlUtil.th("Replay to")));
+		int n = 0;
+		for (QuarantineItem item : items) {
+			if (n++ >= maxQuarantineItems) break;
+			rows.append(HtmlUtil.tr(
+					HtmlUtil.td(item.getDateTime()) +
+					HtmlUtil.td(XmlStringUtil.escapeChars(item.service)) +
+					HtmlUtil.td(XmlStringUtil.escapeChars(item.reason)) +
+					HtmlUtil.td(XmlStringUtil.escapeChars(item.siuid)) +
+					HtmlUtil.td(XmlStringUtil.escapeChars(item.filename)) +
+					HtmlUtil.td(item.isReplayable() ? XmlStringUtil.escapeChars(new File(item.source).getName()) : "")));
+		}
+		sb.append(HtmlUtil.center(HtmlUtil.table("width=\"100%\" border=\"1\"", rows.toString())));
+
+		String links = "";
+		if (first > 0)
+			links += "<a href=\"" + query + "&first=" + Math.max(first - maxQuarantineItems, 0) + "\">Previous</a>";
+		if (items.size() > maxQuarantineItems)
+			links += (links.equals("") ? "" : " | ")
+						+ "<a href=\"" + query + "&first=" + (first + maxQuarantineItems) + "\">Next</a>";
+		if (!links.equals("")) sb.append(HtmlUtil.center(HtmlUtil.p(links)));
+		return sb.toString();
+	}
+
+	private String inputCode(String name, String value) {
+		return "<input type=\"text\" name=\"" + name + "\" value=\""
+					+ XmlStringUtil.escapeChars(value) + "\"/>";
+	}
+
+	private String getParam(HttpServletRequest req, String name) {
+		String value = req.getParameter(name);
+		return (value != null) ? value.trim() : "";
 	}
 
 	//Clear the DICOM service rolling log.
@@ -562,8 +855,10 @@ public class AdminService extends HttpServlet {
 		dir.setLastModified(System.currentTimeMillis());
 		//Get the parent directory if it is empty.
 		File parent = dir.getParentFile();
-		//Next move the directory over to the deleted documents directory.
+		//Next move the directory over to the deleted documents directory
+		//and schedule its parent for removal by the DeletedDocumentsManager.
 		boolean result = dir.renameTo(file);
+		if (result) DeletedDocumentsManager.schedule(file.getParentFile());
 		//Finally, delete any empty directories up the tree
 		//until we get to the documents directory. The purpose of
 		//this action is to remove any subdirectories that may have
@@ -681,14 +976,16 @@ public class AdminService extends HttpServlet {
 				html.tr(rowAlign,
 						html.td("") +
 						html.td(
-							buttonCode("Rebuild Index","?rebuild")// +
+							buttonCode("Rebuild Index","?rebuild",45) +
+							buttonCode("Access Log","?accesslog",45)
 							/*buttonCode("Save Index","?save",45)*/) +
 						html.td(
 							buttonCode("Show Log","?log",45) +
 							buttonCode("Clear Log","?clear",45)) +
 						html.td(
-							buttonCode("Show Log","?log",45) +
-							buttonCode("Clear Log","?clear",45))));
+							buttonCode("Show Log","?log",30) +
+							buttonCode("Clear Log","?clear",30) +
+							buttonCode("Quarantine","?quarantine",30))));
 		return controls;
 	}
 
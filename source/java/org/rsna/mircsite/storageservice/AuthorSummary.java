@@ -10,10 +10,6 @@ package org.rsna.mircsite.storageservice;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.Arrays;
-import java.util.Enumeration;
-import java.util.HashSet;
-import java.util.LinkedList;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -21,7 +17,6 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.log4j.Logger;
-import org.rsna.mircsite.util.FileUtil;
 import org.rsna.mircsite.util.HtmlUtil;
 import org.rsna.mircsite.util.MircIndexEntry;
 import org.rsna.mircsite.util.ServletUtil;
@@ -126,10 +121,10 @@ public class AuthorSummary extends HttpServlet {
 		//only allow the user to see his documents.
 		if (!userIsAdmin(req)) user = req.getRemoteUser();
 
-		//Get all the documents in the index
+		//Get the index. The index maintains the lists of each owner's
+		//documents in order of publication date, so only the documents
+		//which appear in the summary have to be examined.
 		MircIndex index = MircIndex.getInstance();
-		MircIndexEntry[] mies = index.query("");
-		index.sortByPubDate(mies);
 
 		//Now process the entries in accordance with the request
 		/*
@@ -157,25 +152,27 @@ public class AuthorSummary extends HttpServlet {
 		addElement(root, "Context", req.getContextPath());
 		addElement(root, "StartDate", start);
 		addElement(root, "EndDate", end);
-		addElement(root, "IndexedDocs", Integer.toString(mies.length));
+		addElement(root, "IndexedDocs", Integer.toString(index.getIndexSize()));
 
-		//Now narrow down the list to the date range
-		MircIndexEntry[] selected = selectByDate(mies, start, end);
-		addElement(root, "DocsInRange", Integer.toString(selected.length));
+		//Count the documents in the date range
+		addElement(root, "DocsInRange", Integer.toString(index.getDocumentCount(start, end)));
 
-		//Get the unowned docs
-		MircIndexEntry[] unowned = selectUnowned(mies);
-		addElement(root, "UnownedDocs", Integer.toString(unowned.length));
+		//Count the unowned docs
+		addElement(root, "UnownedDocs", Integer.toString(index.getOwnerDocumentCount(null)));
 
 		//Now put in the selected user(s) documents
-		String[] owners = getOwners(selected, user);
+		boolean allUsers = user.equals("*") || user.equals("");
+		String[] owners = allUsers ? index.getOwners() : new String[] { user };
 		for (String owner : owners) {
-			addOwnerResult(root, mies, selected, owner);
+			MircIndexEntry[] docs = index.getOwnerDocuments(owner, start, end);
+			if (!allUsers || (docs.length > 0)) {
+				addOwnerResult(root, index.getOwnerDocumentCount(owner), docs, owner);
+			}
 		}
 
 		//Finally, put in the unowned documents, if appropriate
-		if (user.equals("*") || user.equals("")) {
-			addDocs(root, unowned);
+		if (allUsers) {
+			addDocs(root, index.getOwnerDocuments(null, null, null));
 		}
 
 		//Return it in the requested format
@@ -213,10 +210,7 @@ public class AuthorSummary extends HttpServlet {
 		res.setContentType("text/html; charset=UTF-8");
 		PrintWriter out = res.getWriter();
 		File xfmFile = new File(getServletContext().getRealPath("summaryToHTML.xsl"));
-		String result = XmlUtil.getTransformedText(doc, xfmFile, params);
-		File summaryFile = new File(getServletContext().getRealPath("summary.html"));
-		FileUtil.setFileText(summaryFile, result);
-		out.write(result);
+		out.write(XmlUtil.getTransformedText(doc, xfmFile, params));
 		out.flush();
 		out.close();
 		return;
@@ -326,14 +320,12 @@ public class AuthorSummary extends HttpServlet {
       }
     </Owner>
     */
-	private void addOwnerResult(Element parent, MircIndexEntry[] mies, MircIndexEntry[] selected, String owner) {
+	private void addOwnerResult(Element parent, int indexedDocs, MircIndexEntry[] docs, String owner) {
 		Document doc = parent.getOwnerDocument();
 		Element child = doc.createElement("Owner");
 		parent.appendChild(child);
 		addElement(child, "username", owner);
-		MircIndexEntry[] docs = selectByOwner(mies, owner);
-		addElement(child, "IndexedDocs", Integer.toString(docs.length));
-		docs = selectByOwner(selected, owner);
+		addElement(child, "IndexedDocs", Integer.toString(indexedDocs));
 		addElement(child, "DocsInRange", Integer.toString(docs.length));
 		addElement(child, "PublicDocsInRange", Integer.toString(countPublicDocs(docs)));
 		addDocs(child, docs);
@@ -369,49 +361,6 @@ public class AuthorSummary extends HttpServlet {
 		return count;
 	}
 
-	private MircIndexEntry[] selectByOwner(MircIndexEntry[] mies, String owner) {
-		LinkedList<MircIndexEntry> list = new LinkedList<MircIndexEntry>();
-		for (MircIndexEntry mie : mies) {
-			if (mie.owners.contains(owner)) {
-				list.add(mie);
-			}
-		}
-		return list.toArray(new MircIndexEntry[list.size()]);
-	}
-
-	private String[] getOwners(MircIndexEntry[] mies, String owner) {
-		HashSet<String> owners = new HashSet<String>();
-		if (owner.equals("*") || owner.equals("")) {
-			for (MircIndexEntry mie : mies) {
-				owners.addAll(mie.owners);
-			}
-			String[] names = owners.toArray(new String[owners.size()]);
-			Arrays.sort(names);
-			return names;
-		}
-		else return new String[] { owner };
-	}
-
-	private MircIndexEntry[] selectUnowned(MircIndexEntry[] mies) {
-		LinkedList<MircIndexEntry> list = new LinkedList<MircIndexEntry>();
-		for (MircIndexEntry mie : mies) {
-			if (mie.owners.size() == 0) {
-				list.add(mie);
-			}
-		}
-		return list.toArray(new MircIndexEntry[list.size()]);
-	}
-
-	private MircIndexEntry[] selectByDate(MircIndexEntry[] mies, String start, String end) {
-		LinkedList<MircIndexEntry> list = new LinkedList<MircIndexEntry>();
-		for (MircIndexEntry mie : mies) {
-			if ((mie.pubdate.compareTo(start) >= 0) && (mie.pubdate.compareTo(end) <= 0)) {
-				list.add(mie);
-			}
-		}
-		return list.toArray(new MircIndexEntry[list.size()]);
-	}
-
 	private void addElement(Element parent, String name, String text) {
 		Element child = parent.getOwnerDocument().createElement(name);
 		child.setTextContent(text);
@@ -8,12 +8,19 @@
 package org.rsna.mircsite.storageservice;
 
 import java.io.*;
+import java.util.*;
 import org.apache.log4j.Logger;
 import org.rsna.mircsite.util.*;
 
 /**
  * The Thread that automatically removes documents from
  * the deleted-documents directory after they time out.
+ * <p>
+ * The directories in the deleted-documents directory are kept in
+ * an expiry schedule ordered by last-modified time. The schedule is
+ * loaded from the directory when the thread starts, and directories
+ * are added to it by AdminService.removeDocument, so each check
+ * only touches the directories which have actually timed out.
  */
 public class DeletedDocumentsManager extends Thread {
 
@@ -23,6 +30,11 @@ public class DeletedDocumentsManager extends Thread {
 	static long anHour = 60 * 60 * 1000;
 	static long aDay = 24 * anHour;
 
+	static final TreeMap<Long,HashSet<File>> schedule = new TreeMap<Long,HashSet<File>>();
+	static long lastCheck = 0;
+	static int lastCount = 0;
+	static long totalCount = 0;
+
 	/**
 	 * Create a new DeletedDocumentsManager to remove files
 	 * from the deleted-documents directory after they time out.
@@ -34,19 +46,61 @@ public class DeletedDocumentsManager extends Thread {
 	}
 
 	/**
-	 * Start the thread. Check for timed out documents
-	 * once when the Thread starts and then every day.
+	 * Start the thread. Load the schedule, then check for timed
+	 * out documents once when the Thread starts and then every hour.
 	 */
 	public void run() {
 		try {
+			File[] docs = dir.listFiles();
+			if (docs != null) {
+				for (int i=0; i<docs.length; i++) schedule(docs[i]);
+			}
 			while (true) {
 				checkFiles();
-				sleep(aDay);
+				sleep(anHour);
 			}
 		}
 		catch (Exception ex) { }
 	}
 
+	/**
+	 * Add a file or directory in the deleted-documents directory
+	 * to the expiry schedule, using its last-modified time.
+	 * @param file the file or directory.
+	 */
+	public static synchronized void schedule(File file) {
+		Long key = new Long(file.lastModified());
+		HashSet<File> files = schedule.get(key);
+		if (files == null) {
+			files = new HashSet<File>();
+			schedule.put(key, files);
+		}
+		files.add(file);
+	}
+
+	/**
+	 * Get a one-line summary of the results of the checks.
+	 * @return the summary string.
+	 */
+	public static synchronized String getStatus() {
+		int pending = 0;
+		for (HashSet<File> files : schedule.values()) pending += files.size();
+		if (lastCheck == 0) return pending + " scheduled; not run";
+		return pending + " scheduled; last run " + StringUtil.getDateTime(lastCheck, " ")
+				+ "; " + lastCount + " removed; "
+				+ totalCount + " removed since startup";
+	}
+
+	//Get the scheduled files which were last modified before a specified time,
+	//removing them from the schedule.
+	private static synchronized LinkedList<File> getExpired(long time) {
+		LinkedList<File> list = new LinkedList<File>();
+		SortedMap<Long,HashSet<File>> head = schedule.headMap(new Long(time));
+		for (HashSet<File> files : head.values()) list.addAll(files);
+		head.clear();
+		return list;
+	}
+
 	//Remove timed out files.
 	private void checkFiles() {
 		long maxAge = StorageConfig.getDDTimeout() * aDay;
@@ -54,14 +108,26 @@ public class DeletedDocumentsManager extends Thread {
 		long timeNow = System.currentTimeMillis();
 		long earliestAllowed = timeNow - maxAge;
 
-		//Check the directories in dir.
-		File[] docs = dir.listFiles();
-		for (int i=0; i<docs.length; i++) {
-			long lm = docs[i].lastModified();
-			if (lm < earliestAllowed) {
-				FileUtil.deleteAll(docs[i]);
+		int count = 0;
+		for (File file : getExpired(earliestAllowed)) {
+			if (!file.exists()) continue;
+			long lm = file.lastModified();
+			if (lm >= earliestAllowed) {
+				//It has been touched since it was scheduled.
+				schedule(file);
+				continue;
 			}
+			FileUtil.deleteAll(file);
+			logger.info("Timed out deleted document removed: " + file.getName());
+			count++;
 		}
+		report(timeNow, count);
+	}
+
+	private static synchronized void report(long time, int count) {
+		lastCheck = time;
+		lastCount = count;
+		totalCount += count;
 	}
 
 }
@@ -112,8 +112,20 @@ public class ExportableAccessLogEntry {
 	  * The server receiving the string is responsible
 	  * for processing it or passing it to an official audit repository.
       * @param urlString the URL of the server to receive the exported log entry.
+      * @return true if the entry was sent; false otherwise.
       */
-	public void export(String urlString) {
+	public boolean export(String urlString) {
+		return export(entry, urlString);
+	}
+
+	/**
+	  * Export the text of a log entry in the same way as the
+	  * export method of an ExportableAccessLogEntry.
+	  * @param entry the text of the log entry.
+      * @param urlString the URL of the server to receive the exported log entry.
+      * @return true if the entry was sent; false otherwise.
+      */
+	public static boolean export(String entry, String urlString) {
 		try {
 			URL url = new URL(urlString);
 			Socket socket = new Socket(url.getHost(),url.getPort());
@@ -121,9 +133,11 @@ public class ExportableAccessLogEntry {
 			svrpw.println(entry);
 			svrpw.flush();
 			svrpw.close();
+			return !svrpw.checkError();
 		}
 		catch (Exception ex) {
 			logger.warn(ex.toString());
+			return false;
 		}
 	}
 
@@ -8,30 +8,54 @@
 package org.rsna.mircsite.storageservice;
 
 import java.io.*;
-import java.nio.charset.Charset;
-import javax.servlet.*;
-import javax.servlet.http.*;
+import java.util.*;
+import org.apache.log4j.Logger;
 import org.rsna.mircsite.util.*;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
 
 /**
  * Encapsulates static methods for managing the list of
  * documents submitted to a storage service.
  * <p>
- * The input queue is an XML file containing references to documents
+ * The input queue is a list of references to documents
  * that are to be either added to the index or made public.
+ * <p>
+ * The queue is held in memory as an ordered map from document path to
+ * publish flag. Its persistent form is the inputqueue.xml file, which is
+ * a snapshot of the queue, plus the inputqueue.journal file, to which
+ * each change is appended as a single line. On first use, the snapshot
+ * is loaded and the journal is replayed. The snapshot is rewritten and
+ * the journal truncated when the queue is loaded and whenever the journal
+ * grows longer than the queue itself (with a minimum of journalLimit
+ * lines), so each change costs one short append rather than a rewrite
+ * of the whole file.
  */
 public class InputQueue {
 
+	static final Logger logger = Logger.getLogger(InputQueue.class);
+
+	static final String journalFilename = "inputqueue.journal";
+	static final int journalLimit = 1000;
+
+	static final char ADD = '+';
+	static final char PUBLISH = '*';
+	static final char DELETE = '-';
+
+	private static LinkedHashMap<String,Boolean> queue = null;
+	private static Writer journal = null;
+	private static int journalLines = 0;
+
 	/**
-	 * Parses the input queue XML file.
-	 * @return the parsed XML DOM object created from the input queue XML file.
+	 * Gets the input queue as an XML DOM object. The document has
+	 * the same form as the inputqueue.xml file: an inputqueue root
+	 * element containing one doc element for each queue entry.
+	 * @return the XML DOM object containing the input queue.
 	 */
 	public static synchronized Document getInputQueueXML()
 			throws Exception {
-		File inFile = new File(StorageConfig.basepath + StorageConfig.inputqueueFilename);
-		if (!inFile.exists()) makeEmptyInputQueue(inFile);
-		return XmlUtil.getDocument(StorageConfig.basepath + StorageConfig.inputqueueFilename);
+		return XmlUtil.getDocumentFromString(getQueueText());
 	}
 
 	/**
@@ -45,7 +69,9 @@ public class InputQueue {
 	}
 
 	/**
-	 * Adds an element to the input queue.
+	 * Adds an element to the input queue. If the element is already in the
+	 * queue, it keeps its place, and it is marked to be made public if the
+	 * publish argument is true.
 	 * @param entry the relative path from the root of the servlet to the
 	 * MIRCdocument XML file.
 	 * @param publish true if the document is to be made public; false otherwise.
@@ -53,32 +79,16 @@ public class InputQueue {
 	 */
 	public static synchronized boolean addQueueEntry(String entry, boolean publish) {
 		try {
-			File queueFile = new File(StorageConfig.basepath + StorageConfig.inputqueueFilename);
-			if (!queueFile.exists()) makeEmptyInputQueue(queueFile);
-			String queue = FileUtil.getFileText(queueFile);
-			entry = entry.replaceAll("\\\\","/").trim();
-			int a = queue.indexOf(entry);
-			if (a != -1) {
-				//The element exists, make sure it has a publish attribute if necessary
-				if (!publish) return true;
-				String line = StringUtil.getLine(queue,a);
-				if (line.indexOf("publish=\"yes\"") != -1) return true;
-				line = line.substring(0,line.indexOf("<doc")) + "<doc publish=\"yes\""
-				 + line.substring(line.indexOf(">"));
-				queue = StringUtil.replaceLine(queue,a,line);
-			}
-			else {
-				//The element doesn't exist, create one and add it at the end of the queue
-				a = queue.indexOf("</inputqueue>");
-				if (a == -1) return false;
-				a = StringUtil.lineStart(queue,a);
-				queue = queue.substring(0,a)
-						+ "  <doc" + (publish? " publish=\"yes\"" : "") + ">"
-						+ entry
-						+ "</doc>\n" + queue.substring(a);
+			load();
+			entry = normalize(entry);
+			Boolean current = queue.get(entry);
+			if (current != null) {
+				if (!publish || current.booleanValue()) return true;
+				queue.put(entry, Boolean.TRUE);
+				return log(PUBLISH, entry);
 			}
-			FileUtil.setFileText(queueFile,queue);
-			return true;
+			queue.put(entry, new Boolean(publish));
+			return log(publish ? PUBLISH : ADD, entry);
 		}
 		catch (Exception e) { return false; }
 	}
@@ -92,28 +102,176 @@ public class InputQueue {
 	 * by the Admin Service to scroll the list of queue elements to the next queue element.
 	 */
 	public static synchronized int deleteQueueEntry(String entry) {
-		File queueFile = new File(StorageConfig.basepath + "inputqueue.xml");
-		if (!queueFile.exists()) makeEmptyInputQueue(queueFile);
-		String queue = FileUtil.getFileText(queueFile);
-		entry = entry.replaceAll("\\\\","/").trim();
-		int a = queue.indexOf(entry);
-		if (a == -1) return -1;
-		int b = StringUtil.nextLine(queue,a);
-		a = StringUtil.lineStart(queue,a);
-		queue = queue.substring(0,a) + queue.substring(b);
-		FileUtil.setFileText(queueFile,queue);
-		int k = 0;
-		int i = 0;
-		while (((i=queue.indexOf("<doc",i)) != -1) && (i < a)) { k++; i++; }
-		return k;
+		try {
+			load();
+			entry = normalize(entry);
+			if (!queue.containsKey(entry)) return -1;
+			int k = 0;
+			Iterator<String> it = queue.keySet().iterator();
+			while (it.hasNext()) {
+				if (it.next().equals(entry)) {
+					it.remove();
+					log(DELETE, entry);
+					return k;
+				}
+				k++;
+			}
+		}
+		catch (Exception e) { }
+		return -1;
+	}
+
+	/**
+	 * Gets the number of entries in the input queue.
+	 * @return the number of entries, or zero if the queue cannot be loaded.
+	 */
+	public static synchronized int size() {
+		try {
+			load();
+			return queue.size();
+		}
+		catch (Exception e) { return 0; }
+	}
+
+	/**
+	 * Writes the queue to the inputqueue.xml file, truncates the
+	 * journal, and closes it. The queue is reloaded on the next call.
+	 */
+	public static synchronized void close() {
+		if (queue == null) return;
+		try { compact(); }
+		catch (Exception e) { logger.warn("Unable to save the input queue", e); }
+		closeJournal();
+		queue = null;
+	}
+
+	//Normalize an entry path.
+	private static String normalize(String entry) {
+		return entry.replaceAll("\\\\","/").trim();
+	}
+
+	//Load the queue from the snapshot and the journal if it is not loaded.
+	private static void load() throws Exception {
+		if (queue != null) return;
+		LinkedHashMap<String,Boolean> map = new LinkedHashMap<String,Boolean>();
+
+		//Load the snapshot, recovering it from the temporary
+		//file if a crash occurred during compaction.
+		File queueFile = getQueueFile();
+		File tempFile = getTempFile();
+		if (!queueFile.exists() && tempFile.exists()) tempFile.renameTo(queueFile);
+		if (queueFile.exists()) {
+			Document doc = XmlUtil.getDocument(queueFile);
+			NodeList docs = doc.getDocumentElement().getElementsByTagName("doc");
+			for (int i=0; i<docs.getLength(); i++) {
+				Element el = (Element)docs.item(i);
+				String path = normalize(el.getTextContent());
+				if (!path.equals("")) {
+					map.put(path, new Boolean(el.getAttribute("publish").equals("yes")));
+				}
+			}
+		}
+
+		//Replay the journal.
+		File journalFile = getJournalFile();
+		if (journalFile.exists()) {
+			BufferedReader reader = new BufferedReader(
+				new InputStreamReader(new FileInputStream(journalFile), FileUtil.utf8));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.length() < 2) continue;
+					String path = line.substring(1);
+					switch (line.charAt(0)) {
+						case ADD:
+							if (!map.containsKey(path)) map.put(path, Boolean.FALSE);
+							break;
+						case PUBLISH:
+							map.put(path, Boolean.TRUE);
+							break;
+						case DELETE:
+							map.remove(path);
+							break;
+					}
+				}
+			}
+			finally { reader.close(); }
+		}
+		queue = map;
+		compact();
+	}
+
+	//Append a change to the journal, compacting
+	//the journal if it has grown too long.
+	private static boolean log(char op, String entry) {
+		try {
+			if (journal == null) {
+				journal = new BufferedWriter(
+					new OutputStreamWriter(
+						new FileOutputStream(getJournalFile(), true), FileUtil.utf8));
+			}
+			journal.write(op + entry + "\n");
+			journal.flush();
+			journalLines++;
+			if (journalLines > Math.max(journalLimit, queue.size())) compact();
+			return true;
+		}
+		catch (Exception e) {
+			logger.warn("Unable to write the input queue journal", e);
+			closeJournal();
+			return false;
+		}
+	}
+
+	//Write the queue to a new snapshot and truncate the journal.
+	//The snapshot is written to a temporary file and renamed so
+	//that a crash leaves either the old or the new snapshot.
+	private static void compact() throws Exception {
+		File queueFile = getQueueFile();
+		File tempFile = getTempFile();
+		if (!FileUtil.setFileText(tempFile, FileUtil.utf8, getQueueText()))
+			throw new IOException("Unable to write " + tempFile);
+		queueFile.delete();
+		if (!tempFile.renameTo(queueFile))
+			throw new IOException("Unable to rename " + tempFile);
+		closeJournal();
+		getJournalFile().delete();
+		journalLines = 0;
+	}
+
+	private static void closeJournal() {
+		if (journal != null) {
+			try { journal.close(); }
+			catch (Exception ignore) { }
+			journal = null;
+		}
+	}
+
+	//Render the queue in the form of the inputqueue.xml file.
+	private static String getQueueText() throws Exception {
+		load();
+		StringBuffer sb = new StringBuffer();
+		sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		sb.append("<inputqueue>\n");
+		for (Map.Entry<String,Boolean> e : queue.entrySet()) {
+			sb.append("  <doc" + (e.getValue().booleanValue() ? " publish=\"yes\"" : "") + ">");
+			sb.append(XmlStringUtil.escapeChars(e.getKey()));
+			sb.append("</doc>\n");
+		}
+		sb.append("</inputqueue>\n");
+		return sb.toString();
+	}
+
+	private static File getQueueFile() {
+		return new File(StorageConfig.basepath + StorageConfig.inputqueueFilename);
+	}
+
+	private static File getTempFile() {
+		return new File(StorageConfig.basepath + StorageConfig.inputqueueFilename + ".tmp");
 	}
 
-	//Make an Input Queue XML file containing no queue elements.
-	private static void makeEmptyInputQueue(File indexFile) {
-		String index = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
-						+ "<inputqueue>\n"
-						+ "</inputqueue>\n";
-		FileUtil.setFileText(indexFile, FileUtil.utf8, index);
+	private static File getJournalFile() {
+		return new File(StorageConfig.basepath + journalFilename);
 	}
 
 }
@@ -39,6 +39,7 @@ public class MircDocument {
 	public String docText;
 	public String indexEntry;
 	private int jpegQuality = -1;
+	private boolean autoIndex = true;
 
 	/**
 	 * Class constructor; creates a new MircDocument object. If the
@@ -256,6 +257,24 @@ public class MircDocument {
 		return FileUtil.setFileText(docFile,docText);
 	}
 
+	/**
+	 * Set whether the methods which insert objects into the document
+	 * re-index it after each insertion. The default is true. Clients
+	 * which insert many objects and then index the document themselves
+	 * (like the ZipThread) can set it to false.
+	 * @param autoIndex true if the document is to be re-indexed after
+	 * each insertion; false otherwise.
+	 */
+	public void setAutoIndex(boolean autoIndex) {
+		this.autoIndex = autoIndex;
+	}
+
+	//Re-index the document if automatic indexing is enabled.
+	private boolean reindex() {
+		if (!autoIndex) return true;
+		return MircIndex.getInstance().insertDocument(indexEntry);
+	}
+
 	/**
 	 * Insert a FileObject into the MircDocument. This method is used by the
 	 * Dicom Service to insert metadata files into clinical trial documents.
@@ -303,7 +322,7 @@ public class MircDocument {
 		FileUtil.setFileText(docFile,docText);
 
 		//Re-index the document.
-		return MircIndex.getInstance().insertDocument(indexEntry);
+		return reindex();
 	}
 
 	/**
@@ -325,7 +344,7 @@ public class MircDocument {
 		FileUtil.setFileText(docFile,docText);
 
 		//Re-index the document.
-		return MircIndex.getInstance().insertDocument(indexEntry);
+		return reindex();
 	}
 
 	/**
@@ -405,7 +424,7 @@ public class MircDocument {
 		FileUtil.setFileText(docFile,docText);
 
 		//Re-index the document.
-		return MircIndex.getInstance().insertDocument(indexEntry);
+		return reindex();
 	}
 
 	//Insert data from a TCE manifest.
@@ -693,19 +712,26 @@ public class MircDocument {
 		//Make the JPEG images
 		String name = dicomObject.getFile().getName();
 		String nameNoExt = name.substring(0,name.lastIndexOf("."));
-		MircImage image;
-		try { image = dicomObject.getMircImage(); }
-		catch (Exception e) { return; }
-		Dimension d_base = image.saveAsJPEG(new File(docDir,nameNoExt+"_base.jpeg"),maxWidth,minWidth,jpegQuality);
-		Dimension d_icon = image.saveAsJPEG(new File(docDir,nameNoExt+"_icon.jpeg"),64,0);
-		Dimension d_icon96 = image.saveAsJPEG(new File(docDir,nameNoExt+"_icon96.jpeg"),96,0); //for the author service
+		MircImage image = null;
+		Properties renditions = null;
+		if (StorageConfig.lazyRenditions()) {
+			if (!hasPixels(dicomObject)) return;
+			renditions = new Properties();
+		}
+		else {
+			try { image = dicomObject.getMircImage(); }
+			catch (Exception e) { return; }
+		}
+		Dimension d_base = makeRendition(dicomObject,image,renditions,nameNoExt+"_base.jpeg",maxWidth,minWidth,jpegQuality);
+		Dimension d_icon = makeRendition(dicomObject,image,renditions,nameNoExt+"_icon.jpeg",64,0,-1);
+		Dimension d_icon96 = makeRendition(dicomObject,image,renditions,nameNoExt+"_icon96.jpeg",96,0,-1); //for the author service
 
 		//Make the image element
 		String insert =
 			"<image src=\""+nameNoExt+"_base.jpeg\" w=\""+d_base.width+"\" h=\""+d_base.height+"\">\n" +
 			"  <alternative-image role=\"icon\" src=\""+nameNoExt+"_icon.jpeg\" w=\""+d_icon.width+"\" h=\""+d_icon.height+"\"/>\n";
 		if (imageWidth > maxWidth) {
-			Dimension d_full = image.saveAsJPEG(new File(docDir,nameNoExt+"_full.jpeg"),imageWidth,0,jpegQuality);
+			Dimension d_full = makeRendition(dicomObject,image,renditions,nameNoExt+"_full.jpeg",imageWidth,0,jpegQuality);
 			insert +=
 			"  <alternative-image role=\"original-dimensions\" src=\""+nameNoExt+"_full.jpeg\" w=\""+d_full.width+"\" h=\""+d_full.height+"\"/>\n";
 		}
@@ -716,9 +742,10 @@ public class MircDocument {
 
 		//Make the extra image, if so configured (for NCI caImage)
 		if (esMinSize > 255)
-			image.saveAsJPEG(
-				new File(docDir,nameNoExt+"_extra.jpeg"),
+			makeRendition(
+				dicomObject,image,renditions,nameNoExt+"_extra.jpeg",
 				imageWidth,esMinSize,jpegQuality);
+		if (renditions != null) RenditionCache.register(docDir, renditions);
 
 		//If text modification is allowed, put the
 		//image element into the document text.
@@ -751,14 +778,21 @@ public class MircDocument {
 		//Make the JPEG images
 		String name = dicomObject.getFile().getName();
 		String nameNoExt = name.substring(0,name.lastIndexOf("."));
-		MircImage image;
-		try { image = dicomObject.getMircImage(); }
-		catch (Exception e) { return; }
-		Dimension d_base = image.saveAsJPEG(new File(docDir,nameNoExt+"_base.jpeg"),maxWidth,minWidth,jpegQuality);
-		Dimension d_icon = image.saveAsJPEG(new File(docDir,nameNoExt+"_icon.jpeg"),64,0);
-		Dimension d_icon96 = image.saveAsJPEG(new File(docDir,nameNoExt+"_icon96.jpeg"),96,0); //for the author service
+		MircImage image = null;
+		Properties renditions = null;
+		if (StorageConfig.lazyRenditions()) {
+			if (!hasPixels(dicomObject)) return;
+			renditions = new Properties();
+		}
+		else {
+			try { image = dicomObject.getMircImage(); }
+			catch (Exception e) { return; }
+		}
+		Dimension d_base = makeRendition(dicomObject,image,renditions,nameNoExt+"_base.jpeg",maxWidth,minWidth,jpegQuality);
+		Dimension d_icon = makeRendition(dicomObject,image,renditions,nameNoExt+"_icon.jpeg",64,0,-1);
+		Dimension d_icon96 = makeRendition(dicomObject,image,renditions,nameNoExt+"_icon96.jpeg",96,0,-1); //for the author service
 		if (imageWidth > maxWidth) {
-			image.saveAsJPEG(new File(docDir,nameNoExt+"_full.jpeg"),imageWidth,0,jpegQuality);
+			makeRendition(dicomObject,image,renditions,nameNoExt+"_full.jpeg",imageWidth,0,jpegQuality);
 		}
 
 		//Make the image element
@@ -770,15 +804,47 @@ public class MircDocument {
 
 		//Make the extra image, if so configured (for NCI caImage)
 		if (esMinSize > 255)
-			image.saveAsJPEG(
-				new File(docDir,nameNoExt+"_extra.jpeg"),
+			makeRendition(
+				dicomObject,image,renditions,nameNoExt+"_extra.jpeg",
 				imageWidth,esMinSize,jpegQuality);
+		if (renditions != null) RenditionCache.register(docDir, renditions);
 
 		//If text modification is allowed, put the
 		//image element into the document text.
 		if (modifyText) insertImageElement(insert,"insert-image");
 	}
 
+	//Determine from the header alone whether a DicomObject has an image
+	//from which renditions can be made, so that the pixels are not decoded
+	//when the renditions are only registered.
+	private boolean hasPixels(DicomObject dicomObject) {
+		return dicomObject.isImage()
+				&& (dicomObject.getRows() > 0)
+					&& (dicomObject.getColumns() > 0)
+						&& (dicomObject.getBitsAllocated() > 0);
+	}
+
+	//Make a JPEG rendition of a DicomObject image in the document directory.
+	//If lazy renditions are enabled, the renditions argument is not null and
+	//the rendition is only added to it, to be registered with the others for
+	//the image so the RenditionCache can create it when it is first requested.
+	//In either case, return the dimensions of the rendition.
+	private Dimension makeRendition(
+				DicomObject dicomObject,
+				MircImage image,
+				Properties renditions,
+				String name,
+				int maxSize,
+				int minSize,
+				int quality) {
+		if (renditions == null)
+			return image.saveAsJPEG(new File(docDir,name),maxSize,minSize,quality);
+		renditions.setProperty(name,
+			RenditionCache.getSpec(dicomObject.getFile().getName(), maxSize, minSize, quality));
+		return MircImage.getScaledDimension(
+			dicomObject.getColumns(), dicomObject.getRows(), maxSize, minSize);
+	}
+
 	//Handle the insert-megasave element for MircImages.
 	private void insertMegasave(MircImage image) throws Exception {
 
@@ -1186,45 +1252,67 @@ public class MircDocument {
 			String text = node.getNodeValue().replaceAll("\\s+"," ");
 			node.setNodeValue(text);
 
+			//Use the compiled tagger if it is available. It finds all
+			//the terms in one pass without locking the RadLexIndex.
+			//If it is not available, search the index word by word.
+			RadLexTagger tagger = RadLexIndex.getTagger();
+			if (tagger != null) {
+				RadLexTagger.Match[] matches = tagger.getMatches(text);
+				int offset = 0;
+				for (int i=0; i<matches.length; i++) {
+					Result result = new Result(
+						matches[i].start - offset, matches[i].length, matches[i].id);
+					node = wrapTerm(doc, parent, (Text)node, result);
+					offset = matches[i].start + matches[i].length;
+				}
+				return;
+			}
+
 			Result result;
 			while ((result=getFirstTerm(node)) != null) {
-				//Okay, here is the situation. We have found a string
-				//in the text node which matches a RadLex term.
-				//We have to split the text node twice, once before
-				//the term and once after it. The text node in the
-				//middle will be the one containing the term. We must
-				//then replace that node with a term element containing
-				//the term text node.
-
-				//First split the text node before the term.
-				//The "node" variable will refer to the text node
-				//containing the text before the term.
-				//The "termText" variable will refer to the text node
-				//containing the term text and the text (if any) after it
-				Text termText = ((Text)node).splitText(result.start);
-
-				//Now split the termText node after the term.
-				//The "remainingText" variable will refer to the text node
-				//containing all the text after the term.
-				Text remainingText = termText.splitText(result.length);
-
-				//Now we have to wrap the termText node in a term element.
-				Element termElement = doc.createElement("term");
-				termElement.setAttribute("lexicon", "RadLex");
-				termElement.setAttribute("id", result.uid);
-				parent.insertBefore(termElement, termText);
-				//Note: the appendChild method removes the
-				//appended node if it is already in the document,
-				//and then appends it in the desired place.
-				termElement.appendChild(termText);
-
-				//Okay, we have processed this term, so all we have
-				//to do is set up to check the remainingText node.
-				node = remainingText;
+				node = wrapTerm(doc, parent, (Text)node, result);
 			}
 		}
 	}
 
+	//Wrap a term found in a text node in a term element,
+	//and return the text node containing the text after the term.
+	private static Text wrapTerm(Document doc, Node parent, Text node, Result result) {
+		//Okay, here is the situation. We have found a string
+		//in the text node which matches a RadLex term.
+		//We have to split the text node twice, once before
+		//the term and once after it. The text node in the
+		//middle will be the one containing the term. We must
+		//then replace that node with a term element containing
+		//the term text node.
+
+		//First split the text node before the term.
+		//The "node" variable will refer to the text node
+		//containing the text before the term.
+		//The "termText" variable will refer to the text node
+		//containing the term text and the text (if any) after it
+		Text termText = node.splitText(result.start);
+
+		//Now split the termText node after the term.
+		//The "remainingText" variable will refer to the text node
+		//containing all the text after the term.
+		Text remainingText = termText.splitText(result.length);
+
+		//Now we have to wrap the termText node in a term element.
+		Element termElement = doc.createElement("term");
+		termElement.setAttribute("lexicon", "RadLex");
+		termElement.setAttribute("id", result.uid);
+		parent.insertBefore(termElement, termText);
+		//Note: the appendChild method removes the
+		//appended node if it is already in the document,
+		//and then appends it in the desired place.
+		termElement.appendChild(termText);
+
+		//Okay, we have processed this term, so all we have
+		//to do is set up to check the remainingText node.
+		return remainingText;
+	}
+
 	static class Result {
 		int start = 0;
 		int length = 0;
@@ -48,6 +48,11 @@ public class MircIndex {
 	MircIndexDatabase freetext;
 	Hashtable<String,MircIndexDatabase> fields;
 	Hashtable<Integer,MircIndexEntry> idToMIEShadow;
+	TreeMap<Long,HashSet<String>> expirySchedule;
+	HashMap<String,Long> pathToLMDate;
+	PubDateIndex allDocs;
+	PubDateIndex unownedDocs;
+	TreeMap<String,PubDateIndex> ownerDocs;
 	static Unfragmented unfragmented = new Unfragmented();
 
 	/**
@@ -95,13 +100,25 @@ public class MircIndex {
 			idToMIE = JdbmUtil.getHTree(recman, "IDToMIE");
 			freetext = new MircIndexDatabase(recman, "freetext", null);
 
-			//build the shadow index
+			//build the shadow index, the owner summaries, and the expiry schedule
 			idToMIEShadow = new Hashtable<Integer,MircIndexEntry>();
+			allDocs = new PubDateIndex();
+			unownedDocs = new PubDateIndex();
+			ownerDocs = new TreeMap<String,PubDateIndex>();
+			expirySchedule = new TreeMap<Long,HashSet<String>>();
+			pathToLMDate = new HashMap<String,Long>();
 			HashSet<Integer> allIDs = freetext.getAllIDs();
 			for (Integer id : allIDs) {
 				MircIndexEntry mie = (MircIndexEntry)idToMIE.get(id);
 				idToMIEShadow.put(id, mie);
+				catalog(id, mie, false);
+				String path = (mie.md != null) ? mie.md.getAttribute("filename").trim() : "";
+				if (path.equals("")) path = (String)idToPath.get(id);
+				if (path != null) schedule(fixPath(path), mie.lmdate);
 			}
+			allDocs.sort();
+			unownedDocs.sort();
+			for (PubDateIndex pdi : ownerDocs.values()) pdi.sort();
 
 			//now open the query field databases
 			openDatabase("title");
@@ -423,7 +440,9 @@ public class MircIndex {
 
 		MircIndexEntry mie = new MircIndexEntry( file, path, doc, StorageConfig.indexDocFile );
 		idToMIE.put( id, mie );
+		uncatalog( id );
 		idToMIEShadow.put( id, mie );
+		catalog( id, mie );
 
 		//put everything in the freetext database
 		freetext.indexString(id, getText(root));
@@ -440,6 +459,10 @@ public class MircIndex {
 
 		//make sure the image sizes are in place
 		setImageSizes(file, doc);
+
+		//schedule the document for expiry, using the time of
+		//the last change made to the file during indexing
+		schedule(path, file.lastModified());
 	}
 
 	//Check that all the image elements have w and h attributes.
@@ -518,7 +541,9 @@ public class MircIndex {
 				pathToID.remove(path);
 				idToPath.remove(id);
 				idToMIE.remove(id);
+				uncatalog(id);
 				idToMIEShadow.remove(id);
+				unschedule(path);
 
 				return ok;
 			}
@@ -529,6 +554,155 @@ public class MircIndex {
 		}
 	}
 
+	/**
+	 * Get the names of the owners of the indexed documents.
+	 * @return the usernames of the owners, in alphabetical order.
+	 */
+	public synchronized String[] getOwners() {
+		return ownerDocs.keySet().toArray(new String[ownerDocs.size()]);
+	}
+
+	/**
+	 * Get the number of indexed documents owned by a user.
+	 * @param owner the username of the owner, or null for the
+	 * documents which have no owner.
+	 * @return the number of documents.
+	 */
+	public synchronized int getOwnerDocumentCount(String owner) {
+		return getPubDateIndex(owner).size();
+	}
+
+	/**
+	 * Get the number of indexed documents published in a range of dates.
+	 * @param start the first date (YYYYMMDD) in the range (inclusive).
+	 * @param end the last date (YYYYMMDD) in the range (inclusive).
+	 * @return the number of documents.
+	 */
+	public synchronized int getDocumentCount(String start, String end) {
+		return allDocs.count(start, end);
+	}
+
+	/**
+	 * Get the entries of the documents owned by a user, in
+	 * chronological order by publication date. The entries
+	 * are found by binary search in a list which is maintained
+	 * as documents are added to and removed from the index.
+	 * @param owner the username of the owner, or null for the
+	 * documents which have no owner.
+	 * @param start the first date (YYYYMMDD) in the range (inclusive),
+	 * or null to include all documents.
+	 * @param end the last date (YYYYMMDD) in the range (inclusive).
+	 * @return the entries of the documents.
+	 */
+	public synchronized MircIndexEntry[] getOwnerDocuments(String owner, String start, String end) {
+		PubDateIndex pdi = getPubDateIndex(owner);
+		return (start == null) ? pdi.getEntries() : pdi.getEntries(start, end);
+	}
+
+	//Get the PubDateIndex for an owner, or an empty one
+	//if the owner has no documents.
+	private PubDateIndex getPubDateIndex(String owner) {
+		if (owner == null) return unownedDocs;
+		PubDateIndex pdi = ownerDocs.get(owner);
+		return (pdi != null) ? pdi : new PubDateIndex();
+	}
+
+	//Add an entry to the owner summaries.
+	private void catalog(Integer id, MircIndexEntry mie) {
+		catalog(id, mie, true);
+	}
+
+	//Add an entry to the owner summaries, keeping them in order, or,
+	//while the index is being loaded, appending it to them, in which
+	//case the caller sorts them when all the entries are loaded.
+	private void catalog(Integer id, MircIndexEntry mie, boolean keepSorted) {
+		add(allDocs, id, mie, keepSorted);
+		if (mie.owners.size() == 0) add(unownedDocs, id, mie, keepSorted);
+		for (String owner : mie.owners) {
+			PubDateIndex pdi = ownerDocs.get(owner);
+			if (pdi == null) {
+				pdi = new PubDateIndex();
+				ownerDocs.put(owner, pdi);
+			}
+			add(pdi, id, mie, keepSorted);
+		}
+	}
+
+	//Add an entry to one owner summary.
+	private void add(PubDateIndex pdi, Integer id, MircIndexEntry mie, boolean keepSorted) {
+		if (keepSorted) pdi.add(id, mie);
+		else pdi.append(id, mie);
+	}
+
+	//Remove the entry for an ID from the owner summaries.
+	private void uncatalog(Integer id) {
+		MircIndexEntry mie = idToMIEShadow.get(id);
+		if (mie == null) return;
+		allDocs.remove(id);
+		unownedDocs.remove(id);
+		for (String owner : mie.owners) {
+			PubDateIndex pdi = ownerDocs.get(owner);
+			if (pdi != null) {
+				pdi.remove(id);
+				if (pdi.size() == 0) ownerDocs.remove(owner);
+			}
+		}
+	}
+
+	/**
+	 * Get the paths of the indexed documents which were last modified
+	 * before a specified time. The documents are found in the expiry
+	 * schedule, which is kept in order of last-modified time, so the cost
+	 * of this method is proportional to the number of documents returned.
+	 * @param time the time, in milliseconds.
+	 * @return the paths of the documents, oldest first.
+	 */
+	public synchronized String[] getDocumentsModifiedBefore(long time) {
+		LinkedList<String> list = new LinkedList<String>();
+		for (HashSet<String> paths : expirySchedule.headMap(new Long(time)).values()) {
+			list.addAll(paths);
+		}
+		return list.toArray(new String[list.size()]);
+	}
+
+	/**
+	 * Change the last-modified time of a document in the expiry
+	 * schedule. This method is used when a document has been modified
+	 * since it was indexed. It does nothing if the document is not
+	 * in the index.
+	 * @param path the path by which the MIRCdocument was indexed.
+	 * @param lmdate the new last-modified time.
+	 */
+	public synchronized void setLastModified(String path, long lmdate) {
+		path = fixPath(path);
+		if (pathToLMDate.containsKey(path)) schedule(path, lmdate);
+	}
+
+	//Put a document in the expiry schedule, replacing any existing entry.
+	private void schedule(String path, long lmdate) {
+		unschedule(path);
+		Long key = new Long(lmdate);
+		HashSet<String> paths = expirySchedule.get(key);
+		if (paths == null) {
+			paths = new HashSet<String>();
+			expirySchedule.put(key, paths);
+		}
+		paths.add(path);
+		pathToLMDate.put(path, key);
+	}
+
+	//Remove a document from the expiry schedule.
+	private void unschedule(String path) {
+		Long key = pathToLMDate.remove(path);
+		if (key != null) {
+			HashSet<String> paths = expirySchedule.get(key);
+			if (paths != null) {
+				paths.remove(path);
+				if (paths.size() == 0) expirySchedule.remove(key);
+			}
+		}
+	}
+
 	/**
 	 * Fix a path which (for backward compatibility) may contain
 	 * slashes, backslashes, or exclamation points as path separators.
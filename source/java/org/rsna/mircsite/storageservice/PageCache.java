@@ -0,0 +1,185 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.mircsite.storageservice;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.*;
+import javax.servlet.http.*;
+import org.rsna.mircsite.util.FileUtil;
+
+/**
+ * A size-bounded, least-recently-used cache of the pages produced by
+ * transforming MIRCdocuments in the XMLServer.
+ * <p>
+ * A page is identified by the path and last-modified time of the document,
+ * the path and last-modified time of the XSL file, and all the parameters
+ * supplied to the transformation. Since the parameters include the request
+ * parameters and the user's rights to the document, users with the same
+ * rights share a cached page, and a change to the document, the XSL file,
+ * or the user's rights produces a different page. The key also serves as
+ * the page's ETag.
+ */
+public class PageCache {
+
+	private static final LinkedHashMap<String,Page> pages =
+								new LinkedHashMap<String,Page>(256, 0.75f, true);
+	private static long currentSize = 0;
+	private static long hits = 0;
+	private static long misses = 0;
+
+	/**
+	 * Make the key for a transformed page.
+	 * @param docFile the MIRCdocument file.
+	 * @param xslFile the XSL file.
+	 * @param params the transformation parameters.
+	 * @return the key.
+	 */
+	public static String getKey(File docFile, File xslFile, Object[] params) {
+		StringBuffer sb = new StringBuffer();
+		sb.append(docFile.getAbsolutePath()).append('|').append(docFile.lastModified());
+		sb.append('|').append(xslFile.getAbsolutePath()).append('|').append(xslFile.lastModified());
+		for (int i=0; i<params.length; i++) sb.append('|').append(params[i]);
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			byte[] hash = md.digest(sb.toString().getBytes(FileUtil.utf8));
+			StringBuffer key = new StringBuffer();
+			for (int i=0; i<hash.length; i++) {
+				key.append(Character.forDigit((hash[i] >> 4) & 0xf, 16));
+				key.append(Character.forDigit(hash[i] & 0xf, 16));
+			}
+			return key.toString();
+		}
+		catch (Exception ex) { return Integer.toHexString(sb.toString().hashCode()); }
+	}
+
+	/**
+	 * Get a page from the cache.
+	 * @param key the key of the page.
+	 * @return the page, or null if the page is not in the cache.
+	 */
+	public static synchronized Page get(String key) {
+		Page page = pages.get(key);
+		if (page != null) hits++;
+		else misses++;
+		return page;
+	}
+
+	/**
+	 * Put a page in the cache, removing the least recently used
+	 * pages if the cache exceeds its size limit. If the cache is
+	 * disabled, the page is returned but not stored.
+	 * @param key the key of the page.
+	 * @param text the text of the page.
+	 * @param contentType the content type of the page.
+	 * @param lastModified the last-modified time of the page.
+	 * @return the page.
+	 */
+	public static synchronized Page put(String key, String text, String contentType, long lastModified) {
+		Page page = new Page(key, text, contentType, lastModified);
+		long maxSize = ((long)StorageConfig.getPageCacheSize()) * 1024 * 1024;
+		if (2L * text.length() > maxSize) return page;
+		Page oldPage = pages.put(key, page);
+		if (oldPage != null) currentSize -= oldPage.getSize();
+		currentSize += page.getSize();
+		Iterator<Page> it = pages.values().iterator();
+		while ((currentSize > maxSize) && it.hasNext()) {
+			currentSize -= it.next().getSize();
+			it.remove();
+		}
+		return page;
+	}
+
+	/**
+	 * Remove all the pages from the cache.
+	 */
+	public static synchronized void clear() {
+		pages.clear();
+		currentSize = 0;
+	}
+
+	/**
+	 * Get a one-line summary of the cache statistics.
+	 * @return the summary string.
+	 */
+	public static synchronized String getStatus() {
+		return pages.size() + " pages; "
+				+ (currentSize / 1024) + " KB; "
+				+ hits + " hits; "
+				+ misses + " misses";
+	}
+
+	/**
+	 * A transformed page.
+	 */
+	public static class Page {
+		public final String text;
+		public final String contentType;
+		public final String etag;
+		public final long lastModified;
+
+		public Page(String key, String text, String contentType, long lastModified) {
+			this.text = text;
+			this.contentType = contentType;
+			this.etag = "\"" + key + "\"";
+			this.lastModified = (lastModified / 1000) * 1000;
+		}
+
+		//The approximate number of bytes occupied by the page.
+		long getSize() {
+			return 2L * text.length() + 128;
+		}
+
+		/**
+		 * Determine whether the client already has the current
+		 * version of the page. Only If-None-Match is honored.
+		 * If-Modified-Since is ignored because the modification
+		 * times do not reflect the transformation parameters, so a
+		 * page made for one user (for example, before the user logged
+		 * in) would be accepted as current for another.
+		 * @param req the request.
+		 * @return true if the page has not been modified.
+		 */
+		public boolean isNotModified(HttpServletRequest req) {
+			String ifNoneMatch = req.getHeader("If-None-Match");
+			if (ifNoneMatch != null) {
+				if (ifNoneMatch.trim().equals("*")) return true;
+				String[] tags = ifNoneMatch.split(",");
+				for (int i=0; i<tags.length; i++) {
+					String tag = tags[i].trim();
+					if (tag.startsWith("W/")) tag = tag.substring(2);
+					if (tag.equals(etag)) return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Send the page, or a 304 status if the client already has it.
+		 * The page is sent with its ETag and a private Cache-Control
+		 * header that requires revalidation, so authorization is checked
+		 * and accesses are logged on every view.
+		 * @param req the request.
+		 * @param res the response.
+		 * @throws IOException if the page cannot be sent.
+		 */
+		public void send(HttpServletRequest req, HttpServletResponse res) throws IOException {
+			res.setHeader("ETag", etag);
+			res.setDateHeader("Last-Modified", lastModified);
+			res.setHeader("Cache-Control", "private, no-cache");
+			if (isNotModified(req)) {
+				res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return;
+			}
+			res.setContentType(contentType);
+			PrintWriter out = res.getWriter();
+			out.print(text);
+		}
+	}
+
+}
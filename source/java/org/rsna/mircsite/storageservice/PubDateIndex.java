@@ -0,0 +1,140 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.mircsite.storageservice;
+
+import java.util.*;
+import org.rsna.mircsite.util.MircIndexEntry;
+
+/**
+ * A set of MircIndexEntry objects kept in order of publication date,
+ * so that the entries published in a range of dates can be found by
+ * binary search. The MircIndex keeps one of these for all its documents,
+ * one for each owner, and one for the documents with no owner.
+ * <p>
+ * This class is not synchronized; the MircIndex synchronizes access.
+ */
+class PubDateIndex {
+
+	private final HashMap<Integer,MircIndexEntry> entries = new HashMap<Integer,MircIndexEntry>();
+	private final ArrayList<MircIndexEntry> sorted = new ArrayList<MircIndexEntry>();
+
+	/**
+	 * Add an entry, replacing any entry with the same ID.
+	 * @param id the ID of the document in the index.
+	 * @param mie the entry.
+	 */
+	public void add(Integer id, MircIndexEntry mie) {
+		remove(id);
+		entries.put(id, mie);
+		sorted.add(upperBound(mie.pubdate), mie);
+	}
+
+	/**
+	 * Add an entry at the end, without keeping the entries in order.
+	 * This is used when an index is loaded; sort must be called when
+	 * all the entries have been appended.
+	 * @param id the ID of the document in the index.
+	 * @param mie the entry.
+	 */
+	public void append(Integer id, MircIndexEntry mie) {
+		MircIndexEntry old = entries.put(id, mie);
+		if (old != null) sorted.remove(old);
+		sorted.add(mie);
+	}
+
+	/**
+	 * Put the entries in order of publication date after they have
+	 * been appended. Entries with the same date keep their order.
+	 */
+	public void sort() {
+		Collections.sort(sorted, new Comparator<MircIndexEntry>() {
+			public int compare(MircIndexEntry a, MircIndexEntry b) {
+				return a.pubdate.compareTo(b.pubdate);
+			}
+		});
+	}
+
+	/**
+	 * Remove an entry.
+	 * @param id the ID of the document in the index.
+	 */
+	public void remove(Integer id) {
+		MircIndexEntry mie = entries.remove(id);
+		if (mie == null) return;
+		for (int i=lowerBound(mie.pubdate); i<sorted.size(); i++) {
+			if (sorted.get(i) == mie) {
+				sorted.remove(i);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Get the number of entries.
+	 * @return the number of entries.
+	 */
+	public int size() {
+		return sorted.size();
+	}
+
+	/**
+	 * Get all the entries in order of publication date.
+	 * @return the entries.
+	 */
+	public MircIndexEntry[] getEntries() {
+		return sorted.toArray(new MircIndexEntry[sorted.size()]);
+	}
+
+	/**
+	 * Get the entries whose publication dates are in a range,
+	 * in order of publication date.
+	 * @param start the first date in the range (inclusive).
+	 * @param end the last date in the range (inclusive).
+	 * @return the entries.
+	 */
+	public MircIndexEntry[] getEntries(String start, String end) {
+		int from = lowerBound(start);
+		int to = Math.max(from, upperBound(end));
+		return sorted.subList(from, to).toArray(new MircIndexEntry[to - from]);
+	}
+
+	/**
+	 * Get the number of entries whose publication dates are in a range.
+	 * @param start the first date in the range (inclusive).
+	 * @param end the last date in the range (inclusive).
+	 * @return the number of entries.
+	 */
+	public int count(String start, String end) {
+		return Math.max(0, upperBound(end) - lowerBound(start));
+	}
+
+	//Get the index of the first entry with a pubdate not less than the date.
+	private int lowerBound(String date) {
+		int lo = 0;
+		int hi = sorted.size();
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (sorted.get(mid).pubdate.compareTo(date) < 0) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	//Get the index of the first entry with a pubdate greater than the date.
+	private int upperBound(String date) {
+		int lo = 0;
+		int hi = sorted.size();
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (sorted.get(mid).pubdate.compareTo(date) <= 0) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+}
@@ -0,0 +1,333 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.mircsite.storageservice;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.apache.log4j.Logger;
+import org.rsna.mircsite.util.*;
+
+/**
+ * A size-bounded disk cache of JPEG renditions (_base, _icon, _icon96,
+ * _full, and _extra images) which are generated on first request rather
+ * than when the source image is inserted into a MIRCdocument.
+ * <p>
+ * When lazy renditions are enabled, MircDocument records the parameters
+ * for each rendition in a properties file in the document directory
+ * instead of writing the JPEG. When a rendition is requested and it
+ * does not exist in the document directory, the cache looks up its
+ * parameters, generates it into the renditions directory, and evicts
+ * the least recently used renditions when the cache exceeds its size
+ * limit. Concurrent requests for the same rendition share a single
+ * generation. A rendition obtained from the cache is in use until it
+ * is released, and renditions in use are not evicted.
+ */
+public class RenditionCache {
+
+	static final Logger logger = Logger.getLogger(RenditionCache.class);
+
+	/** The name of the file in a document directory listing its renditions. */
+	public static final String renditionsFilename = "renditions.properties";
+
+	/** The name of the cache directory in the root of the storage service. */
+	public static final String renditionsDirectory = "renditions";
+
+	private static RenditionCache renditionCache = null;
+
+	File root;
+	File cacheDir;
+	long maxBytes;
+	long currentBytes = 0;
+	LinkedHashMap<String,Long> lru;
+	ConcurrentHashMap<String,FutureTask<File>> pending;
+	HashMap<String,Integer> inUse;
+
+	/**
+	 * Create the cache, loading the LRU list from the
+	 * renditions that are already on disk.
+	 * @param root the root directory of the storage service.
+	 * @param maxBytes the maximum number of bytes to keep in the cache.
+	 */
+	protected RenditionCache(File root, long maxBytes) {
+		this.root = root;
+		this.cacheDir = new File(root, renditionsDirectory);
+		this.maxBytes = maxBytes;
+		cacheDir.mkdirs();
+		lru = new LinkedHashMap<String,Long>(1024, 0.75f, true);
+		pending = new ConcurrentHashMap<String,FutureTask<File>>();
+		inUse = new HashMap<String,Integer>();
+		load();
+	}
+
+	/**
+	 * Get the singleton cache, creating it if necessary.
+	 * @return the cache, or null if the storage service
+	 * has not been configured.
+	 */
+	public static synchronized RenditionCache getInstance() {
+		if (renditionCache == null) {
+			String basepath = StorageConfig.getBasepath();
+			if (basepath == null) return null;
+			long maxBytes = ((long)StorageConfig.getRenditionCacheSize()) * 1024 * 1024;
+			renditionCache = new RenditionCache(new File(basepath), maxBytes);
+		}
+		return renditionCache;
+	}
+
+	/**
+	 * Make the specification of a rendition for the register method.
+	 * The parameters are the same as the ones supplied to MircImage.saveAsJPEG.
+	 * @param source the name of the source image in the document directory.
+	 * @param maxSize the maximum width of the rendition.
+	 * @param minSize the minimum width of the rendition.
+	 * @param quality the JPEG quality setting.
+	 * @return the specification.
+	 */
+	public static String getSpec(String source, int maxSize, int minSize, int quality) {
+		return source + "," + maxSize + "," + minSize + "," + quality;
+	}
+
+	/**
+	 * Record the parameters of a set of renditions so that they can be
+	 * generated when they are first requested. The renditions are appended
+	 * to the renditions file of the document; a rendition which is
+	 * registered again replaces the earlier one when the file is loaded.
+	 * @param docDir the directory containing the MIRCdocument.
+	 * @param renditions the specifications of the renditions (see getSpec),
+	 * indexed by the names of the renditions (e.g., "image_base.jpeg").
+	 */
+	public static synchronized void register(File docDir, Properties renditions) {
+		if (renditions.isEmpty()) return;
+		File propsFile = new File(docDir, renditionsFilename);
+		try {
+			FileOutputStream fos = new FileOutputStream(propsFile, true);
+			try { renditions.store(fos, null); }
+			finally { fos.close(); }
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to store the renditions file in " + docDir, ex);
+		}
+		//Discard any renditions made from a previous version of the source.
+		if (renditionCache != null) {
+			for (Object name : renditions.keySet())
+				renditionCache.remove(new File(docDir, (String)name));
+		}
+	}
+
+	/**
+	 * Get the file containing a rendition, generating it if necessary.
+	 * The rendition is in use, and is not evicted, until the caller
+	 * calls the release method.
+	 * @param file the file that was requested in the document directory.
+	 * @return the file containing the rendition, or null if the requested
+	 * file is not a registered rendition or the rendition could not be created.
+	 */
+	public File getRendition(File file) {
+		final String key = getKey(file);
+		if (key == null) return null;
+
+		//See if we already have it.
+		final File cacheFile = new File(cacheDir, key);
+		synchronized (this) {
+			if (lru.get(key) != null) {
+				if (cacheFile.exists()) {
+					use(key);
+					return cacheFile;
+				}
+				currentBytes -= lru.remove(key).longValue();
+			}
+		}
+
+		//Create it, or wait for another thread that is already creating it.
+		final File docDir = file.getParentFile();
+		final String name = file.getName();
+		FutureTask<File> task = new FutureTask<File>(
+			new Callable<File>() {
+				public File call() {
+					return create(docDir, name, cacheFile);
+				}
+			});
+		FutureTask<File> existing = pending.putIfAbsent(key, task);
+		if (existing == null) {
+			try { task.run(); }
+			finally { pending.remove(key); }
+		}
+		else task = existing;
+		try {
+			File result = task.get();
+			if (result == null) return null;
+			synchronized (this) {
+				use(key);
+				add(key, result.length());
+			}
+			return result;
+		}
+		catch (Exception ex) { return null; }
+	}
+
+	/**
+	 * Release a rendition obtained from the getRendition method,
+	 * allowing it to be evicted.
+	 * @param rendition the file returned by getRendition.
+	 */
+	public synchronized void release(File rendition) {
+		String key = getKey(rendition, cacheDir);
+		if (key == null) return;
+		Integer count = inUse.remove(key);
+		if ((count != null) && (count.intValue() > 1))
+			inUse.put(key, new Integer(count.intValue() - 1));
+	}
+
+	/**
+	 * Remove a rendition from the cache.
+	 * @param file the file that was requested in the document directory.
+	 */
+	public synchronized void remove(File file) {
+		String key = getKey(file);
+		if (key == null) return;
+		Long size = lru.remove(key);
+		if (size != null) currentBytes -= size.longValue();
+		new File(cacheDir, key).delete();
+	}
+
+	/**
+	 * Get the number of bytes currently in the cache.
+	 * @return the number of bytes.
+	 */
+	public synchronized long getSize() {
+		return currentBytes;
+	}
+
+	/**
+	 * Get the number of renditions currently in the cache.
+	 * @return the number of renditions.
+	 */
+	public synchronized int getCount() {
+		return lru.size();
+	}
+
+	//Make the rendition into the cache.
+	private File create(File docDir, String name, File cacheFile) {
+		String spec = loadProperties(new File(docDir, renditionsFilename)).getProperty(name);
+		if (spec == null) return null;
+		String[] params = spec.split(",");
+		if (params.length != 4) return null;
+		File source = new File(docDir, params[0]);
+		if (!source.exists()) return null;
+		try {
+			MircImage image = new MircImage(source);
+			cacheFile.getParentFile().mkdirs();
+			File temp = new File(cacheFile.getParentFile(), cacheFile.getName() + ".partial");
+			if (image.saveAsJPEG(
+						temp,
+						StringUtil.getInt(params[1]),
+						StringUtil.getInt(params[2]),
+						StringUtil.getInt(params[3])) == null) {
+				temp.delete();
+				return null;
+			}
+			cacheFile.delete();
+			if (!temp.renameTo(cacheFile)) {
+				temp.delete();
+				return null;
+			}
+			return cacheFile;
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to create the rendition " + name + " in " + docDir, ex);
+			return null;
+		}
+	}
+
+	//Count a use of a rendition.
+	private void use(String key) {
+		Integer count = inUse.get(key);
+		inUse.put(key, new Integer((count != null) ? count.intValue() + 1 : 1));
+	}
+
+	//Add a rendition to the LRU list and evict the oldest
+	//renditions which are not in use if the cache is too big.
+	private synchronized void add(String key, long size) {
+		Long oldSize = lru.put(key, new Long(size));
+		if (oldSize != null) currentBytes -= oldSize.longValue();
+		currentBytes += size;
+		Iterator<Map.Entry<String,Long>> it = lru.entrySet().iterator();
+		while ((currentBytes > maxBytes) && it.hasNext()) {
+			Map.Entry<String,Long> entry = it.next();
+			if (entry.getKey().equals(key) || inUse.containsKey(entry.getKey())) continue;
+			new File(cacheDir, entry.getKey()).delete();
+			currentBytes -= entry.getValue().longValue();
+			it.remove();
+		}
+	}
+
+	//Get the cache key for a requested file. The key is
+	//the path of the file relative to the root directory.
+	private String getKey(File file) {
+		return getKey(file, root);
+	}
+
+	//Get the path of a file relative to a directory.
+	private static String getKey(File file, File root) {
+		String rootPath = root.getAbsolutePath();
+		String path = file.getAbsolutePath();
+		if (!path.startsWith(rootPath)) return null;
+		path = path.substring(rootPath.length());
+		while (path.startsWith(File.separator)) path = path.substring(1);
+		if (path.equals("") || path.indexOf("..") != -1) return null;
+		return path;
+	}
+
+	//Load the LRU list from the renditions on disk,
+	//oldest first, so the least recently created
+	//renditions are the first to be evicted.
+	private void load() {
+		LinkedList<File> files = new LinkedList<File>();
+		listFiles(cacheDir, files);
+		File[] list = files.toArray(new File[files.size()]);
+		Arrays.sort(list, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long diff = a.lastModified() - b.lastModified();
+				return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+			}
+		});
+		int rootLength = cacheDir.getAbsolutePath().length() + 1;
+		for (File file : list) {
+			String key = file.getAbsolutePath().substring(rootLength);
+			long size = file.length();
+			lru.put(key, new Long(size));
+			currentBytes += size;
+		}
+		logger.info("Rendition cache loaded: " + lru.size() + " renditions, " + currentBytes + " bytes");
+	}
+
+	private void listFiles(File dir, LinkedList<File> files) {
+		File[] list = dir.listFiles();
+		if (list == null) return;
+		for (File file : list) {
+			if (file.isDirectory()) listFiles(file, files);
+			else if (file.getName().endsWith(".partial")) file.delete();
+			else files.add(file);
+		}
+	}
+
+	private static Properties loadProperties(File file) {
+		Properties props = new Properties();
+		if (file.exists()) {
+			try {
+				FileInputStream fis = new FileInputStream(file);
+				props.load(fis);
+				fis.close();
+			}
+			catch (Exception ignore) { }
+		}
+		return props;
+	}
+
+}
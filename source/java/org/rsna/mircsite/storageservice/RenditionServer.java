@@ -0,0 +1,99 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.mircsite.storageservice;
+
+import java.io.*;
+import javax.servlet.*;
+import javax.servlet.http.*;
+import org.apache.log4j.Logger;
+import org.rsna.mircsite.util.*;
+
+/**
+ * The Rendition Server servlet. This servlet serves the JPEG renditions
+ * of the images in MIRCdocuments. It is mapped to *.jpeg, but a file
+ * which exists, or which is not in the documents directory, is forwarded
+ * to the container's default servlet, so static JPEGs are served as they
+ * would be without this servlet. If a rendition does not exist and lazy
+ * renditions are enabled, it is obtained from the RenditionCache, which
+ * creates it on first request. Renditions from the cache are copied to
+ * the response rather than handed to the connector's sendfile, so that
+ * the cache does not evict a file while it is still being sent.
+ * <p>
+ * This servlet responds to HTTP GET.
+ */
+public class RenditionServer extends HttpServlet {
+
+	static final long serialVersionUID = 1L;
+	static final Logger logger = Logger.getLogger(RenditionServer.class);
+
+	static final String defaultServlet = "default";
+
+	/**
+	 * The servlet method that responds to an HTTP GET.
+	 * @param req The HttpServletRequest provided by the servlet container.
+	 * @param res The HttpServletResponse provided by the servlet container.
+	 * @throws ServletException if the servlet cannot handle the request.
+	 */
+	public void doGet(
+			HttpServletRequest req,
+			HttpServletResponse res
+			) throws IOException, ServletException {
+
+		String requestPath = req.getServletPath();
+		String pathInfo = req.getPathInfo();
+		if (pathInfo != null) requestPath += pathInfo;
+		if (requestPath.startsWith("/"))
+			requestPath = requestPath.substring(1);
+
+		File file = new File(getServletContext().getRealPath(requestPath));
+		if (file.exists() || !requestPath.startsWith(StorageConfig.documentsDirectory + "/")) {
+			RequestDispatcher dispatcher = getServletContext().getNamedDispatcher(defaultServlet);
+			if (dispatcher != null) dispatcher.forward(req, res);
+			else ServletUtil.sendBinaryFileContents(
+					req, res, ContentType.getContentType(requestPath), file, false);
+			return;
+		}
+		file = getRendition(file);
+		if (file == null) {
+			res.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		try {
+			ServletUtil.sendBinaryFileContents(
+				req, res, ContentType.getContentType(requestPath), file, false, false);
+		}
+		finally { releaseRendition(file); }
+	}
+
+	/**
+	 * Get the file containing a rendition that does not exist
+	 * in its document directory, creating it if lazy renditions
+	 * are enabled. The caller must call releaseRendition when it
+	 * has finished with the file.
+	 * @param file the requested file in the document directory.
+	 * @return the file containing the rendition, or null if the
+	 * rendition is not available.
+	 */
+	public static File getRendition(File file) {
+		if (!StorageConfig.lazyRenditions()) return null;
+		RenditionCache cache = RenditionCache.getInstance();
+		if (cache == null) return null;
+		return cache.getRendition(file);
+	}
+
+	/**
+	 * Release a rendition obtained from getRendition,
+	 * allowing the RenditionCache to evict it.
+	 * @param rendition the file returned by getRendition.
+	 */
+	public static void releaseRendition(File rendition) {
+		RenditionCache cache = RenditionCache.getInstance();
+		if (cache != null) cache.release(rendition);
+	}
+
+}
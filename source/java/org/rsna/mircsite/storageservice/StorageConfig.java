@@ -74,6 +74,11 @@ public class StorageConfig {
 	public static String tomcatRoleName = null;
 	public static String dicomEnabled = null;
 	public static String tceEnabled = null;
+	public static String lazyRenditions = null;
+	public static String renditionCacheSize = null;
+	public static String pageCacheSize = null;
+	public static String maxZipExports = null;
+	public static String maxUnzipSize = null;
 
 	public static int 	 doctimeout = 0;
 	public static int 	 ddtimeout = 0;
@@ -166,6 +171,19 @@ public class StorageConfig {
 			//Get the tce service enable
 			tceEnabled = XmlUtil.getValueViaPath(xml,"storage/tce-service@enabled");
 
+			//Get the rendition parameters
+			lazyRenditions = XmlUtil.getValueViaPath(xml,"storage/renditions@lazy");
+			renditionCacheSize = XmlUtil.getValueViaPath(xml,"storage/renditions@cachesize");
+
+			//Get the page cache size
+			pageCacheSize = XmlUtil.getValueViaPath(xml,"storage/page-cache@size");
+
+			//Get the zip export parameters
+			maxZipExports = XmlUtil.getValueViaPath(xml,"storage/zip-export@maxthreads");
+
+			//Get the unzip parameters
+			maxUnzipSize = XmlUtil.getValueViaPath(xml,"storage/unzip@maxsize");
+
 			//Make the indexDocFile
 			indexDocFile = new File(servletContext.getRealPath(indexDoc));
 
@@ -640,4 +658,87 @@ public class StorageConfig {
 		return tceEnabled;
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Indicates whether JPEG renditions of images are to be created
+	 * when they are first requested rather than when the images are
+	 * inserted into MIRCdocuments.
+	 * @return true if the lazy attribute of the renditions element is "yes";
+	 * false otherwise.
+	 */
+	public static boolean lazyRenditions() {
+		if ((xml == null) || (lazyRenditions == null)) return false;
+		return lazyRenditions.equals("yes");
+	}
+
+	/**
+	 * Returns the lazy attribute of the renditions element
+	 * from the storage.xml file.
+	 * @return the lazy attribute ("yes" or "no"; "no" if missing).
+	 */
+	public static String getLazyRenditions() {
+		if ((xml == null) || (lazyRenditions == null)) return "no";
+		return lazyRenditions;
+	}
+
+	/**
+	 * Returns the cachesize attribute of the renditions element from the
+	 * storage.xml file. This is the maximum size in megabytes of the cache
+	 * of renditions created on demand. The default is 500 MB. Any value
+	 * less than 10 MB is replaced by 10 MB.
+	 * @return the maximum size of the rendition cache in megabytes.
+	 */
+	public static int getRenditionCacheSize() {
+		if ((xml == null) || (renditionCacheSize == null)
+				|| renditionCacheSize.trim().equals("")) return 500;
+		int size = StringUtil.getInt(renditionCacheSize.trim());
+		if (size < 10) size = 10;
+		return size;
+	}
+
+	/**
+	 * Returns the size attribute of the page-cache element from the
+	 * storage.xml file. This is the maximum size in megabytes of the
+	 * cache of MIRCdocument pages transformed by the XMLServer. The
+	 * default is 20 MB. A value of zero disables the cache.
+	 * @return the maximum size of the page cache in megabytes.
+	 */
+	public static int getPageCacheSize() {
+		if ((xml == null) || (pageCacheSize == null)
+				|| pageCacheSize.trim().equals("")) return 20;
+		int size = StringUtil.getInt(pageCacheSize.trim());
+		if (size < 0) size = 0;
+		return size;
+	}
+
+	/**
+	 * Returns the maxthreads attribute of the zip-export element from the
+	 * storage.xml file. This is the maximum number of zip exports which
+	 * the XMLServer can stream at once. The default is 4. Any value less
+	 * than 1 is replaced by 1.
+	 * @return the maximum number of concurrent zip exports.
+	 */
+	public static int getMaxZipExports() {
+		if ((xml == null) || (maxZipExports == null)
+				|| maxZipExports.trim().equals("")) return 4;
+		int max = StringUtil.getInt(maxZipExports.trim());
+		if (max < 1) max = 1;
+		return max;
+	}
+
+	/**
+	 * Returns the maxsize attribute of the unzip element from the
+	 * storage.xml file. This is the maximum total size in megabytes of
+	 * the files unpacked from a zip file received by the submit service
+	 * or the zip service. The default is 1000 MB. Any value less than
+	 * 10 MB is replaced by 10 MB.
+	 * @return the maximum unpacked size of a submission in megabytes.
+	 */
+	public static int getMaxUnzipSize() {
+		if ((xml == null) || (maxUnzipSize == null)
+				|| maxUnzipSize.trim().equals("")) return 1000;
+		int max = StringUtil.getInt(maxUnzipSize.trim());
+		if (max < 10) max = 10;
+		return max;
+	}
+
+}
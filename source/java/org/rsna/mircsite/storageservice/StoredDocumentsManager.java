@@ -16,15 +16,23 @@ import org.w3c.dom.Element;
 /**
  * The Thread that automatically removes documents from
  * the documents directory after they time out.
+ * <p>
+ * The candidates are obtained from the expiry schedule maintained
+ * by the MircIndex, so each check only touches the documents which
+ * have actually timed out.
  */
 public class StoredDocumentsManager extends Thread {
 
-	static final Logger logger = Logger.getLogger(DeletedDocumentsManager.class);
+	static final Logger logger = Logger.getLogger(StoredDocumentsManager.class);
 
 	File dir;
 	static long anHour = 60 * 60 * 1000;
 	static long aDay = 24 * anHour;
 
+	static long lastCheck = 0;
+	static int lastCount = 0;
+	static long totalCount = 0;
+
 	/**
 	 * Create a new StoredDocumentsManager to remove files
 	 * from the documents directory after they time out.
@@ -37,18 +45,29 @@ public class StoredDocumentsManager extends Thread {
 
 	/**
 	 * Start the thread. Check for timed out documents
-	 * once when the Thread starts and then every day.
+	 * once when the Thread starts and then every hour.
 	 */
 	public void run() {
 		try {
 			while (true) {
 				checkFiles();
-				sleep(aDay);
+				sleep(anHour);
 			}
 		}
 		catch (Exception ex) { }
 	}
 
+	/**
+	 * Get a one-line summary of the results of the checks.
+	 * @return the summary string.
+	 */
+	public static synchronized String getStatus() {
+		if (lastCheck == 0) return "not run";
+		return "last run " + StringUtil.getDateTime(lastCheck, " ")
+				+ "; " + lastCount + " removed; "
+				+ totalCount + " removed since startup";
+	}
+
 	//Remove timed out files.
 	private void checkFiles() {
 		long maxAge = StorageConfig.getDocTimeout() * aDay;
@@ -56,29 +75,47 @@ public class StoredDocumentsManager extends Thread {
 		long timeNow = System.currentTimeMillis();
 		long earliestAllowed = timeNow - maxAge;
 
-		MircIndexEntry[] docs = MircIndex.getInstance().query("");
-		for (MircIndexEntry doc : docs) {
-			String docPath = doc.md.getAttribute("filename").trim();
-			if (!docPath.equals("")) {
-				File docFile = new File(dir, docPath);
-				if (docFile.lastModified() < earliestAllowed) {
-					//Okay, delete this document.
-					File dirFile = docFile.getParentFile();
-
-					//Remove it from the index.
-					//It might not be in the index, but it doesn't hurt to try.
-					MircIndex.getInstance().removeDocument(docPath);
-
-					//Remove it from the input queue.
-					//Again, it might not be there, but it doesn't hurt to try.
-					InputQueue.deleteQueueEntry(docPath);
-
-					//Remove the document. Use the admin method that moves the
-					//entire document directory to the deleted-documents folder.
-					AdminService.removeDocument(dirFile);
-				}
+		MircIndex index = MircIndex.getInstance();
+		if (index == null) return;
+
+		//The document paths start with the name of the documents directory.
+		File root = dir.getParentFile();
+		int count = 0;
+		String[] docs = index.getDocumentsModifiedBefore(earliestAllowed);
+		for (String docPath : docs) {
+			File docFile = new File(root, docPath);
+			long lm = docFile.lastModified();
+			if (lm >= earliestAllowed) {
+				//The document has been changed since it was indexed.
+				index.setLastModified(docPath, lm);
+				continue;
+			}
+
+			//Remove it from the index.
+			index.removeDocument(docPath);
+
+			//Remove it from the input queue.
+			//It might not be there, but it doesn't hurt to try.
+			InputQueue.deleteQueueEntry(docPath);
+
+			//Remove the document. Use the admin method that moves the
+			//entire document directory to the deleted-documents folder.
+			//If the file no longer exists, the index entry was stale,
+			//and there is nothing else to do.
+			if (docFile.exists()) {
+				AdminService.removeDocument(docFile.getParentFile());
+				logger.info("Timed out document removed: " + docPath);
+				count++;
 			}
 		}
+		if (docs.length > 0) index.commit();
+		report(timeNow, count);
+	}
+
+	private static synchronized void report(long time, int count) {
+		lastCheck = time;
+		lastCount = count;
+		totalCount += count;
 	}
 
 }
@@ -7,19 +7,13 @@
 
 package org.rsna.mircsite.storageservice;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
-import java.util.Enumeration;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
-import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -29,9 +23,13 @@ import org.rsna.mircsite.util.FileUtil;
 import org.rsna.mircsite.util.StringUtil;
 import org.rsna.mircsite.util.TypeChecker;
 import org.rsna.mircsite.util.XmlUtil;
+import org.rsna.mircsite.util.ZipUnpacker;
 import org.w3c.dom.Document;
 
-import com.oreilly.servlet.MultipartRequest;
+import com.oreilly.servlet.multipart.FilePart;
+import com.oreilly.servlet.multipart.MultipartParser;
+import com.oreilly.servlet.multipart.ParamPart;
+import com.oreilly.servlet.multipart.Part;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -168,35 +166,44 @@ public class SubmitService extends HttpServlet {
 			return;
 		}
 
-		//Now get the posted file and the path parameter, if present
-		File file;
-		String path = null;
-		if (contentType.indexOf("multipart/form-data") >= 0 ) {
-			MultipartRequest multipartRequest = new MultipartRequest(req, dir, maxsize, "UTF-8");
-			file = getMultipartFormFile(multipartRequest);
-			path = multipartRequest.getParameter("path");
+		//Now receive the posted zip file, unpacking it as it arrives,
+		//and get the path parameter, if present.
+		Unpacker unpacker = new Unpacker(dirFile, subfolders, maxsize);
+		String path = req.getParameter("path");
+		try {
+			if (contentType.indexOf("multipart/form-data") >= 0 ) {
+				MultipartParser parser = new MultipartParser(req, maxsize, true, true, "UTF-8");
+				Part part;
+				while ((part = parser.readNextPart()) != null) {
+					if (part.isParam() && part.getName().equals("path")) {
+						path = ((ParamPart)part).getStringValue();
+					}
+					else if (part.isFile() && !unpacker.received) {
+						FilePart filePart = (FilePart)part;
+						String filename = filePart.getFileName();
+						if (filename != null) unpacker.unpack(filename, filePart.getInputStream());
+					}
+				}
+			}
+			else unpacker.unpack(null, req.getInputStream());
 		}
-		else {
-			file = getPostedFile(req,maxsize,dir);
-			path = req.getParameter("path");
+		catch (Exception ex) {
+			logger.debug("Unable to unpack a submission.", ex);
+			response += "<p>There was a problem unpacking the posted file.</p>"
+					 +  deleteResponse(FileUtil.deleteAll(dirFile));
+			finish(req, res, response, sitename, suppress);
+			return;
 		}
 		if (path != null) path = path.trim();
 
 		//See what we got
-		if (file == null) {
+		if (!unpacker.received) {
 			response += "<p>It appears that no file was posted.</p>";
 			response += deleteResponse(FileUtil.deleteAll(dirFile));
 			finish(req, res, response, sitename, suppress);
 			return;
 		}
-		File mainFile = null;
-		try { mainFile = unpackZipFile(file, subfolders); }
-		catch (Exception ex) {
-			response += "<p>There was a problem unpacking the posted file.</p>"
-					 +  deleteResponse(FileUtil.deleteAll(dirFile));
-			finish(req, res, response, sitename, suppress);
-			return;
-		}
+		File mainFile = unpacker.xmlFile;
 		if (mainFile == null) {
 			response += "<p>The zip file was unpacked successfully.</p>"
 					 +  "<p>It did not contain a MIRCdocument file to index.</p>"
@@ -211,7 +218,6 @@ public class SubmitService extends HttpServlet {
 			//this is the path to the XML file of the MIRCdocument to
 			//be updated. If path is null or empty, then just make a
 			//new document.
-			file.delete(); //delete the zip file
 			String relPath = reldir + "/" + mainFile.getName();
 
 			boolean isDocumentUpdate = (path != null)  && !path.equals("");
@@ -349,40 +355,6 @@ public class SubmitService extends HttpServlet {
 		}
 	}
 
-	//Receive a multipartform and get the first file it contains.
-	//Note: since browsers do not send more than one file in a multipartform submission,
-	//only the first file is processed. It is assumed to be a zip file containing the
-	//entire submission.
-	private File getMultipartFormFile(MultipartRequest multipartRequest)
-			throws IOException {
-		Enumeration files = multipartRequest.getFileNames();
-		File file = null;
-		if (files.hasMoreElements()) {
-			String name = (String)files.nextElement();
-			file = multipartRequest.getFile(name);
-		}
-		return file;
-	}
-
-	//Receive a file sent via HTTP as content type application/x-zip-compressed.
-	//Note: since an empty directory has just been created for the document, it is not necessary
-	//to protect against the temp file name colliding with an existing file.
-	private File getPostedFile(HttpServletRequest req, int maxsize, String dir)
-			throws IOException {
-		File file = new File(dir + "/tempMIRCatSubmission.zip");
-		try {
-			ServletInputStream sis = req.getInputStream();
-			FileOutputStream fos = new FileOutputStream(file);
-			byte[] b = new byte[10000];
-			int len;
-			while ((len=sis.read(b,0,b.length)) >= 0) fos.write(b,0,len);
-			fos.flush();
-			fos.close();
-		}
-		catch (Exception e) { file = null; }
-		return file;
-	}
-
 	//Produce a string for the submission response page indicating whether the
 	//submission could be deleted after processing.
 	private String deleteResponse(boolean b) {
@@ -390,68 +362,70 @@ public class SubmitService extends HttpServlet {
 		return "<p>There was a problem deleting the submission.</p>";
 	}
 
-	//Unpack the submitted zip file.
+	//Unpack a submitted zip file from a stream as it arrives.
 	//A MIRCdocument and its local references are stored in their own directory.
 	//If the subfolders parameter is true, path information is ignored. If
 	//the parameter is false, zip files containing path information are rejected.
+	//Entries whose types are not allowed are discarded without being written,
+	//and each XML file is checked as soon as it has been stored. The first
+	//MIRCdocument found is the main file of the submission.
 	//
 	//Note that with the advent of research datasets, which are created by template elements
 	//in the trial/template.xml file in response to the receipt of DICOM objects by the
 	//DICOM service, some document directories may contain "phi" and "no-phi" subdirectories.
 	//These subdirectories are not exported when documents are exported, so the zip files
 	//still meet the requirements of the submit service. If we decide to include the
-	//research datasets in exported documents, then we have to change this function to
+	//research datasets in exported documents, then we have to change this class to
 	//allow the datasets to be unpacked and stored in the directory with the MIRCdocument.
-	private File unpackZipFile(File file, boolean subfolders) throws Exception {
-		if (!file.exists()) return null;
-		String path = file.getAbsolutePath();
-		String p = path.toLowerCase();
-		if (!p.endsWith(".zip") && !p.endsWith(".jar") && !p.endsWith(".war"))
-			throw new Exception("The file was not a zip, jar, or war file.");
-		path = path.substring(0,path.lastIndexOf(File.separatorChar)+1);
+	class Unpacker implements ZipUnpacker.Handler {
+		File dir;
+		boolean subfolders;
+		long maxsize;
+		TypeChecker checker;
+		boolean received = false;
 		File xmlFile = null;
-		TypeChecker checker = new TypeChecker();
-		ZipFile zipFile = new ZipFile(file);
-		Enumeration zipEntries = zipFile.entries();
-		while (zipEntries.hasMoreElements()) {
-			ZipEntry entry = (ZipEntry)zipEntries.nextElement();
-			String name = entry.getName().replace("\\", "/");
-			if (entry.isDirectory() || ((name.indexOf('/') >= 0) && !subfolders)) {
-				if (!subfolders) {
-					zipFile.close();
-					throw new Exception("The zip file contains a directory.");
-				}
+
+		public Unpacker(File dir, boolean subfolders, long maxsize) {
+			this.dir = dir;
+			this.subfolders = subfolders;
+			this.maxsize = maxsize;
+			checker = new TypeChecker();
+		}
+
+		public void unpack(String filename, InputStream in) throws Exception {
+			received = true;
+			if (filename != null) {
+				String f = filename.toLowerCase();
+				if (!f.endsWith(".zip") && !f.endsWith(".jar") && !f.endsWith(".war"))
+					throw new Exception("The file was not a zip, jar, or war file.");
 			}
-			else {
-				//Eliminate the path information.
-				name = name.substring(name.lastIndexOf("/")+1);
-				//Make a File to store the entry;
-				File outFile = new File(path + name);
-				// Only accept legal files types
-				if (checker.isFileAllowed(outFile)) {
-					BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(outFile));
-					BufferedInputStream in = new BufferedInputStream(zipFile.getInputStream(entry));
-					int size = 1024;
-					int n = 0;
-					byte[] b = new byte[size];
-					while ((n = in.read(b,0,size)) != -1) out.write(b,0,n);
-					in.close();
-					out.close();
-					if (name.toLowerCase().endsWith(".xml")) {
-						String rootElementName = XmlUtil.getDocumentElementName(path + name);
-						if (rootElementName == null) {
-							zipFile.close();
-							throw new Exception("The zip file contains an XML file that does not parse.");
-						}
-						if (rootElementName.equals("MIRCdocument") && (xmlFile == null)) {
-							xmlFile = checkFilename(path,name);
-						}
-					}
+			long maxUnzipSize = (long)StorageConfig.getMaxUnzipSize() * 1024 * 1024;
+			new ZipUnpacker(maxsize, maxUnzipSize).unpack(in, this);
+		}
+
+		public File getFile(String path, boolean isDirectory) throws Exception {
+			if (isDirectory || (path.indexOf('/') >= 0)) {
+				if (!subfolders) throw new Exception("The zip file contains a directory.");
+				if (isDirectory) return null;
+			}
+			//Eliminate the path information.
+			String name = path.substring(path.lastIndexOf("/")+1);
+			File file = new File(dir, name);
+			//Only accept legal files types
+			return checker.isFileAllowed(file) ? file : null;
+		}
+
+		public void entryStored(File file) throws Exception {
+			String name = file.getName();
+			if (name.toLowerCase().endsWith(".xml")) {
+				String rootElementName = XmlUtil.getDocumentElementName(file);
+				if (rootElementName == null)
+					throw new Exception("The zip file contains an XML file that does not parse.");
+				if (rootElementName.equals("MIRCdocument") && (xmlFile == null)) {
+					xmlFile = checkFilename(dir.getAbsolutePath(), name);
 				}
 			}
 		}
-		zipFile.close();
-		return xmlFile;
 	}
 
 	//Check a filename to see if it contains characters that would
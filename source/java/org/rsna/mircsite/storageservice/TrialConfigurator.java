@@ -102,6 +102,7 @@ public class TrialConfigurator extends HttpServlet {
 		String[] dicomExportDir = getArray(req,"dxdir");
 		String httpImportAnonymize = req.getParameter("hmanon");
 		String[] httpImportIP = getArray(req,"hmip");
+		String httpImportDuplicateWindow = req.getParameter("hmdup");
 		String[] httpExportURL = getArray(req,"hxurl");
 		String[] httpExportDir = getArray(req,"hxdir");
 		String databaseExportMode = req.getParameter("dbemode");
@@ -142,6 +143,7 @@ public class TrialConfigurator extends HttpServlet {
 		xml += "      <preprocessor-class-name>" + preprocessorClassName + "</preprocessor-class-name>\n";
 		xml += "    </preprocessor>\n\n";
 		xml += "    <anonymize>" + httpImportAnonymize + "</anonymize>\n";
+		xml += "    <duplicate-window>" + httpImportDuplicateWindow + "</duplicate-window>\n";
 		for (int i=0; i<httpImportIP.length; i++) {
 			if (!httpImportIP[i].equals("")) {
 				xml += "    <site>" + httpImportIP[i] + "</site>\n";
@@ -291,6 +293,7 @@ public class TrialConfigurator extends HttpServlet {
 		table += makeRow2("Preprocessor enabled","ppenb",TrialConfig.getPreprocessorEnabled(),yesNo);
 		table += makeRow2("Preprocessor class name","ppclass",TrialConfig.getPreprocessorClassName(),300);
 		table += makeRow2("Anonymizer enabled","hmanon",TrialConfig.getHttpImportAnonymize(),yesNo);
+		table += makeRow2("Duplicate window (hours)","hmdup",""+TrialConfig.getHttpImportDuplicateWindow(),300);
 		table += "</table>\n";
 		table += "<table border=\"1\">\n";
 		table += "<thead><tr><th>IP Address<br>[192.168.0.99] or *</th></tr></thead>\n";
@@ -10,7 +10,6 @@ package org.rsna.mircsite.storageservice;
 import java.io.*;
 import java.net.*;
 import java.util.*;
-import java.util.zip.*;
 import javax.servlet.*;
 import javax.servlet.http.*;
 import org.apache.log4j.Logger;
@@ -58,6 +57,12 @@ public class XMLServer extends HttpServlet {
 	 * If the file is a MIRCdocument and the document indicates that it
 	 * contains PHI, it logs the access as a PHI access.
 	 * <p>
+	 * Transformed MIRCdocument pages are kept in the PageCache and sent
+	 * with an ETag computed from the document, the XSL file, and the
+	 * transformation parameters, including the user's rights. If the
+	 * browser already has the page for this user, the response is 304
+	 * (Not Modified).
+	 * <p>
 	 * If called with a query string of ?dicom for a file whose name ends in "dcm",
 	 * it returns a dump of the DICOM file's dataset formatted into an HTML page.
 	 * <p>
@@ -217,6 +222,7 @@ public class XMLServer extends HttpServlet {
 		if (!requestPathLC.endsWith(".xml")) {
 			String contentType = ContentType.getContentType(requestPath);
 			boolean result = ServletUtil.sendBinaryFileContents(
+				req,
 				res,
 				contentType,
 				file,
@@ -275,44 +281,67 @@ public class XMLServer extends HttpServlet {
 				if ((extParameter != null) && !extParameter.trim().equals(""))
 					extension = "." + extParameter.trim();
 				String zipFilename = getZipFilename(requestPath,extension);
-				File zipFile = new File(getServletContext().getRealPath(requestDirectory + zipFilename));
-				String zipResult = "";
 				//See what kind of zip this is.
 				zipParameter = zipParameter.trim();
+				String[] filenames = null;
+				File dir = null;
 				if (zipParameter.equals("")) {
 					//This is a zip of the case.
 					//First insert the path attribute.
 					setPathAttribute(xmlDocument,requestPath,file);
-					//Now zip the case.
-					String[] filenames = getFilenames(xmlDocument, requestFilename);
-					zipResult = zipfiles(filenames ,getServletContext(), requestDirectory, zipFilename);
+					//Now get the files to zip.
+					filenames = getFilenames(xmlDocument, requestFilename);
 				}
 				else {
 					//This is a zip of a (dataset) directory.
-					File dir = new File(getServletContext().getRealPath(requestDirectory + zipParameter));
+					dir = new File(getServletContext().getRealPath(requestDirectory + zipParameter));
 					if (!dir.exists()) {
 						res.sendError(res.SC_NOT_FOUND);
 						return;
 					}
-					zipResult = zipdirectory(dir,zipFile);
 				}
-				if (zipResult.equals("OK")) {
+				//Wait for an export slot.
+				if (!ZipExport.acquire()) {
+					res.setHeader("Retry-After","30");
+					res.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+					return;
+				}
+				try {
 					if (myrsnaParameter == null) {
-						ServletUtil.sendBinaryFileContents(res,"application/zip",zipFile,true);
+						//Stream the zip file directly to the browser.
+						res.setContentType("application/zip");
+						res.addHeader("Content-Disposition","attachment; filename=\"" + zipFilename + "\"");
+						OutputStream out = res.getOutputStream();
+						writeZip(file.getParentFile(), filenames, dir, out);
+						out.flush();
 					}
 					else {
-						if (exportToMyRsna(req.getRemoteUser(), /*getTitle(xmlDocument)*/ null, zipFile)) {
-							ServletUtil.sendText(res, "text/plain", "The zip file was stored successfully.", false);
-						}
-						else {
-							ServletUtil.sendText(res, "text/plain", "The zip file could not be stored.", false);
+						//MyRSNA needs a file to post, so make one in a temporary directory.
+						File tempDir = File.createTempFile("zip-", "");
+						tempDir.delete();
+						tempDir.mkdirs();
+						File zipFile = new File(tempDir, zipFilename);
+						try {
+							FileOutputStream fout = new FileOutputStream(zipFile);
+							try { writeZip(file.getParentFile(), filenames, dir, fout); }
+							finally { fout.close(); }
+							if (exportToMyRsna(req.getRemoteUser(), /*getTitle(xmlDocument)*/ null, zipFile)) {
+								ServletUtil.sendText(res, "text/plain", "The zip file was stored successfully.", false);
+							}
+							else {
+								ServletUtil.sendText(res, "text/plain", "The zip file could not be stored.", false);
+							}
 						}
+						finally { FileUtil.deleteAll(tempDir); }
 					}
 					//Make the access log entry
 					if (!zipParameter.equals("no-phi")) AccessLog.makeAccessLogEntry(req,xmlDocument);
 				}
-				else returnExceptionMessage(res,"Zip Exception",zipResult);
-				zipFile.delete();
+				catch (Exception ex) {
+					if (!res.isCommitted()) returnExceptionMessage(res,"Zip Exception","Error: " + ex.getMessage());
+					else logger.warn("Zip export failed: " + requestPath, ex);
+				}
+				finally { ZipExport.release(); }
 			}
 			else ServletUtil.authenticate(req,res,redirectPath);	//Export is not authorized.
 			return;
@@ -330,13 +359,9 @@ public class XMLServer extends HttpServlet {
 				File[] files = dir.listFiles();
 					for (int i=0; i<files.length; i++) {
 						if (DicomObject.hasTypicalDicomFilename(files[i].getName())) {
-							String name = files[i].getName();
-							name = name + ".qe";
-							File qeFile = new File(dir,name);
 							for (int k=0; k<exportDirs.length; k++) {
-								ExportQueueElement eqe = new ExportQueueElement(qeFile,files[i]);
 								try {
-									eqe.queue(exportDirs[k]);
+									ExportQueue.get(exportDirs[k]).add(files[i]);
 									count++;
 								}
 								catch (Exception ignore) { }
@@ -474,19 +499,28 @@ public class XMLServer extends HttpServlet {
 			"database-export-url",databaseexporturl
 		};
 
-		//Now we're ready; let's do it.
-		String page = "";
-		try { page = XmlUtil.getTransformedText(xmlDocument,xslFile,params); }
-		catch (Exception e) {
-			//We got an error during the transformation.
-			//Send the error message back as html.
-			returnExceptionMessage(res,"Transform Exception",e.getMessage());
-			return;
+		//Now we're ready; see if the page is in the cache.
+		String pageKey = PageCache.getKey(file, xslFile, params);
+		PageCache.Page cachedPage = PageCache.get(pageKey);
+		if (cachedPage == null) {
+			//It isn't; let's do it.
+			String page = "";
+			try { page = XmlUtil.getTransformedText(xmlDocument,xslFile,params); }
+			catch (Exception e) {
+				//We got an error during the transformation.
+				//Send the error message back as html.
+				returnExceptionMessage(res,"Transform Exception",e.getMessage());
+				return;
+			}
+			//The transformation succeeded; cache the page with an appropriate content type.
+			cachedPage = PageCache.put(
+							pageKey,
+							page,
+							getContentType(page) + "; charset=\"UTF-8\"",
+							Math.max(file.lastModified(), xslFile.lastModified()));
 		}
-		//The transformation succeeded, return the page with an appropriate content type.
-		res.setContentType(getContentType(page) + "; charset=\"UTF-8\"");
-		PrintWriter out = res.getWriter();
-		out.print(page);
+		//Return the page, or a 304 if the browser already has it.
+		cachedPage.send(req, res);
 		AccessLog.makeAccessLogEntry(req, xmlDocument);
 		DocAccessLog.makeAccessLogEntry(req);
 	}
@@ -572,8 +606,7 @@ public class XMLServer extends HttpServlet {
 				try {
 					File file = new File(dir,name);
 					if (file.exists()) {
-						ExportQueueElement eqe = ExportQueueElement.createEQE(file);
-						eqe.queue(exportDir);
+						ExportQueue.get(exportDir).add(file);
 						count++;
 					}
 				}
@@ -624,116 +657,12 @@ public class XMLServer extends HttpServlet {
 		}
 	}
 
-	//Zip a collection of files.
-	//All the input files and the output zip file are in the same directory.
-	private static synchronized String zipfiles(
-				String[] filelist,
-				ServletContext sc,
-				String directory,
-				String zipfilename) {
-
-		File f = new File(sc.getRealPath(directory + zipfilename));
-
-		try {
-
-			//Get the various streams and buffers
-			FileOutputStream fout = new FileOutputStream(f);
-			ZipOutputStream zout = new ZipOutputStream(fout);
-			File in;
-			FileInputStream fin;
-			ZipEntry ze;
-			byte[] buffer = new byte[10000];
-			int bytesread;
-
-			//Sort the list so we can more easily find duplicates
-			Arrays.sort(filelist);
-
-			//Add all the files to the zip file
-			for (int i=0; i < filelist.length; i++) {
-
-				if ((i==0) || !filelist[i].equals(filelist[i-1])) {
-
-					//Not a duplicate of a previously added file, try to add it
-					ze = new ZipEntry(filelist[i]);
-					in = new File (sc.getRealPath(directory + filelist[i]));
-					if (in.exists()) {
-
-						//The file exists - oh happy day
-						fin = new FileInputStream(in);
-						zout.putNextEntry(ze);
-						while ((bytesread = fin.read(buffer)) > 0) {
-							zout.write(buffer,0,bytesread);
-						}
-						zout.closeEntry();
-						fin.close();
-					}
-				}
-			}
-			zout.close();
-		}
-
-		catch (Exception ex) {
-			//No joy - return the exception message
-			return "Error: " + ex.getMessage();
-		}
-
-		//Everything worked, return OK
-		return "OK";
-	}
-
-	//Zip a directory and its subdirectories.
-	private static synchronized String zipdirectory(File dir, File zipFile) {
-		try {
-			//Get the parent and find out how long it is
-			File parent = dir.getParentFile();
-			int rootLength = parent.getAbsolutePath().length() + 1;
-
-			//Get the various streams and buffers
-			FileOutputStream fout = new FileOutputStream(zipFile);
-			ZipOutputStream zout = new ZipOutputStream(fout);
-			zipdirectory(zout,dir,rootLength);
-			zout.close();
-		}
-		catch (Exception ex) {
-			//No joy - return the exception message
-			return "Error: " + ex.getMessage();
-		}
-		//Everything worked, return OK
-		return "OK";
-	}
-
-	//Zip a directory and its subdirectories
-	//into a ZipOutputStream, setting the root of the zip package to be the parent
-	//directory of the originally requested directory.
-	private static synchronized void zipdirectory(ZipOutputStream zout, File dir, int rootLength)
-												throws Exception {
-		if (dir.isDirectory()) {
-			File[] files = dir.listFiles();
-			for (int i=0; i<files.length; i++) {
-				if (files[i].isDirectory()) zipdirectory(zout,files[i],rootLength);
-				else zipfile(zout,files[i],rootLength);
-			}
-		}
-	}
-
-	//Zip a file into a ZipOutputStream, setting the
-	//root of the zip package to be the parent directory
-	//of the originally requested directory.
-	private static synchronized void zipfile(ZipOutputStream zout, File file, int rootLength)
-												throws Exception {
-		FileInputStream fin;
-		ZipEntry ze;
-		byte[] buffer = new byte[10000];
-		int bytesread;
-		String entryname = file.getAbsolutePath().substring(rootLength);
-		ze = new ZipEntry(entryname);
-		if (file.exists()) {
-			fin = new FileInputStream(file);
-			zout.putNextEntry(ze);
-			while ((bytesread = fin.read(buffer)) > 0) zout.write(buffer,0,bytesread);
-			zout.closeEntry();
-			fin.close();
-		}
+	//Write a zip file to a stream. If filenames is not null, zip the
+	//named files in docDir; otherwise, zip the dir directory tree.
+	private void writeZip(File docDir, String[] filenames, File dir, OutputStream out)
+													throws IOException {
+		if (filenames != null) ZipExport.zipFiles(docDir, filenames, out);
+		else ZipExport.zipDirectory(dir, out);
 	}
 
     /**
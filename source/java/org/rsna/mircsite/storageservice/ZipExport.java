@@ -0,0 +1,228 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.mircsite.storageservice;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+import org.apache.log4j.Logger;
+
+/**
+ * Encapsulates static methods for streaming zip exports of MIRCdocuments
+ * and their directories to an OutputStream. Files which are already
+ * compressed (JPEG, PNG, GIF, zip files, and DICOM objects with compressed
+ * transfer syntaxes) are stored rather than deflated.
+ * <p>
+ * The number of exports which can run at once is limited by the
+ * maxthreads attribute of the zip-export element in storage.xml.
+ */
+public class ZipExport {
+
+	static final Logger logger = Logger.getLogger(ZipExport.class);
+
+	static final int bufferSize = 64 * 1024;
+	static final long waitTime = 10;
+
+	static final String[] storedExtensions = {
+		".jpeg", ".jpg", ".png", ".gif", ".zip", ".gz", ".jar", ".mp3", ".mp4", ".avi", ".mov"
+	};
+
+	private static Semaphore semaphore = null;
+
+	/**
+	 * Wait for an export slot to become available.
+	 * @return true if a slot was obtained; false if none became
+	 * available in a reasonable time.
+	 */
+	public static boolean acquire() {
+		try { return getSemaphore().tryAcquire(waitTime, TimeUnit.SECONDS); }
+		catch (InterruptedException ex) { return false; }
+	}
+
+	/**
+	 * Release an export slot obtained by the acquire method.
+	 */
+	public static void release() {
+		getSemaphore().release();
+	}
+
+	//Get the semaphore, creating it if necessary.
+	private static synchronized Semaphore getSemaphore() {
+		if (semaphore == null) {
+			semaphore = new Semaphore(StorageConfig.getMaxZipExports(), true);
+		}
+		return semaphore;
+	}
+
+	/**
+	 * Zip a list of files from a directory into a stream. Duplicate
+	 * names are zipped once. Files which do not exist in the directory
+	 * are obtained from the RenditionCache if possible; otherwise they
+	 * are skipped.
+	 * @param dir the directory containing the files.
+	 * @param filenames the names of the files.
+	 * @param out the stream to receive the zip file.
+	 * @throws IOException if the zip file cannot be written.
+	 */
+	public static void zipFiles(File dir, String[] filenames, OutputStream out) throws IOException {
+		ZipOutputStream zout = new ZipOutputStream(new BufferedOutputStream(out, bufferSize));
+		byte[] buffer = new byte[bufferSize];
+
+		//Sort the list so we can more easily find duplicates
+		String[] list = filenames.clone();
+		Arrays.sort(list);
+		for (int i=0; i<list.length; i++) {
+			if ((i == 0) || !list[i].equals(list[i-1])) {
+				File file = new File(dir, list[i]);
+				if (file.exists()) zipFile(zout, file, list[i], buffer);
+				else {
+					//It might be a rendition that has not been created yet.
+					File rendition = RenditionServer.getRendition(file);
+					if (rendition != null) {
+						try { zipFile(zout, rendition, list[i], buffer); }
+						finally { RenditionServer.releaseRendition(rendition); }
+					}
+				}
+			}
+		}
+		zout.finish();
+		zout.flush();
+	}
+
+	/**
+	 * Zip a directory and its subdirectories into a stream, setting the
+	 * root of the zip package to be the parent of the directory.
+	 * @param dir the directory to zip.
+	 * @param out the stream to receive the zip file.
+	 * @throws IOException if the zip file cannot be written.
+	 */
+	public static void zipDirectory(File dir, OutputStream out) throws IOException {
+		ZipOutputStream zout = new ZipOutputStream(new BufferedOutputStream(out, bufferSize));
+		byte[] buffer = new byte[bufferSize];
+		int rootLength = dir.getParentFile().getAbsolutePath().length() + 1;
+		zipDirectory(zout, dir, rootLength, buffer);
+		zout.finish();
+		zout.flush();
+	}
+
+	private static void zipDirectory(ZipOutputStream zout, File dir, int rootLength, byte[] buffer)
+												throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null) return;
+		for (int i=0; i<files.length; i++) {
+			if (files[i].isDirectory()) zipDirectory(zout, files[i], rootLength, buffer);
+			else zipFile(zout, files[i], files[i].getAbsolutePath().substring(rootLength), buffer);
+		}
+	}
+
+	//Add one file to a ZipOutputStream.
+	private static void zipFile(ZipOutputStream zout, File file, String entryname, byte[] buffer)
+												throws IOException {
+		ZipEntry ze = new ZipEntry(entryname.replace(File.separatorChar, '/'));
+		ze.setTime(file.lastModified());
+		if (isCompressed(file)) {
+			//STORED entries require the size and CRC before the data.
+			ze.setMethod(ZipEntry.STORED);
+			ze.setSize(file.length());
+			ze.setCompressedSize(file.length());
+			ze.setCrc(getCRC(file, buffer));
+		}
+		FileInputStream fin = new FileInputStream(file);
+		try {
+			zout.putNextEntry(ze);
+			int bytesread;
+			while ((bytesread = fin.read(buffer)) > 0) zout.write(buffer, 0, bytesread);
+			zout.closeEntry();
+		}
+		finally { fin.close(); }
+	}
+
+	private static long getCRC(File file, byte[] buffer) throws IOException {
+		CRC32 crc = new CRC32();
+		FileInputStream fin = new FileInputStream(file);
+		try {
+			int bytesread;
+			while ((bytesread = fin.read(buffer)) > 0) crc.update(buffer, 0, bytesread);
+		}
+		finally { fin.close(); }
+		return crc.getValue();
+	}
+
+	/**
+	 * Determine whether a file is already compressed, so that
+	 * deflating it would waste CPU time for little benefit.
+	 * @param file the file.
+	 * @return true if the file is known to be compressed; false otherwise.
+	 */
+	public static boolean isCompressed(File file) {
+		String name = file.getName().toLowerCase();
+		for (int i=0; i<storedExtensions.length; i++) {
+			if (name.endsWith(storedExtensions[i])) return true;
+		}
+		if (name.endsWith(".dcm")) {
+			String tsUID = getTransferSyntaxUID(file);
+			return (tsUID != null)
+					&& (tsUID.startsWith("1.2.840.10008.1.2.4.")		//JPEG, JPEG-LS, JPEG 2000, MPEG
+						|| tsUID.equals("1.2.840.10008.1.2.5")			//RLE
+						|| tsUID.equals("1.2.840.10008.1.2.1.99"));		//Deflated
+		}
+		return false;
+	}
+
+	//Get the transfer syntax UID from the file meta information of a
+	//DICOM file, reading only the preamble and group 2 elements, which
+	//are always encoded in explicit VR little endian.
+	static String getTransferSyntaxUID(File file) {
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 2048));
+			byte[] preamble = new byte[132];
+			in.readFully(preamble);
+			if ((preamble[128] != 'D') || (preamble[129] != 'I')
+					|| (preamble[130] != 'C') || (preamble[131] != 'M')) return null;
+			while (true) {
+				int group = readShort(in);
+				int element = readShort(in);
+				if (group != 2) return null;
+				String vr = new String(new byte[] { in.readByte(), in.readByte() }, "US-ASCII");
+				long length;
+				if (vr.equals("OB") || vr.equals("OW") || vr.equals("OF")
+						|| vr.equals("SQ") || vr.equals("UT") || vr.equals("UN")) {
+					in.skipBytes(2);
+					length = readInt(in);
+				}
+				else length = readShort(in);
+				if ((length < 0) || (length > 1024)) return null;
+				byte[] value = new byte[(int)length];
+				in.readFully(value);
+				if (element == 0x0010) return new String(value, "US-ASCII").trim();
+			}
+		}
+		catch (Exception ex) { return null; }
+		finally {
+			if (in != null) {
+				try { in.close(); }
+				catch (Exception ignore) { }
+			}
+		}
+	}
+
+	private static int readShort(DataInputStream in) throws IOException {
+		int b0 = in.readUnsignedByte();
+		int b1 = in.readUnsignedByte();
+		return (b1 << 8) | b0;
+	}
+
+	private static long readInt(DataInputStream in) throws IOException {
+		long s0 = readShort(in);
+		long s1 = readShort(in);
+		return (s1 << 16) | s0;
+	}
+
+}
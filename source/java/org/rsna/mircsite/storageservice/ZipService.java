@@ -8,11 +8,9 @@
 package org.rsna.mircsite.storageservice;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.Enumeration;
+import java.util.Hashtable;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -22,10 +20,14 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.log4j.Logger;
 import org.rsna.mircsite.util.FileUtil;
 import org.rsna.mircsite.util.HtmlUtil;
+import org.rsna.mircsite.util.ServletUtil;
 import org.rsna.mircsite.util.StringUtil;
 import org.rsna.mircsite.util.XmlUtil;
 
-import com.oreilly.servlet.MultipartRequest;
+import com.oreilly.servlet.multipart.FilePart;
+import com.oreilly.servlet.multipart.MultipartParser;
+import com.oreilly.servlet.multipart.ParamPart;
+import com.oreilly.servlet.multipart.Part;
 
 /**
  * The Zip Service of the MIRC Storage Service.
@@ -36,6 +38,11 @@ import com.oreilly.servlet.MultipartRequest;
  * <p>
  * The servlet responds to both HTTP GET and POST.
  * <p>
+ * A GET with a status query parameter returns an XML document describing
+ * the progress of the user's recent submissions (or all recent submissions
+ * if the user is an administrator). If the parameter has a value, only the
+ * submission with that ID is described.
+ * <p>
  * See the <a href="http://mirc.rsna.org/mircdocumentation">
  * MIRC documentation</a> for more more information.
  */
@@ -45,6 +52,20 @@ public class ZipService extends HttpServlet {
 
 	static final Logger logger = Logger.getLogger(ZipService.class);
 
+	//The parameters of a submission which is not multipart/form-data.
+	static final String[] paramNames = {
+		"name", "affiliation", "contact", "username", "read", "update", "export",
+		"textext", "skipext", "skipprefix", "overwrite", "anonymize"
+	};
+
+	/**
+	 * Stop the file workers shared by the submissions
+	 * when the servlet is taken out of service.
+	 */
+	public void destroy() {
+		ZipThread.shutdown();
+	}
+
 	/**
 	 * The servlet method that responds to an HTTP GET.
 	 * <p>
@@ -61,6 +82,18 @@ public class ZipService extends HttpServlet {
 		HttpServletResponse res
 		) throws IOException, ServletException {
 
+		//Handle requests for the status of submissions.
+		String status = req.getParameter("status");
+		if (status != null) {
+			status = status.trim();
+			String username = req.getRemoteUser();
+			if (req.isUserInRole(StorageConfig.getAdminRoleName())) username = null;
+			else if (username == null) username = "";
+			String id = status.equals("") ? null : status;
+			ServletUtil.sendText(res, "text/xml", ZipThread.getStatusXML(username, id), false);
+			return;
+		}
+
 		res.setContentType("text/html; charset=\"UTF-8\"");
 		PrintWriter out = res.getWriter();
 
@@ -153,98 +186,89 @@ public class ZipService extends HttpServlet {
 		String textext				= null;
 		String skipext				= null;
 		String skipprefix			= null;
-		String otString				= null;
-		boolean overwriteTemplate	= false;
-		String anString				= null;
-		boolean anonymize			= false;
-		File file 					= null;
-
-		//Now get the data based on the content type
+		boolean received			= false;
+
+		//Make the directory into which the submission is unpacked.
+		File root = new File(dirFile, "root");
+		root.mkdirs();
+
+		//Get the parameters and the default template for the thread.
+		String publisher = StorageConfig.getPublisherRoleName();
+		boolean publish = StorageConfig.zipAutoindex() || req.isUserInRole(publisher);
+		File template = new File(getServletContext().getRealPath("/zip/template.xml"));
+		Hashtable<String,String> values = new Hashtable<String,String>();
+		ZipThread zipThread = null;
+
+		//Now get the data based on the content type.
+		//In either case, the thread which processes the submission is
+		//started when the zip file arrives, and the zip file is unpacked
+		//into it as it is received.
 		String contentType = req.getContentType().toLowerCase();
-		if (contentType.contains("multipart/form-data")) {
-
-			//Get the parameters and the file from the multipart request
-			MultipartRequest multipartRequest = new MultipartRequest(req, dir, maxsize, "UTF-8");
-
-			name 			= multipartRequest.getParameter("name");
-			affiliation 	= multipartRequest.getParameter("affiliation");
-			contact 		= multipartRequest.getParameter("contact");
-			username 		= multipartRequest.getParameter("username");
-			read 			= multipartRequest.getParameter("read");
-			update 			= multipartRequest.getParameter("update");
-			export 			= multipartRequest.getParameter("export");
-			textext 		= multipartRequest.getParameter("textext");
-			skipext 		= multipartRequest.getParameter("skipext");
-			skipprefix		= multipartRequest.getParameter("skipprefix");
-			otString		= multipartRequest.getParameter("overwrite");
-			overwriteTemplate = (otString != null) && otString.equals("overwrite");
-			anString		= multipartRequest.getParameter("anonymize");
-			anonymize		= (anString != null) && anString.equals("anonymize");
-
-			file = getMultipartFormFile(multipartRequest);
-		}
-		else if (contentType.contains("application/x-zip-compressed")
-					||
-				 contentType.contains("application/x-mirc")) {
-
-			//Get the parameters from the HttpServletRequest and then
-			//get the file from the input stream
-			name 			= fix(req.getParameter("name"));
-			affiliation 	= fix(req.getParameter("affiliation"));
-			contact 		= fix(req.getParameter("contact"));
-			username 		= fix(req.getParameter("username"));
-			read 			= fix(req.getParameter("read"));
-			update 			= fix(req.getParameter("update"));
-			export 			= fix(req.getParameter("export"));
-			textext 		= fix(req.getParameter("textext"));
-			skipext 		= fix(req.getParameter("skipext"));
-			skipprefix		= fix(req.getParameter("skipprefix"));
-			otString		= req.getParameter("overwrite");
-			overwriteTemplate = (otString != null) && otString.equals("overwrite");
-			anString		= req.getParameter("anonymize");
-			anonymize		= (anString != null) && anString.equals("anonymize");
-
-			file = getFileFromStream(req, dirFile);
-		}
-		if (file == null) result += "It appears that no file was posted.|";
-
-		else {
-			//Create a thread to process the file and kick it off.
-			//This thread will unpack the file (which must be a zip file)
-			//and create MIRCdocuments for the files it contains.
-			String publisher = StorageConfig.getPublisherRoleName();
-			boolean publish = StorageConfig.zipAutoindex() || req.isUserInRole(publisher);
-			try {
-				File template = new File(getServletContext().getRealPath("/zip/template.xml"));
-				ZipThread zipThread =
-					new ZipThread(
-							name,
-							affiliation,
-							contact,
-							publish,
-							template,
-							username,
-							read,
-							update,
-							export,
-							docsFile,
-							dirFile,
-							file,
-							textext,
-							skipext,
-							skipprefix,
-							overwriteTemplate,
-							anonymize);
-				zipThread.start();
-				result += "The file was received and queued for processing.";
+		try {
+			if (contentType.contains("multipart/form-data")) {
+
+				//Get the parameters and the file from the multipart request.
+				//The submission page puts the file after the parameters.
+				MultipartParser parser = new MultipartParser(req, maxsize, true, true, "UTF-8");
+				Part part;
+				while ((part = parser.readNextPart()) != null) {
+					if (part.isParam()) {
+						values.put(part.getName(), ((ParamPart)part).getStringValue());
+					}
+					else if (part.isFile() && !received && (((FilePart)part).getFileName() != null)) {
+						received = true;
+						zipThread = startZipThread(values, publish, template, docsFile, dirFile, root);
+						zipThread.unpack(((FilePart)part).getInputStream(), maxsize);
+					}
+				}
 			}
-			catch (Exception ex) {
+			else if (contentType.contains("application/x-zip-compressed")
+						||
+					 contentType.contains("application/x-mirc")) {
+
+				//Get the parameters from the HttpServletRequest and then
+				//get the file from the input stream
+				for (int i=0; i<paramNames.length; i++) {
+					values.put(paramNames[i], fix(req.getParameter(paramNames[i])));
+				}
+				received = true;
+				zipThread = startZipThread(values, publish, template, docsFile, dirFile, root);
+				zipThread.unpack(req.getInputStream(), maxsize);
+			}
+		}
+		catch (Exception ex) {
+			if (received && (zipThread == null)) {
 				logger.warn("Exception while creating the ZipThread.",ex);
 				result += "Unable to create the processing thread for the submission.|";
-				FileUtil.deleteAll(dirFile);
+			}
+			else {
+				logger.info("Unable to unpack a submission: " + ex.getMessage());
+				result += "Unable to unpack the submission: " + ex.getMessage() + "|";
 			}
 		}
 
+		name 			= values.get("name");
+		affiliation 	= values.get("affiliation");
+		contact 		= values.get("contact");
+		username 		= values.get("username");
+		read 			= values.get("read");
+		update 			= values.get("update");
+		export 			= values.get("export");
+		textext 		= values.get("textext");
+		skipext 		= values.get("skipext");
+		skipprefix		= values.get("skipprefix");
+
+		if (!received) result += "It appears that no file was posted.|";
+		if (!result.equals("")) {
+			//The thread deletes the working directory when it ends.
+			if (zipThread != null) zipThread.abort();
+			else FileUtil.deleteAll(dirFile);
+		}
+		else {
+			result += "The file was received and queued for processing"
+						+ " (submission " + zipThread.getID() + ").";
+		}
+
 		//If the submission was multipart/form-data,
 		//generate the submission + results page.
 		if (contentType.contains("multipart/form-data")) {
@@ -282,45 +306,41 @@ public class ZipService extends HttpServlet {
 		}
 	}
 
-	private String fix(String s) {
-		return (s != null) ? s : "";
-	}
-
-	//Receive a multipart form and get the first file it contains.
-	//Note: only the first file is returned. It is assumed to be a
-	//zip file containing the entire submission.
-	private File getMultipartFormFile(MultipartRequest multipartRequest)
-			throws IOException {
-		Enumeration files = multipartRequest.getFileNames();
-		File file = null;
-		if (files.hasMoreElements()) {
-			String name = (String)files.nextElement();
-			file = multipartRequest.getFile(name);
-		}
-		return file;
+	//Create and start the thread which processes a submission.
+	private ZipThread startZipThread(
+					Hashtable<String,String> params,
+					boolean publish,
+					File template,
+					File docsFile,
+					File dirFile,
+					File root) throws Exception {
+		String otString = params.get("overwrite");
+		String anString = params.get("anonymize");
+		ZipThread zipThread =
+			new ZipThread(
+					params.get("name"),
+					params.get("affiliation"),
+					params.get("contact"),
+					publish,
+					template,
+					params.get("username"),
+					params.get("read"),
+					params.get("update"),
+					params.get("export"),
+					docsFile,
+					dirFile,
+					root,
+					params.get("textext"),
+					params.get("skipext"),
+					params.get("skipprefix"),
+					(otString != null) && otString.equals("overwrite"),
+					(anString != null) && anString.equals("anonymize"));
+		zipThread.start();
+		return zipThread;
 	}
 
-	//Receive a file from the InputStream of the request.
-	private File getFileFromStream(HttpServletRequest req, File dir)
-			throws IOException {
-		File file = null;
-		try {
-			file = File.createTempFile("zip-", ".zip", dir);
-			BufferedInputStream bis = new BufferedInputStream(req.getInputStream());
-			FileOutputStream fos = new FileOutputStream(file);
-			byte[] b = new byte[10000];
-			int len;
-			while ((len=bis.read(b,0,b.length)) >= 0) {
-				fos.write(b,0,len);
-			}
-			fos.flush();
-			fos.close();
-		}
-		catch (Exception e) {
-			file = null;
-			logger.info("Exception caught while receiving a file.");
-		}
-		return file;
+	private String fix(String s) {
+		return (s != null) ? s : "";
 	}
 
 	//Check that the zip service is enabled and return a page if it is not.
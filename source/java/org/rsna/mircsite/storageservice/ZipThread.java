@@ -7,17 +7,31 @@
 
 package org.rsna.mircsite.storageservice;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.InputStream;
 import java.util.Arrays;
-import java.util.Enumeration;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.Properties;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 import org.apache.log4j.Logger;
 
@@ -31,14 +45,65 @@ import org.rsna.mircsite.util.StringUtil;
 import org.rsna.mircsite.util.TypeChecker;
 import org.rsna.mircsite.util.XmlStringUtil;
 import org.rsna.mircsite.util.XmlUtil;
+import org.rsna.mircsite.util.ZipUnpacker;
 
 /**
  * The Thread that processes files submitted to the Zip Service.
+ * <p>
+ * The submission is processed as a pipeline. The zip file is unpacked
+ * as it arrives, and the unpack method hands each file to this thread
+ * as soon as it is stored. This thread groups the files by directory
+ * and records the templates. The order of the entries in a zip file is
+ * arbitrary, so no document is started until the whole zip file has been
+ * received. Then this thread hands the directories, in the order of a
+ * walk of the tree, to a bounded pool of document workers, one per CPU,
+ * so each directory is one document and the template.xml file of a
+ * directory applies to it and to all its subdirectories, wherever the
+ * template was in the zip file. Documents are numbered in the order in
+ * which they are started.
+ * A document worker moves the files into the document directory in
+ * order and passes each one to a shared pool of file workers, which
+ * anonymize it and decode it as an image, while the document worker
+ * assembles the document from the results in the original file order.
+ * Completed documents are indexed by a single indexing thread. The
+ * queues between the stages are bounded, and the files in progress in
+ * all the document workers of all the submissions share a fixed number
+ * of permits, so no more than maxPreparedFiles decoded images are held
+ * in memory at once. If the zip file cannot be unpacked, the submission
+ * is abandoned and any documents which were created from it are removed.
+ * <p>
+ * The progress of recent submissions is available through the
+ * getStatusXML method.
  */
 public class ZipThread extends Thread {
 
 	static final Logger logger = Logger.getLogger(ZipThread.class);
 
+	static final int cpus = Math.max(1, Runtime.getRuntime().availableProcessors());
+	static final int maxFinished = 20;
+	static final int maxPreparedFiles = 2 * cpus;
+	static final int maxStoredFiles = 1000;
+	static final long shutdownWait = 60000;
+
+	//The permits for files in the file stage or waiting to be assembled.
+	static final Semaphore preparedFiles = new Semaphore(maxPreparedFiles);
+
+	//The pool of file workers, shared by all submissions.
+	static final ExecutorService filePool =
+		Executors.newFixedThreadPool(cpus, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ZipThread file worker");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+	//The recent submissions, in order of arrival.
+	static final LinkedHashMap<String,ZipThread> submissions = new LinkedHashMap<String,ZipThread>();
+
+	//The marker for the end of the files of a submission.
+	static final File endOfSubmission = new File("");
+
 	String name;
 	String affiliation;
 	String contact;
@@ -50,7 +115,6 @@ public class ZipThread extends Thread {
 	String export;
 	File docsDir;
 	File workingDir;
-	File submission;
 	String textext;
 	String skipext;
 	String skipprefix;
@@ -62,10 +126,30 @@ public class ZipThread extends Thread {
 	TypeChecker checker;
 
 	File root;
-	Filter dirsOnly;
 	Filter filesOnly;
 	String baseDirName;
 	int docCount = 0;
+	ExecutorService indexer;
+
+	//The files handed to this thread by the unpacker. The unpacker
+	//waits when the queue is full.
+	final BlockingQueue<File> stored = new LinkedBlockingQueue<File>(maxStoredFiles);
+
+	//The document files of the directories, and the valid
+	//templates which have been received, indexed by directory.
+	final HashMap<File,TreeSet<File>> pending = new HashMap<File,TreeSet<File>>();
+	final HashMap<File,File> templates = new HashMap<File,File>();
+
+	volatile boolean aborted = false;
+
+	volatile String state = "queued";
+	volatile long startTime = 0;
+	volatile long endTime = 0;
+	final AtomicInteger docsFound = new AtomicInteger();
+	final AtomicInteger docsCompleted = new AtomicInteger();
+	final AtomicInteger docsFailed = new AtomicInteger();
+	final AtomicInteger filesFound = new AtomicInteger();
+	final AtomicInteger filesProcessed = new AtomicInteger();
 
 	Properties dicomAnonymizerProperties = null;
 	Properties lookupTableProperties = null;
@@ -82,13 +166,14 @@ public class ZipThread extends Thread {
 	 * @param update the update privileges to be assigned to the document
 	 * @param export the export privileges to be assigned to the document
 	 * @param docsDir the storage service's documents directory, used as the root of the created documents.
-	 * @param workingDir the working directory for unpacking the submission.
-	 * @param submission the zip file containing the submission.
+	 * @param workingDir the working directory containing the submission.
+	 * @param root the directory in the working directory into which the
+	 * submission is to be unpacked by the unpack method.
 	 * @param overwriteTemplate true if supplied parameters are
 	 * to overwrite the values in the template; false if the template
 	 * parameters are not to be overwritten.
 	 * @param anonymize true if DicomObjects are to be anonymized.
-	 * @throws Exception if the submission could not be unpacked or the default template file is missing.
+	 * @throws Exception if the default template file is missing or invalid.
 	 */
 	public ZipThread(
 				String name,
@@ -102,7 +187,7 @@ public class ZipThread extends Thread {
 				String export,
 				File docsDir,
 				File workingDir,
-				File submission,
+				File root,
 				String textext,
 				String skipext,
 				String skipprefix,
@@ -120,7 +205,7 @@ public class ZipThread extends Thread {
 		this.export = fix(export);
 		this.docsDir = docsDir;
 		this.workingDir = workingDir;
-		this.submission = submission;
+		this.root = root;
 		this.textext = fix(textext);
 		this.skipext = fix(skipext);
 		this.skipprefix = fix(skipprefix);
@@ -131,23 +216,26 @@ public class ZipThread extends Thread {
 		textExtensions = trim(this.textext.split(","));
 		skipExtensions = trim(this.skipext.split(","));
 		skipPrefixes = trim(this.skipprefix.split(","));
-		dirsOnly = new Filter(true);
 		filesOnly = new Filter(false, skipExtensions);
 		if (!template.exists())
 			throw new Exception("The Zip Service's default template does not exist.");
 		if (!isValidTemplate(template))
 			throw new Exception("The Zip Service's default template is not valid.");
 
-		root = new File(workingDir,"root");
-		root.mkdirs();
-
-		unpackZipFile(root, submission);
-
-		submission.delete();
 		baseDirName = StringUtil.makeNameFromDate();
 		checker = new TypeChecker();
 
 		if (anonymize) initializeAnonymizer();
+		register(this);
+	}
+
+	/**
+	 * Get the ID of this submission, which is also the name of
+	 * the directory in which its MIRCdocuments are created.
+	 * @return the ID of the submission.
+	 */
+	public String getID() {
+		return baseDirName;
 	}
 
 	private String fix(String s) {
@@ -161,37 +249,220 @@ public class ZipThread extends Thread {
 		return s;
 	}
 
+	/**
+	 * Process the files of the submission as they are unpacked,
+	 * and then delete the working directory.
+	 */
 	public void run() {
-		processDirectory(root, template, "", "");
-		FileUtil.deleteAll(workingDir);
+		startTime = System.currentTimeMillis();
+		state = "receiving";
+		ThreadPoolExecutor docPool =
+			new ThreadPoolExecutor(
+				cpus, cpus, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(cpus),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		indexer = Executors.newSingleThreadExecutor();
+		try {
+			File file;
+			while (((file = stored.take()) != endOfSubmission) && !aborted) {
+				receive(file);
+			}
+			if (aborted) docPool.shutdownNow();
+			else {
+				state = "processing";
+				startDirectories(docPool);
+			}
+			docPool.shutdown();
+			docPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			indexer.shutdown();
+			indexer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			if (aborted) {
+				removeDocuments();
+				state = "failed";
+			}
+			else state = "complete";
+		}
+		catch (Exception ex) {
+			logger.warn("Zip submission " + baseDirName + " failed.", ex);
+			docPool.shutdownNow();
+			indexer.shutdownNow();
+			state = "failed";
+		}
+		finally {
+			//Release an unpacker which is waiting for space in the queue.
+			aborted = true;
+			stored.clear();
+			FileUtil.deleteAll(workingDir);
+			endTime = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Stop the file workers shared by all submissions, waiting a
+	 * while for the files in progress. This method is called when
+	 * the Zip Service is taken out of service; submissions which
+	 * are still running fail.
+	 */
+	public static void shutdown() {
+		filePool.shutdownNow();
+		try { filePool.awaitTermination(shutdownWait, TimeUnit.MILLISECONDS); }
+		catch (InterruptedException ignore) { }
+	}
+
+	/**
+	 * Unpack the zip file of the submission from a stream as it arrives,
+	 * handing each file to this thread as soon as it is stored. This
+	 * thread must have been started. File names which might cause a
+	 * problem in a URL are cleaned up. If the zip file cannot be unpacked,
+	 * the submission is abandoned.
+	 * @param in the stream containing the zip file.
+	 * @param maxsize the maximum size of the zip file in bytes.
+	 * @throws Exception if the stream does not contain a zip file or the
+	 * zip file exceeds the size limits.
+	 */
+	public void unpack(InputStream in, long maxsize) throws Exception {
+		long maxUnzipSize = (long)StorageConfig.getMaxUnzipSize() * 1024 * 1024;
+		ZipUnpacker unpacker = new ZipUnpacker(maxsize, maxUnzipSize);
+		try {
+			unpacker.unpack(in,
+				new ZipUnpacker.Handler() {
+					public File getFile(String path, boolean isDirectory) {
+						File file = new File(root, path.replace('/',File.separatorChar));
+						if (isDirectory) return file;
+						//Note: the name change only happens for files.
+						return new File(file.getParentFile(), ZipUnpacker.getSafeName(file.getName()));
+					}
+					public void entryStored(File file) throws Exception {
+						hand(file);
+					}
+				});
+			hand(endOfSubmission);
+		}
+		catch (Exception ex) {
+			abort();
+			throw ex;
+		}
 	}
 
-	private void processDirectory(File dir, File template, String title, String keywords) {
+	/**
+	 * Abandon the submission, removing any documents
+	 * which have been created from it.
+	 */
+	public void abort() {
+		aborted = true;
+		stored.offer(endOfSubmission);
+	}
+
+	//Hand a file to this thread, waiting if the queue is full.
+	//If the submission has been abandoned, the thread has stopped
+	//taking files, so the file is refused.
+	private void hand(File file) throws Exception {
+		if (aborted) throw new Exception("The submission was abandoned.");
+		stored.put(file);
+	}
+
+	//Receive a file from the unpacker, recording it as a
+	//template or adding it to the files of its directory.
+	private void receive(File file) {
+		File dir = file.getParentFile();
+		if (file.getName().toLowerCase().equals("template.xml")) {
+			if (isValidTemplate(file)) templates.put(dir, file);
+		}
+		else if (filesOnly.accept(file)) {
+			TreeSet<File> files = pending.get(dir);
+			if (files == null) {
+				files = new TreeSet<File>();
+				pending.put(dir, files);
+			}
+			files.add(file);
+		}
+	}
 
-		//Make sure this directory should be processed
-		if (skipDirectory(dir)) return;
+	//Start the directories which have files, each directory
+	//before its subdirectories and siblings in name order.
+	private void startDirectories(ExecutorService docPool) {
+		File[] dirs = pending.keySet().toArray(new File[pending.size()]);
+		Arrays.sort(dirs, new Comparator<File>() {
+			public int compare(File a, File b) {
+				String[] pa = a.getAbsolutePath().split(Pattern.quote(File.separator));
+				String[] pb = b.getAbsolutePath().split(Pattern.quote(File.separator));
+				for (int i=0; (i<pa.length) && (i<pb.length); i++) {
+					int c = pa[i].compareTo(pb[i]);
+					if (c != 0) return c;
+				}
+				return pa.length - pb.length;
+			}
+		});
+		for (int i=0; i<dirs.length; i++) startDirectory(dirs[i], pending.get(dirs[i]), docPool);
+		pending.clear();
+	}
 
-		//Make sure the title is legal XML
-		title = XmlStringUtil.makeFilteredString(title);
-		if (title.trim().equals("")) title = "Untitled";
+	//Hand a directory to the document workers. The template is the
+	//one in the directory or its nearest ancestor which has one, the title is the name of the directory, and the keywords
+	//are the titles of its ancestors.
+	private void startDirectory(File dir, TreeSet<File> files, ExecutorService docPool) {
+		LinkedList<File> dirs = new LinkedList<File>();
+		for (File d = dir; d != null; d = d.getParentFile()) {
+			dirs.addFirst(d);
+			if (d.equals(root)) break;
+		}
+		File template = this.template;
+		String title = "";
+		String keywords = "";
+		for (File d : dirs) {
+			//Make sure this directory should be processed
+			if (skipDirectory(d)) return;
+
+			//If there is a valid template, use it for this directory and
+			//the rest of the directories on this branch.
+			File newTemplate = templates.get(d);
+			if (newTemplate != null) template = newTemplate;
+
+			//Make the title, making sure it is legal XML.
+			if (d != dirs.getFirst()) keywords += " " + title;
+			title = XmlStringUtil.makeFilteredString(d.equals(root) ? "" : d.getName());
+			if (title.trim().equals("")) title = "Untitled";
+		}
 
-		//If there is a valid template, use it for this directory and
-		//the rest of the directories on this branch.
-		File newTemplate = new File(dir,"template.xml");
-		if (newTemplate.exists() && isValidTemplate(newTemplate))
-			template = newTemplate;
+		//The document numbers are assigned here so that they follow
+		//the order in which the directories are started.
+		docCount++;
+		docsFound.incrementAndGet();
+		filesFound.addAndGet(files.size());
+		docPool.execute(
+			new DocumentTask(files.toArray(new File[files.size()]), template, title, keywords, docCount));
+	}
 
-		//Make a MIRCdocument out of any other files in this directory.
-		File[] files = dir.listFiles(filesOnly);
-		Arrays.sort(files);
+	//Remove the documents which were created from an abandoned submission.
+	private void removeDocuments() {
+		for (int i=1; i<=docCount; i++) {
+			MircIndex.getInstance().removeDocument("documents/" + baseDirName + "/" + i + "/MIRCdocument.xml");
+		}
+		FileUtil.deleteAll(new File(docsDir, baseDirName));
+	}
 
-		if (files.length > 0) createMircDocument(files,template,title,keywords);
+	//The document stage of the pipeline.
+	class DocumentTask implements Runnable {
+		File[] files;
+		File template;
+		String title;
+		String keywords;
+		int docNumber;
+
+		public DocumentTask(File[] files, File template, String title, String keywords, int docNumber) {
+			this.files = files;
+			this.template = template;
+			this.title = title;
+			this.keywords = keywords;
+			this.docNumber = docNumber;
+		}
 
-		//Process any child directories
-		keywords += " " + title;
-		files = dir.listFiles(dirsOnly);
-		for (int i=0; i<files.length; i++) {
-			processDirectory(files[i],template,files[i].getName(),keywords);
+		public void run() {
+			try { createMircDocument(files, template, title, keywords, docNumber); }
+			catch (Exception ex) {
+				logger.warn("Unable to create document " + docNumber + " of " + baseDirName, ex);
+				docsFailed.incrementAndGet();
+			}
 		}
 	}
 
@@ -206,15 +477,15 @@ public class ZipThread extends Thread {
 		return false;
 	}
 
-	private void createMircDocument(File[] files, File template, String title, String keywords) {
+	private void createMircDocument(File[] files, File template, String title,
+									String keywords, int docNumber) throws Exception {
 
 		//Don't create MIRCdocuments for empty file lists.
 		if (files.length == 0) return;
 
 		//Put the MIRCdocument in a subdirectory
 		//of the main submission directory (baseDirName).
-		docCount++;
-		String dirName = baseDirName + File.separator + docCount;
+		String dirName = baseDirName + File.separator + docNumber;
 		File mdDir = new File(docsDir,dirName);
 		mdDir.mkdirs();
 
@@ -222,15 +493,17 @@ public class ZipThread extends Thread {
 		File mdFile = new File(mdDir,"MIRCdocument.xml");
 
 		//While we're at it, create the index entry.
-		String indexEntry = "documents/" + baseDirName + "/" + docCount + "/MIRCdocument.xml";
+		final String indexEntry = "documents/" + baseDirName + "/" + docNumber + "/MIRCdocument.xml";
 
 		//Copy the template into the directory.
 		FileUtil.copyFile(template, mdFile);
 
 		//Instantiate the MircDocument so we can add objects into it.
-		MircDocument md;
+		//The document is indexed once, when it is complete.
+		final MircDocument md;
 		try { md = new MircDocument(mdFile, indexEntry); }
-		catch (Exception crash) { return; }
+		catch (Exception crash) { docsFailed.incrementAndGet(); return; }
+		md.setAutoIndex(false);
 
 		//Set the title, author, abstract, and keywords.
 		//Use the keywords as the abstract since there is
@@ -248,52 +521,37 @@ public class ZipThread extends Thread {
 			export,
 			overwriteTemplate);
 
-		//Now add in all the files.
-		for (int i=0; i<files.length; i++) {
-			if (checker.isFileAllowed(files[i])) {
-				//This file is allowed in the MIRCdocument.
-				//Move the object to the MIRCdocument's directory.
-				FileObject object = FileObject.getObject(files[i]);
-				object.setStandardExtension();
-				object.moveToDirectory(mdDir,object.getFile().getName());
-
-				//If the object is a DicomObject and anonymize is set,
-				//anonymize it using the anonymization script for the
-				//storage service.
-				if (anonymize
-					&& (object instanceof DicomObject)
-						&& (dicomAnonymizerProperties != null)) {
-
-					File file = object.getFile();
-					String exceptions =
-						DicomAnonymizer.anonymize(
-							file, file,
-							dicomAnonymizerProperties, lookupTableProperties,
-							new LocalRemapper(), false, false);
-					//We don't have to re-parse the object because none
-					//of the rest of this loop depends on the parsed data.
-				}
-
-				//See if we can instantiate it as a MircImage.
-				//If successful, add it in as an image.
-				try {
-					MircImage image = new MircImage(object.getFile());
-					if (image.isDicomImage()) {
-						md.insertDicomElements(image.getDicomObject());
-					}
-					md.insert(image);
-				}
-				catch (Exception notImage) {
-					//The file is not an image that can be inserted,
-					//parse it as a subclass of FileObject and insert
-					//it into the document as a metadata object.
-					FileObject fileObject = FileObject.getObject(object.getFile());
-					md.insert(fileObject,fileObject.getFile().getName());
-					if (fileObject.hasMatchingExtension(textExtensions,true)) {
-						md.insert(fileObject.getFile());
+		//Now add in all the files. Each allowed file is moved into the
+		//document directory here, to keep the naming deterministic, and
+		//then passed to the file workers. The results are assembled into
+		//the document in the original order. Each file in progress holds
+		//one of the shared permits until it is assembled. When no permit
+		//is available, the oldest file in progress is assembled first, so
+		//a document worker only blocks on the semaphore when it holds no
+		//permits itself.
+		LinkedList<Future<PreparedFile>> window = new LinkedList<Future<PreparedFile>>();
+		try {
+			for (int i=0; i<files.length; i++) {
+				if (checker.isFileAllowed(files[i])) {
+					//This file is allowed in the MIRCdocument.
+					//Move the object to the MIRCdocument's directory.
+					FileObject object = FileObject.getObject(files[i]);
+					object.setStandardExtension();
+					object.moveToDirectory(mdDir,object.getFile().getName());
+
+					while (!window.isEmpty() && ((window.size() >= cpus) || !preparedFiles.tryAcquire())) {
+						assembleFirst(md, window);
 					}
+					if (window.isEmpty()) preparedFiles.acquire();
+					window.add(filePool.submit(new FileTask(object)));
 				}
+				else filesProcessed.incrementAndGet();
 			}
+			while (!window.isEmpty()) assembleFirst(md, window);
+		}
+		finally {
+			for (Future<PreparedFile> future : window) future.cancel(false);
+			preparedFiles.release(window.size());
 		}
 
 		//Make sure the document parses, and delete it if it doesn't.
@@ -301,16 +559,155 @@ public class ZipThread extends Thread {
 		catch (Exception failed) {
 			MircIndex.getInstance().removeDocument(indexEntry);
 			FileUtil.deleteAll(mdDir);
+			docsFailed.incrementAndGet();
 			return;
 		}
 
 		//Index the document.
-		if (!publish && AuthorService.isPublic(md.docText)) {
-			md.docText = AuthorService.makeNonPublic(md.docText);
-			FileUtil.setFileText(md.docFile,md.docText);
-			InputQueue.addQueueEntry(indexEntry,true);
+		indexer.execute(new Runnable() {
+			public void run() {
+				if (!publish && AuthorService.isPublic(md.docText)) {
+					md.docText = AuthorService.makeNonPublic(md.docText);
+					FileUtil.setFileText(md.docFile,md.docText);
+					InputQueue.addQueueEntry(indexEntry,true);
+				}
+				if (MircIndex.getInstance().insertDocument(indexEntry))
+					docsCompleted.incrementAndGet();
+				else docsFailed.incrementAndGet();
+			}
+		});
+	}
+
+	//A file which has been through the file stage of the pipeline.
+	static class PreparedFile {
+		FileObject object;
+		MircImage image;
+
+		public PreparedFile(FileObject object, MircImage image) {
+			this.object = object;
+			this.image = image;
 		}
-		MircIndex.getInstance().insertDocument(indexEntry);
+	}
+
+	//The file stage of the pipeline: anonymize and decode one file.
+	class FileTask implements Callable<PreparedFile> {
+		FileObject object;
+
+		public FileTask(FileObject object) {
+			this.object = object;
+		}
+
+		public PreparedFile call() {
+			//If the object is a DicomObject and anonymize is set,
+			//anonymize it using the anonymization script for the
+			//storage service.
+			if (anonymize
+				&& (object instanceof DicomObject)
+					&& (dicomAnonymizerProperties != null)) {
+
+				File file = object.getFile();
+				try {
+					String exceptions =
+						DicomAnonymizer.anonymize(
+							file, file,
+							dicomAnonymizerProperties, lookupTableProperties,
+							new LocalRemapper(), false, false);
+				}
+				catch (Exception ex) {
+					logger.warn("Unable to anonymize " + file, ex);
+				}
+			}
+
+			//See if we can instantiate it as a MircImage.
+			MircImage image = null;
+			try { image = new MircImage(object.getFile()); }
+			catch (Exception notImage) { }
+			return new PreparedFile(object, image);
+		}
+	}
+
+	//Wait for the oldest file in progress, insert it into
+	//the document, and release its permit.
+	private void assembleFirst(MircDocument md, LinkedList<Future<PreparedFile>> window) throws Exception {
+		Future<PreparedFile> future = window.removeFirst();
+		try { assemble(md, future.get()); }
+		finally { preparedFiles.release(); }
+	}
+
+	//The assembly stage of the pipeline: insert one file into the document.
+	private void assemble(MircDocument md, PreparedFile prepared) {
+		try {
+			//If the file is an image, add it in as an image.
+			if (prepared.image == null) throw new Exception("Not an image");
+			MircImage image = prepared.image;
+			if (image.isDicomImage()) {
+				md.insertDicomElements(image.getDicomObject());
+			}
+			md.insert(image);
+		}
+		catch (Exception notImage) {
+			//The file is not an image that can be inserted,
+			//parse it as a subclass of FileObject and insert
+			//it into the document as a metadata object.
+			FileObject fileObject = FileObject.getObject(prepared.object.getFile());
+			md.insert(fileObject,fileObject.getFile().getName());
+			if (fileObject.hasMatchingExtension(textExtensions,true)) {
+				md.insert(fileObject.getFile());
+			}
+		}
+		filesProcessed.incrementAndGet();
+	}
+
+	//Add a submission to the list of recent submissions,
+	//removing the oldest finished submissions if necessary.
+	private static synchronized void register(ZipThread zt) {
+		submissions.put(zt.baseDirName, zt);
+		int finished = 0;
+		for (ZipThread t : submissions.values()) {
+			if (t.endTime != 0) finished++;
+		}
+		Iterator<ZipThread> it = submissions.values().iterator();
+		while ((finished > maxFinished) && it.hasNext()) {
+			if (it.next().endTime != 0) {
+				it.remove();
+				finished--;
+			}
+		}
+	}
+
+	/**
+	 * Get an XML string describing the progress of recent submissions.
+	 * @param username the user whose submissions are to be listed,
+	 * or null if all submissions are to be listed.
+	 * @param id the ID of the submission to be listed, or null if
+	 * all the user's submissions are to be listed.
+	 * @return the XML string.
+	 */
+	public static synchronized String getStatusXML(String username, String id) {
+		StringBuffer sb = new StringBuffer();
+		sb.append("<ZipSubmissions>\n");
+		for (ZipThread zt : submissions.values()) {
+			if (((username == null) || username.equals(zt.username))
+					&& ((id == null) || id.equals(zt.baseDirName))) {
+				sb.append("  <submission");
+				sb.append(" id=\"" + zt.baseDirName + "\"");
+				sb.append(" username=\"" + XmlStringUtil.escapeChars(zt.username) + "\"");
+				sb.append(" state=\"" + zt.state + "\"");
+				if (zt.startTime != 0) {
+					sb.append(" started=\"" + StringUtil.getDateTime(zt.startTime, " ") + "\"");
+					long end = (zt.endTime != 0) ? zt.endTime : System.currentTimeMillis();
+					sb.append(" seconds=\"" + ((end - zt.startTime) / 1000) + "\"");
+				}
+				sb.append(" documents=\"" + zt.docsFound.get() + "\"");
+				sb.append(" completed=\"" + zt.docsCompleted.get() + "\"");
+				sb.append(" failed=\"" + zt.docsFailed.get() + "\"");
+				sb.append(" files=\"" + zt.filesFound.get() + "\"");
+				sb.append(" processed=\"" + zt.filesProcessed.get() + "\"");
+				sb.append("/>\n");
+			}
+		}
+		sb.append("</ZipSubmissions>\n");
+		return sb.toString();
 	}
 
 	class Filter implements FileFilter {
@@ -343,48 +740,6 @@ public class ZipThread extends Thread {
 		return (root != null) && root.equals("MIRCdocument");
 	}
 
-	/**
-	 * Unpack a zip file into a root directory, preserving the directory structure of the zip file.
-	 * @param root the directory into which to unpack the zip file.
-	 * @param inFile the zip file to unpack.
-	 * @throws Exception if anything goes wrong.
-	 */
-	private static void unpackZipFile(File root, File inFile) throws Exception {
-		if (!inFile.exists()) throw new Exception("Zip file does not exist.");
-		ZipFile zipFile = new ZipFile(inFile);
-		Enumeration zipEntries = zipFile.entries();
-		while (zipEntries.hasMoreElements()) {
-			ZipEntry entry = (ZipEntry)zipEntries.nextElement();
-			String name = entry.getName().replace('/',File.separatorChar);
-			//Make sure that the directory is present
-			File outFile = new File(root,name);
-			outFile.getParentFile().mkdirs();
-			if (!entry.isDirectory()) {
-				//Clean up any file names that might cause a problem in a URL.
-				name = outFile
-						.getName()
-							.trim()
-								.replaceAll("[\\s]+","_")
-									.replaceAll("[\"&'><#;:@/?=]","_");
-				outFile = new File(outFile.getParentFile(),name);
-
-				//Now write the file with the corrected name.
-				//Note: the name change only happens for files.
-				BufferedOutputStream out =
-					new BufferedOutputStream(new FileOutputStream(outFile));
-				BufferedInputStream in =
-					new BufferedInputStream(zipFile.getInputStream(entry));
-				int size = 4096;
-				int n = 0;
-				byte[] b = new byte[size];
-				while ((n = in.read(b,0,size)) != -1) out.write(b,0,n);
-				in.close();
-				out.close();
-			}
-		}
-		zipFile.close();
-	}
-
 	private void initializeAnonymizer() {
 		try {
 			File propFile = new File(TrialConfig.basepath + TrialConfig.dicomAnonymizerFilename);
@@ -86,6 +86,7 @@ public class ObjectProcessor extends Thread {
 		File[] files = store.getQueuedManifests();
 		for (int k=0; k<files.length; k++) {
 			processManifest(files[k]);
+			if (!files[k].exists()) store.manifestDequeued();
 		}
 	}
 
@@ -16,6 +16,7 @@ import org.rsna.dicom.DicomEvent;
 import org.rsna.dicom.DicomEventListener;
 import org.rsna.mircsite.log.Log;
 import org.rsna.mircsite.util.DicomObject;
+import org.rsna.mircsite.util.DirectoryCounter;
 import org.rsna.mircsite.util.FileUtil;
 
 /**
@@ -74,10 +75,15 @@ public class Store implements DicomEventListener {
 
 		//Remove any expired manifests
 		File[] files = manifests.listFiles();
+		int count = files.length;
 		for (int i=0; i<files.length; i++) {
 			File file = files[i];
-			if (file.lastModified() < time) deleted |= file.delete();
+			if ((file.lastModified() < time) && file.delete()) {
+				deleted = true;
+				count--;
+			}
 		}
+		DirectoryCounter.get(manifests).set(count);
 
 		//Make a table of instance names that are referenced by
 		//manifests that are either already queued or are unexpired.
@@ -87,11 +93,16 @@ public class Store implements DicomEventListener {
 
 		//Handle any expired instances that can safely be removed.
 		files = instances.listFiles();
+		count = files.length;
 		for (int i=0; i<files.length; i++) {
 			File file = files[i];
 			if ((file.lastModified() < time) &&
-				(hashtable.get(file.getName()) == null)) deleted |= file.delete();
+				(hashtable.get(file.getName()) == null) && file.delete()) {
+				deleted = true;
+				count--;
+			}
 		}
+		DirectoryCounter.get(instances).set(count);
 
 		//Notify the world if anything was deleted.
 		if (deleted) {
@@ -106,7 +117,16 @@ public class Store implements DicomEventListener {
 	 * in which they should be processed.
 	 */
 	public File[] getQueuedManifests() {
-		return FileUtil.listSortedFiles(queue);
+		File[] files = FileUtil.listSortedFiles(queue);
+		DirectoryCounter.get(queue).set(files.length);
+		return files;
+	}
+
+	/**
+	 * Count a manifest removed from the queue.
+	 */
+	public void manifestDequeued() {
+		DirectoryCounter.get(queue).decrement();
 	}
 
 	/**
@@ -122,7 +142,7 @@ public class Store implements DicomEventListener {
 	 * @return the number of files in the manifests directory.
 	 */
 	public int getManifestCount() {
-		return countFiles(manifests);
+		return DirectoryCounter.get(manifests).getCount();
 	}
 
 	/**
@@ -130,7 +150,7 @@ public class Store implements DicomEventListener {
 	 * @return the number of files in the queue directory.
 	 */
 	public int getQueuedManifestCount() {
-		return countFiles(queue);
+		return DirectoryCounter.get(queue).getCount();
 	}
 
 	/**
@@ -138,14 +158,7 @@ public class Store implements DicomEventListener {
 	 * @return the number of files in the instances directory.
 	 */
 	public int getInstanceCount() {
-		return countFiles(instances);
-	}
-
-	//Count the number of files in a directory.
-	private int countFiles(File dir) {
-		if (!dir.exists()) return 0;
-		File[] files = dir.listFiles();
-		return files.length;
+		return DirectoryCounter.get(instances).getCount();
 	}
 
 	/**
@@ -162,6 +175,7 @@ public class Store implements DicomEventListener {
 		File[] files = dir.listFiles();
 		for (int i=0; i<files.length; i++)
 			files[i].delete();
+		DirectoryCounter.get(dir).set(FileUtil.getFileCount(dir));
 	}
 
 	/**
@@ -195,7 +209,8 @@ public class Store implements DicomEventListener {
 						e.getCallingAET()+"\":<br>" + file.getName());
 
 					//Put the file in the instances directory
-					dicomObject.moveToDirectory(instances,true);
+					if (dicomObject.moveToDirectory(instances,true))
+						DirectoryCounter.get(instances).increment();
 
 					//Count the instance and, if it is possible that a manifest has been fulfilled,
 					//check the manifests, queue any completed ones, and set a new currentCount value.
@@ -241,6 +256,7 @@ public class Store implements DicomEventListener {
 	private void checkManifests() {
 		int min = Integer.MAX_VALUE;
 		File[] manifestList = FileUtil.listSortedFiles(manifests);
+		DirectoryCounter.get(manifests).set(manifestList.length);
 		for (int i=0; i<manifestList.length; i++) {
 			try {
 				DicomObject manifest = new DicomObject(manifestList[i]);
@@ -261,7 +277,10 @@ public class Store implements DicomEventListener {
 	//Queue a manifest.
 	private void queueManifest(DicomObject manifest) {
 		manifest.touch();
-		manifest.moveToDirectory(queue,true);
+		if (manifest.moveToDirectory(queue,true)) {
+			DirectoryCounter.get(manifests).decrement();
+			DirectoryCounter.get(queue).increment();
+		}
 		Log.message(
 			serviceName+": Manifest completed and queued:<br>"
 			+ manifest.getFile().getName());
@@ -0,0 +1,174 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.mircsite.util;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.dcm4che.data.Dataset;
+
+/**
+ * A cache of the parsed headers of recently parsed DICOM files, used to
+ * avoid parsing a file again when it is passed from one stage of the
+ * processing pipeline to the next in the same JVM.
+ * <p>
+ * The file on disk is always the durable copy of the object; an entry
+ * is only used if the file still has the path, length, and last modified
+ * time it had when the entry was made. Stages which rewrite a file (for
+ * example, the DicomAnonymizer) replace its entry, and FileObject updates
+ * the entry when it renames a file. The cache holds the most recently
+ * used maxEntries headers. The Datasets in the cache are shared, and
+ * must not be modified. The hit, miss, and parsed byte counts are
+ * reported in the metrics of the storage service AdminService.
+ */
+public class DicomHeaderCache {
+
+	static final int maxEntries = 500;
+
+	private static final EntryMap entries = new EntryMap();
+
+	private static long hits = 0;
+	private static long misses = 0;
+	private static long bytesParsed = 0;
+
+	/**
+	 * Get the parsed header of a file if it is in the cache and
+	 * the file has not changed since it was parsed.
+	 * @param file the file.
+	 * @return the entry, or null if the file must be parsed.
+	 */
+	public static synchronized Entry get(File file) {
+		String key = file.getAbsolutePath();
+		Entry entry = entries.get(key);
+		if ((entry != null) && !entry.matches(file)) {
+			entries.remove(key);
+			entry = null;
+		}
+		if (entry != null) hits++;
+		else misses++;
+		return entry;
+	}
+
+	/**
+	 * Add the parsed header of a file to the cache, replacing any entry
+	 * for the file. This method must be called after the file is written.
+	 * @param file the file.
+	 * @param dataset the Dataset, parsed up to the PixelData element.
+	 * @param pixelDataOffset the offset in the file of the value of the
+	 * PixelData element, or -1 if the object has no PixelData element.
+	 */
+	public static synchronized void put(File file, Dataset dataset, long pixelDataOffset) {
+		entries.put(file.getAbsolutePath(), new Entry(file, dataset, pixelDataOffset));
+	}
+
+	/**
+	 * Record the number of bytes read to parse a file which
+	 * was not in the cache.
+	 * @param bytes the number of bytes read.
+	 */
+	public static synchronized void parsed(long bytes) {
+		bytesParsed += bytes;
+	}
+
+	/**
+	 * Move the entry for a file which has been renamed or copied.
+	 * @param oldFile the file before it was renamed.
+	 * @param newFile the file after it was renamed.
+	 */
+	public static synchronized void rename(File oldFile, File newFile) {
+		Entry entry = entries.remove(oldFile.getAbsolutePath());
+		if ((entry != null) && entry.matches(newFile)) {
+			entries.put(newFile.getAbsolutePath(), new Entry(newFile, entry.dataset, entry.pixelDataOffset));
+		}
+	}
+
+	/**
+	 * Remove the entry for a file.
+	 * @param file the file.
+	 */
+	public static synchronized void remove(File file) {
+		entries.remove(file.getAbsolutePath());
+	}
+
+	/**
+	 * Get the number of times a file was found in the cache.
+	 * @return the number of hits.
+	 */
+	public static synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Get the number of times a file had to be parsed.
+	 * @return the number of misses.
+	 */
+	public static synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Get the total number of bytes read to parse files
+	 * which were not in the cache.
+	 * @return the number of bytes.
+	 */
+	public static synchronized long getBytesParsed() {
+		return bytesParsed;
+	}
+
+	//The entries, in access order, dropping the least
+	//recently used one when there are too many.
+	static class EntryMap extends LinkedHashMap<String,Entry> {
+		static final long serialVersionUID = 1L;
+
+		EntryMap() {
+			super(maxEntries, 0.75f, true);
+		}
+
+		protected boolean removeEldestEntry(Map.Entry<String,Entry> eldest) {
+			return size() > maxEntries;
+		}
+	}
+
+	/**
+	 * The parsed header of a file.
+	 */
+	public static class Entry {
+		final long length;
+		final long lastModified;
+		final Dataset dataset;
+		final long pixelDataOffset;
+
+		Entry(File file, Dataset dataset, long pixelDataOffset) {
+			this.length = file.length();
+			this.lastModified = file.lastModified();
+			this.dataset = dataset;
+			this.pixelDataOffset = pixelDataOffset;
+		}
+
+		boolean matches(File file) {
+			return (file.length() == length) && (file.lastModified() == lastModified);
+		}
+
+		/**
+		 * Get the Dataset, parsed up to the PixelData element.
+		 * @return the Dataset, which must not be modified.
+		 */
+		public Dataset getDataset() {
+			return dataset;
+		}
+
+		/**
+		 * Get the offset of the value of the PixelData element.
+		 * @return the offset, or -1 if the object has no PixelData element.
+		 */
+		public long getPixelDataOffset() {
+			return pixelDataOffset;
+		}
+	}
+
+}
@@ -45,17 +45,38 @@ public class DicomObject extends FileObject {
 	BufferedImage bufferedImage = null;
 	int currentFrame = -1;
 	boolean isImage = false;
+	long pixelDataOffset = -1;
 	boolean isManifest = false;
 	boolean isAdditionalTFInfo = false;
 	SpecificCharacterSet charset = null;
 
 	/**
 	 * Class constructor; parses a file to create a new DicomObject.
+	 * If the header of the file is in the DicomHeaderCache, the file
+	 * is not read.
 	 * @param file the file containing the DicomObject.
 	 * @throws IOException if the file cannot be read or the file does not parse.
 	 */
 	public DicomObject(File file) throws Exception {
 		super(file);
+		DicomHeaderCache.Entry entry = DicomHeaderCache.get(file);
+		if (entry != null) {
+			dataset = entry.getDataset();
+			pixelDataOffset = entry.getPixelDataOffset();
+		}
+		else parse();
+		//See if this is a real image.
+		isImage = (pixelDataOffset >= 0);
+		//See if this is a TCE Manifest
+		isManifest = checkManifest();
+		//See if this is a TCE Additional Teaching File Info document
+		isAdditionalTFInfo = checkAdditionalTFInfo();
+		//Get the charset in case we need it for manifest processing.
+		charset = dataset.getSpecificCharacterSet();
+	}
+
+	//Parse the file up to the pixels and put the header in the cache.
+	private void parse() throws Exception {
 		BufferedInputStream in = null;
 		try {
 			in = new BufferedInputStream(new FileInputStream(file));
@@ -68,20 +89,42 @@ public class DicomObject extends FileObject {
 			parser.setDcmHandler(dataset.getDcmHandler());
 			//Parse the file, but don't get the pixels in order to save heap space
 			parser.parseDcmFile(fileFormat, Tags.PixelData);
-			//See if this is a real image.
-			isImage =  (parser.getReadTag() == Tags.PixelData);
-			//See if this is a TCE Manifest
-			isManifest = checkManifest();
-			//See if this is a TCE Additional Teaching File Info document
-			isAdditionalTFInfo = checkAdditionalTFInfo();
-			//Get the charset in case we need it for manifest processing.
-			charset = dataset.getSpecificCharacterSet();
+			if (parser.getReadTag() == Tags.PixelData) pixelDataOffset = parser.getStreamPosition();
+			DicomHeaderCache.parsed(parser.getStreamPosition());
 			in.close();
 		}
 		catch (Exception exception) {
 			if (in != null) in.close();
 			throw exception;
 		}
+		DicomHeaderCache.put(file, dataset, pixelDataOffset);
+	}
+
+	/**
+	 * Get the SOPInstanceUID of a file, reading the header only as far as
+	 * that element. If the header of the file is in the DicomHeaderCache,
+	 * the file is not read.
+	 * @param file the file.
+	 * @return the SOPInstanceUID, or null if the object does not have one.
+	 * @throws IOException if the file cannot be read or is not a DICOM object.
+	 */
+	public static String getSOPInstanceUID(File file) throws IOException {
+		DicomHeaderCache.Entry entry = DicomHeaderCache.get(file);
+		if (entry != null) return entry.getDataset().getString(Tags.SOPInstanceUID);
+		BufferedInputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			DcmParser parser = pFact.newDcmParser(in);
+			FileFormat fileFormat = parser.detectFileFormat();
+			if (fileFormat == null) {
+				throw new IOException("Unrecognized file format: "+file);
+			}
+			Dataset header = oFact.newDataset();
+			parser.setDcmHandler(header.getDcmHandler());
+			parser.parseDcmFile(fileFormat, Tags.SOPInstanceUID + 1);
+			DicomHeaderCache.parsed(parser.getStreamPosition());
+			return header.getString(Tags.SOPInstanceUID);
+		}
+		finally { in.close(); }
 	}
 
 	/**
@@ -425,6 +468,17 @@ public class DicomObject extends FileObject {
 		return rows;
 	}
 
+	/**
+	 * Convenience method to get the integer value of the BitsAllocated element.
+	 * @return the integer value of the BitsAllocated element or -1 if the element does not exist.
+	 */
+	public int getBitsAllocated() {
+		int bitsAllocated = -1;
+		try {bitsAllocated = dataset.getInteger(Tags.BitsAllocated).intValue();}
+		catch (Exception e) { };
+		return bitsAllocated;
+	}
+
 	/**
 	 * Convenience method to get the integer value of the BitsStored element.
 	 * @return the integer value of the Columns element or 12 if the element does not exist.
@@ -457,6 +511,14 @@ public class DicomObject extends FileObject {
 		return isImage;
 	}
 
+	/**
+	 * Get the offset of the value of the PixelData element in the file.
+	 * @return the offset, or -1 if the object does not contain PixelData.
+	 */
+	public long getPixelDataOffset() {
+		return pixelDataOffset;
+	}
+
 	/**
 	 * Tests whether the DicomObject corresponds to a raw data object.
 	 * The test is done by comparing the SOPClassUID to the value of
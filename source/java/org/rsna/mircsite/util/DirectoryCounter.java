@@ -0,0 +1,99 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.mircsite.util;
+
+import java.io.File;
+import java.util.Hashtable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A live count of the files in a queue directory, so that the admin
+ * pages can report queue depths without listing the directories.
+ * <p>
+ * The count is taken from a listing of the directory the first time it
+ * is requested. After that, it is maintained by the components which
+ * change the directory: a component which adds a file calls increment,
+ * one which removes a file calls decrement, and one which lists the
+ * directory for its own purposes calls set with the number of files it
+ * found, which corrects any drift.
+ * <p>
+ * There is one counter for each directory, obtained with the get method.
+ */
+public class DirectoryCounter {
+
+	private static final Hashtable<String,DirectoryCounter> counters =
+								new Hashtable<String,DirectoryCounter>();
+
+	private final File dir;
+	private final AtomicInteger count = new AtomicInteger();
+	private volatile boolean initialized = false;
+
+	/**
+	 * Get the counter for a directory, creating it if necessary.
+	 * @param dir the directory.
+	 * @return the counter for the directory.
+	 */
+	public static synchronized DirectoryCounter get(File dir) {
+		String key = dir.getAbsolutePath();
+		DirectoryCounter counter = counters.get(key);
+		if (counter == null) {
+			counter = new DirectoryCounter(dir);
+			counters.put(key, counter);
+		}
+		return counter;
+	}
+
+	//Use the get method to obtain a DirectoryCounter.
+	private DirectoryCounter(File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Count a file added to the directory.
+	 */
+	public void increment() {
+		if (initialized) count.incrementAndGet();
+	}
+
+	/**
+	 * Count a file removed from the directory.
+	 */
+	public void decrement() {
+		if (!initialized) return;
+		int n;
+		do {
+			n = count.get();
+			if (n <= 0) return;
+		} while (!count.compareAndSet(n, n-1));
+	}
+
+	/**
+	 * Set the count from a listing of the directory.
+	 * @param n the number of files in the directory.
+	 */
+	public void set(int n) {
+		count.set(Math.max(n, 0));
+		initialized = true;
+	}
+
+	/**
+	 * Get the number of files in the directory. If the count has
+	 * not been set since the counter was created, the directory is
+	 * listed to obtain it.
+	 * @return the number of files in the directory.
+	 */
+	public int getCount() {
+		if (!initialized) {
+			synchronized (this) {
+				if (!initialized) set(FileUtil.getFileCount(dir));
+			}
+		}
+		return count.get();
+	}
+
+}
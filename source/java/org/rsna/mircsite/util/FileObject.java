@@ -42,7 +42,7 @@ public class FileObject {
 		name = name.replaceAll(target,replacement);
 		File newFile = new File(file.getParentFile(),name);
 		file.renameTo(newFile);
-		file = newFile;
+		moved(newFile);
 	}
 
 	/**
@@ -76,7 +76,7 @@ public class FileObject {
 		}
 		File newFile = new File(file.getParentFile(),name+extension);
 		file.renameTo(newFile);
-		file = newFile;
+		moved(newFile);
 		return file;
 	}
 
@@ -188,7 +188,7 @@ public class FileObject {
 		if (newFile.isDirectory())
 			newFile = new File(newFile,file.getName());
 		boolean ok = file.renameTo(newFile);
-		if (ok) file = newFile;
+		if (ok) moved(newFile);
 		return ok;
 	}
 
@@ -230,7 +230,7 @@ public class FileObject {
 			//If that worked, then delete the original.
 			if (ok) file.delete();
 		}
-		if (ok) file = newFile;
+		if (ok) moved(newFile);
 		return ok;
 	}
 
@@ -310,10 +310,17 @@ public class FileObject {
 			//If that worked, then delete the original.
 			if (ok) file.delete();
 		}
-		if (ok) file = newFile;
+		if (ok) moved(newFile);
 		return ok;
 	}
 
+	//Point to the file in its new location, keeping
+	//its parsed DICOM header, if any, in the cache.
+	private void moved(File newFile) {
+		DicomHeaderCache.rename(file,newFile);
+		file = newFile;
+	}
+
 	/**
 	 * Set the last modified time of the file to the current time.
 	 */
@@ -347,45 +354,155 @@ public class FileObject {
 
 	/**
 	 * Factory to create a FileObject from a File, instantiating the
-	 * correct subclass of FileObject.
+	 * correct subclass of FileObject. The type of the file is determined
+	 * from its first few bytes (see getType), and only the parser for
+	 * that type is tried. If the parser fails, a FileObject is returned.
 	 * @param file the file to use to instantiate the FileObject.
 	 * @return the instantiated FileObject.
 	 */
 	public static FileObject getObject(File file) {
-
-		//First try to parse the object based on its extension.
-		String name = file.getName().toLowerCase();
-		boolean triedDICOM = false;
-		boolean triedXML = false;
-		boolean triedZip = false;
 		FileObject fileObject = null;
-		if (name.endsWith(".xml")) {
-			fileObject = tryXml(file);
-			triedXML = true;
+		int type = getType(file);
+		if (type == DICOM) fileObject = tryDicom(file);
+		else if (type == ZIP) fileObject = tryZip(file);
+		else if (type == XML) fileObject = tryXml(file);
+		if (fileObject == null)
+			fileObject = new FileObject(file);
+		return fileObject;
+	}
+
+	/** The type of a file which is not a DICOM, zip, or XML file. */
+	public static final int UNKNOWN = 0;
+
+	/** The type of a DICOM file, with or without the preamble. */
+	public static final int DICOM = 1;
+
+	/** The type of a zip file. */
+	public static final int ZIP = 2;
+
+	/** The type of an XML file. */
+	public static final int XML = 3;
+
+	static final int sniffLength = 4096;
+
+	/**
+	 * Determine the type of a file from its first few bytes, without parsing it.
+	 * A DICOM file is recognized by the "DICM" prefix after the 128-byte preamble,
+	 * or, for a dataset written without the preamble, by a first element whose tag,
+	 * VR, and length are plausible in any of the standard transfer syntaxes. A zip
+	 * file is recognized by its local file header signature. An XML file is
+	 * recognized by a '<' at the start of the file, after an optional byte order
+	 * mark and whitespace, in UTF-8 or UTF-16.
+	 * @param file the file.
+	 * @return the type of the file (UNKNOWN, DICOM, ZIP, or XML).
+	 */
+	public static int getType(File file) {
+		byte[] b = new byte[sniffLength];
+		int n = 0;
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			int k;
+			while ((n < b.length) && ((k = in.read(b, n, b.length - n)) > 0)) n += k;
 		}
-		else if (name.endsWith(".zip")) {
-			fileObject = tryZip(file);
-			triedZip = true;
+		catch (Exception ex) { return UNKNOWN; }
+		finally {
+			try { if (in != null) in.close(); }
+			catch (Exception ignore) { }
+		}
+		if ((n >= 132) && (b[128] == 'D') && (b[129] == 'I') && (b[130] == 'C') && (b[131] == 'M'))
+			return DICOM;
+		if ((n >= 4) && (b[0] == 'P') && (b[1] == 'K')
+				&& (((b[2] == 3) && (b[3] == 4)) || ((b[2] == 5) && (b[3] == 6))))
+			return ZIP;
+		if (isXml(b, n)) return XML;
+		long length = file.length();
+		if (isDicomElement(b, n, length, false, false)
+				|| isDicomElement(b, n, length, true, false)
+				|| isDicomElement(b, n, length, true, true))
+			return DICOM;
+		return UNKNOWN;
+	}
+
+	//Determine whether a buffer starts with markup.
+	private static boolean isXml(byte[] b, int n) {
+		int i = 0;
+		int step = 1;
+		if ((n >= 3) && ((b[0] & 0xff) == 0xef) && ((b[1] & 0xff) == 0xbb) && ((b[2] & 0xff) == 0xbf)) i = 3;
+		else if ((n >= 2) && ((b[0] & 0xff) == 0xfe) && ((b[1] & 0xff) == 0xff)) { i = 3; step = 2; }
+		else if ((n >= 2) && ((b[0] & 0xff) == 0xff) && ((b[1] & 0xff) == 0xfe)) { i = 2; step = 2; }
+		else if ((n >= 2) && (b[0] == 0) && (b[1] == '<')) { i = 1; step = 2; }
+		else if ((n >= 2) && (b[0] == '<') && (b[1] == 0)) step = 2;
+		//In UTF-16, i points to the byte of each character that holds the ASCII code.
+		for (; i<n; i+=step) {
+			if ((b[i] == ' ') || (b[i] == '\t') || (b[i] == '\r') || (b[i] == '\n')) continue;
+			return (b[i] == '<');
+		}
+		return false;
+	}
+
+	//Determine whether a buffer starts with a DICOM element in one
+	//of the standard encodings (implicit VR little endian, explicit VR
+	//little endian, or explicit VR big endian), followed by an element
+	//with a larger tag. If the value of the first element is longer
+	//than the buffer or has an undefined length, only the first
+	//element is checked.
+	private static boolean isDicomElement(byte[] b, int n, long fileLength, boolean explicit, boolean bigEndian) {
+		if (n < 12) return false;
+		long tag = getTag(b, 0, bigEndian);
+		int group = (int)(tag >> 16);
+		if ((group < 2) || ((group & 1) != 0) || (group > 0x7fe0)) return false;
+		long length;
+		int next;
+		if (explicit) {
+			if (!isVR(b[4], b[5])) return false;
+			if (isLongVR(b[4], b[5])) {
+				length = getInt(b, 8, bigEndian);
+				next = 12;
+			}
+			else {
+				length = getShort(b, 6, bigEndian);
+				next = 8;
+			}
 		}
 		else {
-			fileObject = tryDicom(file);
-			triedDICOM = true;
+			length = getInt(b, 4, bigEndian);
+			next = 8;
 		}
-		if (fileObject != null) return fileObject;
+		if (length == 0xffffffffL) return true;
+		if (next + length > fileLength) return false;
+		if (next + length + 4 > n) return true;
+		return getTag(b, next + (int)length, bigEndian) > tag;
+	}
 
-		//That didn't work, now try the untried possibilities.
-		if (!triedDICOM)
-			fileObject = tryDicom(file);
+	//Determine whether two bytes are a DICOM VR.
+	private static boolean isVR(byte c1, byte c2) {
+		String vrs = "AE AS AT CS DA DS DT FL FD IS LO LT OB OD OF OL OW PN SH SL SQ SS ST TM UC UI UL UN UR US UT";
+		if ((c1 < 'A') || (c1 > 'Z') || (c2 < 'A') || (c2 > 'Z')) return false;
+		return vrs.indexOf(new String(new char[] {(char)c1, (char)c2})) != -1;
+	}
 
-		if ((fileObject == null) && !triedZip)
-			fileObject = tryZip(file);
+	//Determine whether a VR has a 4-byte length.
+	private static boolean isLongVR(byte c1, byte c2) {
+		String vr = new String(new char[] {(char)c1, (char)c2});
+		return "OB OD OF OL OW SQ UC UN UR UT".indexOf(vr) != -1;
+	}
 
-		if ((fileObject == null) && !triedXML)
-			fileObject = tryXml(file);
+	//Get a tag (group and element) as an unsigned integer.
+	private static long getTag(byte[] b, int i, boolean bigEndian) {
+		return (getShort(b, i, bigEndian) << 16) | getShort(b, i+2, bigEndian);
+	}
 
-		if (fileObject == null)
-			fileObject = new FileObject(file);
-		return fileObject;
+	//Get an unsigned 2-byte integer.
+	private static long getShort(byte[] b, int i, boolean bigEndian) {
+		if (bigEndian) return ((b[i] & 0xff) << 8) | (b[i+1] & 0xff);
+		return ((b[i+1] & 0xff) << 8) | (b[i] & 0xff);
+	}
+
+	//Get an unsigned 4-byte integer.
+	private static long getInt(byte[] b, int i, boolean bigEndian) {
+		if (bigEndian) return (getShort(b, i, true) << 16) | getShort(b, i+2, true);
+		return (getShort(b, i+2, false) << 16) | getShort(b, i, false);
 	}
 
 	private static DicomObject tryDicom(File file) {
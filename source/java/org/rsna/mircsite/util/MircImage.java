@@ -407,6 +407,28 @@ public class MircImage {
 		return saveAsJPEG(new File(name), maxSize, minSize);
 	}
 
+	/**
+	 * Get the dimensions of the image which getScaledBufferedImage
+	 * would create for an image of a specified size, without
+	 * loading or scaling the pixels.
+	 * @param width the width of the source image.
+	 * @param height the height of the source image.
+	 * @param maxSize the maximum width of the scaled image;
+	 * @param minSize the minimum width of the scaled image;
+	 * @return the dimensions of the scaled image.
+	 */
+	public static Dimension getScaledDimension(int width, int height, int maxSize, int minSize) {
+		if (minSize > maxSize) minSize = maxSize;
+		if ((width <= 0) || ((minSize <= width) && (width <= maxSize)))
+			return new Dimension(width, height);
+		double scale;
+		if (width >= minSize)
+			scale = (width > maxSize) ? (double)maxSize/(double)width : 1.0D;
+		else
+			scale = (double)minSize/(double)width;
+		return new Dimension((int)(width*scale), (int)(height*scale));
+	}
+
 	/**
 	 * Save the image as a JPEG, scaling it to a specified size
 	 * and using the default quality setting.
@@ -37,6 +37,8 @@ public class RadLexIndex {
 	private static final String xmlName = "radlex.xml";
 	private static final String radlexTreeName = "radlex";
 	private static BTree index = null;
+	private static volatile RadLexTagger tagger = null;
+	private static volatile RadLexSuggester suggester = null;
 
 	/**
 	 * Load the RadLex index from the JDBM files,
@@ -49,11 +51,44 @@ public class RadLexIndex {
 				recman = getRecordManager(indexFile.getAbsolutePath());
 				index = getBTree(recman, radlexTreeName);
 				if (index.size() == 0) createIndex(dir);
+				else compileTerms(getTermList(dir));
 			}
 			catch (Exception ignore) { }
 		}
 	}
 
+	//Compile the in-memory RadLexTagger and RadLexSuggester.
+	private static void compileTerms(ArrayList<Term> terms) {
+		try {
+			long startTime = System.currentTimeMillis();
+			tagger = new RadLexTagger(terms);
+			suggester = new RadLexSuggester(terms);
+			logger.info("RadLex terms compiled: " + terms.size() + " terms in "
+							+ (System.currentTimeMillis() - startTime) + " ms");
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to compile the RadLex terms", ex);
+		}
+	}
+
+	/**
+	 * Get the compiled RadLex matcher. The matcher is immutable and
+	 * can be used without synchronization.
+	 * @return the RadLexTagger, or null if the index has not been loaded.
+	 */
+	public static RadLexTagger getTagger() {
+		return tagger;
+	}
+
+	/**
+	 * Get the compiled RadLex autocompletion trie. The trie is immutable
+	 * and can be used without synchronization.
+	 * @return the RadLexSuggester, or null if the index has not been loaded.
+	 */
+	public static RadLexSuggester getSuggester() {
+		return suggester;
+	}
+
 	/**
 	 * Commit changes and close the index.
 	 * No errors are reported and no operations
@@ -165,33 +200,12 @@ public class RadLexIndex {
 			recman = getRecordManager(filename);
 			index = getBTree(recman, radlexTreeName);
 
-			//Parse the XML file
-			DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-			dbf.setNamespaceAware(true);
-			DocumentBuilder db = dbf.newDocumentBuilder();
-			File xmlFile = new File(dir, xmlName);
-			Document radlex = db.parse(xmlFile);
-
 			//Put the terms in the index
-			Element root = radlex.getDocumentElement();
-			Node child = root.getFirstChild();
-			while (child != null) {
-				if ((child.getNodeType() == Node.ELEMENT_NODE) && child.getNodeName().equals("term")) {
-					Element term = (Element)child;
-					String id = term.getAttribute("id");
-					Node name = term.getFirstChild();
-					while (name != null) {
-						if ((name.getNodeType() == Node.ELEMENT_NODE) && name.getNodeName().equals("name")) {
-							String nameString = name.getTextContent();
-							Term t = new Term(id, nameString);
-							addTerm(t);
-							break;
-						}
-						name = name.getNextSibling();
-					}
-				}
-				child = child.getNextSibling();
-			}
+			ArrayList<Term> terms = getTermList(dir);
+			for (Term t : terms) addTerm(t);
+
+			//Compile the in-memory structures from the same terms
+			compileTerms(terms);
 		}
 		catch (Exception quit) { }
 		finally {
@@ -207,6 +221,37 @@ public class RadLexIndex {
 		}
 	}
 
+	//Parse the radlex.xml file into a list of terms,
+	//in the order in which they appear in the file.
+	private static ArrayList<Term> getTermList(File dir) throws Exception {
+		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+		dbf.setNamespaceAware(true);
+		DocumentBuilder db = dbf.newDocumentBuilder();
+		File xmlFile = new File(dir, xmlName);
+		Document radlex = db.parse(xmlFile);
+
+		ArrayList<Term> terms = new ArrayList<Term>();
+		Element root = radlex.getDocumentElement();
+		Node child = root.getFirstChild();
+		while (child != null) {
+			if ((child.getNodeType() == Node.ELEMENT_NODE) && child.getNodeName().equals("term")) {
+				Element term = (Element)child;
+				String id = term.getAttribute("id");
+				Node name = term.getFirstChild();
+				while (name != null) {
+					if ((name.getNodeType() == Node.ELEMENT_NODE) && name.getNodeName().equals("name")) {
+						String nameString = name.getTextContent();
+						terms.add(new Term(id, nameString));
+						break;
+					}
+					name = name.getNextSibling();
+				}
+			}
+			child = child.getNextSibling();
+		}
+		return terms;
+	}
+
 	//Add a term to the index
 	private static void addTerm(Term term) {
 		try {
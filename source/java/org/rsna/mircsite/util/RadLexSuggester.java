@@ -0,0 +1,221 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.mircsite.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+
+/**
+ * An immutable compressed prefix trie of RadLex term names for
+ * autocompletion. Names are indexed in lower case, starting at their
+ * first letter. Each node holds the best MAX_SUGGESTIONS terms below it,
+ * ranked by length (shortest first) and then alphabetically, so a lookup
+ * costs only the length of the prefix plus the number of terms returned.
+ * <p>
+ * Instances can be shared by any number of threads without synchronization.
+ */
+public class RadLexSuggester {
+
+	/** The maximum number of terms which can be returned for a prefix. */
+	public static final int MAX_SUGGESTIONS = 100;
+
+	private final Node root;
+	private final Term[] terms;		//all the terms, in rank order
+
+	/**
+	 * Build the trie for a list of terms.
+	 * @param termList the terms.
+	 */
+	public RadLexSuggester(List<Term> termList) {
+		terms = termList.toArray(new Term[termList.size()]);
+		Arrays.sort(terms, new RankComparator());
+
+		//Sort the term indexes by name and build the trie from the sorted list.
+		final String[] names = new String[terms.length];
+		ArrayList<Integer> list = new ArrayList<Integer>();
+		for (int i=0; i<terms.length; i++) {
+			names[i] = getIndexedName(terms[i].text);
+			if (names[i].length() > 0) list.add(new Integer(i));
+		}
+		Collections.sort(list, new Comparator<Integer>() {
+			public int compare(Integer i1, Integer i2) {
+				return names[i1.intValue()].compareTo(names[i2.intValue()]);
+			}
+		});
+		int[] order = toArray(list);
+		root = build(names, order, 0, order.length, 0, true);
+	}
+
+	/**
+	 * Get the number of terms in the trie.
+	 * @return the number of terms.
+	 */
+	public int getTermCount() {
+		return terms.length;
+	}
+
+	/**
+	 * Get the best terms whose names start with a prefix, ignoring case
+	 * and leading non-letters.
+	 * @param prefix the beginning of the term names.
+	 * @param limit the maximum number of terms to return. Values above
+	 * MAX_SUGGESTIONS are reduced to MAX_SUGGESTIONS.
+	 * @return the matching terms, best first.
+	 */
+	public Term[] getSuggestions(String prefix, int limit) {
+		if (limit > MAX_SUGGESTIONS) limit = MAX_SUGGESTIONS;
+		if ((prefix == null) || (limit <= 0)) return new Term[0];
+		String key = getIndexedName(prefix);
+		if (key.length() == 0) return new Term[0];
+		Node node = root;
+		int k = 0;
+		while (k < key.length()) {
+			Node child = node.getChild(key.charAt(k));
+			if (child == null) return new Term[0];
+			int n = Math.min(child.label.length(), key.length() - k);
+			if (!key.regionMatches(k, child.label, 0, n)) return new Term[0];
+			k += n;
+			node = child;
+		}
+		int count = Math.min(limit, node.best.length);
+		Term[] result = new Term[count];
+		for (int i=0; i<count; i++) result[i] = terms[node.best[i]];
+		return result;
+	}
+
+	/**
+	 * Write the best terms whose names start with a prefix as an XML
+	 * RadLexTerms element, in the form produced by
+	 * RadLexIndex.getSuggestedTerms.
+	 * @param prefix the beginning of the term names.
+	 * @param limit the maximum number of terms to return.
+	 * @param out the Writer to receive the XML text.
+	 * @throws IOException if the text cannot be written.
+	 */
+	public void writeSuggestions(String prefix, int limit, Writer out) throws IOException {
+		Term[] result = getSuggestions(prefix, limit);
+		if (result.length == 0) {
+			out.write("<RadLexTerms/>");
+			return;
+		}
+		out.write("<RadLexTerms>");
+		for (int i=0; i<result.length; i++) {
+			out.write("<term id=\"");
+			out.write(XmlStringUtil.escapeChars(result[i].id));
+			out.write("\">");
+			out.write(XmlStringUtil.escapeChars(result[i].text));
+			out.write("</term>");
+		}
+		out.write("</RadLexTerms>");
+	}
+
+	//Get the string under which a name is indexed:
+	//the lower-case name starting at its first letter.
+	static String getIndexedName(String name) {
+		int k = 0;
+		while ((k < name.length()) && !Character.isLetter(name.charAt(k))) k++;
+		return name.substring(k).toLowerCase();
+	}
+
+	//Build the node for a range of the sorted names which share their
+	//first d characters. The node's label extends to the longest prefix
+	//common to all the names in the range (which, since the names are
+	//sorted, is the common prefix of the first and last names). The best
+	//terms for the node are merged from the terms ending at the node and
+	//the best terms of its children.
+	private static Node build(String[] names, int[] order, int lo, int hi, int d, boolean isRoot) {
+		int lcp = d;
+		if (!isRoot && (hi > lo)) {
+			String first = names[order[lo]];
+			String last = names[order[hi-1]];
+			int max = Math.min(first.length(), last.length());
+			while ((lcp < max) && (first.charAt(lcp) == last.charAt(lcp))) lcp++;
+		}
+		String label = isRoot ? "" : names[order[lo]].substring(d, lcp);
+
+		//The names which end here come first in the range.
+		int k = lo;
+		ArrayList<Integer> ranks = new ArrayList<Integer>();
+		while ((k < hi) && (names[order[k]].length() == lcp)) ranks.add(new Integer(order[k++]));
+		Collections.sort(ranks);
+		int[] best = merge(new int[0], toArray(ranks));
+
+		//Partition the rest by the next character.
+		ArrayList<Node> children = new ArrayList<Node>();
+		while (k < hi) {
+			char c = names[order[k]].charAt(lcp);
+			int j = k;
+			while ((j < hi) && (names[order[j]].charAt(lcp) == c)) j++;
+			Node child = build(names, order, k, j, lcp, false);
+			best = merge(best, child.best);
+			children.add(child);
+			k = j;
+		}
+		return new Node(label, children.toArray(new Node[children.size()]), best);
+	}
+
+	private static int[] toArray(List<Integer> list) {
+		int[] array = new int[list.size()];
+		for (int i=0; i<array.length; i++) array[i] = list.get(i).intValue();
+		return array;
+	}
+
+	//Merge two sorted rank arrays, keeping at most MAX_SUGGESTIONS.
+	private static int[] merge(int[] a, int[] b) {
+		int n = Math.min(a.length + b.length, MAX_SUGGESTIONS);
+		int[] c = new int[n];
+		int i = 0;
+		int j = 0;
+		for (int k=0; k<n; k++) {
+			if ((j >= b.length) || ((i < a.length) && (a[i] < b[j]))) c[k] = a[i++];
+			else c[k] = b[j++];
+		}
+		return c;
+	}
+
+	//A node of the compressed trie. The label is the
+	//text of the edge which leads to the node.
+	static class Node {
+		final String label;
+		final char[] firstChars;
+		final Node[] children;
+		final int[] best;
+
+		public Node(String label, Node[] children, int[] best) {
+			this.label = label;
+			this.children = children;
+			this.best = best;
+			firstChars = new char[children.length];
+			for (int i=0; i<children.length; i++) firstChars[i] = children[i].label.charAt(0);
+		}
+
+		//The children are in character order, so use a binary search.
+		Node getChild(char c) {
+			int lo = 0;
+			int hi = firstChars.length - 1;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				if (firstChars[mid] < c) lo = mid + 1;
+				else if (firstChars[mid] > c) hi = mid - 1;
+				else return children[mid];
+			}
+			return null;
+		}
+	}
+
+	//Rank terms by length, then alphabetically.
+	static class RankComparator implements Comparator<Term> {
+		public int compare(Term t1, Term t2) {
+			int c = t1.text.length() - t2.text.length();
+			if (c != 0) return c;
+			return t1.text.compareToIgnoreCase(t2.text);
+		}
+	}
+
+}
@@ -0,0 +1,263 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.mircsite.util;
+
+import java.util.*;
+
+/**
+ * An immutable Aho-Corasick automaton for finding RadLex terms in text.
+ * <p>
+ * The automaton is compiled once from the list of terms and can then be
+ * used by any number of threads without synchronization. Matching is
+ * case-insensitive. A match must begin at the start of a word and end at
+ * the end of a word, where a word is a run of letters, and a term must be
+ * at least MIN_LENGTH characters long. When several terms match, the
+ * leftmost one is selected, and among those starting at the same place,
+ * the longest one is selected. Matches do not overlap. These are the
+ * same rules as the original word-by-word search of the RadLexIndex.
+ */
+public class RadLexTagger {
+
+	/** The minimum length of a term which can be matched. */
+	public static final int MIN_LENGTH = 5;
+
+	//The trie, stored in arrays indexed by node number.
+	//Node 0 is the root. The children of node n are in
+	//edgeChars and edgeTargets from edgeStart[n] to
+	//edgeStart[n+1], sorted by character.
+	private final int[] edgeStart;
+	private final char[] edgeChars;
+	private final int[] edgeTargets;
+	private final int[] fail;		//the longest proper suffix node
+	private final int[] output;		//the nearest node on the fail chain (or self) which ends a term, or -1
+	private final int[] depth;		//the length of the string which leads to the node
+	private final int[] termIndex;	//the index of the term ending at the node, or -1
+	private final String[] ids;
+	private final int termCount;
+
+	/**
+	 * Compile the automaton for a list of terms. Terms shorter than
+	 * MIN_LENGTH are ignored. If two terms have the same text, the
+	 * first one in the list is used.
+	 * @param terms the terms.
+	 */
+	public RadLexTagger(List<Term> terms) {
+		//Build the trie in first-child/next-sibling form.
+		Builder b = new Builder();
+		ArrayList<String> idList = new ArrayList<String>();
+		for (Term term : terms) {
+			String text = term.text;
+			if (text.length() < MIN_LENGTH) continue;
+			int node = 0;
+			for (int i=0; i<text.length(); i++) {
+				node = b.getChild(node, Character.toLowerCase(text.charAt(i)));
+			}
+			if (b.term[node] == -1) {
+				b.term[node] = idList.size();
+				idList.add(term.id);
+			}
+		}
+		int n = b.size;
+		ids = idList.toArray(new String[idList.size()]);
+		termCount = ids.length;
+
+		//Flatten the trie into sorted edge arrays.
+		edgeStart = new int[n + 1];
+		edgeChars = new char[n - 1];
+		edgeTargets = new int[n - 1];
+		depth = new int[n];
+		termIndex = new int[n];
+		int e = 0;
+		for (int node=0; node<n; node++) {
+			edgeStart[node] = e;
+			termIndex[node] = b.term[node];
+			for (int c=b.firstChild[node]; c!=-1; c=b.nextSibling[c]) {
+				edgeChars[e] = b.label[c];
+				edgeTargets[e] = c;
+				depth[c] = depth[node] + 1;
+				e++;
+			}
+			sortEdges(edgeStart[node], e);
+		}
+		edgeStart[n] = e;
+
+		//Compute the failure and output links breadth-first.
+		fail = new int[n];
+		output = new int[n];
+		output[0] = -1;
+		int[] queue = new int[n];
+		int head = 0;
+		int tail = 0;
+		queue[tail++] = 0;
+		while (head < tail) {
+			int node = queue[head++];
+			for (int k=edgeStart[node]; k<edgeStart[node+1]; k++) {
+				int child = edgeTargets[k];
+				char c = edgeChars[k];
+				int f = 0;
+				if (node != 0) {
+					f = fail[node];
+					int next;
+					while (((next = getChild(f, c)) == -1) && (f != 0)) f = fail[f];
+					f = (next == -1) ? 0 : next;
+				}
+				fail[child] = f;
+				output[child] = (termIndex[child] != -1) ? child : output[f];
+				queue[tail++] = child;
+			}
+		}
+	}
+
+	/**
+	 * Get the number of terms in the automaton.
+	 * @return the number of terms.
+	 */
+	public int getTermCount() {
+		return termCount;
+	}
+
+	/**
+	 * Find all the non-overlapping RadLex terms in a string,
+	 * in a single pass over the string.
+	 * @param text the string to search.
+	 * @return the matches, in order of their positions in the string.
+	 */
+	public Match[] getMatches(String text) {
+		int len = text.length();
+		int[] best = null;
+		int state = 0;
+		for (int i=0; i<len; i++) {
+			char c = Character.toLowerCase(text.charAt(i));
+			int next;
+			while (((next = getChild(state, c)) == -1) && (state != 0)) state = fail[state];
+			state = (next == -1) ? 0 : next;
+
+			//Check the terms which end here, if this is the end of a word.
+			if ((output[state] != -1) && ((i+1 == len) || !Character.isLetter(text.charAt(i+1)))) {
+				for (int o=output[state]; o!=-1; o=output[fail[o]]) {
+					int start = i + 1 - depth[o];
+					if (Character.isLetter(text.charAt(start))
+							&& ((start == 0) || !Character.isLetter(text.charAt(start-1)))) {
+						if (best == null) best = new int[len];
+						if (depth[o] > best[start]) best[start] = depth[o];
+					}
+				}
+			}
+		}
+		if (best == null) return new Match[0];
+
+		//Select the leftmost-longest matches.
+		ArrayList<Match> matches = new ArrayList<Match>();
+		int start = 0;
+		while (start < len) {
+			int length = best[start];
+			if (length > 0) {
+				int node = find(text, start, length);
+				matches.add(new Match(start, length, ids[termIndex[node]]));
+				start += length;
+			}
+			else start++;
+		}
+		return matches.toArray(new Match[matches.size()]);
+	}
+
+	/**
+	 * A term found in a string.
+	 */
+	public static class Match {
+		/** The index of the first character of the term. */
+		public final int start;
+		/** The number of characters in the term. */
+		public final int length;
+		/** The RadLex ID of the term. */
+		public final String id;
+
+		public Match(int start, int length, String id) {
+			this.start = start;
+			this.length = length;
+			this.id = id;
+		}
+	}
+
+	//Walk the trie from the root for a substring which is known to be a term.
+	private int find(String text, int start, int length) {
+		int node = 0;
+		for (int i=start; i<start+length; i++) {
+			node = getChild(node, Character.toLowerCase(text.charAt(i)));
+		}
+		return node;
+	}
+
+	//Get the child of a node for a character, or -1 if there is none.
+	private int getChild(int node, char c) {
+		int lo = edgeStart[node];
+		int hi = edgeStart[node+1] - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			char m = edgeChars[mid];
+			if (m < c) lo = mid + 1;
+			else if (m > c) hi = mid - 1;
+			else return edgeTargets[mid];
+		}
+		return -1;
+	}
+
+	//Insertion sort of a range of edges by character; most nodes have one or two children.
+	private void sortEdges(int from, int to) {
+		for (int i=from+1; i<to; i++) {
+			char c = edgeChars[i];
+			int t = edgeTargets[i];
+			int j = i - 1;
+			while ((j >= from) && (edgeChars[j] > c)) {
+				edgeChars[j+1] = edgeChars[j];
+				edgeTargets[j+1] = edgeTargets[j];
+				j--;
+			}
+			edgeChars[j+1] = c;
+			edgeTargets[j+1] = t;
+		}
+	}
+
+	//A growable trie used while compiling the automaton.
+	static class Builder {
+		int size = 1;
+		int[] firstChild = new int[] { -1 };
+		int[] nextSibling = new int[] { -1 };
+		char[] label = new char[] { 0 };
+		int[] term = new int[] { -1 };
+
+		int getChild(int node, char c) {
+			for (int k=firstChild[node]; k!=-1; k=nextSibling[k]) {
+				if (label[k] == c) return k;
+			}
+			if (size == firstChild.length) {
+				int cap = size * 2;
+				firstChild = grow(firstChild, cap);
+				nextSibling = grow(nextSibling, cap);
+				term = grow(term, cap);
+				char[] newLabel = new char[cap];
+				System.arraycopy(label, 0, newLabel, 0, size);
+				label = newLabel;
+			}
+			int k = size++;
+			firstChild[k] = -1;
+			label[k] = c;
+			term[k] = -1;
+			nextSibling[k] = firstChild[node];
+			firstChild[node] = k;
+			return k;
+		}
+
+		int[] grow(int[] array, int cap) {
+			int[] newArray = new int[cap];
+			System.arraycopy(array, 0, newArray, 0, size);
+			return newArray;
+		}
+	}
+
+}
@@ -0,0 +1,97 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.mircsite.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded lock-free queue for many producer threads and one consumer
+ * thread. Producers claim a slot with a compare-and-set on the tail
+ * counter and never block; when the buffer is full, offer returns false
+ * and the object is counted as dropped.
+ * <p>
+ * Only one thread may call the poll method.
+ */
+public class RingBuffer<T> {
+
+	private final AtomicReferenceArray<T> slots;
+	private final int capacity;
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile long head = 0;
+
+	/**
+	 * Create a RingBuffer.
+	 * @param capacity the maximum number of objects in the buffer.
+	 */
+	public RingBuffer(int capacity) {
+		this.capacity = capacity;
+		slots = new AtomicReferenceArray<T>(capacity);
+	}
+
+	/**
+	 * Add an object to the buffer if there is room.
+	 * @param object the object.
+	 * @return true if the object was added; false if the buffer was full.
+	 */
+	public boolean offer(T object) {
+		while (true) {
+			long t = tail.get();
+			if (t - head >= capacity) {
+				dropped.incrementAndGet();
+				return false;
+			}
+			if (tail.compareAndSet(t, t+1)) {
+				slots.set((int)(t % capacity), object);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Remove the oldest object from the buffer. This method must
+	 * only be called by the consumer thread.
+	 * @return the object, or null if the buffer is empty or the
+	 * producer which claimed the oldest slot has not yet filled it.
+	 */
+	public T poll() {
+		int k = (int)(head % capacity);
+		T object = slots.get(k);
+		if (object == null) return null;
+		slots.set(k, null);
+		head++;
+		return object;
+	}
+
+	/**
+	 * Get the number of objects in the buffer.
+	 * @return the number of objects.
+	 */
+	public int size() {
+		return (int)Math.max(0, tail.get() - head);
+	}
+
+	/**
+	 * Get the capacity of the buffer.
+	 * @return the maximum number of objects in the buffer.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Get the number of objects which could not be added
+	 * because the buffer was full.
+	 * @return the number of dropped objects.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+}
@@ -18,6 +18,8 @@ import javax.servlet.http.*;
  */
 public class ServletUtil {
 
+	static final int fileBufferSize = 64 * 1024;
+
 	/**
 	 * Sends a String in the HttpServletResponse with caching turned off.
 	 * @param res the HttpServletResponse provided by the servlet container.
@@ -153,31 +155,214 @@ public class ServletUtil {
 						String contentType,
 						File file,
 						boolean addDispositionHeader) {
-		int bytecount = 0;
-		try {
-			FileInputStream fis = new FileInputStream(file);
-			res.setContentType(contentType);
-			if (addDispositionHeader) {
-				String disposition = "attachment; filename=\"" + file.getName() + "\"";
-				res.addHeader("Content-Disposition",disposition);
+		return sendBinaryFileContents(null,res,contentType,file,addDispositionHeader);
+	}
+
+	/**
+	 * Sends a binary file in the HttpServletResponse, honoring the
+	 * conditional and range headers of the request.
+	 * <p>
+	 * The response carries ETag, Last-Modified and Accept-Ranges headers.
+	 * If the request's If-None-Match or If-Modified-Since header shows that
+	 * the client already has the file, SC_NOT_MODIFIED is returned with no
+	 * content. If the request contains a single byte range (optionally
+	 * qualified by If-Range), only that range is sent with SC_PARTIAL_CONTENT;
+	 * an unsatisfiable range gets SC_REQUESTED_RANGE_NOT_SATISFIABLE. Requests
+	 * for multiple ranges are answered with the whole file.
+	 * <p>
+	 * If the container supports sendfile (the Tomcat APR and NIO connectors
+	 * set the org.apache.tomcat.sendfile.support request attribute), the
+	 * file is handed to the connector, which copies it to the socket without
+	 * passing it through the JVM. The file must therefore not be deleted
+	 * when this method returns; callers which send temporary files must
+	 * use the methods without a request. Otherwise the file is copied to
+	 * the output stream through a large buffer.
+	 * @param req the HttpServletRequest provided by the servlet container,
+	 * or null if the conditional and range headers are to be ignored.
+	 * @param res the HttpServletResponse provided by the servlet container.
+	 * @param contentType the content type.
+	 * @param file the binary file.
+	 * @param addDispositionHeader true if a disposition header is to be added; false otherwise.
+	 * @return true if the file (or a status with no content) was sent; false otherwise.
+	 */
+	public static boolean sendBinaryFileContents(
+						HttpServletRequest req,
+						HttpServletResponse res,
+						String contentType,
+						File file,
+						boolean addDispositionHeader) {
+		return sendBinaryFileContents(req,res,contentType,file,addDispositionHeader,true);
+	}
+
+	/**
+	 * Sends a binary file in the HttpServletResponse, honoring the
+	 * conditional and range headers of the request, and optionally
+	 * copying the file through the JVM even if the container supports
+	 * sendfile. Callers which may delete or replace the file as soon
+	 * as this method returns (for example, files managed by a cache)
+	 * must not allow sendfile.
+	 * @param req the HttpServletRequest provided by the servlet container,
+	 * or null if the conditional and range headers are to be ignored.
+	 * @param res the HttpServletResponse provided by the servlet container.
+	 * @param contentType the content type.
+	 * @param file the binary file.
+	 * @param addDispositionHeader true if a disposition header is to be added; false otherwise.
+	 * @param allowSendfile true if the file may be handed to the connector; false
+	 * if it must be sent before this method returns.
+	 * @return true if the file (or a status with no content) was sent; false otherwise.
+	 */
+	public static boolean sendBinaryFileContents(
+						HttpServletRequest req,
+						HttpServletResponse res,
+						String contentType,
+						File file,
+						boolean addDispositionHeader,
+						boolean allowSendfile) {
+		if (!file.isFile()) {
+			sendError(res, HttpServletResponse.SC_NOT_FOUND);
+			return false;
+		}
+		long length = file.length();
+		long lastModified = (file.lastModified() / 1000) * 1000;
+		String etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+		res.setHeader("ETag", etag);
+		res.setDateHeader("Last-Modified", lastModified);
+		res.setHeader("Accept-Ranges", "bytes");
+
+		long start = 0;
+		long end = length - 1;
+		if (req != null) {
+			if (isNotModified(req, etag, lastModified)) {
+				res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return true;
+			}
+			String range = req.getHeader("Range");
+			if ((range != null) && ifRangeMatches(req, etag, lastModified)) {
+				long[] r = getRange(range, length);
+				if (r == null) {
+					res.setHeader("Content-Range", "bytes */" + length);
+					sendError(res, HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+					return false;
+				}
+				if (r.length == 2) {
+					start = r[0];
+					end = r[1];
+					res.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+					res.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+				}
 			}
-			res.addHeader("Content-Length",Long.toString(file.length()));
+		}
+		long count = end - start + 1;
+
+		res.setContentType(contentType);
+		if (addDispositionHeader) {
+			String disposition = "attachment; filename=\"" + file.getName() + "\"";
+			res.addHeader("Content-Disposition",disposition);
+		}
+		res.setHeader("Content-Length",Long.toString(count));
+
+		//Let the connector send the file if it can.
+		if ((req != null) && allowSendfile && (count > 0)
+				&& Boolean.TRUE.equals(req.getAttribute("org.apache.tomcat.sendfile.support"))) {
+			req.setAttribute("org.apache.tomcat.sendfile.filename", file.getAbsolutePath());
+			req.setAttribute("org.apache.tomcat.sendfile.start", new Long(start));
+			req.setAttribute("org.apache.tomcat.sendfile.end", new Long(end + 1));
+			return true;
+		}
+
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			raf.seek(start);
 			OutputStream out = res.getOutputStream();
+			byte[] b = new byte[(int)Math.max(1, Math.min(count, fileBufferSize))];
 			int len;
-			byte[] b = new byte[1024];
-			while ((len=fis.read(b)) > 0) {
+			while ((count > 0) && ((len=raf.read(b,0,(int)Math.min(count, b.length))) > 0)) {
 				out.write(b,0,len);
-				bytecount += len;
+				count -= len;
 			}
 			out.flush();
 			out.close();
-			fis.close();
 			return true;
 		}
 		catch (Exception e) { }
+		finally {
+			if (raf != null) {
+				try { raf.close(); }
+				catch (Exception ignore) { }
+			}
+		}
 		return false;
 	}
 
+	//Determine whether the client already has the current version of a file.
+	//If-None-Match takes precedence over If-Modified-Since.
+	private static boolean isNotModified(HttpServletRequest req, String etag, long lastModified) {
+		String ifNoneMatch = req.getHeader("If-None-Match");
+		if (ifNoneMatch != null) return matches(ifNoneMatch, etag);
+		try {
+			long ifModifiedSince = req.getDateHeader("If-Modified-Since");
+			return (ifModifiedSince != -1) && (lastModified <= ifModifiedSince);
+		}
+		catch (Exception ex) { return false; }
+	}
+
+	//Determine whether a Range header is to be honored. If there is an
+	//If-Range header, it must match either the ETag or the Last-Modified date.
+	private static boolean ifRangeMatches(HttpServletRequest req, String etag, long lastModified) {
+		String ifRange = req.getHeader("If-Range");
+		if (ifRange == null) return true;
+		ifRange = ifRange.trim();
+		if (ifRange.startsWith("\"")) return ifRange.equals(etag);
+		try { return (req.getDateHeader("If-Range") == lastModified); }
+		catch (Exception ex) { return false; }
+	}
+
+	//Determine whether an ETag list contains a specified ETag.
+	private static boolean matches(String list, String etag) {
+		if (list.trim().equals("*")) return true;
+		String[] tags = list.split(",");
+		for (int i=0; i<tags.length; i++) {
+			String tag = tags[i].trim();
+			if (tag.startsWith("W/")) tag = tag.substring(2);
+			if (tag.equals(etag)) return true;
+		}
+		return false;
+	}
+
+	//Parse a Range header for a file of a specified length.
+	//Return null if the range is not satisfiable; return an
+	//empty array if the header is to be ignored (malformed or
+	//multiple ranges); otherwise return {first, last}.
+	private static long[] getRange(String range, long length) {
+		range = range.trim();
+		if (!range.startsWith("bytes=")) return new long[0];
+		range = range.substring(6).trim();
+		if (range.indexOf(",") != -1) return new long[0];
+		int k = range.indexOf("-");
+		if (k == -1) return new long[0];
+		try {
+			String first = range.substring(0,k).trim();
+			String last = range.substring(k+1).trim();
+			long start, end;
+			if (first.equals("")) {
+				//Suffix range: the last n bytes
+				long n = Long.parseLong(last);
+				if (n <= 0) return null;
+				start = Math.max(0, length - n);
+				end = length - 1;
+			}
+			else {
+				start = Long.parseLong(first);
+				end = last.equals("") ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+			}
+			if (start >= length) return null;
+			if (end < start) return new long[0];
+			return new long[] { start, end };
+		}
+		catch (Exception ex) { return new long[0]; }
+	}
+
 	/**
 	 * Sends a text file in the HttpServletResponse.
 	 * @param res the HttpServletResponse provided by the servlet container.
@@ -0,0 +1,144 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.mircsite.util;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * A cache of compiled XSL transformation programs, keyed by the
+ * path of the XSL file. A cached program is recompiled when the
+ * last-modified time or length of its file changes. Changes to
+ * files included or imported by an XSL file are not detected.
+ * <p>
+ * The cache also counts compilations and transformations and
+ * accumulates the time spent in transformations.
+ */
+public class TemplatesCache {
+
+	private static final ConcurrentHashMap<String,CachedTemplates> cache =
+								new ConcurrentHashMap<String,CachedTemplates>();
+
+	private static final AtomicLong compileCount = new AtomicLong();
+	private static final AtomicLong transformCount = new AtomicLong();
+	private static final AtomicLong transformNanos = new AtomicLong();
+
+	/**
+	 * Get the compiled program for an XSL file, compiling
+	 * it if it is not in the cache or if it has changed.
+	 * @param xslFile the file containing the XSL transformation program.
+	 * @return the compiled program.
+	 * @throws TransformerConfigurationException if the program cannot be compiled.
+	 */
+	public static Templates getTemplates(File xslFile) throws TransformerConfigurationException {
+		String key = xslFile.getAbsolutePath();
+		long lastModified = xslFile.lastModified();
+		long length = xslFile.length();
+		CachedTemplates ct = cache.get(key);
+		if ((ct == null) || (ct.lastModified != lastModified) || (ct.length != length)) {
+			TransformerFactory tFactory = TransformerFactory.newInstance();
+			Templates templates = tFactory.newTemplates(new StreamSource(xslFile));
+			compileCount.incrementAndGet();
+			ct = new CachedTemplates(templates, lastModified, length);
+			cache.put(key, ct);
+		}
+		return ct.templates;
+	}
+
+	/**
+	 * Get a new Transformer for an XSL file. Transformers are not
+	 * thread-safe; the returned object must be used by one thread only.
+	 * @param xslFile the file containing the XSL transformation program.
+	 * @return a Transformer for the compiled program.
+	 * @throws TransformerConfigurationException if the program cannot be compiled.
+	 */
+	public static Transformer getTransformer(File xslFile) throws TransformerConfigurationException {
+		return getTemplates(xslFile).newTransformer();
+	}
+
+	/**
+	 * Record the completion of a transformation.
+	 * @param startTime the value of System.nanoTime() when the transformation started.
+	 */
+	public static void recordTransform(long startTime) {
+		transformNanos.addAndGet(System.nanoTime() - startTime);
+		transformCount.incrementAndGet();
+	}
+
+	/**
+	 * Remove all the compiled programs from the cache.
+	 */
+	public static void clear() {
+		cache.clear();
+	}
+
+	/**
+	 * Get the number of compiled programs in the cache.
+	 * @return the number of cached programs.
+	 */
+	public static int getCachedCount() {
+		return cache.size();
+	}
+
+	/**
+	 * Get the number of times an XSL file has been compiled.
+	 * @return the number of compilations.
+	 */
+	public static long getCompileCount() {
+		return compileCount.get();
+	}
+
+	/**
+	 * Get the number of transformations performed.
+	 * @return the number of transformations.
+	 */
+	public static long getTransformCount() {
+		return transformCount.get();
+	}
+
+	/**
+	 * Get the average time of a transformation.
+	 * @return the average transformation time in milliseconds,
+	 * or zero if no transformations have been performed.
+	 */
+	public static double getAverageTransformTime() {
+		long count = transformCount.get();
+		if (count == 0) return 0.0;
+		return ((double)transformNanos.get()) / (count * 1000000.0);
+	}
+
+	/**
+	 * Get a one-line summary of the cache statistics.
+	 * @return the summary string.
+	 */
+	public static String getStatus() {
+		return getCachedCount() + " cached; "
+				+ getCompileCount() + " compiled; "
+				+ getTransformCount() + " transforms; "
+				+ String.format("%.2f", getAverageTransformTime()) + " ms average";
+	}
+
+	static class CachedTemplates {
+		Templates templates;
+		long lastModified;
+		long length;
+
+		public CachedTemplates(Templates templates, long lastModified, long length) {
+			this.templates = templates;
+			this.lastModified = lastModified;
+			this.length = length;
+		}
+	}
+
+}
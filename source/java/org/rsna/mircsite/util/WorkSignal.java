@@ -0,0 +1,117 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.mircsite.util;
+
+import java.io.File;
+import java.util.Hashtable;
+
+/**
+ * A wakeup for a thread which processes the files in one or more queue
+ * directories, so that it can start work as soon as a file arrives
+ * instead of sleeping for a fixed interval between scans.
+ * <p>
+ * The consumer thread creates a WorkSignal, calls watch for each of its
+ * directories, and calls await between scans. A component which puts a
+ * file in a watched directory calls the static post method for the
+ * directory, which wakes the consumer. Files put in a directory by other
+ * programs are detected by checking the last-modified time of the
+ * directory, which changes when a file is added, once a second. This
+ * requires only one file system call per directory; the directory is
+ * not listed.
+ */
+public class WorkSignal {
+
+	static final long checkInterval = 1000;
+
+	private static final Hashtable<String,WorkSignal> signals = new Hashtable<String,WorkSignal>();
+
+	private final Hashtable<String,Long> watched = new Hashtable<String,Long>();
+	private boolean signaled = false;
+
+	/**
+	 * Wake the thread which processes a directory, if there is one.
+	 * @param dir the directory to which a file has been added.
+	 */
+	public static void post(File dir) {
+		if (dir == null) return;
+		WorkSignal signal = signals.get(dir.getAbsolutePath());
+		if (signal != null) signal.signal();
+	}
+
+	/**
+	 * Register this signal as the wakeup for the thread
+	 * which processes a directory.
+	 * @param dir the directory.
+	 */
+	public void watch(File dir) {
+		String key = dir.getAbsolutePath();
+		if (!watched.containsKey(key)) watched.put(key, new Long(dir.lastModified()));
+		signals.put(key, this);
+	}
+
+	/**
+	 * Remove this signal from all the directories it watches.
+	 */
+	public void unwatchAll() {
+		for (String key : watched.keySet()) {
+			if (signals.get(key) == this) signals.remove(key);
+		}
+		watched.clear();
+	}
+
+	/**
+	 * Wake the thread which is waiting on this signal.
+	 */
+	public synchronized void signal() {
+		signaled = true;
+		notifyAll();
+	}
+
+	/**
+	 * Wait until the signal is posted, a watched directory
+	 * changes, or the timeout expires.
+	 * @param timeout the maximum time to wait, in milliseconds.
+	 * @return true if there may be work to do; false if the timeout expired.
+	 * @throws InterruptedException if the thread is interrupted.
+	 */
+	public boolean await(long timeout) throws InterruptedException {
+		long endTime = System.currentTimeMillis() + timeout;
+		while (true) {
+			synchronized (this) {
+				if (signaled) {
+					signaled = false;
+					return true;
+				}
+				long remaining = endTime - System.currentTimeMillis();
+				if (remaining <= 0) return false;
+				wait(Math.min(remaining, checkInterval));
+				if (signaled) {
+					signaled = false;
+					return true;
+				}
+			}
+			if (directoriesChanged()) return true;
+		}
+	}
+
+	//See whether the last-modified time of any
+	//watched directory has changed since the last check.
+	private boolean directoriesChanged() {
+		boolean changed = false;
+		for (String key : watched.keySet()) {
+			long lm = new File(key).lastModified();
+			Long last = watched.get(key);
+			if ((last == null) || (last.longValue() != lm)) {
+				watched.put(key, new Long(lm));
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+}
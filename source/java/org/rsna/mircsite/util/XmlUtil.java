@@ -106,7 +106,7 @@ public class XmlUtil {
 	 */
 	public static String getTransformedText(File docFile, File xslFile) throws Exception {
 		String[] nullString = {};
-		return getTransformedText(new StreamSource(docFile), new StreamSource(xslFile), nullString);
+		return getTransformedText(new StreamSource(docFile), TemplatesCache.getTransformer(xslFile), nullString);
 	}
 
 	/**
@@ -119,7 +119,7 @@ public class XmlUtil {
 	 * @return the transformed text.
 	 */
 	public static String getTransformedText(File docFile, File xslFile, Object[] params) throws Exception {
-		return getTransformedText(new StreamSource(docFile), new StreamSource(xslFile), params);
+		return getTransformedText(new StreamSource(docFile), TemplatesCache.getTransformer(xslFile), params);
 	}
 
 	/**
@@ -130,7 +130,7 @@ public class XmlUtil {
 	 */
 	public static String getTransformedText(Document document, File xslFile) throws Exception {
 		String[] nullString = {};
-		return getTransformedText(new DOMSource(document), new StreamSource(xslFile), nullString);
+		return getTransformedText(new DOMSource(document), TemplatesCache.getTransformer(xslFile), nullString);
 	}
 
 	/**
@@ -143,7 +143,7 @@ public class XmlUtil {
 	 * @return the transformed text.
 	 */
 	public static String getTransformedText(Document document, File xslFile, Object[] params) throws Exception {
-		return getTransformedText(new DOMSource(document), new StreamSource(xslFile), params);
+		return getTransformedText(new DOMSource(document), TemplatesCache.getTransformer(xslFile), params);
 	}
 
 	/**
@@ -155,7 +155,7 @@ public class XmlUtil {
 	public static String getTransformedText(String xmlString, File xslFile) throws Exception {
 		String[] nullString = {};
 		StringReader sr = new StringReader(xmlString);
-		return getTransformedText(new StreamSource(sr), new StreamSource(xslFile), nullString);
+		return getTransformedText(new StreamSource(sr), TemplatesCache.getTransformer(xslFile), nullString);
 	}
 
 	/**
@@ -169,7 +169,7 @@ public class XmlUtil {
 	 */
 	public static String getTransformedText(String xmlString, File xslFile, Object[] params) throws Exception {
 		StringReader sr = new StringReader(xmlString);
-		return getTransformedText(new StreamSource(sr), new StreamSource(xslFile), params);
+		return getTransformedText(new StreamSource(sr), TemplatesCache.getTransformer(xslFile), params);
 	}
 
 	/**
@@ -211,13 +211,25 @@ public class XmlUtil {
 	public static String getTransformedText(Source doc, Source xsl, Object[] params) throws Exception {
 		TransformerFactory tFactory = TransformerFactory.newInstance();
 		Transformer transformer = tFactory.newTransformer(xsl);
-		if ((params != null) && (params.length > 1)) {
-			for (int i=0; i<params.length; i=i+2) {
-				transformer.setParameter((String)params[i],params[i+1]);
-			}
-		}
+		return getTransformedText(doc, transformer, params);
+	}
+
+	/**
+	 * General method for transformation to text. Transforms a Source
+	 * document using a Transformer and an array of parameters.
+	 * The parameter array consists of a sequence of pairs of (String parametername)
+	 * followed by (Object parametervalue) in an Object[].
+	 * @param doc the Source XML document to transform.
+	 * @param transformer the Transformer for the XSL transformation program.
+	 * @param params the array of transformation parameters.
+	 * @return the transformed text.
+	 */
+	public static String getTransformedText(Source doc, Transformer transformer, Object[] params) throws Exception {
+		long startTime = System.nanoTime();
+		setParameters(transformer, params);
 		StringWriter sw = new StringWriter();
 		transformer.transform(doc, new StreamResult(sw));
+		TemplatesCache.recordTransform(startTime);
 		return sw.toString();
 	}
 
@@ -229,7 +241,7 @@ public class XmlUtil {
 	 */
 	public static Document getTransformedDocument(File docFile, File xslFile) throws Exception {
 		String[] nullString = {};
-		return getTransformedDocument(new StreamSource(docFile), new StreamSource(xslFile), nullString);
+		return getTransformedDocument(new StreamSource(docFile), TemplatesCache.getTransformer(xslFile), nullString);
 	}
 
 	/**
@@ -242,7 +254,7 @@ public class XmlUtil {
 	 * @return the transformed DOM Document.
 	 */
 	public static Document getTransformedDocument(File docFile, File xslFile, Object[] params) throws Exception {
-		return getTransformedDocument(new StreamSource(docFile), new StreamSource(xslFile), params);
+		return getTransformedDocument(new StreamSource(docFile), TemplatesCache.getTransformer(xslFile), params);
 	}
 
 	/**
@@ -255,7 +267,7 @@ public class XmlUtil {
 	 * @return the transformed DOM Document.
 	 */
 	public static Document getTransformedDocument(Document doc, File xslFile, Object[] params) throws Exception {
-		return getTransformedDocument(new DOMSource(doc), new StreamSource(xslFile), params);
+		return getTransformedDocument(new DOMSource(doc), TemplatesCache.getTransformer(xslFile), params);
 	}
 
 	/**
@@ -284,14 +296,36 @@ public class XmlUtil {
 	public static Document getTransformedDocument(Source doc, Source xsl, Object[] params) throws Exception {
 		TransformerFactory tFactory = TransformerFactory.newInstance();
 		Transformer transformer = tFactory.newTransformer(xsl);
+		return getTransformedDocument(doc, transformer, params);
+	}
+
+	/**
+	 * General method for transformation to a DOM Document. Transforms a Source
+	 * document using a Transformer and an array of parameters.
+	 * The parameter array consists of a sequence of pairs of (String parametername)
+	 * followed by (Object parametervalue) in an Object[].
+	 * @param doc the Source XML document to transform.
+	 * @param transformer the Transformer for the XSL transformation program.
+	 * @param params the array of transformation parameters.
+	 * @return the transformed DOM Document.
+	 */
+	public static Document getTransformedDocument(Source doc, Transformer transformer, Object[] params) throws Exception {
+		long startTime = System.nanoTime();
+		setParameters(transformer, params);
+		DOMResult domResult = new DOMResult();
+		transformer.transform(doc,domResult);
+		TemplatesCache.recordTransform(startTime);
+		return (Document) domResult.getNode();
+	}
+
+	//Set the parameters of a Transformer from an array of
+	//(String parametername, Object parametervalue) pairs.
+	private static void setParameters(Transformer transformer, Object[] params) {
 		if ((params != null) && (params.length > 1)) {
 			for (int i=0; i<params.length; i=i+2) {
 				transformer.setParameter((String)params[i],params[i+1]);
 			}
 		}
-		DOMResult domResult = new DOMResult();
-		transformer.transform(doc,domResult);
-		return (Document) domResult.getNode();
 	}
 
 	/**
@@ -0,0 +1,189 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.mircsite.util;
+
+import java.io.*;
+import java.util.zip.*;
+
+/**
+ * Unpacks a zip file from a stream as it arrives, without first saving
+ * the zip file to disk. Each entry is offered to a Handler, which decides
+ * where the entry is to be stored; entries which are not to be kept are
+ * read and discarded without being written.
+ * <p>
+ * The unpacker protects against zip bombs. It fails if the zip file
+ * exceeds its maximum size, if the total uncompressed size of the entries
+ * exceeds its maximum, if the zip file contains more than maxEntries
+ * entries, or if the entries expand to more than maxRatio times the
+ * number of bytes read from the stream.
+ */
+public class ZipUnpacker {
+
+	/** The maximum number of entries in a zip file. */
+	public static final int maxEntries = 50000;
+
+	/** The maximum ratio of the uncompressed size to the compressed size. */
+	public static final int maxRatio = 100;
+
+	//The uncompressed size below which the ratio is not checked,
+	//since small files of repeated text compress very well.
+	static final long ratioAllowance = 1024 * 1024;
+
+	static final int bufferSize = 64 * 1024;
+
+	private final long maxZipSize;
+	private final long maxUnzippedSize;
+
+	/**
+	 * Create an unpacker.
+	 * @param maxZipSize the maximum number of bytes to be read from the stream.
+	 * @param maxUnzippedSize the maximum total uncompressed size of the entries.
+	 */
+	public ZipUnpacker(long maxZipSize, long maxUnzippedSize) {
+		this.maxZipSize = maxZipSize;
+		this.maxUnzippedSize = maxUnzippedSize;
+	}
+
+	/**
+	 * The interface for deciding where the entries of a zip file are stored.
+	 */
+	public interface Handler {
+		/**
+		 * Get the file in which to store an entry.
+		 * @param path the path of the entry in the zip file, with forward
+		 * slashes as separators and with any empty and "." segments removed.
+		 * @param isDirectory true if the entry is a directory.
+		 * @return the file in which to store the entry, or null if the
+		 * entry is not to be kept. The value is ignored for directories.
+		 * @throws Exception if the entry is unacceptable.
+		 */
+		public File getFile(String path, boolean isDirectory) throws Exception;
+
+		/**
+		 * Process an entry which has been stored.
+		 * @param file the file containing the entry.
+		 * @throws Exception if the entry is unacceptable.
+		 */
+		public void entryStored(File file) throws Exception;
+	}
+
+	/**
+	 * Unpack a zip file from a stream. The stream is not closed.
+	 * @param in the stream containing the zip file.
+	 * @param handler the handler which decides where to store the entries.
+	 * @return the number of entries which were stored.
+	 * @throws Exception if the stream does not contain a zip file, if the
+	 * zip file is unsafe, or if the handler rejects an entry.
+	 */
+	public int unpack(InputStream in, Handler handler) throws Exception {
+		CountingInputStream counter = new CountingInputStream(in);
+		ZipInputStream zin = new ZipInputStream(new BufferedInputStream(counter, bufferSize));
+		byte[] buffer = new byte[bufferSize];
+		long unzipped = 0;
+		int entries = 0;
+		int stored = 0;
+		ZipEntry entry;
+		while ((entry = zin.getNextEntry()) != null) {
+			if (++entries > maxEntries)
+				throw new IOException("The zip file contains more than " + maxEntries + " entries.");
+			String path = getPath(entry.getName());
+			boolean isDirectory = entry.isDirectory();
+			File file = handler.getFile(path, isDirectory);
+			if (isDirectory) {
+				if (file != null) file.mkdirs();
+				continue;
+			}
+			OutputStream out = null;
+			if (file != null) {
+				file.getParentFile().mkdirs();
+				out = new FileOutputStream(file);
+			}
+			try {
+				int n;
+				while ((n = zin.read(buffer, 0, buffer.length)) != -1) {
+					unzipped += n;
+					if (unzipped > maxUnzippedSize)
+						throw new IOException("The zip file expands to more than " + maxUnzippedSize + " bytes.");
+					if ((unzipped > ratioAllowance) && (unzipped / maxRatio > counter.count))
+						throw new IOException("The zip file expands by more than " + maxRatio + " times.");
+					if (out != null) out.write(buffer, 0, n);
+				}
+			}
+			finally {
+				if (out != null) out.close();
+			}
+			if (file != null) {
+				stored++;
+				handler.entryStored(file);
+			}
+		}
+		if (entries == 0) throw new IOException("The file was not a zip file.");
+		return stored;
+	}
+
+	/**
+	 * Make a file name safe for use in a URL by replacing whitespace
+	 * and characters which cause problems in URLs with underscores.
+	 * @param name the file name.
+	 * @return the safe name.
+	 */
+	public static String getSafeName(String name) {
+		return name.trim().replaceAll("[\\s]+","_").replaceAll("[\"&'><#;:@/?=]","_");
+	}
+
+	//Normalize the path of an entry, rejecting any path
+	//which would escape from the unpacking directory.
+	private static String getPath(String name) throws IOException {
+		String[] segments = name.replace('\\', '/').split("/");
+		StringBuffer sb = new StringBuffer();
+		for (int i=0; i<segments.length; i++) {
+			String s = segments[i];
+			if (s.equals("") || s.equals(".")) continue;
+			if (s.equals("..") || ((sb.length() == 0) && s.endsWith(":")))
+				throw new IOException("The zip file contains an unsafe path: " + name);
+			if (sb.length() > 0) sb.append("/");
+			sb.append(s);
+		}
+		return sb.toString();
+	}
+
+	//An InputStream which counts the bytes it delivers
+	//and fails when the maximum size is exceeded.
+	class CountingInputStream extends FilterInputStream {
+		long count = 0;
+
+		public CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) add(1);
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) add(n);
+			return n;
+		}
+
+		public long skip(long n) throws IOException {
+			long k = super.skip(n);
+			if (k > 0) add(k);
+			return k;
+		}
+
+		private void add(long n) throws IOException {
+			count += n;
+			if (count > maxZipSize)
+				throw new IOException("The zip file is larger than " + maxZipSize + " bytes.");
+		}
+	}
+
+}
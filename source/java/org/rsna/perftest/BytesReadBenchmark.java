@@ -0,0 +1,177 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.perftest;
+
+import java.io.*;
+import java.util.*;
+import org.dcm4che.data.*;
+import org.dcm4che.dict.*;
+import org.rsna.mircsite.anonymizer.DicomAnonymizer;
+import org.rsna.mircsite.anonymizer.LocalRemapper;
+import org.rsna.mircsite.util.DicomHeaderCache;
+import org.rsna.mircsite.util.DicomObject;
+import org.rsna.mircsite.util.FileObject;
+
+/**
+ * A benchmark of the bytes read for each DICOM instance by the stages
+ * of the processing pipeline, to show the effect of the DicomHeaderCache.
+ * <p>
+ * Each instance goes through the stages of the ObjectProcessor for an
+ * object received by the Storage SCP: identification by FileObject.getObject,
+ * anonymization in place by the DicomAnonymizer, parsing by DicomObject,
+ * a move to a store directory, and parsing again by the next stage. The
+ * benchmark counts the bytes read to identify each file, the bytes read by
+ * the anonymizer, which reads the whole file, and the header bytes parsed,
+ * which it compares with the header bytes which would be parsed if every
+ * stage parsed the file itself.
+ * <p>
+ * The instances are generated, or copied from a directory of DICOM files.
+ * <p>
+ * Usage: java -cp {classpath} org.rsna.perftest.BytesReadBenchmark [dir [count [dicomdir]]]
+ */
+public class BytesReadBenchmark {
+
+	static final int defaultCount = 200;
+	static final int pixelBytes = 512 * 512 * 2;
+	static final int sniffLength = 4096;
+
+	/**
+	 * Run the benchmark.
+	 * @param args the working directory, the number of instances
+	 * to generate, and a directory of DICOM files to use instead.
+	 */
+	public static void main(String[] args) throws Exception {
+		File dir = new File((args.length > 0) ? args[0] : "bytes-read-benchmark");
+		int count = (args.length > 1) ? Integer.parseInt(args[1]) : defaultCount;
+		QueueRecoveryTest.deleteAll(dir);
+		File importDir = new File(dir, "import");
+		File storeDir = new File(dir, "store");
+		importDir.mkdirs();
+		storeDir.mkdirs();
+		File[] files = (args.length > 2)
+						? copyFiles(new File(args[2]), importDir)
+						: makeFiles(importDir, count);
+
+		long fileBytes = 0;
+		long sniffBytes = 0;
+		long anonymizerBytes = 0;
+		long uncachedHeaderBytes = 0;
+		int instances = 0;
+		long hits = DicomHeaderCache.getHits();
+		long misses = DicomHeaderCache.getMisses();
+		long parsed = DicomHeaderCache.getBytesParsed();
+		long time = System.currentTimeMillis();
+		for (int i=0; i<files.length; i++) {
+			File file = files[i];
+			long length = file.length();
+
+			//Dispatch: identify the file and parse its header.
+			FileObject fileObject = FileObject.getObject(file);
+			if (!(fileObject instanceof DicomObject)) continue;
+			sniffBytes += Math.min(length, sniffLength);
+			long header = getHeaderLength((DicomObject)fileObject);
+
+			//Anonymize in place; the anonymizer reads the whole file.
+			DicomAnonymizer.anonymize(
+				file, file, new Properties(), new Properties(), new LocalRemapper(), false, false);
+			anonymizerBytes += length;
+
+			//Process, move to the store, and process again.
+			DicomObject dob = new DicomObject(file);
+			long anonymizedHeader = getHeaderLength(dob);
+			dob.moveToDirectory(storeDir, true);
+			dob = new DicomObject(dob.getFile());
+
+			fileBytes += length;
+			uncachedHeaderBytes += header + 2 * anonymizedHeader;
+			instances++;
+		}
+		time = System.currentTimeMillis() - time;
+		hits = DicomHeaderCache.getHits() - hits;
+		misses = DicomHeaderCache.getMisses() - misses;
+		parsed = DicomHeaderCache.getBytesParsed() - parsed;
+		if (instances == 0) {
+			System.out.println("No DICOM instances were found.");
+			return;
+		}
+
+		System.out.println(instances + " instances, " + (fileBytes / instances) + " bytes each, "
+							+ time + "ms");
+		System.out.println("Header cache: " + hits + " hits, " + misses + " misses");
+		System.out.println("Bytes read per instance:");
+		System.out.println("  identification:           " + (sniffBytes / instances));
+		System.out.println("  anonymizer:               " + (anonymizerBytes / instances));
+		System.out.println("  header parsing:           " + (parsed / instances));
+		System.out.println("  header parsing, no cache: " + (uncachedHeaderBytes / instances));
+	}
+
+	//Get the number of bytes parsed to read the header of an object:
+	//the offset of the pixels, or the whole file if there are none.
+	static long getHeaderLength(DicomObject dob) {
+		long offset = dob.getPixelDataOffset();
+		return (offset >= 0) ? offset : dob.getFile().length();
+	}
+
+	//Generate instances with uncompressed pixels, in groups of ten per study.
+	static File[] makeFiles(File dir, int count) throws Exception {
+		DcmObjectFactory factory = DcmObjectFactory.getInstance();
+		byte[] pixels = new byte[pixelBytes];
+		new Random(1).nextBytes(pixels);
+		File[] files = new File[count];
+		for (int i=0; i<count; i++) {
+			Dataset ds = factory.newDataset();
+			ds.putUI(Tags.SOPClassUID, UIDs.SecondaryCaptureImageStorage);
+			ds.putUI(Tags.SOPInstanceUID, "1.2.826.0.1.3680043.2.1143.9." + i);
+			ds.putUI(Tags.StudyInstanceUID, "1.2.826.0.1.3680043.2.1143.8." + (i / 10));
+			ds.putUI(Tags.SeriesInstanceUID, "1.2.826.0.1.3680043.2.1143.7." + (i / 10));
+			ds.putPN(Tags.PatientName, "Benchmark^Patient" + (i / 10));
+			ds.putLO(Tags.PatientID, "BR" + (i / 10));
+			ds.putDA(Tags.StudyDate, new Date());
+			ds.putIS(Tags.InstanceNumber, i % 10 + 1);
+			ds.putUS(Tags.SamplesPerPixel, 1);
+			ds.putCS(Tags.PhotometricInterpretation, "MONOCHROME2");
+			ds.putUS(Tags.Rows, 512);
+			ds.putUS(Tags.Columns, 512);
+			ds.putUS(Tags.BitsAllocated, 16);
+			ds.putUS(Tags.BitsStored, 12);
+			ds.putUS(Tags.HighBit, 11);
+			ds.putUS(Tags.PixelRepresentation, 0);
+			ds.putOW(Tags.PixelData, java.nio.ByteBuffer.wrap(pixels));
+			ds.setFileMetaInfo(factory.newFileMetaInfo(ds, UIDs.ExplicitVRLittleEndian));
+			files[i] = new File(dir, "instance-" + i + ".dcm");
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(files[i]));
+			try { ds.writeFile(out, null); }
+			finally { out.close(); }
+		}
+		return files;
+	}
+
+	//Copy the files in a directory.
+	static File[] copyFiles(File source, File dir) throws Exception {
+		File[] sources = source.listFiles();
+		List<File> list = new ArrayList<File>();
+		byte[] buffer = new byte[64 * 1024];
+		for (int i=0; i<sources.length; i++) {
+			if (!sources[i].isFile()) continue;
+			File file = new File(dir, sources[i].getName());
+			InputStream in = new FileInputStream(sources[i]);
+			OutputStream out = new FileOutputStream(file);
+			try {
+				int n;
+				while ((n = in.read(buffer)) > 0) out.write(buffer, 0, n);
+			}
+			finally {
+				in.close();
+				out.close();
+			}
+			list.add(file);
+		}
+		return list.toArray(new File[list.size()]);
+	}
+
+}
@@ -0,0 +1,225 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.perftest;
+
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.security.KeyStore;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.rsna.mircsite.dicomservice.ExportQueue;
+import org.rsna.mircsite.dicomservice.HttpExportService;
+import org.rsna.mircsite.dicomservice.ObjectBatch;
+import org.rsna.mircsite.dicomservice.TrialConfig;
+
+/**
+ * A throughput test of the HttpExportService against an embedded receiver.
+ * <p>
+ * The test starts an HTTP receiver on the loopback interface which
+ * implements the /ping, /doc and /batch functions of the HttpImportService
+ * and discards the objects it receives. It then configures the trial with
+ * one destination, queues a number of files, starts the HttpExportService,
+ * and measures the time until the export queue is empty. This is done
+ * once with a receiver which accepts batches and once with one which only
+ * accepts single objects. If a keystore is supplied, both runs are repeated
+ * over HTTPS.
+ * <p>
+ * Usage: java -cp {classpath} org.rsna.perftest.ExportThroughputTest
+ * [dir [count [sizeKB [keystore password]]]]
+ */
+public class ExportThroughputTest {
+
+	static final int defaultCount = 2000;
+	static final int defaultSizeKB = 256;
+	static final String context = "/trial/import";
+
+	static final AtomicLong requests = new AtomicLong();
+	static final AtomicLong objects = new AtomicLong();
+	static final AtomicLong bytes = new AtomicLong();
+
+	/**
+	 * Run the test.
+	 * @param args the working directory, the number of files, the size
+	 * of each file in KB, and a JKS keystore and its password for HTTPS.
+	 */
+	public static void main(String[] args) throws Exception {
+		File dir = new File((args.length > 0) ? args[0] : "export-throughput-test");
+		int count = (args.length > 1) ? Integer.parseInt(args[1]) : defaultCount;
+		int sizeKB = (args.length > 2) ? Integer.parseInt(args[2]) : defaultSizeKB;
+		QueueRecoveryTest.deleteAll(dir);
+		File[] files = makeFiles(new File(dir, "objects"), count, sizeKB);
+		TrialConfig.xml = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+
+		run(dir, files, null, true);
+		run(dir, files, null, false);
+		if (args.length > 4) {
+			SSLContext ssl = getSSLContext(new File(args[3]), args[4]);
+			run(dir, files, ssl, true);
+			run(dir, files, ssl, false);
+		}
+		System.exit(0);
+	}
+
+	//Export the files to a new receiver and report the throughput.
+	static void run(File dir, File[] files, SSLContext ssl, boolean batches) throws Exception {
+		HttpServer server;
+		if (ssl != null) {
+			HttpsServer https = HttpsServer.create(new InetSocketAddress("127.0.0.1", 0), 64);
+			https.setHttpsConfigurator(new HttpsConfigurator(ssl));
+			server = https;
+		}
+		else server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 64);
+		server.createContext(context, new Receiver(new File(dir, "received"), batches));
+		server.setExecutor(Executors.newFixedThreadPool(32));
+		server.start();
+		String url = ((ssl != null) ? "https" : "http") + "://127.0.0.1:"
+						+ server.getAddress().getPort() + context + "/doc";
+
+		String name = ((ssl != null) ? "https-" : "http-") + (batches ? "batch" : "single");
+		File exportDir = new File(dir, name);
+		TrialConfig.httpExportDirectories = new String[] { name };
+		TrialConfig.httpExportDirectoryFiles = new File[] { exportDir };
+		TrialConfig.httpExportURLs = new String[] { url };
+		ExportQueue queue = ExportQueue.get(exportDir);
+		for (int i=0; i<files.length; i++) queue.add(files[i]);
+
+		requests.set(0);
+		objects.set(0);
+		bytes.set(0);
+		long time = System.currentTimeMillis();
+		HttpExportService service = new HttpExportService();
+		service.start();
+		while (queue.size() > 0) Thread.sleep(20);
+		time = System.currentTimeMillis() - time;
+		service.interrupt();
+		service.join();
+		server.stop(0);
+
+		double seconds = Math.max(time, 1) / 1000.0;
+		System.out.println(name + ": " + objects.get() + " objects in " + requests.get() + " requests, "
+							+ time + "ms; " + (long)(objects.get() / seconds) + " objects/s, "
+							+ (long)(bytes.get() / seconds / (1024 * 1024)) + " MB/s");
+	}
+
+	//Make the files to be exported.
+	static File[] makeFiles(File dir, int count, int sizeKB) throws Exception {
+		dir.mkdirs();
+		Random random = new Random(1);
+		byte[] data = new byte[sizeKB * 1024];
+		File[] files = new File[count];
+		for (int i=0; i<count; i++) {
+			random.nextBytes(data);
+			files[i] = new File(dir, "object-" + i + ".dcm");
+			FileOutputStream fos = new FileOutputStream(files[i]);
+			fos.write(data);
+			fos.close();
+		}
+		return files;
+	}
+
+	//Load a keystore into an SSLContext for the receiver.
+	static SSLContext getSSLContext(File keystore, String password) throws Exception {
+		KeyStore ks = KeyStore.getInstance("JKS");
+		FileInputStream fis = new FileInputStream(keystore);
+		try { ks.load(fis, password.toCharArray()); }
+		finally { fis.close(); }
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(ks, password.toCharArray());
+		SSLContext ssl = SSLContext.getInstance("TLS");
+		ssl.init(kmf.getKeyManagers(), null, null);
+		return ssl;
+	}
+
+	//A receiver which implements the HttpImportService protocol
+	//and discards the objects. If batches are not supported, the
+	//batch path returns 404, as an earlier receiver would.
+	static class Receiver implements HttpHandler {
+		File dir;
+		boolean batches;
+
+		Receiver(File dir, boolean batches) {
+			this.dir = dir;
+			this.batches = batches;
+			dir.mkdirs();
+		}
+
+		public void handle(HttpExchange exchange) throws IOException {
+			requests.incrementAndGet();
+			String path = exchange.getRequestURI().getPath();
+			InputStream in = exchange.getRequestBody();
+			String response;
+			try {
+				if (path.endsWith("/ping")) {
+					drain(in);
+					response = "OK\n" + (batches ? ObjectBatch.pingCapability + "\n" : "");
+				}
+				else if (path.endsWith("/doc")) {
+					bytes.addAndGet(drain(in));
+					objects.incrementAndGet();
+					response = "OK";
+				}
+				else if (path.endsWith("/batch") && batches) {
+					response = receiveBatch(in);
+				}
+				else {
+					drain(in);
+					exchange.sendResponseHeaders(404, -1);
+					exchange.close();
+					return;
+				}
+			}
+			catch (Exception ex) {
+				exchange.sendResponseHeaders(500, -1);
+				exchange.close();
+				return;
+			}
+			byte[] body = response.getBytes("UTF-8");
+			exchange.getResponseHeaders().set("Content-Type", "text/plain");
+			exchange.sendResponseHeaders(200, body.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(body);
+			out.close();
+		}
+
+		//Receive the objects in a batch and acknowledge each one.
+		String receiveBatch(InputStream in) throws Exception {
+			DataInputStream dis = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+			int count = ObjectBatch.readCount(dis);
+			StringBuffer sb = new StringBuffer();
+			File file = File.createTempFile("batch", ".dcm", dir);
+			try {
+				for (int i=0; i<count; i++) {
+					byte[] digest = ObjectBatch.readObject(dis, file);
+					bytes.addAndGet(file.length());
+					if (digest != null) {
+						objects.incrementAndGet();
+						sb.append("OK " + i + "\n");
+					}
+					else sb.append("ERR " + i + " " + ObjectBatch.checksumError + "\n");
+				}
+			}
+			finally { file.delete(); }
+			return ObjectBatch.responseHeader + " " + count + "\n" + sb.toString();
+		}
+
+		//Read a stream to the end and return the number of bytes.
+		long drain(InputStream in) throws IOException {
+			byte[] buffer = new byte[64 * 1024];
+			long total = 0;
+			int n;
+			while ((n = in.read(buffer)) > 0) total += n;
+			return total;
+		}
+	}
+
+}
@@ -0,0 +1,150 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.perftest;
+
+import java.io.*;
+import java.util.*;
+import org.rsna.mircsite.dicomservice.ExportQueue;
+
+/**
+ * A crash-recovery test for the ExportQueue.
+ * <p>
+ * The test starts a second JVM which queues a number of entries, takes
+ * them all, acknowledges two out of every three of them out of order,
+ * and then halts without closing the queue. The test then appends a
+ * partial entry to the queue, as if the program had stopped while it was
+ * writing, reopens the queue, and checks that its size is exact and that
+ * exactly the unacknowledged entries are delivered again.
+ * <p>
+ * Usage: java -cp {classpath} org.rsna.perftest.QueueRecoveryTest [dir [count]]
+ */
+public class QueueRecoveryTest {
+
+	static final int defaultCount = 20000;
+	static final long crashDelay = 1000;
+
+	/**
+	 * Run the test, or, with the first argument "child", the
+	 * part of the test which runs in the JVM that crashes.
+	 * @param args the directory of the queue and the number of entries.
+	 */
+	public static void main(String[] args) throws Exception {
+		if ((args.length > 0) && args[0].equals("child")) {
+			child(new File(args[1]), Integer.parseInt(args[2]));
+			return;
+		}
+		File dir = new File((args.length > 0) ? args[0] : "queue-recovery-test");
+		int count = (args.length > 1) ? Integer.parseInt(args[1]) : defaultCount;
+		deleteAll(dir);
+		boolean ok = test(dir, count);
+		System.out.println(ok ? "PASSED" : "FAILED");
+		System.exit(ok ? 0 : 1);
+	}
+
+	//Run the child, damage the queue, and check what is recovered.
+	static boolean test(File dir, int count) throws Exception {
+		long time = System.currentTimeMillis();
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		ProcessBuilder pb = new ProcessBuilder(
+				java, "-cp", System.getProperty("java.class.path"),
+				QueueRecoveryTest.class.getName(), "child", dir.getAbsolutePath(), Integer.toString(count));
+		pb.redirectErrorStream(true);
+		Process process = pb.start();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+		String line;
+		while ((line = reader.readLine()) != null) System.out.println("child: " + line);
+		int exit = process.waitFor();
+		System.out.println("The child halted with status " + exit
+							+ " after " + (System.currentTimeMillis() - time) + "ms");
+
+		//Simulate a crash in the middle of writing an entry.
+		File[] segments = dir.listFiles(new FileFilter() {
+			public boolean accept(File file) { return file.getName().endsWith(".seg"); }
+		});
+		Arrays.sort(segments);
+		FileOutputStream fos = new FileOutputStream(segments[segments.length-1], true);
+		fos.write("12345678 0 /partial".getBytes("UTF-8"));
+		fos.close();
+
+		//Reopen the queue and check the recovered entries.
+		Set<String> expected = new HashSet<String>();
+		for (int i=0; i<count; i++) {
+			if (!isAcked(i)) expected.add(getFile(dir, i).getAbsolutePath());
+		}
+		boolean ok = true;
+		time = System.currentTimeMillis();
+		ExportQueue queue = ExportQueue.get(dir);
+		System.out.println("Reopened the queue in " + (System.currentTimeMillis() - time) + "ms");
+		ok &= check("size after the crash", queue.size(), expected.size());
+		Set<String> delivered = new HashSet<String>();
+		ExportQueue.Entry entry;
+		int duplicates = 0;
+		List<ExportQueue.Entry> entries = new LinkedList<ExportQueue.Entry>();
+		while ((entry = queue.next()) != null) {
+			if (!delivered.add(entry.getFile().getAbsolutePath())) duplicates++;
+			entries.add(entry);
+		}
+		ok &= check("entries delivered", delivered.size(), expected.size());
+		ok &= check("duplicate deliveries", duplicates, 0);
+		ok &= check("unexpected deliveries", difference(delivered, expected), 0);
+
+		//Ack everything and check that the queue is empty after a clean restart.
+		for (ExportQueue.Entry e : entries) queue.ack(e);
+		ExportQueue.closeAll();
+		queue = ExportQueue.get(dir);
+		ok &= check("size after a clean restart", queue.size(), 0);
+		ok &= check("entries delivered after a clean restart", (queue.next() == null) ? 0 : 1, 0);
+		ExportQueue.closeAll();
+		return ok;
+	}
+
+	//Queue the entries, take them all, ack most of them in reverse
+	//order, and halt without closing the queue once the acks have
+	//had time to be synced.
+	static void child(File dir, int count) throws Exception {
+		ExportQueue queue = ExportQueue.get(dir);
+		for (int i=0; i<count; i++) queue.add(getFile(dir, i));
+		ExportQueue.Entry[] entries = new ExportQueue.Entry[count];
+		for (int i=0; i<count; i++) entries[i] = queue.next();
+		for (int i=count-1; i>=0; i--) {
+			if (isAcked(i)) queue.ack(entries[i]);
+		}
+		System.out.println(count + " entries queued; size " + queue.size() + " before the crash");
+		Thread.sleep(crashDelay);
+		Runtime.getRuntime().halt(3);
+	}
+
+	//Determine whether the child acks an entry.
+	static boolean isAcked(int i) {
+		return (i % 3) != 0;
+	}
+
+	static File getFile(File dir, int i) {
+		return new File(dir.getParentFile(), "objects" + File.separator + "object-" + i + ".dcm");
+	}
+
+	static int difference(Set<String> a, Set<String> b) {
+		int n = 0;
+		for (String s : a) if (!b.contains(s)) n++;
+		return n;
+	}
+
+	static boolean check(String name, int actual, int expected) {
+		boolean ok = (actual == expected);
+		System.out.println((ok ? "ok    " : "ERROR ") + name + ": " + actual
+							+ (ok ? "" : " (expected " + expected + ")"));
+		return ok;
+	}
+
+	static void deleteAll(File file) {
+		File[] files = file.listFiles();
+		if (files != null) for (int i=0; i<files.length; i++) deleteAll(files[i]);
+		file.delete();
+	}
+
+}
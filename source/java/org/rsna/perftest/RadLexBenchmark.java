@@ -0,0 +1,195 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.perftest;
+
+import java.io.*;
+import java.util.*;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.rsna.mircsite.util.RadLexIndex;
+import org.rsna.mircsite.util.RadLexTagger;
+import org.rsna.mircsite.util.Term;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * A benchmark of the compiled RadLexTagger against the original
+ * word-by-word search of the RadLexIndex.
+ * <p>
+ * The benchmark loads the RadLex index from a directory containing
+ * radlex.xml, creating the index files there if necessary. It tags
+ * the paragraphs of a text file, or of a generated text which mixes
+ * RadLex terms with ordinary words, first with the original search,
+ * in which each word is looked up in the index and the scan restarts
+ * after each match, and then with the tagger. Each method is run by
+ * several threads at once. The benchmark reports the time taken by
+ * each method and the number of paragraphs on which they disagree.
+ * <p>
+ * Usage: java -cp {classpath} org.rsna.perftest.RadLexBenchmark radlexdir [threads [textfile]]
+ */
+public class RadLexBenchmark {
+
+	static final int paragraphCount = 2000;
+	static final int wordsPerParagraph = 60;
+	static final String[] filler = {
+		"the", "patient", "was", "seen", "with", "a", "history", "of", "and", "no",
+		"evidence", "in", "there", "is", "mild", "left", "right", "noted", "on", "prior"
+	};
+
+	/**
+	 * Run the benchmark.
+	 * @param args the directory containing radlex.xml, the number
+	 * of threads, and a text file whose lines are to be tagged.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("Usage: java -cp {classpath} org.rsna.perftest.RadLexBenchmark radlexdir [threads [textfile]]");
+			return;
+		}
+		File dir = new File(args[0]);
+		int threads = (args.length > 1) ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		long time = System.currentTimeMillis();
+		RadLexIndex.loadIndex(dir);
+		RadLexTagger tagger = RadLexIndex.getTagger();
+		if (tagger == null) {
+			System.out.println("Unable to load the RadLex index from " + dir);
+			return;
+		}
+		System.out.println("Loaded " + tagger.getTermCount() + " terms in "
+							+ (System.currentTimeMillis() - time) + "ms");
+
+		List<String> paragraphs = (args.length > 2)
+					? readParagraphs(new File(args[2]))
+					: makeParagraphs(getTerms(new File(dir, "radlex.xml")));
+		long chars = 0;
+		for (String p : paragraphs) chars += p.length();
+		System.out.println(paragraphs.size() + " paragraphs, " + chars + " characters, "
+							+ threads + " threads");
+
+		//Warm up both methods, and compare their results.
+		int differences = 0;
+		int matches = 0;
+		for (String p : paragraphs) {
+			String a = toString(legacyMatches(p));
+			String b = toString(Arrays.asList(tagger.getMatches(p)));
+			if (!a.equals(b)) differences++;
+			matches += tagger.getMatches(p).length;
+		}
+		System.out.println(matches + " terms found; " + differences + " paragraphs tagged differently");
+
+		long legacy = run(paragraphs, threads, null);
+		long compiled = run(paragraphs, threads, tagger);
+		System.out.println("Index search: " + legacy + "ms");
+		System.out.println("Tagger:       " + compiled + "ms");
+		if (compiled > 0) System.out.println("Speedup:      " + ((legacy * 10 / compiled) / 10.0) + "x");
+		RadLexIndex.close();
+	}
+
+	//Tag all the paragraphs with a number of threads, each taking every
+	//nth paragraph, and return the elapsed time. If the tagger is null,
+	//the original search is used.
+	static long run(final List<String> paragraphs, int threads, final RadLexTagger tagger) throws Exception {
+		Thread[] workers = new Thread[threads];
+		long time = System.currentTimeMillis();
+		for (int t=0; t<threads; t++) {
+			final int first = t;
+			final int step = threads;
+			workers[t] = new Thread() {
+				public void run() {
+					for (int i=first; i<paragraphs.size(); i+=step) {
+						if (tagger != null) tagger.getMatches(paragraphs.get(i));
+						else legacyMatches(paragraphs.get(i));
+					}
+				}
+			};
+			workers[t].start();
+		}
+		for (int t=0; t<threads; t++) workers[t].join();
+		return System.currentTimeMillis() - time;
+	}
+
+	//Find the terms in a text with the original search: look up each
+	//word in the index, and after each match, start again with the
+	//text which follows it.
+	static List<RadLexTagger.Match> legacyMatches(String text) {
+		List<RadLexTagger.Match> list = new LinkedList<RadLexTagger.Match>();
+		int offset = 0;
+		RadLexTagger.Match match;
+		while ((match = getFirstTerm(text.substring(offset))) != null) {
+			list.add(new RadLexTagger.Match(offset + match.start, match.length, match.id));
+			offset += match.start + match.length;
+		}
+		return list;
+	}
+
+	//Find the first term in a text, as MircDocument did before the tagger.
+	static RadLexTagger.Match getFirstTerm(String text) {
+		int k = 0;
+		while (true) {
+			while ((k < text.length()) && !Character.isLetter(text.charAt(k))) k++;
+			if (k == text.length()) return null;
+			int kk = k;
+			while ((kk < text.length()) && Character.isLetter(text.charAt(kk))) kk++;
+			Term[] terms = RadLexIndex.getTerms(text.substring(k, kk));
+			if (terms != null) {
+				for (int i=0; i<terms.length; i++) {
+					if (terms[i].matches(text, k) && (terms[i].text.length() >= RadLexTagger.MIN_LENGTH))
+						return new RadLexTagger.Match(k, terms[i].text.length(), terms[i].id);
+				}
+			}
+			k = kk;
+		}
+	}
+
+	static String toString(List<RadLexTagger.Match> matches) {
+		StringBuffer sb = new StringBuffer();
+		for (RadLexTagger.Match m : matches) sb.append(m.start + ":" + m.length + ":" + m.id + " ");
+		return sb.toString();
+	}
+
+	//Get the names of the terms in radlex.xml.
+	static List<String> getTerms(File file) throws Exception {
+		Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file);
+		NodeList names = doc.getDocumentElement().getElementsByTagName("name");
+		List<String> list = new ArrayList<String>();
+		for (int i=0; i<names.getLength(); i++) list.add(((Element)names.item(i)).getTextContent().trim());
+		return list;
+	}
+
+	//Make paragraphs in which one word in four starts a RadLex term.
+	static List<String> makeParagraphs(List<String> terms) {
+		Random random = new Random(1);
+		List<String> list = new ArrayList<String>();
+		for (int p=0; p<paragraphCount; p++) {
+			StringBuffer sb = new StringBuffer();
+			for (int w=0; w<wordsPerParagraph; w++) {
+				if (random.nextInt(4) == 0) sb.append(terms.get(random.nextInt(terms.size())));
+				else sb.append(filler[random.nextInt(filler.length)]);
+				sb.append((random.nextInt(10) == 0) ? ". " : " ");
+			}
+			list.add(sb.toString());
+		}
+		return list;
+	}
+
+	//Read the non-blank lines of a text file.
+	static List<String> readParagraphs(File file) throws Exception {
+		List<String> list = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.replaceAll("\\s+", " ").trim();
+				if (!line.equals("")) list.add(line);
+			}
+		}
+		finally { reader.close(); }
+		return list;
+	}
+
+}
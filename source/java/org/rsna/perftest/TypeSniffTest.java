@@ -0,0 +1,195 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.perftest;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+import org.dcm4che.data.*;
+import org.dcm4che.dict.*;
+import org.rsna.mircsite.util.DicomObject;
+import org.rsna.mircsite.util.FileObject;
+import org.rsna.mircsite.util.XmlObject;
+import org.rsna.mircsite.util.ZipObject;
+
+/**
+ * A corpus test of the type sniffing in FileObject.
+ * <p>
+ * The test writes a corpus of files, including ones which are easy to
+ * misidentify: DICOM datasets without the preamble in each of the standard
+ * transfer syntaxes, XML in UTF-16 and with a byte order mark, an empty
+ * zip file, text which starts with "PK", a file which is too short to be
+ * anything, and a file with the DICOM prefix but no dataset. For each file,
+ * it checks the type returned by FileObject.getType and the class of the
+ * object returned by FileObject.getObject. If a directory of other files
+ * is supplied, their types are listed as well.
+ * <p>
+ * Usage: java -cp {classpath} org.rsna.perftest.TypeSniffTest [dir [otherfilesdir]]
+ */
+public class TypeSniffTest {
+
+	static final String[] typeNames = { "UNKNOWN", "DICOM", "ZIP", "XML" };
+	static int checked = 0;
+
+	/**
+	 * Run the test.
+	 * @param args the directory for the corpus and a directory of other files.
+	 */
+	public static void main(String[] args) throws Exception {
+		File dir = new File((args.length > 0) ? args[0] : "type-sniff-test");
+		QueueRecoveryTest.deleteAll(dir);
+		dir.mkdirs();
+		int failures = 0;
+
+		Dataset ds = makeDataset();
+		failures += check(dir, "dicom-part10.dcm", dicomFile(ds, UIDs.ExplicitVRLittleEndian),
+							FileObject.DICOM, DicomObject.class);
+		failures += check(dir, "dicom-implicit-le-raw", dicomRaw(ds, DcmEncodeParam.IVR_LE),
+							FileObject.DICOM, DicomObject.class);
+		failures += check(dir, "dicom-explicit-le-raw", dicomRaw(ds, DcmEncodeParam.EVR_LE),
+							FileObject.DICOM, DicomObject.class);
+		failures += check(dir, "dicom-explicit-be-raw", dicomRaw(ds, DcmEncodeParam.EVR_BE),
+							FileObject.DICOM, DicomObject.class);
+		failures += check(dir, "dicom-prefix-only.dcm", dicomPrefixOnly(),
+							FileObject.DICOM, FileObject.class);
+		failures += check(dir, "zip-manifest.zip", zipFile("manifest.xml", "<manifest/>"),
+							FileObject.ZIP, ZipObject.class);
+		failures += check(dir, "zip-empty.zip", zipFile(null, null),
+							FileObject.ZIP, ZipObject.class);
+		failures += check(dir, "pk-text.txt", bytes("PKG notes: not a zip file\n", "US-ASCII"),
+							FileObject.UNKNOWN, FileObject.class);
+		failures += check(dir, "xml-prolog.xml", bytes("<?xml version=\"1.0\"?>\n<doc>x</doc>\n", "UTF-8"),
+							FileObject.XML, XmlObject.class);
+		failures += check(dir, "xml-utf8-bom.xml", concat(new byte[] { (byte)0xef, (byte)0xbb, (byte)0xbf },
+							bytes("<doc>x</doc>", "UTF-8")),
+							FileObject.XML, XmlObject.class);
+		failures += check(dir, "xml-utf16-be.xml", bytes("\uFEFF<?xml version=\"1.0\" encoding=\"UTF-16\"?><doc>x</doc>", "UTF-16BE"),
+							FileObject.XML, XmlObject.class);
+		failures += check(dir, "xml-utf16-le.xml", bytes("\uFEFF<?xml version=\"1.0\" encoding=\"UTF-16\"?><doc>x</doc>", "UTF-16LE"),
+							FileObject.XML, XmlObject.class);
+		failures += check(dir, "xml-leading-space.xml", bytes("\n\n  <!-- comment --><doc>x</doc>", "UTF-8"),
+							FileObject.XML, XmlObject.class);
+		failures += check(dir, "xml-malformed.xml", bytes("<doc><unclosed></doc>", "UTF-8"),
+							FileObject.XML, FileObject.class);
+		failures += check(dir, "text.txt", bytes("Just some text, not markup.\n", "US-ASCII"),
+							FileObject.UNKNOWN, FileObject.class);
+		failures += check(dir, "jpeg.jpg", new byte[] { (byte)0xff, (byte)0xd8, (byte)0xff, (byte)0xe0, 0, 16,
+							'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0 },
+							FileObject.UNKNOWN, FileObject.class);
+		failures += check(dir, "tiny.bin", new byte[] { 8, 0, 5 },
+							FileObject.UNKNOWN, FileObject.class);
+		failures += check(dir, "empty.bin", new byte[0],
+							FileObject.UNKNOWN, FileObject.class);
+		failures += check(dir, "random.bin", randomBytes(8192),
+							FileObject.UNKNOWN, FileObject.class);
+
+		System.out.println((checked - failures) + " of " + checked + " files identified correctly");
+		if (args.length > 1) list(new File(args[1]));
+		System.exit((failures == 0) ? 0 : 1);
+	}
+
+	//Write a file and check its type and the class of its FileObject.
+	//Return 1 if the check failed, or 0 if it passed.
+	static int check(File dir, String name, byte[] data, int type, Class cls) throws Exception {
+		checked++;
+		File file = new File(dir, name);
+		FileOutputStream fos = new FileOutputStream(file);
+		fos.write(data);
+		fos.close();
+		int actualType = FileObject.getType(file);
+		Class actualClass = FileObject.getObject(file).getClass();
+		boolean ok = (actualType == type) && actualClass.equals(cls);
+		System.out.println((ok ? "ok    " : "ERROR ") + name + ": " + typeNames[actualType]
+							+ ", " + actualClass.getSimpleName()
+							+ (ok ? "" : " (expected " + typeNames[type] + ", " + cls.getSimpleName() + ")"));
+		return ok ? 0 : 1;
+	}
+
+	//List the types of the files in a directory.
+	static void list(File dir) {
+		File[] files = dir.listFiles();
+		if (files == null) return;
+		Arrays.sort(files);
+		for (int i=0; i<files.length; i++) {
+			if (!files[i].isFile()) continue;
+			System.out.println(files[i].getName() + ": " + typeNames[FileObject.getType(files[i])]
+								+ ", " + FileObject.getObject(files[i]).getClass().getSimpleName());
+		}
+	}
+
+	static Dataset makeDataset() {
+		Dataset ds = DcmObjectFactory.getInstance().newDataset();
+		ds.putUI(Tags.SOPClassUID, UIDs.SecondaryCaptureImageStorage);
+		ds.putUI(Tags.SOPInstanceUID, "1.2.826.0.1.3680043.2.1143.6.1");
+		ds.putUI(Tags.StudyInstanceUID, "1.2.826.0.1.3680043.2.1143.6.2");
+		ds.putPN(Tags.PatientName, "Sniff^Test");
+		ds.putLO(Tags.PatientID, "ST1");
+		ds.putUS(Tags.Rows, 16);
+		ds.putUS(Tags.Columns, 16);
+		ds.putUS(Tags.BitsAllocated, 8);
+		ds.putOB(Tags.PixelData, new byte[256]);
+		return ds;
+	}
+
+	//Write a dataset as a DICOM Part 10 file, with the preamble.
+	static byte[] dicomFile(Dataset ds, String tsuid) throws Exception {
+		ds.setFileMetaInfo(DcmObjectFactory.getInstance().newFileMetaInfo(ds, tsuid));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ds.writeFile(out, null);
+		ds.setFileMetaInfo(null);
+		return out.toByteArray();
+	}
+
+	//Write a dataset without the preamble or the file meta information.
+	static byte[] dicomRaw(Dataset ds, DcmEncodeParam param) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ds.writeDataset(out, param);
+		return out.toByteArray();
+	}
+
+	//Make the preamble and prefix of a DICOM file with nothing after them.
+	static byte[] dicomPrefixOnly() {
+		byte[] b = new byte[132];
+		b[128] = 'D';
+		b[129] = 'I';
+		b[130] = 'C';
+		b[131] = 'M';
+		return b;
+	}
+
+	//Make a zip file with one entry, or none if the name is null.
+	static byte[] zipFile(String name, String text) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ZipOutputStream zos = new ZipOutputStream(out);
+		if (name != null) {
+			zos.putNextEntry(new ZipEntry(name));
+			zos.write(text.getBytes("UTF-8"));
+			zos.closeEntry();
+		}
+		zos.close();
+		return out.toByteArray();
+	}
+
+	static byte[] bytes(String s, String charset) throws Exception {
+		return s.getBytes(charset);
+	}
+
+	static byte[] concat(byte[] a, byte[] b) {
+		byte[] c = new byte[a.length + b.length];
+		System.arraycopy(a, 0, c, 0, a.length);
+		System.arraycopy(b, 0, c, a.length, b.length);
+		return c;
+	}
+
+	static byte[] randomBytes(int n) {
+		byte[] b = new byte[n];
+		new Random(1).nextBytes(b);
+		return b;
+	}
+
+}
@@ -0,0 +1,177 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.perftest;
+
+import java.io.*;
+import java.util.*;
+import org.rsna.mircsite.dicomservice.ExportQueue;
+import org.rsna.mircsite.util.WorkSignal;
+
+/**
+ * A test of the time from the arrival of an object to its export.
+ * <p>
+ * The test runs a two-hop pipeline built like the DICOM service: a
+ * processor thread which scans an import directory, moves each file
+ * to a store directory and adds it to an ExportQueue, and an exporter
+ * thread which takes the entries from the queue. Both threads wait on a
+ * WorkSignal between scans, with the same one-minute safety sweep as the
+ * services. Files are dropped into the import directory one at a time,
+ * first with a post to the WorkSignal, as the Storage SCP listener and
+ * the HttpImportService do, and then without one, as another program
+ * would; those are found by the check of the modification time of the
+ * directory. The test reports the latency from drop to export for each kind
+ * of drop. With the earlier 10-second polling, each hop added up to
+ * 10 seconds.
+ * <p>
+ * Usage: java -cp {classpath} org.rsna.perftest.WakeupLatencyTest [dir [count]]
+ */
+public class WakeupLatencyTest {
+
+	static final int defaultCount = 40;
+	static final long sweepInterval = 60000;
+	static final long dropInterval = 250;
+
+	static final Hashtable<String,Long> dropTimes = new Hashtable<String,Long>();
+	static final List<Long> posted = Collections.synchronizedList(new ArrayList<Long>());
+	static final List<Long> unposted = Collections.synchronizedList(new ArrayList<Long>());
+
+	/**
+	 * Run the test.
+	 * @param args the working directory and the number of files to drop.
+	 */
+	public static void main(String[] args) throws Exception {
+		File dir = new File((args.length > 0) ? args[0] : "wakeup-latency-test");
+		int count = (args.length > 1) ? Integer.parseInt(args[1]) : defaultCount;
+		QueueRecoveryTest.deleteAll(dir);
+		File importDir = new File(dir, "import");
+		File storeDir = new File(dir, "store");
+		File exportDir = new File(dir, "export");
+		importDir.mkdirs();
+		storeDir.mkdirs();
+		ExportQueue queue = ExportQueue.get(exportDir);
+
+		Processor processor = new Processor(importDir, storeDir, queue);
+		Exporter exporter = new Exporter(queue, count);
+		processor.start();
+		exporter.start();
+		Thread.sleep(1000);
+
+		Random random = new Random(1);
+		for (int i=0; i<count; i++) {
+			boolean post = (i < count / 2);
+			String name = (post ? "posted-" : "unposted-") + i + ".dcm";
+			File temp = new File(dir, name);
+			FileOutputStream fos = new FileOutputStream(temp);
+			fos.write(new byte[1024]);
+			fos.close();
+			dropTimes.put(name, new Long(System.currentTimeMillis()));
+			temp.renameTo(new File(importDir, name));
+			if (post) WorkSignal.post(importDir);
+			Thread.sleep(dropInterval + random.nextInt((int)dropInterval));
+		}
+		exporter.join(sweepInterval * 2);
+		processor.interrupt();
+		exporter.interrupt();
+		ExportQueue.closeAll();
+
+		report("Drops with a post   ", posted);
+		report("Drops without a post", unposted);
+		int missing = count - posted.size() - unposted.size();
+		if (missing > 0) System.out.println(missing + " files were not exported");
+	}
+
+	static void report(String name, List<Long> list) {
+		if (list.size() == 0) {
+			System.out.println(name + ": none exported");
+			return;
+		}
+		long total = 0;
+		long max = 0;
+		long min = Long.MAX_VALUE;
+		for (Long t : list) {
+			long v = t.longValue();
+			total += v;
+			max = Math.max(max, v);
+			min = Math.min(min, v);
+		}
+		System.out.println(name + ": " + list.size() + " files; latency min " + min
+							+ "ms, mean " + (total / list.size()) + "ms, max " + max + "ms");
+	}
+
+	//A thread which moves the files in the import directory
+	//to the store directory and queues them for export.
+	static class Processor extends Thread {
+		File importDir;
+		File storeDir;
+		ExportQueue queue;
+		WorkSignal signal = new WorkSignal();
+
+		Processor(File importDir, File storeDir, ExportQueue queue) {
+			super("Processor");
+			this.importDir = importDir;
+			this.storeDir = storeDir;
+			this.queue = queue;
+			signal.watch(importDir);
+		}
+
+		public void run() {
+			try {
+				while (!interrupted()) {
+					File[] files = importDir.listFiles();
+					for (int i=0; i<files.length; i++) {
+						File file = new File(storeDir, files[i].getName());
+						if (files[i].renameTo(file)) queue.add(file);
+					}
+					signal.await(sweepInterval);
+				}
+			}
+			catch (Exception done) { }
+			finally { signal.unwatchAll(); }
+		}
+	}
+
+	//A thread which takes the entries from the export queue
+	//and records the time since each file was dropped.
+	static class Exporter extends Thread {
+		ExportQueue queue;
+		int count;
+		WorkSignal signal = new WorkSignal();
+
+		Exporter(ExportQueue queue, int count) {
+			super("Exporter");
+			this.queue = queue;
+			this.count = count;
+			signal.watch(queue.getDirectory());
+		}
+
+		public void run() {
+			try {
+				int exported = 0;
+				while (!interrupted() && (exported < count)) {
+					ExportQueue.Entry entry;
+					while ((entry = queue.next()) != null) {
+						long now = System.currentTimeMillis();
+						String name = entry.getName();
+						Long dropTime = dropTimes.get(name);
+						if (dropTime != null) {
+							long latency = now - dropTime.longValue();
+							if (name.startsWith("posted")) posted.add(new Long(latency));
+							else unposted.add(new Long(latency));
+						}
+						queue.ack(entry);
+						exported++;
+					}
+					if (exported < count) signal.await(sweepInterval);
+				}
+			}
+			catch (Exception done) { }
+			finally { signal.unwatchAll(); }
+		}
+	}
+
+}